@@ -23,6 +23,9 @@ package com.eclipsesource.json;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -330,16 +333,33 @@ public final class Json {
 
   static class DefaultHandler extends JsonHandler<JsonArray, JsonObject> {
 
+    // Member names are shared between objects up to this number of distinct names
+    static final int MAX_SHARED_NAMES = 1024;
+
+    // Objects are presized for at most this many members
+    static final int MAX_SIZE_HINT = 64;
+
     protected JsonValue value;
 
+    // Distinct member names seen so far - objects in the same document tend to repeat them
+    private final Map<String, String> sharedNames = new HashMap<String, String>();
+
+    // Number of members of the last object completed at each nesting level - sibling objects
+    // usually have the same members
+    private int[] sizeHints = new int[8];
+    private int depth;
+
     @Override
     public JsonArray startArray() {
+      depth++;
       return new JsonArray();
     }
 
     @Override
     public JsonObject startObject() {
-      return new JsonObject();
+      depth++;
+      int hint = depth < sizeHints.length ? sizeHints[depth] : 0;
+      return hint > 0 ? new JsonObject(hint) : new JsonObject();
     }
 
     @Override
@@ -364,11 +384,17 @@ public final class Json {
 
     @Override
     public void endArray(JsonArray array) {
+      depth--;
       value = array;
     }
 
     @Override
     public void endObject(JsonObject object) {
+      if (depth >= sizeHints.length) {
+        sizeHints = Arrays.copyOf(sizeHints, depth * 2);
+      }
+      sizeHints[depth] = Math.min(object.size(), MAX_SIZE_HINT);
+      depth--;
       value = object;
     }
 
@@ -379,7 +405,18 @@ public final class Json {
 
     @Override
     public void endObjectValue(JsonObject object, String name) {
-      object.add(name, value);
+      object.add(shareName(name), value);
+    }
+
+    private String shareName(String name) {
+      String shared = sharedNames.get(name);
+      if (shared != null) {
+        return shared;
+      }
+      if (sharedNames.size() < MAX_SHARED_NAMES) {
+        sharedNames.put(name, name);
+      }
+      return name;
     }
 
     JsonValue getValue() {
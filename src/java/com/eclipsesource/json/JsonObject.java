@@ -85,6 +85,22 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
     table = new HashIndexTable();
   }
 
+  /**
+   * Creates a new empty JsonObject with room for the given number of members. Objects grow as
+   * needed, this only avoids resizing when the number of members is known in advance.
+   *
+   * @param expectedSize
+   *          the expected number of members
+   */
+  public JsonObject(int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("expectedSize is negative");
+    }
+    names = new ArrayList<String>(expectedSize);
+    values = new ArrayList<JsonValue>(expectedSize);
+    table = new HashIndexTable(expectedSize);
+  }
+
   /**
    * Creates a new JsonObject, initialized with the contents of the specified JSON object.
    *
@@ -106,7 +122,7 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
       names = new ArrayList<String>(object.names);
       values = new ArrayList<JsonValue>(object.values);
     }
-    table = new HashIndexTable();
+    table = new HashIndexTable(names.size());
     updateHashIndex();
   }
 
@@ -331,6 +347,7 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
     if (value == null) {
       throw new NullPointerException("value is null");
     }
+    ensureTableCapacity();
     table.add(name, names.size());
     names.add(name);
     values.add(value);
@@ -496,6 +513,7 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
     if (index != -1) {
       values.set(index, value);
     } else {
+      ensureTableCapacity();
       table.add(name, names.size());
       names.add(name);
       values.add(value);
@@ -795,10 +813,18 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
       throws IOException, ClassNotFoundException
   {
     inputStream.defaultReadObject();
-    table = new HashIndexTable();
+    table = new HashIndexTable(names.size());
     updateHashIndex();
   }
 
+  // The hash table grows with the object so that lookups rarely fall back to a linear search
+  private void ensureTableCapacity() {
+    if (!table.hasRoomFor(names.size() + 1)) {
+      table = new HashIndexTable(names.size() + 1);
+      updateHashIndex();
+    }
+  }
+
   private void updateHashIndex() {
     int size = names.size();
     for (int i = 0; i < size; i++) {
@@ -877,13 +903,31 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
 
   static class HashIndexTable {
 
-    private final byte[] hashTable = new byte[32]; // must be a power of two
+    // Table sizes must be powers of two. At most half of the slots are used, as members with an
+    // index above 0xfe are not stored, tables never grow beyond MAX_SIZE.
+    static final int MIN_SIZE = 8;
+    static final int MAX_SIZE = 512;
+
+    private final byte[] hashTable;
 
     public HashIndexTable() {
+      this(0);
+    }
+
+    public HashIndexTable(int expectedSize) {
+      int size = MIN_SIZE;
+      while (size < expectedSize * 2 && size < MAX_SIZE) {
+        size <<= 1;
+      }
+      hashTable = new byte[size];
     }
 
     public HashIndexTable(HashIndexTable original) {
-      System.arraycopy(original.hashTable, 0, hashTable, 0, hashTable.length);
+      hashTable = original.hashTable.clone();
+    }
+
+    boolean hasRoomFor(int size) {
+      return size * 2 <= hashTable.length || hashTable.length >= MAX_SIZE;
     }
 
     void add(String name, int index) {
@@ -898,9 +942,10 @@ public class JsonObject extends JsonValue implements Iterable<Member> {
 
     void remove(int index) {
       for (int i = 0; i < hashTable.length; i++) {
-        if (hashTable[i] == index + 1) {
+        int stored = hashTable[i] & 0xff;
+        if (stored == index + 1) {
           hashTable[i] = 0;
-        } else if (hashTable[i] > index + 1) {
+        } else if (stored > index + 1) {
           hashTable[i]--;
         }
       }
@@ -22,6 +22,7 @@
 package com.eclipsesource.json;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringWriter;
@@ -84,6 +85,14 @@ public abstract class JsonValue implements Serializable {
   @Deprecated
   public static final JsonValue NULL = new JsonLiteral("null");
 
+  private static final ThreadLocal<Utf8OutputBuffer> STREAM_BUFFER
+      = new ThreadLocal<Utf8OutputBuffer>() {
+    @Override
+    protected Utf8OutputBuffer initialValue() {
+      return new Utf8OutputBuffer();
+    }
+  };
+
   JsonValue() {
     // prevent subclasses outside of this package
   }
@@ -437,6 +446,35 @@ public abstract class JsonValue implements Serializable {
     buffer.flush();
   }
 
+  /**
+   * Writes the JSON representation of this value to the given stream as UTF-8 using the given
+   * formatting. The characters are encoded directly into a per-thread byte buffer that is drained
+   * to the stream whenever it fills up, so no intermediate string or writer is needed.
+   * <p>
+   * The stream is not flushed or closed by this method.
+   * </p>
+   *
+   * @param stream
+   *          the stream to write this value to
+   * @param config
+   *          a configuration that controls the formatting
+   * @throws IOException
+   *           if an I/O error occurs in the stream
+   * @see Utf8OutputBuffer
+   */
+  public void writeTo(OutputStream stream, WriterConfig config) throws IOException {
+    if (stream == null) {
+      throw new NullPointerException("stream is null");
+    }
+    Utf8OutputBuffer buffer = STREAM_BUFFER.get().reset(stream);
+    try {
+      buffer.append(this, config);
+      buffer.flush();
+    } finally {
+      buffer.reset();
+    }
+  }
+
   /**
    * Returns the JSON string for this value in its minimal form, without any additional whitespace.
    * The result is guaranteed to be a valid input for the method {@link #readFrom(String)} and to
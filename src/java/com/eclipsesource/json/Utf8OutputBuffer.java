@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2015 EclipseSource.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ ******************************************************************************/
+package com.eclipsesource.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A reusable buffer that encodes the characters written to it directly as UTF-8 bytes, without
+ * creating intermediate strings or byte arrays. It can be used in two ways:
+ * <ul>
+ * <li>Bound to an {@link OutputStream}, the buffer has a fixed size and is drained to the stream
+ * whenever it fills up. This is how {@link JsonValue#writeTo(OutputStream, WriterConfig)} streams
+ * a document to a file.</li>
+ * <li>Unbound, the buffer grows as needed and keeps the complete encoded document, which may then
+ * be written to a channel or stream in a single operation. This is useful when the length of the
+ * encoded form has to be known before writing it, e.g. for appending records to a log file.</li>
+ * </ul>
+ * <p>
+ * Unpaired surrogate characters are encoded as <code>'?'</code>, like
+ * {@link String#getBytes(java.nio.charset.Charset)} does. This implementation is not thread-safe.
+ * Like {@link WritingBuffer}, it does not flush or close the underlying stream.
+ * </p>
+ */
+public class Utf8OutputBuffer extends Writer {
+
+  private static final int DEFAULT_CAPACITY = 8192;
+
+  private OutputStream out;
+  private byte[] bytes;
+  private int fill;
+  private char highSurrogate;
+
+  /**
+   * Creates a new, unbound buffer that grows as needed.
+   */
+  public Utf8OutputBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new, unbound buffer with the given initial capacity in bytes.
+   *
+   * @param initialCapacity
+   *          the initial capacity of the buffer
+   */
+  public Utf8OutputBuffer(int initialCapacity) {
+    if (initialCapacity < 4) {
+      throw new IllegalArgumentException("initialCapacity is too small: " + initialCapacity);
+    }
+    bytes = new byte[initialCapacity];
+  }
+
+  /**
+   * Discards the content of this buffer and binds it to the given stream. Pass <code>null</code>
+   * to make the buffer unbound again.
+   *
+   * @param out
+   *          the stream to drain the buffer to when it is full, or <code>null</code>
+   * @return this buffer, to allow method chaining
+   */
+  public Utf8OutputBuffer reset(OutputStream out) {
+    this.out = out;
+    fill = 0;
+    highSurrogate = 0;
+    return this;
+  }
+
+  /**
+   * Discards the content of this buffer and makes it unbound.
+   *
+   * @return this buffer, to allow method chaining
+   */
+  public Utf8OutputBuffer reset() {
+    return reset(null);
+  }
+
+  /**
+   * Appends the JSON representation of the given value to this buffer using the given formatting.
+   *
+   * @param value
+   *          the value to append
+   * @param config
+   *          a configuration that controls the formatting
+   * @return this buffer, to allow method chaining
+   * @throws IOException
+   *           if an I/O error occurs while draining to the bound stream
+   */
+  public Utf8OutputBuffer append(JsonValue value, WriterConfig config) throws IOException {
+    if (value == null) {
+      throw new NullPointerException("value is null");
+    }
+    if (config == null) {
+      throw new NullPointerException("config is null");
+    }
+    value.write(config.createWriter(this));
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      write('?');
+    }
+    return this;
+  }
+
+  /**
+   * Returns the number of encoded bytes currently held by this buffer.
+   *
+   * @return the number of bytes in the buffer
+   */
+  public int size() {
+    return fill;
+  }
+
+  /**
+   * Returns a byte buffer that wraps the encoded content of this buffer without copying it. The
+   * returned buffer is only valid until this buffer is modified.
+   *
+   * @return a view of the content of this buffer
+   */
+  public ByteBuffer asByteBuffer() {
+    return ByteBuffer.wrap(bytes, 0, fill);
+  }
+
+  /**
+   * Writes the encoded content of this buffer to the given stream.
+   *
+   * @param stream
+   *          the stream to write to
+   * @throws IOException
+   *           if an I/O error occurs in the stream
+   */
+  public void writeTo(OutputStream stream) throws IOException {
+    stream.write(bytes, 0, fill);
+  }
+
+  /**
+   * Writes the encoded content of this buffer to the given channel.
+   *
+   * @param channel
+   *          the channel to write to
+   * @throws IOException
+   *           if an I/O error occurs in the channel
+   */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    ByteBuffer buffer = asByteBuffer();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    encode((char)c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      char c = cbuf[i];
+      if (c < 0x80 && highSurrogate == 0) {
+        if (fill == bytes.length) {
+          makeRoom(1);
+        }
+        bytes[fill++] = (byte)c;
+      } else {
+        encode(c);
+      }
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80 && highSurrogate == 0) {
+        if (fill == bytes.length) {
+          makeRoom(1);
+        }
+        bytes[fill++] = (byte)c;
+      } else {
+        encode(c);
+      }
+    }
+  }
+
+  /**
+   * Drains the buffer to the bound stream, if any. Does not flush the stream itself. A pending
+   * high surrogate is kept until its low surrogate is written.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (out != null && fill > 0) {
+      out.write(bytes, 0, fill);
+      fill = 0;
+    }
+  }
+
+  /**
+   * Does not close or flush the bound stream.
+   */
+  @Override
+  public void close() throws IOException {
+  }
+
+  private void encode(char c) throws IOException {
+    if (fill > bytes.length - 4) {
+      makeRoom(4);
+    }
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        bytes[fill++] = (byte)(0xf0 | (codePoint >> 18));
+        bytes[fill++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+        bytes[fill++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+        bytes[fill++] = (byte)(0x80 | (codePoint & 0x3f));
+        return;
+      }
+      bytes[fill++] = '?';
+      encode(c);
+      return;
+    }
+    if (c < 0x80) {
+      bytes[fill++] = (byte)c;
+    } else if (c < 0x800) {
+      bytes[fill++] = (byte)(0xc0 | (c >> 6));
+      bytes[fill++] = (byte)(0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      bytes[fill++] = '?';
+    } else {
+      bytes[fill++] = (byte)(0xe0 | (c >> 12));
+      bytes[fill++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+      bytes[fill++] = (byte)(0x80 | (c & 0x3f));
+    }
+  }
+
+  private void makeRoom(int needed) throws IOException {
+    if (out != null) {
+      flush();
+      return;
+    }
+    int capacity = bytes.length;
+    while (capacity - fill < needed) {
+      capacity *= 2;
+    }
+    byte[] newBytes = new byte[capacity];
+    System.arraycopy(bytes, 0, newBytes, 0, fill);
+    bytes = newBytes;
+  }
+
+}
@@ -43,7 +43,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.DecimalFormat;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -273,22 +272,18 @@ public class AddressesPanel
 			// zend has a bug that sometimes supposedly newly returned addresses have actually
 			// been used as change addresses.
 			String address = null;
-			double dBalance = 0;
+			Zatoshi balance = Zatoshi.ZERO;
 			do
 			{
 				address = this.clientCaller.createNewAddress(isZAddress);
 				Log.info("Newly obtained address is: {0}", address);
-				String sBalance = this.clientCaller.getBalanceForAddress(address);
-				if (!Util.stringIsEmpty(sBalance))
-				{
-					dBalance = Double.parseDouble(sBalance);
-				}
+				balance = this.clientCaller.getBalanceForAddress(address);
 				
-				if (dBalance > 0)
+				if (balance.signum() > 0)
 				{
 					Log.warning("New address {0} generated by zend has been used before. Will generate another!", address);
 				}
-			} while (dBalance > 0);
+			} while (balance.signum() > 0);
 
 			// Lock the wallet again
 			if (bEncryptedWallet && isZAddress)
@@ -435,9 +430,6 @@ public class AddressesPanel
 
 		String[][] addressBalances = new String[zAddresses.length + tAddressesCombined.size()][];
 
-		// Format double numbers - else sometimes we get exponential notation 1E-4 ZEN
-		DecimalFormat df = new DecimalFormat("########0.00######");
-
 		String confirmed    = "\u2690";
 		String notConfirmed = "\u2691";
 
@@ -479,11 +471,10 @@ public class AddressesPanel
 			}
 			// End of check for invalid/watch only addresses
 
-			String confirmedBalance = this.clientCaller.getBalanceForAddress(address);
-			String unconfirmedBalance = this.clientCaller.getUnconfirmedBalanceForAddress(address);
+			Zatoshi confirmedBalance = this.clientCaller.getBalanceForAddress(address);
+			Zatoshi unconfirmedBalance = this.clientCaller.getUnconfirmedBalanceForAddress(address);
 			boolean isConfirmed =  (confirmedBalance.equals(unconfirmedBalance));
-			String balanceToShow = df.format(Double.valueOf(
-					isConfirmed ? confirmedBalance : unconfirmedBalance));
+			String balanceToShow = unconfirmedBalance.toDisplayString();
 
 			addressBalances[i++] = new String[]
 			{
@@ -497,11 +488,10 @@ public class AddressesPanel
 
 		for (String address : zAddresses)
 		{
-			String confirmedBalance = this.clientCaller.getBalanceForAddress(address);
-			String unconfirmedBalance = this.clientCaller.getUnconfirmedBalanceForAddress(address);
+			Zatoshi confirmedBalance = this.clientCaller.getBalanceForAddress(address);
+			Zatoshi unconfirmedBalance = this.clientCaller.getUnconfirmedBalanceForAddress(address);
 			boolean isConfirmed =  (confirmedBalance.equals(unconfirmedBalance));
-			String balanceToShow = df.format(Double.valueOf(
-					isConfirmed ? confirmedBalance : unconfirmedBalance));
+			String balanceToShow = unconfirmedBalance.toDisplayString();
 
 			addressBalances[i++] = new String[]
 			{
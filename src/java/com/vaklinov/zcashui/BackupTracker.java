@@ -60,10 +60,10 @@ public class BackupTracker
 	/**
 	 * Called when the wallet balance is updated. 
 	 */
-	public synchronized void handleWalletBalanceUpdate(double balance)
+	public synchronized void handleWalletBalanceUpdate(Zatoshi balance)
 		throws IOException
 	{
-		if ((balance > 0) && (!transactionsCounterFileExists()))
+		if ((balance.signum() > 0) && (!transactionsCounterFileExists()))
 		{
 			this.promptToDoABackup();
 		}
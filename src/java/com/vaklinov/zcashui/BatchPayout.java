@@ -0,0 +1,709 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+
+
+/**
+ * Pays out ZEN from one source address to many recipients loaded from a CSV file with rows of the
+ * form: address,amount,memo (memo is optional). The recipients are packed into as few z_sendmany
+ * operations as the protocol allows. The operations are followed to completion by the
+ * {@link OperationTracker}.
+ * 
+ * The operations are submitted one after another. z_sendmany spends only confirmed funds, so an
+ * operation started while the previous one is still in flight, or before its change is confirmed,
+ * would typically fail for lack of funds.
+ */
+public class BatchPayout
+{
+	// Max. number of Z outputs in one z_sendmany (JoinSplit limit of the transaction size)
+	public static final int MAX_Z_OUTPUTS_PER_OPERATION = 54;
+	// Max. number of outputs in one z_sendmany - well within the 100 KB transaction size limit
+	public static final int MAX_OUTPUTS_PER_OPERATION = 400;
+
+	// Max. memo size in bytes
+	private static final int MAX_MEMO_BYTES = 512;
+
+	// Max. number of rows in a CSV file
+	private static final int MAX_CSV_ROWS = 100000;
+
+	// Interval of checks of the operation in flight and of the confirmed balance
+	private static final long SUBMIT_POLL_INTERVAL = 2000;
+
+	// Max. time to wait for the confirmed balance to cover the next operation
+	private static final long MAX_CONFIRMATION_WAIT = 60 * 60 * 1000L;
+
+
+	/**
+	 * Receives the progress of a payout being submitted - called in the submitting thread.
+	 */
+	public static interface SubmitListener
+	{
+		// waitingForBalance - the next operation waits for the change of the previous one to be confirmed
+		void submitProgress(int numCompleteOperations, boolean waitingForBalance);
+	}
+
+
+	/**
+	 * One row of the payout - a single recipient.
+	 */
+	public static class Recipient
+	{
+		private int    lineNumber;
+		private String address;
+		private BigDecimal amount;
+		private String memo;
+
+		// Result of the payout
+		private String opID;
+		private String status;
+		private String txID;
+		private String errorMessage;
+
+
+		public Recipient(int lineNumber, String address, BigDecimal amount, String memo)
+		{
+			this.lineNumber = lineNumber;
+			this.address    = address;
+			this.amount     = amount;
+			this.memo       = memo;
+			this.status     = "pending";
+		}
+
+
+		public int getLineNumber()
+		{
+			return this.lineNumber;
+		}
+
+
+		public String getAddress()
+		{
+			return this.address;
+		}
+
+
+		public BigDecimal getAmount()
+		{
+			return this.amount;
+		}
+
+
+		public String getMemo()
+		{
+			return this.memo;
+		}
+
+
+		public String getStatus()
+		{
+			return this.status;
+		}
+
+
+		public String getTXID()
+		{
+			return this.txID;
+		}
+
+
+		public String getErrorMessage()
+		{
+			return this.errorMessage;
+		}
+
+
+		public boolean isSuccessful()
+		{
+			return "success".equalsIgnoreCase(this.status);
+		}
+	}
+
+
+	/**
+	 * A group of recipients paid with one z_sendmany operation.
+	 */
+	public static class Batch
+	{
+		private List<Recipient> recipients = new ArrayList<Recipient>();
+		private Set<String>     addresses  = new HashSet<String>();
+		private int             zOutputs   = 0;
+		private String          opID;
+		private boolean         complete   = false;
+
+
+		public List<Recipient> getRecipients()
+		{
+			return this.recipients;
+		}
+
+
+		public String getOperationID()
+		{
+			return this.opID;
+		}
+
+
+		public boolean isComplete()
+		{
+			return this.complete;
+		}
+
+
+		public BigDecimal getTotalAmount()
+		{
+			BigDecimal total = BigDecimal.ZERO;
+			for (Recipient recipient : this.recipients)
+			{
+				total = total.add(recipient.getAmount());
+			}
+
+			return total;
+		}
+
+
+		// z_sendmany does not accept the same address twice and limits the number of outputs
+		private boolean canAccept(Recipient recipient)
+		{
+			if (this.addresses.contains(recipient.getAddress()) ||
+				(this.recipients.size() >= MAX_OUTPUTS_PER_OPERATION))
+			{
+				return false;
+			}
+
+			return !(Util.isZAddress(recipient.getAddress()) && (this.zOutputs >= MAX_Z_OUTPUTS_PER_OPERATION));
+		}
+
+
+		private void add(Recipient recipient)
+		{
+			this.recipients.add(recipient);
+			this.addresses.add(recipient.getAddress());
+			if (Util.isZAddress(recipient.getAddress()))
+			{
+				this.zOutputs++;
+			}
+		}
+
+
+		private void setResult(String status, String txID, String errorMessage)
+		{
+			for (Recipient recipient : this.recipients)
+			{
+				recipient.status       = status;
+				recipient.txID         = txID;
+				recipient.errorMessage = errorMessage;
+			}
+		}
+	}
+
+
+	private ZCashClientCaller clientCaller;
+	private String     sourceAddress;
+	private BigDecimal transactionFee;
+	private boolean    isOnTestNet;
+
+	private List<Recipient> recipients = new ArrayList<Recipient>();
+	private List<Batch>     batches    = new ArrayList<Batch>();
+
+	private long startTime = 0;
+	private long endTime   = 0;
+
+
+	public BatchPayout(ZCashClientCaller clientCaller, String sourceAddress, String transactionFee, boolean isOnTestNet)
+	{
+		this.clientCaller   = clientCaller;
+		this.sourceAddress  = sourceAddress;
+		this.transactionFee = new BigDecimal(transactionFee);
+		this.isOnTestNet    = isOnTestNet;
+	}
+
+
+	/**
+	 * Loads and validates the recipients from a CSV file. If no errors are found, the recipients
+	 * are packed into batches.
+	 *
+	 * @param csvFile file to load
+	 *
+	 * @return a list of validation errors - empty if the file is OK.
+	 */
+	public synchronized List<String> loadRecipients(File csvFile)
+		throws IOException
+	{
+		LanguageUtil langUtil = LanguageUtil.instance();
+		List<String> errors = new ArrayList<String>();
+		this.recipients.clear();
+		this.batches.clear();
+
+		LineNumberReader r = null;
+		try
+		{
+			r = new LineNumberReader(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"));
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				int lineNumber = r.getLineNumber();
+				if (lineNumber > MAX_CSV_ROWS)
+				{
+					errors.add(langUtil.getString("batch.payout.error.too.many.rows", MAX_CSV_ROWS));
+					break;
+				}
+
+				// Byte order mark may be present in files saved by spreadsheets
+				if ((lineNumber == 1) && line.startsWith("\uFEFF"))
+				{
+					line = line.substring(1);
+				}
+
+				if ((line.trim().length() <= 0) || line.trim().startsWith("#"))
+				{
+					continue;
+				}
+
+				List<String> fields = parseCSVLine(line);
+				// Optional header row
+				if ((lineNumber == 1) && fields.get(0).trim().equalsIgnoreCase("address"))
+				{
+					continue;
+				}
+
+				String error = this.validateAndAddRecipient(lineNumber, fields);
+				if (error != null)
+				{
+					errors.add(langUtil.getString("batch.payout.error.line", lineNumber, error));
+				}
+			}
+		} finally
+		{
+			if (r != null)
+			{
+				r.close();
+			}
+		}
+
+		if (errors.isEmpty() && this.recipients.isEmpty())
+		{
+			errors.add(langUtil.getString("batch.payout.error.no.recipients"));
+		}
+
+		if (errors.isEmpty())
+		{
+			this.packBatches();
+		}
+
+		return errors;
+	}
+
+
+	public synchronized List<Recipient> getRecipients()
+	{
+		return new ArrayList<Recipient>(this.recipients);
+	}
+
+
+	public synchronized List<Batch> getBatches()
+	{
+		return new ArrayList<Batch>(this.batches);
+	}
+
+
+	public synchronized BigDecimal getTotalAmount()
+	{
+		BigDecimal total = BigDecimal.ZERO;
+		for (Recipient recipient : this.recipients)
+		{
+			total = total.add(recipient.getAmount());
+		}
+
+		return total;
+	}
+
+
+	public synchronized BigDecimal getTotalFees()
+	{
+		return this.transactionFee.multiply(new BigDecimal(this.batches.size()));
+	}
+
+
+	/**
+	 * Submits the batches to the wallet one after another - each once the operation of the previous
+	 * one is complete and the confirmed balance of the source address covers it. A batch that cannot
+	 * be submitted is marked as failed and the remaining batches are still submitted. Returns when
+	 * all operations are complete - to be called in a background thread.
+	 *
+	 * @param operationTracker follows the submitted operations
+	 * @param listener receives the progress - may be null
+	 */
+	public void submit(OperationTracker operationTracker, SubmitListener listener)
+		throws IOException, InterruptedException
+	{
+		synchronized (this)
+		{
+			this.startTime = System.currentTimeMillis();
+		}
+
+		for (Batch batch : this.getBatches())
+		{
+			List<String[]> toMany = new ArrayList<String[]>();
+			for (Recipient recipient : batch.getRecipients())
+			{
+				toMany.add(new String[] { recipient.getAddress(), recipient.getAmount().toPlainString(), recipient.getMemo() });
+			}
+
+			String opID;
+			try
+			{
+				this.waitForConfirmedBalance(batch, listener);
+				opID = this.clientCaller.sendCashToMany(
+					this.sourceAddress, toMany, Zatoshi.valueOf(this.transactionFee));
+			} catch (WalletCallException wce)
+			{
+				Log.error("Batch payout operation could not be submitted: ", wce);
+				synchronized (this)
+				{
+					batch.complete = true;
+					batch.setResult("failed", null, wce.getMessage());
+				}
+				this.notifyProgress(listener, false);
+				continue;
+			}
+
+			synchronized (this)
+			{
+				batch.opID = opID;
+				for (Recipient recipient : batch.getRecipients())
+				{
+					recipient.opID = opID;
+				}
+			}
+
+			OperationTracker.OperationResult result = operationTracker.trackOperation(opID, null);
+			while (!result.isComplete())
+			{
+				Thread.sleep(SUBMIT_POLL_INTERVAL);
+			}
+
+			this.setOperationResult(result);
+			this.notifyProgress(listener, false);
+		}
+
+		synchronized (this)
+		{
+			if (this.endTime == 0)
+			{
+				this.endTime = System.currentTimeMillis();
+			}
+		}
+	}
+
+
+	// The change of the previous operation is spendable only once it is confirmed
+	private void waitForConfirmedBalance(Batch batch, SubmitListener listener)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		Zatoshi required = Zatoshi.valueOf(batch.getTotalAmount().add(this.transactionFee));
+		long start = System.currentTimeMillis();
+		boolean waiting = false;
+		while (true)
+		{
+			Zatoshi balance = this.clientCaller.getBalanceForAddress(this.sourceAddress);
+			if (balance.compareTo(required) >= 0)
+			{
+				return;
+			}
+
+			if ((System.currentTimeMillis() - start) > MAX_CONFIRMATION_WAIT)
+			{
+				throw new WalletCallException("Confirmed balance " + balance + " of address " + this.sourceAddress +
+					" is not sufficient for the operation: " + required);
+			}
+
+			if (!waiting)
+			{
+				Log.info("Batch payout is waiting for confirmed balance {0}. Balance is: {1}", required, balance);
+				waiting = true;
+				this.notifyProgress(listener, true);
+			}
+
+			Thread.sleep(SUBMIT_POLL_INTERVAL);
+		}
+	}
+
+
+	private void notifyProgress(SubmitListener listener, boolean waitingForBalance)
+	{
+		if (listener != null)
+		{
+			listener.submitProgress(this.getNumCompleteOperations(), waitingForBalance);
+		}
+	}
+
+
+	/**
+	 * Records the final result of one of the payout operations.
+	 *
+	 * @return true if all operations of the payout are now complete
+	 */
+	public synchronized boolean setOperationResult(OperationTracker.OperationResult result)
+	{
+		for (Batch batch : this.batches)
+		{
+			if ((!batch.isComplete()) && result.getOperationID().equals(batch.getOperationID()))
+			{
+				batch.complete = true;
+				batch.setResult(result.getStatus(), result.getTXID(), result.getErrorMessage());
+			}
+		}
+
+		for (Batch batch : this.batches)
+		{
+			if (!batch.isComplete())
+			{
+				return false;
+			}
+		}
+
+		if (this.endTime == 0)
+		{
+			this.endTime = System.currentTimeMillis();
+		}
+
+		return true;
+	}
+
+
+	public synchronized int getNumCompleteOperations()
+	{
+		int count = 0;
+		for (Batch batch : this.batches)
+		{
+			if (batch.isComplete())
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * Creates a text report with the per-recipient results and the overall throughput.
+	 */
+	public synchronized String createReport()
+	{
+		LanguageUtil langUtil = LanguageUtil.instance();
+
+		int successful = 0;
+		BigDecimal totalSent = BigDecimal.ZERO;
+		for (Recipient recipient : this.recipients)
+		{
+			if (recipient.isSuccessful())
+			{
+				successful++;
+				totalSent = totalSent.add(recipient.getAmount());
+			}
+		}
+
+		long elapsed = Math.max(1, ((this.endTime != 0) ? this.endTime : System.currentTimeMillis()) - this.startTime);
+		double recipientsPerMinute = (successful * 60000.0d) / elapsed;
+
+		StringBuilder report = new StringBuilder();
+		report.append(langUtil.getString("batch.payout.report.summary",
+			this.sourceAddress, this.recipients.size(), this.batches.size(),
+			successful, this.recipients.size() - successful, totalSent.toPlainString(),
+			this.getTotalFees().toPlainString(), String.format("%.1f", elapsed / 1000.0d),
+			String.format("%.1f", recipientsPerMinute)));
+		report.append("\n\n");
+
+		for (Recipient recipient : this.recipients)
+		{
+			report.append(recipient.getLineNumber()).append(", ");
+			report.append(recipient.getAddress()).append(", ");
+			report.append(recipient.getAmount().toPlainString()).append(", ");
+			report.append(recipient.getStatus()).append(", ");
+			if (recipient.getTXID() != null)
+			{
+				report.append(recipient.getTXID());
+			} else if (recipient.getErrorMessage() != null)
+			{
+				report.append(recipient.getErrorMessage().replace("\n", " "));
+			}
+			report.append("\n");
+		}
+
+		return report.toString();
+	}
+
+
+	// Returns an error message or null if the recipient is OK
+	private String validateAndAddRecipient(int lineNumber, List<String> fields)
+		throws IOException
+	{
+		LanguageUtil langUtil = LanguageUtil.instance();
+
+		if ((fields.size() < 2) || (fields.size() > 3))
+		{
+			return langUtil.getString("batch.payout.error.field.count");
+		}
+
+		String address = fields.get(0).trim();
+		String strAmount = fields.get(1).trim();
+		String memo = (fields.size() > 2) ? fields.get(2) : "";
+
+		if ((address.length() <= 20) || (address.length() > 512))
+		{
+			return langUtil.getString("batch.payout.error.address.invalid", address);
+		}
+
+		// Prevent accidental sending to non-ZEN addresses - same as for single sends
+		if ((!this.isOnTestNet) &&
+			(!(address.startsWith("zc") || address.startsWith("zn") || address.startsWith("zs"))))
+		{
+			return langUtil.getString("batch.payout.error.address.invalid", address);
+		}
+
+		BigDecimal amount;
+		try
+		{
+			amount = new BigDecimal(strAmount);
+		} catch (NumberFormatException nfe)
+		{
+			return langUtil.getString("batch.payout.error.amount.invalid", strAmount);
+		}
+
+		if ((amount.signum() <= 0) || (amount.stripTrailingZeros().scale() > 8))
+		{
+			return langUtil.getString("batch.payout.error.amount.invalid", strAmount);
+		}
+
+		if (!Util.stringIsEmpty(memo))
+		{
+			if (!Util.isZAddress(address))
+			{
+				return langUtil.getString("batch.payout.error.memo.not.z", address);
+			}
+
+			if (memo.getBytes("UTF-8").length > MAX_MEMO_BYTES)
+			{
+				return langUtil.getString("batch.payout.error.memo.too.long", MAX_MEMO_BYTES);
+			}
+		}
+
+		this.recipients.add(new Recipient(lineNumber, address, amount, memo));
+		return null;
+	}
+
+
+	// First fit - each recipient goes into the first batch that may still take it
+	private void packBatches()
+	{
+		for (Recipient recipient : this.recipients)
+		{
+			Batch target = null;
+			for (Batch batch : this.batches)
+			{
+				if (batch.canAccept(recipient))
+				{
+					target = batch;
+					break;
+				}
+			}
+
+			if (target == null)
+			{
+				target = new Batch();
+				this.batches.add(target);
+			}
+
+			target.add(recipient);
+		}
+
+		Log.info("Batch payout of {0} recipients packed into {1} operations.",
+			     this.recipients.size(), this.batches.size());
+	}
+
+
+	// Splits a CSV line into fields - double quotes may be used for fields with commas
+	static List<String> parseCSVLine(String line)
+	{
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean inQuotes = false;
+
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (inQuotes)
+			{
+				if (c == '"')
+				{
+					if ((i + 1 < line.length()) && (line.charAt(i + 1) == '"'))
+					{
+						field.append('"');
+						i++;
+					} else
+					{
+						inQuotes = false;
+					}
+				} else
+				{
+					field.append(c);
+				}
+			} else if (c == '"')
+			{
+				inQuotes = true;
+			} else if (c == ',')
+			{
+				fields.add(field.toString());
+				field.setLength(0);
+			} else
+			{
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+
+		return fields;
+	}
+}
@@ -0,0 +1,385 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaklinov.zcashui.ZCashClientCaller.UnspentOutput;
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+
+
+/**
+ * Plans a send operation that returns the change explicitly to the source address. The plan is
+ * computed locally from a snapshot of the wallet's unspent outputs and notes - all inputs, the fee
+ * and the change output are known (and validated) before the single z_sendmany is submitted.
+ * <p>
+ * The snapshot covers all addresses of the wallet and is obtained with one listunspent and one
+ * z_listunspent call. It is reused until a new block arrives, it becomes too old or it is
+ * invalidated after a send.
+ */
+public class ChangePlanner
+{
+	// Max. age of a snapshot in ms before it is refreshed
+	public static final long MAX_SNAPSHOT_AGE = 60 * 1000;
+
+	// Max. number of T inputs - each is ~150 bytes and the transaction size is limited to 100 KB
+	public static final int MAX_TRANSPARENT_INPUTS = 600;
+
+	// Min. confirmations of the inputs spent by z_sendmany
+	private static final int MIN_CONFIRMATIONS = 1;
+
+
+	/**
+	 * Unspent T output or Z note of the snapshot.
+	 */
+	public static class SpendableOutput
+	{
+		private String     txID;
+		private Zatoshi    amount;
+		private int        confirmations;
+		private boolean    coinbase;
+
+
+		public String getTXID()
+		{
+			return this.txID;
+		}
+
+
+		public Zatoshi getAmount()
+		{
+			return this.amount;
+		}
+
+
+		public int getConfirmations()
+		{
+			return this.confirmations;
+		}
+
+
+		public boolean isCoinbase()
+		{
+			return this.coinbase;
+		}
+	}
+
+
+	/**
+	 * Fully computed send with explicit change.
+	 */
+	public static class ChangePlan
+	{
+		private String     sourceAddress;
+		private String     destinationAddress;
+		private String     memo;
+		private Zatoshi    amount;
+		private Zatoshi    fee;
+
+		private int        numInputs          = 0;
+		private Zatoshi    inputsTotal        = Zatoshi.ZERO;
+		private Zatoshi    unconfirmedTotal   = Zatoshi.ZERO;
+		private Zatoshi    excludedCoinbase   = Zatoshi.ZERO;
+		private Zatoshi    change             = Zatoshi.ZERO;
+
+		private List<String> errors = new ArrayList<String>();
+
+
+		public String getSourceAddress()
+		{
+			return this.sourceAddress;
+		}
+
+
+		public String getDestinationAddress()
+		{
+			return this.destinationAddress;
+		}
+
+
+		public Zatoshi getAmount()
+		{
+			return this.amount;
+		}
+
+
+		public Zatoshi getFee()
+		{
+			return this.fee;
+		}
+
+
+		// All confirmed spendable inputs are spent since the change covers the rest
+		public int getNumInputs()
+		{
+			return this.numInputs;
+		}
+
+
+		public Zatoshi getInputsTotal()
+		{
+			return this.inputsTotal;
+		}
+
+
+		// Unconfirmed funds of the source address - not spent by the operation
+		public Zatoshi getUnconfirmedTotal()
+		{
+			return this.unconfirmedTotal;
+		}
+
+
+		// Coinbase funds of a T source address - z_sendmany cannot send them to T addresses
+		public Zatoshi getExcludedCoinbase()
+		{
+			return this.excludedCoinbase;
+		}
+
+
+		public Zatoshi getChange()
+		{
+			return this.change;
+		}
+
+
+		public List<String> getErrors()
+		{
+			return this.errors;
+		}
+
+
+		public boolean isValid()
+		{
+			return this.errors.isEmpty();
+		}
+
+
+		/**
+		 * Recipients in the form expected by {@link ZCashClientCaller#sendCashToMany}. A zero change
+		 * is not sent back.
+		 */
+		public List<String[]> getRecipients()
+		{
+			List<String[]> recipients = new ArrayList<String[]>();
+			recipients.add(new String[] { this.destinationAddress, this.amount.toString(), this.memo });
+			if (this.change.signum() > 0)
+			{
+				recipients.add(new String[] { this.sourceAddress, this.change.toString(), null });
+			}
+
+			return recipients;
+		}
+	}
+
+
+	private ZCashClientCaller clientCaller;
+
+	// Address -> unspent outputs/notes (confirmed and unconfirmed)
+	private Map<String, List<SpendableOutput>> snapshot = null;
+	private long snapshotTime   = 0;
+	private int  snapshotHeight = -1;
+
+
+	public ChangePlanner(ZCashClientCaller clientCaller)
+	{
+		this.clientCaller = clientCaller;
+	}
+
+
+	/**
+	 * Reloads the snapshot of unspent outputs and notes for all wallet addresses.
+	 */
+	public void refresh()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		int height = this.clientCaller.getBlockCount();
+
+		Map<String, List<SpendableOutput>> newSnapshot = new HashMap<String, List<SpendableOutput>>();
+		this.addOutputs(newSnapshot, this.clientCaller.getWalletUnspentOutputs(0));
+		this.addOutputs(newSnapshot, this.clientCaller.getWalletUnspentNotes(0));
+
+		synchronized (this)
+		{
+			this.snapshot       = newSnapshot;
+			this.snapshotTime   = System.currentTimeMillis();
+			this.snapshotHeight = height;
+		}
+
+		Log.info("Snapshot of unspent outputs for {0} addresses obtained in {1}ms.",
+			     newSnapshot.size(), (System.currentTimeMillis() - start));
+	}
+
+
+	/**
+	 * Refreshes the snapshot only if it is missing, too old or a new block has arrived since.
+	 */
+	public void refreshIfNeeded()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		boolean recent;
+		int height;
+		synchronized (this)
+		{
+			recent = (this.snapshot != null) && ((System.currentTimeMillis() - this.snapshotTime) <= MAX_SNAPSHOT_AGE);
+			height = this.snapshotHeight;
+		}
+
+		// A new block may confirm or spend outputs
+		if ((!recent) || (this.clientCaller.getBlockCount() != height))
+		{
+			this.refresh();
+		}
+	}
+
+
+	/**
+	 * Discards the snapshot - to be called after any send from the wallet.
+	 */
+	public synchronized void invalidate()
+	{
+		this.snapshot = null;
+	}
+
+
+	public synchronized boolean hasSnapshot()
+	{
+		return this.snapshot != null;
+	}
+
+
+	/**
+	 * Computes and validates the plan for a send with explicit change - no wallet calls are made.
+	 * The snapshot must be available (see {@link #refreshIfNeeded()}).
+	 *
+	 * @param amount ZEN amount to send
+	 * @param fee transaction fee
+	 */
+	public synchronized ChangePlan plan(String sourceAddress, String destinationAddress,
+			                            Zatoshi amount, Zatoshi fee, String memo)
+	{
+		if (this.snapshot == null)
+		{
+			throw new IllegalStateException("No snapshot of unspent outputs is available!");
+		}
+
+		LanguageUtil langUtil = LanguageUtil.instance();
+
+		ChangePlan plan = new ChangePlan();
+		plan.sourceAddress      = sourceAddress;
+		plan.destinationAddress = destinationAddress;
+		plan.memo               = memo;
+		plan.amount             = amount;
+		plan.fee                = fee;
+
+		List<SpendableOutput> outputs = this.snapshot.get(sourceAddress);
+		if (outputs == null)
+		{
+			outputs = Collections.emptyList();
+		}
+
+		for (SpendableOutput output : outputs)
+		{
+			if (output.confirmations < MIN_CONFIRMATIONS)
+			{
+				plan.unconfirmedTotal = plan.unconfirmedTotal.add(output.amount);
+			} else if (output.coinbase)
+			{
+				// The change output always goes to the (T) source address
+				plan.excludedCoinbase = plan.excludedCoinbase.add(output.amount);
+			} else
+			{
+				plan.numInputs++;
+				plan.inputsTotal = plan.inputsTotal.add(output.amount);
+			}
+		}
+
+		plan.change = plan.inputsTotal.subtract(plan.amount).subtract(plan.fee);
+
+		if (sourceAddress.equals(destinationAddress))
+		{
+			plan.errors.add(langUtil.getString("send.cash.panel.change.plan.error.same.address"));
+		}
+
+		if (plan.change.signum() < 0)
+		{
+			plan.errors.add(langUtil.getString("send.cash.panel.insufficient.balance", 
+				sourceAddress, plan.inputsTotal.toString(), plan.amount.toString(), plan.fee.toString()));
+		}
+
+		if ((!Util.isZAddress(sourceAddress)) && (plan.numInputs > MAX_TRANSPARENT_INPUTS))
+		{
+			plan.errors.add(langUtil.getString("send.cash.panel.change.plan.error.too.many.inputs", 
+				plan.numInputs, MAX_TRANSPARENT_INPUTS));
+		}
+
+		return plan;
+	}
+
+
+	private void addOutputs(Map<String, List<SpendableOutput>> newSnapshot, List<UnspentOutput> unspentOutputs)
+		throws WalletCallException
+	{
+		for (UnspentOutput unspent : unspentOutputs)
+		{
+			// Watch-only outputs cannot be spent
+			if (!unspent.spendable)
+			{
+				continue;
+			}
+
+			String address = unspent.address;
+			if ((address == null) || (unspent.amount == null))
+			{
+				throw new WalletCallException("Unexpected unspent output from wallet, txid: " + unspent.txID);
+			}
+
+			SpendableOutput output = new SpendableOutput();
+			output.txID          = unspent.txID;
+			output.amount        = unspent.amount;
+			output.confirmations = unspent.confirmations;
+			output.coinbase      = unspent.coinbase;
+
+			List<SpendableOutput> outputs = newSnapshot.get(address);
+			if (outputs == null)
+			{
+				outputs = new ArrayList<SpendableOutput>();
+				newSnapshot.put(address, outputs);
+			}
+			outputs.add(output);
+		}
+	}
+}
@@ -608,26 +608,27 @@ public class DashboardPanel
 			return;
 		}
 		
-		// Format double numbers - else sometimes we get exponential notation 1E-4 ZEN
-		DecimalFormat df = new DecimalFormat("########0.00######");
+		String transparentBalance = balance.transparentBalance.toDisplayString();
+		String privateBalance = balance.privateBalance.toDisplayString();
+		String totalBalance = balance.totalBalance.toDisplayString();
 		
-		String transparentBalance = df.format(balance.transparentBalance);
-		String privateBalance = df.format(balance.privateBalance);
-		String totalBalance = df.format(balance.totalBalance);
-		
-		String transparentUCBalance = df.format(balance.transparentUnconfirmedBalance);
-		String privateUCBalance = df.format(balance.privateUnconfirmedBalance);
-		String totalUCBalance = df.format(balance.totalUnconfirmedBalance);
+		String transparentUCBalance = balance.transparentUnconfirmedBalance.toDisplayString();
+		String privateUCBalance = balance.privateUnconfirmedBalance.toDisplayString();
+		String totalUCBalance = balance.totalUnconfirmedBalance.toDisplayString();
+
+		boolean transparentConfirmed = balance.transparentBalance.equals(balance.transparentUnconfirmedBalance);
+		boolean privateConfirmed     = balance.privateBalance.equals(balance.privateUnconfirmedBalance);
+		boolean totalConfirmed       = balance.totalBalance.equals(balance.totalUnconfirmedBalance);
 
-		String color1 = transparentBalance.equals(transparentUCBalance) ? "" : "color:#cc3300;";
-		String color2 = privateBalance.equals(privateUCBalance)         ? "" : "color:#cc3300;";
-		String color3 = totalBalance.equals(totalUCBalance)             ? "" : "color:#cc3300;";
+		String color1 = transparentConfirmed ? "" : "color:#cc3300;";
+		String color2 = privateConfirmed     ? "" : "color:#cc3300;";
+		String color3 = totalConfirmed       ? "" : "color:#cc3300;";
 		
 		Double usdBalance = (this.exchangeRatePanel != null) ? this.exchangeRatePanel.getUsdPrice() : null;
 		String usdBalanceStr = "";
 		if (usdBalance != null)
 		{
-			usdBalance = usdBalance * balance.totalUnconfirmedBalance;
+			usdBalance = usdBalance * balance.totalUnconfirmedBalance.doubleValue();
 			DecimalFormat usdDF = new DecimalFormat("########0.00");
 			String formattedUSDVal = usdDF.format(usdBalance);
 			
@@ -655,9 +656,7 @@ public class DashboardPanel
 		this.walletBalanceLabel.setText(text);
 				
 		String toolTip = null;
-		if ((!transparentBalance.equals(transparentUCBalance)) ||
-		    (!privateBalance.equals(privateUCBalance))         ||
-		    (!totalBalance.equals(totalUCBalance)))
+		if ((!transparentConfirmed) || (!privateConfirmed) || (!totalConfirmed))
 		{
 			toolTip = langUtil.getString("panel.dashboard.balance.tooltip", transparentBalance, privateBalance, totalBalance);
 		}
@@ -718,8 +717,6 @@ public class DashboardPanel
 			}
 		});
 		
-		DecimalFormat df = new DecimalFormat("########0.00######");
-		
 		// Change the direction and date etc. attributes for presentation purposes
 		for (String[] trans : allTransactions)
 		{
@@ -747,12 +744,12 @@ public class DashboardPanel
 			// Amount
 			try
 			{
-				double amount = Double.valueOf(trans[3]);
-				if (amount < 0d)
+				Zatoshi amount = Zatoshi.parse(trans[3]);
+				if (amount.signum() < 0)
 				{
-					amount = -amount;
+					amount = amount.negate();
 				}
-				trans[3] = df.format(amount);
+				trans[3] = amount.toDisplayString();
 			} catch (NumberFormatException nfe)
 			{
 				Log.error("Error occurred while formatting amount: " + trans[3] + 
@@ -86,12 +86,16 @@ public class HorizenUI
     private JMenuItem menuItemImportKeys;
     private JMenuItem menuItemShowPrivateKey;
     private JMenuItem menuItemImportOnePrivateKey;
+    private JMenuItem menuItemConsolidateUTXOs;
+    private JMenuItem menuItemWatchPayments;
+    private JMenuItem menuItemPaymentsStatus;
     private JMenuItem menuItemOwnIdentity;
     private JMenuItem menuItemExportOwnIdentity;
     private JMenuItem menuItemImportContactIdentity;
     private JMenuItem menuItemAddMessagingGroup;
     private JMenuItem menuItemRemoveContactIdentity;
     private JMenuItem menuItemMessagingOptions;
+    private JMenuItem menuItemSearchMessages;
     private JMenuItem menuItemShareFileViaIPFS;
     private JMenuItem menuItemExportToArizen;
     private JMenuItem menuItemZendParameters;
@@ -102,6 +106,8 @@ public class HorizenUI
     private SendCashPanel    sendPanel;
     private AddressBookPanel addressBookPanel;
     private MessagingPanel   messagingPanel;
+    private PaymentWatcher   paymentWatcher;
+    private OperationTracker operationTracker;
     private LanguageUtil langUtil;
 
     JTabbedPane tabs;
@@ -141,6 +147,9 @@ public class HorizenUI
         tabs.setFont(newTabFont);
         BackupTracker backupTracker = new BackupTracker(this);
 		LabelStorage labelStorage = new LabelStorage();
+		// All pending wallet operations (sends) are followed with one status call per interval
+		operationTracker = new OperationTracker(clientCaller, errorReporter);
+		operationTracker.start(2000);
         tabs.addTab(langUtil.getString("main.frame.tab.overview.title"),
         		    new ImageIcon(cl.getResource("images/overview.png")),
         		    dashboard = new DashboardPanel(this, installationObserver, clientCaller, 
@@ -156,18 +165,24 @@ public class HorizenUI
         		    addresses = new AddressesPanel(this, clientCaller, errorReporter, labelStorage, installationObserver));
         tabs.addTab(langUtil.getString("main.frame.tab.send.cash.title"),
         		    new ImageIcon(cl.getResource("images/send.png")),
-        		    sendPanel = new SendCashPanel(clientCaller, errorReporter, installationObserver, backupTracker, labelStorage));
+        		    sendPanel = new SendCashPanel(clientCaller, errorReporter, installationObserver, backupTracker, 
+        		    		                          operationTracker, labelStorage));
         tabs.addTab(langUtil.getString("main.frame.tab.address.book.title"),
     		        new ImageIcon(cl.getResource("images/address-book.png")),
     		        addressBookPanel = new AddressBookPanel(sendPanel, tabs, labelStorage));
         tabs.addTab(langUtil.getString("main.frame.tab.messaging.title"),
 		            new ImageIcon(cl.getResource("images/messaging.png")),
-		            messagingPanel = new MessagingPanel(this, sendPanel, tabs, clientCaller, errorReporter, labelStorage));
+		            messagingPanel = new MessagingPanel(
+		            	this, sendPanel, tabs, clientCaller, errorReporter, operationTracker, labelStorage));
         contentPane.add(tabs);
 
+        // Payments expected on watched addresses (if any) are tracked in the background
+        this.paymentWatcher = new PaymentWatcher(clientCaller, errorReporter);
+        this.paymentWatcher.start(15000);
+
         this.walletOps = new WalletOperations(
             	this, tabs, dashboard, addresses, sendPanel, 
-            	installationObserver, clientCaller, errorReporter, backupTracker);        
+            	installationObserver, clientCaller, errorReporter, backupTracker, operationTracker, paymentWatcher);        
 
         // Build menu
         JMenuBar mb = new JMenuBar();
@@ -196,6 +211,12 @@ public class HorizenUI
         menuItemShowPrivateKey.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_P, accelaratorKeyMask));
         wallet.add(menuItemImportOnePrivateKey = new JMenuItem(langUtil.getString("menu.label.import.one.private.key"), KeyEvent.VK_N));
         menuItemImportOnePrivateKey.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, accelaratorKeyMask));
+        wallet.add(menuItemConsolidateUTXOs = new JMenuItem(langUtil.getString("menu.label.consolidate.utxos"), KeyEvent.VK_U));
+        menuItemConsolidateUTXOs.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_U, accelaratorKeyMask));
+        wallet.add(menuItemWatchPayments = new JMenuItem(langUtil.getString("menu.label.watch.payments"), KeyEvent.VK_W));
+        menuItemWatchPayments.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, accelaratorKeyMask));
+        wallet.add(menuItemPaymentsStatus = new JMenuItem(langUtil.getString("menu.label.payments.status"), KeyEvent.VK_L));
+        menuItemPaymentsStatus.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L, accelaratorKeyMask));
         wallet.add(menuItemExportToArizen = new JMenuItem(langUtil.getString("menu.label.export.to.arizen"), KeyEvent.VK_A));
         menuItemExportToArizen.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_A, accelaratorKeyMask));
         wallet.add(menuItemZendParameters = new JMenuItem(langUtil.getString("wallet.menu.edit.zend.params"), KeyEvent.VK_Z));
@@ -214,6 +235,8 @@ public class HorizenUI
         menuItemImportContactIdentity.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, accelaratorKeyMask));
         messaging.add(menuItemRemoveContactIdentity = new JMenuItem(langUtil.getString("menu.label.remove.contact"), KeyEvent.VK_R));
         menuItemRemoveContactIdentity.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, accelaratorKeyMask));
+        messaging.add(menuItemSearchMessages = new JMenuItem(langUtil.getString("menu.label.search.messages"), KeyEvent.VK_H));
+        menuItemSearchMessages.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_H, accelaratorKeyMask));
         messaging.add(menuItemMessagingOptions = new JMenuItem(langUtil.getString("menu.label.options"), KeyEvent.VK_O));
         menuItemMessagingOptions.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, accelaratorKeyMask));
         
@@ -366,6 +389,39 @@ public class HorizenUI
            }
        );
        
+       menuItemConsolidateUTXOs.addActionListener(   
+           new ActionListener()
+           {
+               @Override
+               public void actionPerformed(ActionEvent e)
+               {
+                   HorizenUI.this.walletOps.consolidateUTXOs();
+               }
+           }
+       );
+       
+       menuItemWatchPayments.addActionListener(   
+           new ActionListener()
+           {
+               @Override
+               public void actionPerformed(ActionEvent e)
+               {
+                   HorizenUI.this.walletOps.watchExpectedPayments();
+               }
+           }
+       );
+       
+       menuItemPaymentsStatus.addActionListener(   
+           new ActionListener()
+           {
+               @Override
+               public void actionPerformed(ActionEvent e)
+               {
+                   HorizenUI.this.walletOps.showExpectedPaymentsStatus();
+               }
+           }
+       );
+       
        menuItemOwnIdentity.addActionListener(   
                new ActionListener()
                {
@@ -421,6 +477,17 @@ public class HorizenUI
                }
         );
        
+       menuItemSearchMessages.addActionListener(   
+               new ActionListener()
+               {
+                   @Override
+                   public void actionPerformed(ActionEvent e)
+                   {
+            			HorizenUI.this.messagingPanel.searchMessages();
+                   }
+               }
+       );
+       
        menuItemMessagingOptions.addActionListener(   
                new ActionListener()
                {
@@ -576,6 +643,8 @@ public class HorizenUI
         this.addresses.stopThreadsAndTimers();
         this.sendPanel.stopThreadsAndTimers();
         this.messagingPanel.stopThreadsAndTimers();
+        this.paymentWatcher.stop();
+        this.operationTracker.stop();
         
         HorizenUI.this.setVisible(false);
         HorizenUI.this.dispose();
@@ -0,0 +1,258 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.eclipsesource.json.JsonHandler;
+import com.eclipsesource.json.JsonParser;
+import com.eclipsesource.json.ParseException;
+
+
+/**
+ * Decodes a JSON response of the wallet directly into typed records, without building a tree of 
+ * JsonValues. The response may be an array of flat objects (like listtransactions or listunspent) 
+ * or a single flat object (like z_gettotalbalance). Only the requested members are kept - as 
+ * their JSON text (numbers as written, strings unescaped, booleans as true/false). Nested arrays 
+ * and objects are skipped.
+ *
+ * @param <T> type of the records
+ */
+public class JsonRecordDecoder<T>
+	extends JsonHandler<Object, Object>
+{
+	/**
+	 * Creates a record from the values of one JSON object.
+	 */
+	public static interface RecordFactory<T>
+	{
+		/**
+		 * @param values values of the requested members - in the order they are requested, null
+		 *        for members that are missing or null. The array is reused for the next object.
+		 */
+		T createRecord(String[] values);
+	}
+	
+	
+	private Map<String, Integer> memberIndexes;
+	private RecordFactory<T>     factory;
+	private boolean              arrayOfRecords;
+	
+	// Nesting level of the objects that are records
+	private int recordDepth;
+	
+	private String[] values;
+	private List<T>  records;
+	
+	// Number of arrays/objects currently open
+	private int depth;
+	// Index of the member whose value is being parsed, -1 if it is not requested
+	private int currentMember;
+	// Set if the top level value is not the expected array/object
+	private boolean unexpectedTopLevelValue;
+	
+	
+	/**
+	 * @param arrayOfRecords true if the response is an array of objects, false for a single object
+	 * @param factory creates the records
+	 * @param memberNames names of the members to decode
+	 */
+	public JsonRecordDecoder(boolean arrayOfRecords, RecordFactory<T> factory, String... memberNames)
+	{
+		this.arrayOfRecords = arrayOfRecords;
+		this.factory        = factory;
+		this.recordDepth    = arrayOfRecords ? 2 : 1;
+		
+		this.memberIndexes = new HashMap<String, Integer>();
+		for (int i = 0; i < memberNames.length; i++)
+		{
+			this.memberIndexes.put(memberNames[i], i);
+		}
+		
+		this.values  = new String[memberNames.length];
+		this.records = new ArrayList<T>();
+	}
+	
+	
+	/**
+	 * Decodes a response.
+	 * 
+	 * @param json the response text
+	 * 
+	 * @return the records in the order of the response
+	 * 
+	 * @throws ParseException if the response is not valid JSON
+	 * @throws IOException if the response is not an array/object as expected
+	 */
+	public List<T> decode(String json)
+		throws IOException
+	{
+		new JsonParser(this).parse(json);
+		return this.getRecords();
+	}
+	
+	
+	public List<T> decode(Reader reader)
+		throws IOException
+	{
+		new JsonParser(this).parse(reader);
+		return this.getRecords();
+	}
+	
+	
+	private List<T> getRecords()
+		throws IOException
+	{
+		if (this.unexpectedTopLevelValue)
+		{
+			throw new IOException("Expected " + (this.arrayOfRecords ? "an array" : "an object") + " at top level");
+		}
+		
+		List<T> result = this.records;
+		this.records = new ArrayList<T>();
+		return result;
+	}
+	
+	
+	@Override
+	public Object startArray() 
+	{
+		this.checkTopLevel(this.arrayOfRecords);
+		this.depth++;
+		return null;
+	}
+	
+	
+	@Override
+	public void endArray(Object array) 
+	{
+		this.depth--;
+	}
+	
+	
+	@Override
+	public Object startObject() 
+	{
+		this.checkTopLevel(!this.arrayOfRecords);
+		this.depth++;
+		
+		if (this.depth == this.recordDepth)
+		{
+			for (int i = 0; i < this.values.length; i++)
+			{
+				this.values[i] = null;
+			}
+			this.currentMember = -1;
+		}
+		
+		return null;
+	}
+	
+	
+	@Override
+	public void endObject(Object object) 
+	{
+		if (this.depth == this.recordDepth)
+		{
+			this.records.add(this.factory.createRecord(this.values));
+		}
+		
+		this.depth--;
+	}
+	
+	
+	@Override
+	public void startObjectValue(Object object, String name) 
+	{
+		if (this.depth == this.recordDepth)
+		{
+			Integer index = this.memberIndexes.get(name);
+			this.currentMember = (index != null) ? index : -1;
+		}
+	}
+	
+	
+	@Override
+	public void endString(String string) 
+	{
+		this.checkTopLevel(false);
+		this.setValue(string);
+	}
+	
+	
+	@Override
+	public void endNumber(String string) 
+	{
+		this.checkTopLevel(false);
+		this.setValue(string);
+	}
+	
+	
+	@Override
+	public void endBoolean(boolean value) 
+	{
+		this.checkTopLevel(false);
+		this.setValue(value ? "true" : "false");
+	}
+	
+	
+	@Override
+	public void endNull() 
+	{
+		this.checkTopLevel(false);
+		this.setValue(null);
+	}
+	
+	
+	// Scalar values directly in a record object are the member values
+	private void setValue(String value)
+	{
+		if ((this.depth == this.recordDepth) && (this.currentMember >= 0))
+		{
+			this.values[this.currentMember] = value;
+			this.currentMember = -1;
+		}
+	}
+	
+	
+	private void checkTopLevel(boolean expected)
+	{
+		if ((this.depth == 0) && (!expected))
+		{
+			this.unexpectedTopLevelValue = true;
+		}
+	}
+}
@@ -0,0 +1,422 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+
+
+/**
+ * Follows all pending asynchronous wallet operations (z_sendmany etc.) of the application. All
+ * pending operation IDs are checked together with a single z_getoperationstatus call per interval,
+ * so the cost of status polling does not depend on the number of sends in flight. Final results
+ * are cached and reported to the listener registered for the operation.
+ */
+public class OperationTracker
+{
+	// Number of consecutive polls an operation may be missing from the wallet before it is failed
+	private static final int MAX_MISSING_POLLS = 5;
+
+	// Max. number of completed operation results kept in the cache
+	private static final int MAX_COMPLETED_OPERATIONS = 1000;
+
+
+	/**
+	 * Implemented by parties interested in the completion of an operation. Notifications are
+	 * delivered on the Swing event dispatch thread.
+	 */
+	public static interface OperationListener
+	{
+		void operationCompleted(OperationResult result);
+	}
+
+
+	/**
+	 * Status of one tracked operation - final once the operation is complete.
+	 */
+	public static class OperationResult
+	{
+		private String opID;
+		private String status;
+		private String txID;
+		private String errorMessage;
+		private long   startTime;
+		private long   endTime;
+		private int    missingPolls;
+		private boolean unknownToWallet;
+
+
+		OperationResult(String opID)
+		{
+			this.opID      = opID;
+			this.status    = "queued";
+			this.startTime = System.currentTimeMillis();
+		}
+
+
+		public synchronized String getOperationID()
+		{
+			return this.opID;
+		}
+
+
+		public synchronized String getStatus()
+		{
+			return this.status;
+		}
+
+
+		public synchronized String getTXID()
+		{
+			return this.txID;
+		}
+
+
+		public synchronized String getErrorMessage()
+		{
+			return this.errorMessage;
+		}
+
+
+		// Duration of the operation in ms - up to now if not yet complete
+		public synchronized long getDuration()
+		{
+			return ((this.endTime != 0) ? this.endTime : System.currentTimeMillis()) - this.startTime;
+		}
+
+
+		public synchronized boolean isComplete()
+		{
+			return this.endTime != 0;
+		}
+
+
+		public synchronized boolean isSuccessful()
+		{
+			return "success".equalsIgnoreCase(this.status);
+		}
+
+
+		// True if the operation failed only because the wallet does not know it (e.g. after a restart)
+		// - the operation itself may well have succeeded
+		public synchronized boolean isUnknownToWallet()
+		{
+			return this.unknownToWallet;
+		}
+
+
+		// Returns true if the operation has become complete with this update. An unexpected status leaves
+		// the operation pending - it may still complete, so it must not be reported as failed.
+		private synchronized boolean update(JsonObject jsonStatus)
+		{
+			String newStatus = jsonStatus.getString("status", "ERROR");
+			if ("success".equalsIgnoreCase(newStatus))
+			{
+				JsonValue opResultValue = jsonStatus.get("result");
+				if ((opResultValue != null) && opResultValue.isObject() && (opResultValue.asObject().get("txid") != null))
+				{
+					this.txID = opResultValue.asObject().get("txid").asString();
+				}
+				this.complete("success");
+				return true;
+			} else if ("error".equalsIgnoreCase(newStatus) || "failed".equalsIgnoreCase(newStatus) ||
+					   "cancelled".equalsIgnoreCase(newStatus))
+			{
+				this.errorMessage = "ERROR!";
+				JsonValue errorValue = jsonStatus.get("error");
+				if ((errorValue != null) && errorValue.isObject())
+				{
+					this.errorMessage = errorValue.asObject().getString("message", this.errorMessage);
+				}
+				this.complete("failed");
+				return true;
+			} else if ("executing".equalsIgnoreCase(newStatus) || "queued".equalsIgnoreCase(newStatus))
+			{
+				this.status = newStatus;
+				this.missingPolls = 0;
+				return false;
+			} else
+			{
+				Log.warningOneTime("Unexpected status response from wallet for operation {0}: {1}", 
+					               this.opID, jsonStatus.toString());
+				this.missingPolls = 0;
+				return false;
+			}
+		}
+
+
+		// Returns true if the operation has become complete (failed) because the wallet does not know it
+		private synchronized boolean updateMissing()
+		{
+			if (++this.missingPolls < MAX_MISSING_POLLS)
+			{
+				return false;
+			}
+
+			this.errorMessage = "Operation " + this.opID + " is not known to the wallet!";
+			this.unknownToWallet = true;
+			this.complete("failed");
+			return true;
+		}
+
+
+		private void complete(String finalStatus)
+		{
+			this.status  = finalStatus;
+			this.endTime = System.currentTimeMillis();
+		}
+	}
+
+
+	private ZCashClientCaller clientCaller;
+	private StatusUpdateErrorReporter errorReporter;
+
+	// Operation ID -> result for operations that are not yet complete
+	private Map<String, OperationResult> pendingOperations = new LinkedHashMap<String, OperationResult>();
+	// Operation ID -> listeners to be notified upon completion
+	private Map<String, List<OperationListener>> listeners = new HashMap<String, List<OperationListener>>();
+	// Cache of final results - oldest entries are evicted first
+	private Map<String, OperationResult> completedOperations = new LinkedHashMap<String, OperationResult>()
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, OperationResult> eldest)
+		{
+			return this.size() > MAX_COMPLETED_OPERATIONS;
+		}
+	};
+
+	private DataGatheringThread<Integer> pollingThread;
+
+
+	public OperationTracker(ZCashClientCaller clientCaller, StatusUpdateErrorReporter errorReporter)
+	{
+		this.clientCaller  = clientCaller;
+		this.errorReporter = errorReporter;
+	}
+
+
+	/**
+	 * Starts the periodic polling of pending operations. When nothing is pending no wallet calls
+	 * are made.
+	 *
+	 * @param interval Interval in ms between polls
+	 */
+	public synchronized void start(int interval)
+	{
+		if (this.pollingThread != null)
+		{
+			return;
+		}
+
+		this.pollingThread = new DataGatheringThread<Integer>(
+			new DataGatheringThread.DataGatherer<Integer>()
+			{
+				public Integer gatherData()
+					throws Exception
+				{
+					return OperationTracker.this.doOnePollingCycle();
+				}
+			},
+			this.errorReporter, interval);
+	}
+
+
+	public synchronized void stop()
+	{
+		if (this.pollingThread != null)
+		{
+			this.pollingThread.setSuspended(true);
+			this.pollingThread = null;
+		}
+	}
+
+
+	/**
+	 * Starts tracking an operation. If the operation is already complete, the listener is notified
+	 * right away.
+	 *
+	 * @param opID ID of the operation as returned by the wallet
+	 * @param listener to be notified upon completion - may be null
+	 *
+	 * @return the (live) result object of the operation
+	 */
+	public synchronized OperationResult trackOperation(String opID, OperationListener listener)
+	{
+		OperationResult result = this.completedOperations.get(opID);
+		if (result != null)
+		{
+			if (listener != null)
+			{
+				List<OperationListener> opListeners = new ArrayList<OperationListener>();
+				opListeners.add(listener);
+				this.notifyListeners(result, opListeners);
+			}
+			return result;
+		}
+
+		result = this.pendingOperations.get(opID);
+		if (result == null)
+		{
+			result = new OperationResult(opID);
+			this.pendingOperations.put(opID, result);
+		}
+
+		if (listener != null)
+		{
+			List<OperationListener> opListeners = this.listeners.get(opID);
+			if (opListeners == null)
+			{
+				opListeners = new ArrayList<OperationListener>();
+				this.listeners.put(opID, opListeners);
+			}
+			opListeners.add(listener);
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Obtains the status of an operation - pending or complete.
+	 *
+	 * @return the result or null if the operation is not tracked (or evicted from the cache)
+	 */
+	public synchronized OperationResult getOperation(String opID)
+	{
+		OperationResult result = this.pendingOperations.get(opID);
+		return (result != null) ? result : this.completedOperations.get(opID);
+	}
+
+
+	public synchronized int getNumPendingOperations()
+	{
+		return this.pendingOperations.size();
+	}
+
+
+	/**
+	 * Checks the status of all pending operations with a single wallet call.
+	 *
+	 * @return the number of operations that have completed in this cycle.
+	 */
+	public int doOnePollingCycle()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		List<OperationResult> pending;
+		synchronized (this)
+		{
+			if (this.pendingOperations.isEmpty())
+			{
+				return 0;
+			}
+			pending = new ArrayList<OperationResult>(this.pendingOperations.values());
+		}
+
+		// The wallet call itself is done without holding the lock - new operations may be tracked meanwhile
+		long start = System.currentTimeMillis();
+		List<String> opIDs = new ArrayList<String>();
+		for (OperationResult result : pending)
+		{
+			opIDs.add(result.getOperationID());
+		}
+		Map<String, JsonObject> statuses = this.clientCaller.getOperationStatuses(opIDs);
+		long end = System.currentTimeMillis();
+		Log.info("Checking for status of " + opIDs.size() + " operation(s) done in " + (end - start) + "ms.");
+
+		int numCompleted = 0;
+		for (OperationResult result : pending)
+		{
+			JsonObject jsonStatus = statuses.get(result.getOperationID());
+			boolean completed;
+			try
+			{
+				completed = (jsonStatus != null) ? result.update(jsonStatus) : result.updateMissing();
+			} catch (RuntimeException rte)
+			{
+				// Malformed status of one operation - the others are still processed
+				Log.warningOneTime("Malformed status response from wallet for operation {0}: {1}", 
+					               result.getOperationID(), jsonStatus);
+				continue;
+			}
+			if (completed)
+			{
+				numCompleted++;
+				Log.info("Operation {0} completed with status {1} in {2}ms.", 
+					     result.getOperationID(), result.getStatus(), result.getDuration());
+
+				synchronized (this)
+				{
+					this.pendingOperations.remove(result.getOperationID());
+					this.completedOperations.put(result.getOperationID(), result);
+					List<OperationListener> opListeners = this.listeners.remove(result.getOperationID());
+					if (opListeners != null)
+					{
+						this.notifyListeners(result, opListeners);
+					}
+				}
+			}
+		}
+
+		return numCompleted;
+	}
+
+
+	private void notifyListeners(final OperationResult result, final List<OperationListener> opListeners)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				for (OperationListener listener : opListeners)
+				{
+					try
+					{
+						listener.operationCompleted(result);
+					} catch (RuntimeException rte)
+					{
+						Log.error("Unexpected error in operation listener: ", rte);
+						OperationTracker.this.errorReporter.reportError(rte);
+					}
+				}
+			}
+		});
+	}
+}
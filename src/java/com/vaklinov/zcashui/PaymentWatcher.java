@@ -0,0 +1,915 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.WriterConfig;
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+
+
+/**
+ * Watches a (possibly large) set of receiving addresses for expected payments - e.g. one address
+ * per invoice. Status changes (partially paid, paid, confirmed) are reported to listeners.
+ * <p>
+ * T addresses are tracked with an incremental listsinceblock call - one call per cycle for all
+ * watched T addresses, returning only the transactions that are not yet confirmed to the required
+ * depth. Z addresses are tracked with a per-address watermark (number of notes seen) and drop
+ * out of the scan once their payment is confirmed. The watch list and the scan state are persisted
+ * in the settings directory so that a restart does not cause a full re-scan.
+ */
+public class PaymentWatcher
+{
+	private static final String WATCH_LIST_FILE = "paymentWatchList.json";
+
+	private static final int DEFAULT_CONFIRMATION_DEPTH = 6;
+
+
+	public static enum PaymentStatus
+	{
+		UNPAID, PARTIALLY_PAID, PAID, CONFIRMED
+	}
+
+
+	/**
+	 * Implemented by parties interested in payment status changes. Notifications are delivered
+	 * on the watcher thread.
+	 */
+	public static interface PaymentListener
+	{
+		void paymentStatusChanged(ExpectedPayment payment, PaymentStatus previousStatus);
+	}
+
+
+	/**
+	 * An expected payment to a single address.
+	 */
+	public static class ExpectedPayment
+	{
+		private String     address;
+		private String     reference;
+		private BigDecimal expectedAmount;
+		private PaymentStatus status;
+
+		// Output ID -> amount. Output ID is txid:vout for T and txid:jsindex:jsoutindex for Z
+		private Map<String, BigDecimal> receivedOutputs;
+		// Output ID -> TXID for outputs not yet confirmed to the required depth
+		private Map<String, String> pendingOutputs;
+		// Number of notes seen for a Z address
+		private int noteWatermark;
+
+
+		private ExpectedPayment(String address, BigDecimal expectedAmount, String reference)
+		{
+			this.address        = address;
+			this.expectedAmount = expectedAmount;
+			this.reference      = reference;
+			this.status         = PaymentStatus.UNPAID;
+
+			this.receivedOutputs = new LinkedHashMap<String, BigDecimal>();
+			this.pendingOutputs  = new HashMap<String, String>();
+			this.noteWatermark   = 0;
+		}
+
+
+		public synchronized String getAddress()
+		{
+			return this.address;
+		}
+
+
+		public synchronized String getReference()
+		{
+			return this.reference;
+		}
+
+
+		public synchronized BigDecimal getExpectedAmount()
+		{
+			return this.expectedAmount;
+		}
+
+
+		public synchronized PaymentStatus getStatus()
+		{
+			return this.status;
+		}
+
+
+		public synchronized BigDecimal getReceivedAmount()
+		{
+			BigDecimal sum = BigDecimal.ZERO;
+			for (BigDecimal amount : this.receivedOutputs.values())
+			{
+				sum = sum.add(amount);
+			}
+
+			return sum;
+		}
+
+
+		public synchronized BigDecimal getConfirmedAmount()
+		{
+			BigDecimal sum = BigDecimal.ZERO;
+			for (Map.Entry<String, BigDecimal> output : this.receivedOutputs.entrySet())
+			{
+				if (!this.pendingOutputs.containsKey(output.getKey()))
+				{
+					sum = sum.add(output.getValue());
+				}
+			}
+
+			return sum;
+		}
+
+
+		// Returns the old status
+		private synchronized PaymentStatus recalculateStatus()
+		{
+			PaymentStatus oldStatus = this.status;
+
+			BigDecimal received  = this.getReceivedAmount();
+			BigDecimal confirmed = this.getConfirmedAmount();
+
+			if (received.signum() <= 0)
+			{
+				this.status = PaymentStatus.UNPAID;
+			} else if (received.compareTo(this.expectedAmount) < 0)
+			{
+				this.status = PaymentStatus.PARTIALLY_PAID;
+			} else if (confirmed.compareTo(this.expectedAmount) >= 0)
+			{
+				this.status = PaymentStatus.CONFIRMED;
+			} else
+			{
+				this.status = PaymentStatus.PAID;
+			}
+
+			return oldStatus;
+		}
+
+
+		private synchronized JsonObject toJSONObject()
+		{
+			JsonObject obj = new JsonObject();
+			obj.set("address",       this.address);
+			obj.set("reference",     (this.reference != null) ? this.reference : "");
+			obj.set("amount",        this.expectedAmount.toPlainString());
+			obj.set("status",        this.status.name());
+			obj.set("notewatermark", this.noteWatermark);
+
+			JsonArray outputs = new JsonArray();
+			for (Map.Entry<String, BigDecimal> output : this.receivedOutputs.entrySet())
+			{
+				JsonObject jsonOutput = new JsonObject();
+				jsonOutput.set("id",     output.getKey());
+				jsonOutput.set("amount", output.getValue().toPlainString());
+				String pendingTXID = this.pendingOutputs.get(output.getKey());
+				if (pendingTXID != null)
+				{
+					jsonOutput.set("pendingtxid", pendingTXID);
+				}
+				outputs.add(jsonOutput);
+			}
+			obj.set("outputs", outputs);
+
+			return obj;
+		}
+
+
+		private static ExpectedPayment fromJSONObject(JsonObject obj)
+			throws IOException
+		{
+			try
+			{
+				ExpectedPayment payment = new ExpectedPayment(
+					obj.getString("address", ""), new BigDecimal(obj.getString("amount", "0")),
+					obj.getString("reference", ""));
+				payment.status = PaymentStatus.valueOf(obj.getString("status", PaymentStatus.UNPAID.name()));
+				payment.noteWatermark = obj.getInt("notewatermark", 0);
+
+				JsonValue outputs = obj.get("outputs");
+				if ((outputs != null) && outputs.isArray())
+				{
+					for (JsonValue val : outputs.asArray())
+					{
+						JsonObject jsonOutput = val.asObject();
+						String id = jsonOutput.getString("id", "");
+						payment.receivedOutputs.put(id, new BigDecimal(jsonOutput.getString("amount", "0")));
+						String pendingTXID = jsonOutput.getString("pendingtxid", null);
+						if (pendingTXID != null)
+						{
+							payment.pendingOutputs.put(id, pendingTXID);
+						}
+					}
+				}
+
+				return payment;
+			} catch (RuntimeException rte)
+			{
+				throw new IOException("Invalid expected payment data: " + obj.toString(), rte);
+			}
+		}
+	} // End public static class ExpectedPayment
+
+
+	private ZCashClientCaller clientCaller;
+	private StatusUpdateErrorReporter errorReporter;
+
+	private List<PaymentListener> listeners = new CopyOnWriteArrayList<PaymentListener>();
+
+	// Address -> expected payment - all lookups during a cycle are via this index
+	private Map<String, ExpectedPayment> payments = new LinkedHashMap<String, ExpectedPayment>();
+	// Z address payments that are not yet confirmed - only these are scanned
+	private Set<ExpectedPayment> openPrivatePayments = new LinkedHashSet<ExpectedPayment>();
+	// T output ID -> payment, for T outputs not yet confirmed to the required depth
+	private Map<String, ExpectedPayment> pendingTransparentOutputs = new HashMap<String, ExpectedPayment>();
+
+	// Last block returned by listsinceblock - next scan starts from it
+	private String lastBlockHash;
+	private int confirmationDepth;
+
+	private DataGatheringThread<Integer> watchingThread;
+
+
+	public PaymentWatcher(ZCashClientCaller clientCaller, StatusUpdateErrorReporter errorReporter)
+		throws IOException
+	{
+		this.clientCaller  = clientCaller;
+		this.errorReporter = errorReporter;
+
+		this.lastBlockHash = null;
+		this.confirmationDepth = DEFAULT_CONFIRMATION_DEPTH;
+
+		this.loadWatchList();
+	}
+
+
+	/**
+	 * Starts the periodic watching of payments.
+	 *
+	 * @param interval Interval in ms between watch cycles
+	 */
+	public synchronized void start(int interval)
+	{
+		if (this.watchingThread != null)
+		{
+			return;
+		}
+
+		this.watchingThread = new DataGatheringThread<Integer>(
+			new DataGatheringThread.DataGatherer<Integer>()
+			{
+				public Integer gatherData()
+					throws Exception
+				{
+					long start = System.currentTimeMillis();
+					int changes = PaymentWatcher.this.doOneWatchCycle();
+					long end = System.currentTimeMillis();
+					if (changes > 0)
+					{
+						Log.info("Payment watch cycle done in " + (end - start) + "ms. Status changes: " + changes);
+					}
+
+					return changes;
+				}
+			},
+			this.errorReporter, interval);
+	}
+
+
+	public synchronized void stop()
+	{
+		if (this.watchingThread != null)
+		{
+			this.watchingThread.setSuspended(true);
+			this.watchingThread = null;
+		}
+	}
+
+
+	public void addPaymentListener(PaymentListener listener)
+	{
+		this.listeners.add(listener);
+	}
+
+
+	public void removePaymentListener(PaymentListener listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+
+	public synchronized int getConfirmationDepth()
+	{
+		return this.confirmationDepth;
+	}
+
+
+	public synchronized void setConfirmationDepth(int confirmationDepth)
+		throws IOException
+	{
+		if (confirmationDepth < 1)
+		{
+			throw new IllegalArgumentException("Confirmation depth must be at least 1: " + confirmationDepth);
+		}
+
+		if (confirmationDepth != this.confirmationDepth)
+		{
+			// Transparent outputs are reported again with their confirmations by a full scan
+			this.confirmationDepth = confirmationDepth;
+			this.lastBlockHash = null;
+			this.storeWatchList();
+		}
+	}
+
+
+	/**
+	 * Starts watching an address for an expected payment. If the address is already watched,
+	 * the expected amount and reference are updated.
+	 *
+	 * @param address T or Z address to watch
+	 * @param expectedAmount amount in ZEN that is expected
+	 * @param reference arbitrary reference (e.g. invoice number) - may be null
+	 *
+	 * @return the expected payment object that is tracked
+	 */
+	public synchronized ExpectedPayment watchAddress(String address, BigDecimal expectedAmount, String reference)
+		throws IOException
+	{
+		checkExpectedPayment(address, expectedAmount);
+
+		ExpectedPayment payment = this.addExpectedPayment(address, expectedAmount, reference);
+		this.storeWatchList();
+
+		return payment;
+	}
+
+
+	/**
+	 * Starts watching many addresses at once - e.g. all invoices of a day. The watch list is
+	 * stored only once. Either all expected payments are valid and watched, or none is.
+	 *
+	 * @param expectedPayments rows of the form: address, amount in ZEN, reference (may be missing
+	 *        or null) - as in {@link #watchAddress(String, BigDecimal, String)}
+	 *
+	 * @return the expected payment objects that are tracked - in the order of the rows
+	 */
+	public synchronized List<ExpectedPayment> watchAddresses(List<String[]> expectedPayments)
+		throws IOException
+	{
+		List<BigDecimal> amounts = new ArrayList<BigDecimal>();
+		for (String[] expected : expectedPayments)
+		{
+			BigDecimal amount;
+			try
+			{
+				amount = new BigDecimal(expected[1]);
+			} catch (NumberFormatException nfe)
+			{
+				throw new IllegalArgumentException("Invalid expected payment: " + expected[0] + " / " + expected[1], nfe);
+			}
+			checkExpectedPayment(expected[0], amount);
+			amounts.add(amount);
+		}
+
+		List<ExpectedPayment> watched = new ArrayList<ExpectedPayment>();
+		for (int i = 0; i < expectedPayments.size(); i++)
+		{
+			String[] expected = expectedPayments.get(i);
+			watched.add(this.addExpectedPayment(expected[0], amounts.get(i), (expected.length > 2) ? expected[2] : null));
+		}
+
+		this.storeWatchList();
+
+		return watched;
+	}
+
+
+	private static void checkExpectedPayment(String address, BigDecimal expectedAmount)
+	{
+		if (Util.stringIsEmpty(address) || (expectedAmount == null) || (expectedAmount.signum() <= 0))
+		{
+			throw new IllegalArgumentException("Invalid expected payment: " + address + " / " + expectedAmount);
+		}
+	}
+
+
+	// If the address is already watched, the expected amount and reference are updated - not stored
+	private ExpectedPayment addExpectedPayment(String address, BigDecimal expectedAmount, String reference)
+	{
+		ExpectedPayment payment = this.payments.get(address);
+		if (payment == null)
+		{
+			payment = new ExpectedPayment(address, expectedAmount, reference);
+			this.payments.put(address, payment);
+		} else
+		{
+			synchronized (payment)
+			{
+				payment.expectedAmount = expectedAmount;
+				payment.reference      = reference;
+			}
+			payment.recalculateStatus();
+		}
+
+		this.indexPayment(payment);
+
+		return payment;
+	}
+
+
+	public synchronized void unwatchAddress(String address)
+		throws IOException
+	{
+		ExpectedPayment payment = this.payments.remove(address);
+		if (payment != null)
+		{
+			this.openPrivatePayments.remove(payment);
+			this.pendingTransparentOutputs.values().removeAll(Collections.singleton(payment));
+			this.storeWatchList();
+		}
+	}
+
+
+	public synchronized ExpectedPayment getExpectedPayment(String address)
+	{
+		return this.payments.get(address);
+	}
+
+
+	public synchronized List<ExpectedPayment> getExpectedPayments()
+	{
+		return new ArrayList<ExpectedPayment>(this.payments.values());
+	}
+
+
+	/**
+	 * Executes one watch cycle - checks for new payments to the watched addresses. The wallet is
+	 * queried without holding the lock of the watcher - only the results are applied under it.
+	 *
+	 * @return the number of payment status changes detected.
+	 */
+	public int doOneWatchCycle()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		String lastBlock;
+		int depth;
+		List<ExpectedPayment> privatePayments;
+		synchronized (this)
+		{
+			if (this.payments.isEmpty())
+			{
+				return 0;
+			}
+
+			lastBlock       = this.lastBlockHash;
+			depth           = this.confirmationDepth;
+			privatePayments = new ArrayList<ExpectedPayment>(this.openPrivatePayments);
+		}
+
+		JsonObject transparentResponse = this.listTransparentTransactions(lastBlock, depth);
+		List<PrivateScanResult> privateResults = new ArrayList<PrivateScanResult>();
+		for (ExpectedPayment payment : privatePayments)
+		{
+			privateResults.add(this.queryPrivatePayment(payment));
+		}
+
+		List<Object[]> statusChanges = new ArrayList<Object[]>();
+		synchronized (this)
+		{
+			// The depth was changed meanwhile - the results are discarded and the next cycle rescans
+			if (depth != this.confirmationDepth)
+			{
+				return 0;
+			}
+
+			Set<ExpectedPayment> touchedPayments = new LinkedHashSet<ExpectedPayment>();
+			String oldLastBlockHash = this.lastBlockHash;
+
+			if (transparentResponse != null)
+			{
+				this.applyTransparentTransactions(transparentResponse, touchedPayments);
+			} else
+			{
+				// The last block may be gone after a reorganization - do a full scan next time
+				this.lastBlockHash = null;
+			}
+
+			for (PrivateScanResult result : privateResults)
+			{
+				this.applyPrivatePayment(result, touchedPayments);
+			}
+
+			for (ExpectedPayment payment : touchedPayments)
+			{
+				PaymentStatus oldStatus = payment.recalculateStatus();
+				this.indexPayment(payment);
+				if (oldStatus != payment.getStatus())
+				{
+					statusChanges.add(new Object[] { payment, oldStatus });
+				}
+			}
+
+			if ((!touchedPayments.isEmpty()) ||
+				((this.lastBlockHash != null) && (!this.lastBlockHash.equals(oldLastBlockHash))))
+			{
+				this.storeWatchList();
+			}
+		}
+
+		for (Object[] change : statusChanges)
+		{
+			ExpectedPayment payment = (ExpectedPayment)change[0];
+			PaymentStatus oldStatus = (PaymentStatus)change[1];
+			Log.info("Payment to address {0} (reference: {1}) changed status {2} -> {3}",
+				     payment.getAddress(), payment.getReference(), oldStatus, payment.getStatus());
+			for (PaymentListener listener : this.listeners)
+			{
+				try
+				{
+					listener.paymentStatusChanged(payment, oldStatus);
+				} catch (RuntimeException rte)
+				{
+					Log.error("Unexpected error in payment listener: ", rte);
+				}
+			}
+		}
+
+		return statusChanges.size();
+	}
+
+
+	// Cost depends on the number of recent wallet transactions only - not the number of watched addresses.
+	// Returns null if the scan has to start over from the beginning.
+	private JsonObject listTransparentTransactions(String lastBlock, int depth)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		try
+		{
+			return this.clientCaller.listTransactionsSinceBlock(lastBlock, depth);
+		} catch (WalletCallException wce)
+		{
+			if (lastBlock == null)
+			{
+				throw wce;
+			}
+
+			Log.warning("Listing transactions since block {0} failed. Will do a full scan.", wce, lastBlock);
+			return null;
+		}
+	}
+
+
+	// Called under the lock of the watcher
+	private void applyTransparentTransactions(JsonObject response, Set<ExpectedPayment> touchedPayments)
+	{
+		Set<String> reportedOutputs = new HashSet<String>();
+		JsonValue jsonTransactions = response.get("transactions");
+		if ((jsonTransactions != null) && jsonTransactions.isArray())
+		{
+			for (JsonValue val : jsonTransactions.asArray())
+			{
+				JsonObject trans = val.asObject();
+				if (!"receive".equals(trans.getString("category", "")))
+				{
+					continue;
+				}
+
+				ExpectedPayment payment = this.payments.get(trans.getString("address", ""));
+				if ((payment == null) || Util.isZAddress(payment.getAddress()))
+				{
+					continue;
+				}
+
+				String txID = trans.getString("txid", "");
+				String outputID = txID + ":" + trans.getInt("vout", 0);
+				int confirmations = trans.getInt("confirmations", 0);
+				reportedOutputs.add(outputID);
+
+				synchronized (payment)
+				{
+					if (confirmations < 0)
+					{
+						// Conflicted transaction - it no longer counts
+						payment.receivedOutputs.remove(outputID);
+						payment.pendingOutputs.remove(outputID);
+						this.pendingTransparentOutputs.remove(outputID);
+					} else
+					{
+						payment.receivedOutputs.put(outputID, new BigDecimal(trans.get("amount").toString()));
+						if (confirmations < this.confirmationDepth)
+						{
+							payment.pendingOutputs.put(outputID, txID);
+							this.pendingTransparentOutputs.put(outputID, payment);
+						} else
+						{
+							payment.pendingOutputs.remove(outputID);
+							this.pendingTransparentOutputs.remove(outputID);
+						}
+					}
+				}
+
+				touchedPayments.add(payment);
+			}
+		}
+
+		// Pending outputs that are no longer reported have passed the required depth
+		Iterator<Map.Entry<String, ExpectedPayment>> pendingIterator =
+			this.pendingTransparentOutputs.entrySet().iterator();
+		while (pendingIterator.hasNext())
+		{
+			Map.Entry<String, ExpectedPayment> pending = pendingIterator.next();
+			if (!reportedOutputs.contains(pending.getKey()))
+			{
+				ExpectedPayment payment = pending.getValue();
+				synchronized (payment)
+				{
+					payment.pendingOutputs.remove(pending.getKey());
+				}
+				pendingIterator.remove();
+				touchedPayments.add(payment);
+			}
+		}
+
+		this.lastBlockHash = response.getString("lastblock", this.lastBlockHash);
+	}
+
+
+	// Wallet data for a Z address payment, gathered without holding the lock of the watcher
+	private static class PrivateScanResult
+	{
+		ExpectedPayment payment;
+		JsonObject[] notes;
+		// TXID -> confirmations, for the pending and the new notes
+		Map<String, Integer> confirmations;
+	}
+
+
+	// Only Z addresses with open payments are scanned. Only pending and new notes are checked for
+	// confirmations.
+	private PrivateScanResult queryPrivatePayment(ExpectedPayment payment)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		PrivateScanResult result = new PrivateScanResult();
+		result.payment = payment;
+		result.notes   = this.clientCaller.getTransactionMessagingDataForZaddress(payment.getAddress());
+
+		Set<String> txIDs = new HashSet<String>();
+		synchronized (payment)
+		{
+			txIDs.addAll(payment.pendingOutputs.values());
+			if (result.notes.length != payment.noteWatermark)
+			{
+				for (JsonObject note : result.notes)
+				{
+					if ((!note.getBoolean("change", false)) &&
+						(!payment.receivedOutputs.containsKey(getNoteOutputID(note))))
+					{
+						txIDs.add(note.getString("txid", ""));
+					}
+				}
+			}
+		}
+
+		result.confirmations = new HashMap<String, Integer>();
+		for (String txID : txIDs)
+		{
+			String confirmations = this.clientCaller.getWalletTransactionConfirmations(txID);
+			result.confirmations.put(txID, Integer.parseInt(confirmations.trim()));
+		}
+
+		return result;
+	}
+
+
+	// Called under the lock of the watcher. Notes are only processed if the watermark shows new ones.
+	private void applyPrivatePayment(PrivateScanResult result, Set<ExpectedPayment> touchedPayments)
+	{
+		ExpectedPayment payment = result.payment;
+
+		// No longer watched
+		if (this.payments.get(payment.getAddress()) != payment)
+		{
+			return;
+		}
+
+		synchronized (payment)
+		{
+			if (result.notes.length != payment.noteWatermark)
+			{
+				for (JsonObject note : result.notes)
+				{
+					if (note.getBoolean("change", false))
+					{
+						continue;
+					}
+
+					String outputID = getNoteOutputID(note);
+					if (!payment.receivedOutputs.containsKey(outputID))
+					{
+						payment.receivedOutputs.put(outputID, new BigDecimal(note.get("amount").toString()));
+						payment.pendingOutputs.put(outputID, note.getString("txid", ""));
+						touchedPayments.add(payment);
+					}
+				}
+
+				payment.noteWatermark = result.notes.length;
+			}
+
+			Iterator<String> pendingIterator = payment.pendingOutputs.values().iterator();
+			while (pendingIterator.hasNext())
+			{
+				Integer confirmations = result.confirmations.get(pendingIterator.next());
+				if ((confirmations != null) && (confirmations >= this.confirmationDepth))
+				{
+					pendingIterator.remove();
+					touchedPayments.add(payment);
+				}
+			}
+		}
+	}
+
+
+	private static String getNoteOutputID(JsonObject note)
+	{
+		return note.getString("txid", "") + ":" + note.getInt("jsindex", -1) + ":" +
+		       note.getInt("jsoutindex", note.getInt("outindex", -1));
+	}
+
+
+	// Keeps the scan indexes consistent with the state of a payment
+	private void indexPayment(ExpectedPayment payment)
+	{
+		if (Util.isZAddress(payment.getAddress()))
+		{
+			if (payment.getStatus() == PaymentStatus.CONFIRMED)
+			{
+				this.openPrivatePayments.remove(payment);
+			} else
+			{
+				this.openPrivatePayments.add(payment);
+			}
+		} else
+		{
+			synchronized (payment)
+			{
+				for (String outputID : payment.pendingOutputs.keySet())
+				{
+					this.pendingTransparentOutputs.put(outputID, payment);
+				}
+			}
+		}
+	}
+
+
+	// A corrupt watch list is kept aside and watching starts with an empty one
+	private synchronized void loadWatchList()
+		throws IOException
+	{
+		File watchListFile = new File(OSUtil.getSettingsDirectory() + File.separator + WATCH_LIST_FILE);
+		if (!watchListFile.exists())
+		{
+			Log.info("Payment watch list file does not exist: {0}", watchListFile.getCanonicalPath());
+			return;
+		}
+
+		Reader r = null;
+		try
+		{
+			r = new BufferedReader(new InputStreamReader(new FileInputStream(watchListFile), "UTF-8"));
+			JsonObject obj = Util.parseJsonObject(r);
+
+			String lastBlock = obj.getString("lastblock", "");
+			this.lastBlockHash = Util.stringIsEmpty(lastBlock) ? null : lastBlock;
+			this.confirmationDepth = Math.max(1, obj.getInt("confirmationdepth", DEFAULT_CONFIRMATION_DEPTH));
+
+			JsonValue jsonPayments = obj.get("payments");
+			if ((jsonPayments != null) && jsonPayments.isArray())
+			{
+				for (JsonValue val : jsonPayments.asArray())
+				{
+					ExpectedPayment payment = ExpectedPayment.fromJSONObject(val.asObject());
+					this.payments.put(payment.getAddress(), payment);
+					this.indexPayment(payment);
+				}
+			}
+		} catch (IOException | RuntimeException ex)
+		{
+			File corruptFile = new File(watchListFile.getParentFile(), WATCH_LIST_FILE + ".corrupt");
+			Log.error("Payment watch list file {0} is corrupt. It is kept as {1}. No payments are watched.", ex,
+				      watchListFile.getCanonicalPath(), corruptFile.getCanonicalPath());
+			
+			this.payments.clear();
+			this.openPrivatePayments.clear();
+			this.pendingTransparentOutputs.clear();
+			this.lastBlockHash = null;
+			this.confirmationDepth = DEFAULT_CONFIRMATION_DEPTH;
+			
+			if (r != null)
+			{
+				r.close();
+				r = null;
+			}
+			if ((corruptFile.exists() && (!corruptFile.delete())) || (!watchListFile.renameTo(corruptFile)))
+			{
+				Log.warning("Could not rename corrupt payment watch list file: {0}", watchListFile.getCanonicalPath());
+			}
+			return;
+		} finally
+		{
+			if (r != null)
+			{
+				r.close();
+			}
+		}
+
+		Log.info("Loaded {0} expected payments to watch.", this.payments.size());
+	}
+
+
+	private synchronized void storeWatchList()
+		throws IOException
+	{
+		JsonObject obj = new JsonObject();
+		obj.set("lastblock", (this.lastBlockHash != null) ? this.lastBlockHash : "");
+		obj.set("confirmationdepth", this.confirmationDepth);
+		JsonArray jsonPayments = new JsonArray();
+		for (ExpectedPayment payment : this.payments.values())
+		{
+			jsonPayments.add(payment.toJSONObject());
+		}
+		obj.set("payments", jsonPayments);
+
+		// Written to a temporary file first - a crash must not leave a truncated watch list
+		File watchListFile = new File(OSUtil.getSettingsDirectory() + File.separator + WATCH_LIST_FILE);
+		File tempFile = new File(watchListFile.getParentFile(), WATCH_LIST_FILE + ".tmp");
+		OutputStream os = null;
+		try
+		{
+			os = new FileOutputStream(tempFile);
+			obj.writeTo(os, WriterConfig.MINIMAL);
+		} finally
+		{
+			if (os != null)
+			{
+				os.close();
+			}
+		}
+
+		if ((watchListFile.exists() && (!watchListFile.delete())) || (!tempFile.renameTo(watchListFile)))
+		{
+			throw new IOException("Could not store the payment watch list: " + watchListFile.getAbsolutePath());
+		}
+	}
+}
@@ -45,15 +45,15 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Locale;
+import java.util.List;
 import java.util.Set;
 
 import javax.swing.BorderFactory;
@@ -61,6 +61,7 @@ import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenuItem;
@@ -68,8 +69,11 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
 
@@ -86,6 +90,8 @@ public class SendCashPanel
 	private StatusUpdateErrorReporter errorReporter;
 	private ZCashInstallationObserver installationObserver;
 	private BackupTracker             backupTracker;
+	private OperationTracker          operationTracker;
+	private ChangePlanner             changePlanner;
 	private LabelStorage labelStorage;
 	
 	private DropdownComboBox  balanceAddressCombo     = null;
@@ -102,12 +108,12 @@ public class SendCashPanel
 	private JCheckBox  sendChangeBackToSourceAddress = null;
 	
 	private JButton    sendButton              = null;
+	private JButton    batchPayoutButton       = null;
 	
 	private JPanel       operationStatusPanel        = null;
 	private JLabel       operationStatusLabel        = null;
 	private JProgressBar operationStatusProhgressBar = null;
 	private Timer        operationStatusTimer        = null;
-	private String       operationStatusID           = null;
 	private int          operationStatusCounter      = 0;
 	private LanguageUtil langUtil;
 
@@ -116,6 +122,7 @@ public class SendCashPanel
 			             StatusUpdateErrorReporter errorReporter,
 			             ZCashInstallationObserver installationObserver,
 			             BackupTracker backupTracker,
+			             OperationTracker operationTracker,
 			             LabelStorage labelStorage)
 		throws IOException, InterruptedException, WalletCallException
 	{
@@ -127,6 +134,8 @@ public class SendCashPanel
 		this.errorReporter = errorReporter;
 		this.installationObserver = installationObserver;
 		this.backupTracker = backupTracker;
+		this.operationTracker = operationTracker;
+		this.changePlanner = new ChangePlanner(clientCaller);
 		this.labelStorage = labelStorage;
 		
 		// Build content
@@ -215,6 +224,8 @@ public class SendCashPanel
 
 		tempPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
 		tempPanel.add(sendButton = new JButton(langUtil.getString("send.cash.panel.button.send") + "   \u27A4\u27A4\u27A4"));
+		tempPanel.add(new JLabel("      "));
+		tempPanel.add(batchPayoutButton = new JButton(langUtil.getString("send.cash.panel.button.batch.payout")));
 		sendCashPanel.add(tempPanel);
 
 		dividerLabel = new JLabel("   ");
@@ -282,6 +293,32 @@ public class SendCashPanel
 			}
 		});
 
+		batchPayoutButton.addActionListener(new ActionListener() 
+		{	
+			public void actionPerformed(ActionEvent e) 
+			{
+				try
+			    {
+					SendCashPanel.this.sendBatchPayout();
+				} catch (Exception ex)
+				{
+					Log.error("Unexpected error: ", ex);
+					
+					String errMessage = "";
+					if (ex instanceof WalletCallException)
+					{
+						errMessage = ((WalletCallException)ex).getMessage().replace(",", ",\n");
+					}
+					
+					JOptionPane.showMessageDialog(
+							SendCashPanel.this.getRootPane().getParent(), 
+							langUtil.getString("send.cash.panel.option.pane.error.text",errMessage),
+							langUtil.getString("send.cash.panel.option.pane.error.title"),
+							JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+
 		// Update the balances via timer and data gathering thread
 		this.addressBalanceGatheringThread = new DataGatheringThread<String[][]>(
 			new DataGatheringThread.DataGatherer<String[][]>() 
@@ -300,6 +337,25 @@ public class SendCashPanel
 			this.errorReporter, 10000, true);
 		this.threads.add(addressBalanceGatheringThread);
 		
+		// Keep a snapshot of the unspent outputs while change is to be sent back - so that the
+		// change plan is available instantly upon sending
+		DataGatheringThread<Boolean> changeSnapshotGatheringThread = new DataGatheringThread<Boolean>(
+			new DataGatheringThread.DataGatherer<Boolean>() 
+			{
+				public Boolean gatherData()
+					throws Exception
+				{
+					if (SendCashPanel.this.sendChangeBackToSourceAddress.isSelected())
+					{
+						SendCashPanel.this.changePlanner.refreshIfNeeded();
+					}
+					
+					return SendCashPanel.this.changePlanner.hasSnapshot();
+				}
+			}, 
+			this.errorReporter, 10000);
+		this.threads.add(changeSnapshotGatheringThread);
+		
 		ActionListener alBalancesUpdater = new ActionListener() 
 		{
 			@Override
@@ -373,25 +429,8 @@ public class SendCashPanel
 	private void sendCash()
 		throws WalletCallException, IOException, InterruptedException
 	{
-		if ((balanceAddressCombo.getItemCount() <= 0) ||
-			(this.lastAddressBalanceData == null)     || 
-			(this.lastAddressBalanceData.length <= 0))
-		{
-			JOptionPane.showMessageDialog(
-				SendCashPanel.this.getRootPane().getParent(), 
-				langUtil.getString("send.cash.panel.option.pane.no.funds.text"),
-				langUtil.getString("send.cash.panel.option.pane.no.funds.title"),
-				JOptionPane.ERROR_MESSAGE);
-			return;
-		}
-		
-		if (this.balanceAddressCombo.getSelectedIndex() < 0)
+		if (!this.checkSourceAddressIsSelected())
 		{
-			JOptionPane.showMessageDialog(
-				SendCashPanel.this.getRootPane().getParent(),
-					langUtil.getString("send.cash.panel.option.pane.select.source.text"),
-					langUtil.getString("send.cash.panel.option.pane.select.source.title"),
-					JOptionPane.ERROR_MESSAGE);
 			return;
 		}
 		
@@ -438,8 +477,7 @@ public class SendCashPanel
 		{
 			try 
 			{
-				double d = Double.valueOf(amount);
-				if (d < 0)
+				if (Zatoshi.parseRounded(amount).signum() < 0)
 				{
 					errorMessage = langUtil.getString("send.cash.panel.option.pane.error.amount.negative");
 				}
@@ -456,8 +494,7 @@ public class SendCashPanel
 		{
 			try 
 			{
-				double d = Double.valueOf(fee);
-				if (d < 0)
+				if (Zatoshi.parseRounded(fee).signum() < 0)
 				{
 					errorMessage = langUtil.getString("send.cash.panel.option.pane.error.fee.negative");
 				}
@@ -517,7 +554,7 @@ public class SendCashPanel
 		}		
 		
         // Warn the user if there are too many fractional digits in the amount and fee
-		if (hasExcessiveFractionalDigits(amount))
+		if (Zatoshi.hasExcessiveFractionalDigits(amount))
 		{
 	        int reply = JOptionPane.showConfirmDialog(
 	        		SendCashPanel.this.getRootPane().getParent(), 
@@ -531,7 +568,7 @@ public class SendCashPanel
 			}
 		}
 		
-		if (hasExcessiveFractionalDigits(fee))
+		if (Zatoshi.hasExcessiveFractionalDigits(fee))
 		{
 	        int reply = JOptionPane.showConfirmDialog(
 	        		SendCashPanel.this.getRootPane().getParent(), 
@@ -545,6 +582,10 @@ public class SendCashPanel
 			}
 		}
 		
+		// Any excessive fractional digits are rounded off - the user has agreed to this
+		final Zatoshi amountToSend = Zatoshi.parseRounded(amount);
+		final Zatoshi feeToSend    = Zatoshi.parseRounded(fee);
+		
 		// Get a confirmation from the user about the operation
         String userDir = OSUtil.getSettingsDirectory();
         File sendCashNotToBeShownFlagFile = new File(userDir + File.separator + "sendCashWarningNotToBeShown.flag");
@@ -600,6 +641,7 @@ public class SendCashPanel
         } 
 				
         boolean bEncryptedWallet = false;
+        String operationID = null;
 		// Backend operations are wrapped inside a wait cursor
         Cursor oldCursor = this.getRootPane().getParent().getCursor();
 		try
@@ -626,11 +668,15 @@ public class SendCashPanel
 			Log.info("Change send back flag: {0}", sendChangeBackToAddres);
 			if (sendChangeBackToAddres)
 			{
-				if (this.warnAndCheckConditionsForSendingBackChange(sourceAddress, destinationAddress, amount, memo, fee))
+				// The snapshot is normally up to date - only a new block or its age cause a reload
+				this.changePlanner.refreshIfNeeded();
+				ChangePlanner.ChangePlan plan = this.changePlanner.plan(sourceAddress, destinationAddress, amountToSend, feeToSend, memo);
+				this.getRootPane().getParent().setCursor(oldCursor);
+				if (this.confirmChangePlan(plan))
 				{
-					String balance = this.clientCaller.getBalanceForAddress(sourceAddress);
-					// Call the send method with change going back to source address
-					operationStatusID = this.clientCaller.sendCashWithReturnOfChange(sourceAddress, destinationAddress, balance, amount, memo, fee);
+					// One z_sendmany with the destination and the change output
+					this.getRootPane().getParent().setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+					operationID = this.clientCaller.sendCashToMany(sourceAddress, plan.getRecipients(), plan.getFee());
 				} else
 				{
 					return; // Stop the operation
@@ -638,8 +684,11 @@ public class SendCashPanel
 			} else
 			{
 				// Call the wallet send method - old style
-				operationStatusID = this.clientCaller.sendCash(sourceAddress, destinationAddress, amount, memo, fee);
+				operationID = this.clientCaller.sendCash(sourceAddress, destinationAddress, amountToSend, memo, feeToSend);
 			}
+			
+			// The outputs spent are no longer valid for planning
+			this.changePlanner.invalidate();
 					
 			// Make sure the keypool has spare addresses
 			if ((this.backupTracker.getNumTransactionsSinceLastBackup() % 5) == 0)
@@ -652,109 +701,392 @@ public class SendCashPanel
 		}
 		
 		// Disable controls after send
-		sendChangeBackToSourceAddress.setEnabled(false);
-		sendButton.setEnabled(false);
-		balanceAddressCombo.setEnabled(false);
-		destinationAddressField.setEnabled(false);
-		destinationAmountField.setEnabled(false);
-		destinationMemoField.setEnabled(false);
-		transactionFeeField.setEnabled(false);
+		this.setSendingControlsEnabled(false);
 		
 		
 		final boolean bEncryptedWalletForThread = bEncryptedWallet;
-		// Start a data gathering thread specific to the operation being executed - this is done in a separate 
-		// thread since the server responds more slowly during JoinSplits and this blocks the GUI somewhat.
-		final DataGatheringThread<Boolean> opFollowingThread = new DataGatheringThread<Boolean>(
-			new DataGatheringThread.DataGatherer<Boolean>() 
+		// The operation is followed by the shared tracker - the timer below only animates the progress
+		operationStatusCounter = 0;
+		operationStatusTimer = new Timer(2000, new ActionListener() 
+		{
+			@Override
+			public void actionPerformed(ActionEvent e) 
 			{
-				public Boolean gatherData()
-					throws Exception
+				// Update the progress
+				operationStatusLabel.setText(langUtil.getString("send.cash.panel.operation.status.progress.label"));
+				operationStatusCounter += 2;
+				int progress = 0;
+				if (operationStatusCounter <= 100)
 				{
-					long start = System.currentTimeMillis();
-					Boolean result = clientCaller.isSendingOperationComplete(operationStatusID);
-					long end = System.currentTimeMillis();
-					Log.info("Checking for operation " + operationStatusID + " status done in " + (end - start) + "ms." );
-					
-					return result;
+					progress = operationStatusCounter;
+				} else
+				{
+					progress = 100 + (((operationStatusCounter - 100) * 6) / 10);
 				}
-			}, 
-			this.errorReporter, 2000, true);
+				operationStatusProhgressBar.setValue(progress);
+				
+				SendCashPanel.this.repaint();
+			}
+		});
+		operationStatusTimer.setInitialDelay(0);
+		operationStatusTimer.start();
 		
-		// Start a timer to update the progress of the operation
-		operationStatusCounter = 0;
-		operationStatusTimer = new Timer(2000, new ActionListener() 
+		this.operationTracker.trackOperation(operationID, new OperationTracker.OperationListener() 
 		{
 			@Override
-			public void actionPerformed(ActionEvent e) 
+			public void operationCompleted(OperationTracker.OperationResult result) 
 			{
 				try
 				{
-					// TODO: Handle errors in case of restarted server while wallet is sending ...
-					Boolean opComplete = opFollowingThread.getLastData();
+					// Restore controls etc.
+					operationStatusCounter = 0;
+					operationStatusTimer.stop();
+					operationStatusTimer = null;
+					operationStatusProhgressBar.setValue(0);
 					
-					if ((opComplete != null) && opComplete.booleanValue())
-					{
-						// End the special thread used to follow the operation
-						opFollowingThread.setSuspended(true);
-						
-						SendCashPanel.this.reportCompleteOperationToTheUser(
-							amount, sourceAddress, destinationAddress);
-						
-						// Lock the wallet again 
-						if (bEncryptedWalletForThread)
-						{
-							SendCashPanel.this.clientCaller.lockWallet();
-						}
-						
-						// Restore controls etc.
-						operationStatusCounter = 0;
-						operationStatusID      = null;
-						operationStatusTimer.stop();
-						operationStatusTimer = null;
-						operationStatusProhgressBar.setValue(0);
-						
-						sendChangeBackToSourceAddress.setEnabled(true);
-						sendButton.setEnabled(true);
-						balanceAddressCombo.setEnabled(true);
-						destinationAddressField.setEnabled(true);
-						destinationAmountField.setEnabled(true);
-						transactionFeeField.setEnabled(true);
-						destinationMemoField.setEnabled(true);
-					} else
+					SendCashPanel.this.reportCompleteOperationToTheUser(
+						result, amount, sourceAddress, destinationAddress);
+					
+					// Lock the wallet again 
+					if (bEncryptedWalletForThread)
 					{
-						// Update the progress
-						operationStatusLabel.setText(langUtil.getString("send.cash.panel.operation.status.progress.label"));
-						operationStatusCounter += 2;
-						int progress = 0;
-						if (operationStatusCounter <= 100)
-						{
-							progress = operationStatusCounter;
-						} else
-						{
-							progress = 100 + (((operationStatusCounter - 100) * 6) / 10);
-						}
-						operationStatusProhgressBar.setValue(progress);
+						SendCashPanel.this.clientCaller.lockWallet();
 					}
-					
-					SendCashPanel.this.repaint();
 				} catch (Exception ex)
 				{
 					Log.error("Unexpected error: ", ex);
 					SendCashPanel.this.errorReporter.reportError(ex);
+				} finally
+				{
+					SendCashPanel.this.setSendingControlsEnabled(true);
+					SendCashPanel.this.repaint();
 				}
 			}
 		});
-		operationStatusTimer.setInitialDelay(0);
-		operationStatusTimer.start();
 	}
 
 	
+	/**
+	 * Sends cash from the selected source address to multiple recipients loaded from a CSV file.
+	 * The recipients are packed into as few z_sendmany operations as possible. 
+	 */
+	private void sendBatchPayout()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		if (!this.checkSourceAddressIsSelected())
+		{
+			return;
+		}
+		
+		final String sourceAddress = this.lastAddressBalanceData[this.balanceAddressCombo.getSelectedIndex()][1];
+		final String sourceBalance = this.lastAddressBalanceData[this.balanceAddressCombo.getSelectedIndex()][0];
+		final String fee = this.transactionFeeField.getText();
+		
+		String errorMessage = null;
+		if ((fee == null) || (fee.trim().length() <= 0))
+		{
+			errorMessage = langUtil.getString("send.cash.panel.option.pane.error.fee.invalid");
+		} else 
+		{
+			try 
+			{
+				// The fee must be exact - it is sent with every batch
+				if (Zatoshi.parse(fee).signum() < 0)
+				{
+					errorMessage = langUtil.getString("send.cash.panel.option.pane.error.fee.negative");
+				}
+			} catch (NumberFormatException nfe)
+			{
+				errorMessage = langUtil.getString("send.cash.panel.option.pane.error.fee.not.number");
+			}
+		}
+		
+		if (errorMessage != null)
+		{
+			JOptionPane.showMessageDialog(
+				SendCashPanel.this.getRootPane().getParent(), 
+				errorMessage, langUtil.getString("send.cash.panel.option.pane.error.incorrect.sending.parameters"), JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setDialogTitle(langUtil.getString("batch.payout.file.chooser.title"));
+		fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+		fileChooser.setCurrentDirectory(OSUtil.getUserHomeDirectory());
+		if (fileChooser.showOpenDialog(this.getRootPane().getParent()) != JFileChooser.APPROVE_OPTION) 
+		{
+		    return;
+		}
+		
+		final BatchPayout payout = new BatchPayout(
+			this.clientCaller, sourceAddress, fee, this.installationObserver.isOnTestNet());
+		List<String> errors = payout.loadRecipients(fileChooser.getSelectedFile());
+		if (!errors.isEmpty())
+		{
+			StringBuilder errorList = new StringBuilder();
+			for (int i = 0; i < Math.min(errors.size(), 20); i++)
+			{
+				errorList.append(errors.get(i)).append("\n");
+			}
+			if (errors.size() > 20)
+			{
+				errorList.append("...\n");
+			}
+			
+			JOptionPane.showMessageDialog(
+				SendCashPanel.this.getRootPane().getParent(), 
+				langUtil.getString("batch.payout.validation.errors.text", errorList.toString()),
+				langUtil.getString("batch.payout.validation.errors.title"), 
+				JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		
+		// Make sure the confirmed balance for the address is sufficient for all recipients and fees
+		if (Zatoshi.parse(sourceBalance).toBigDecimal().subtract(payout.getTotalAmount()).subtract(payout.getTotalFees()).signum() < 0)
+		{
+			JOptionPane.showMessageDialog(
+				SendCashPanel.this.getRootPane().getParent(), 
+				langUtil.getString("send.cash.panel.insufficient.balance", sourceAddress, sourceBalance, 
+					               payout.getTotalAmount().toPlainString(), payout.getTotalFees().toPlainString()),
+				langUtil.getString("send.cash.panel.insufficient.balance.title"), 
+				JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		
+		int reply = JOptionPane.showConfirmDialog(
+    		SendCashPanel.this.getRootPane().getParent(), 
+			langUtil.getString("batch.payout.confirm.text", 
+				               payout.getRecipients().size(), payout.getTotalAmount().toPlainString(), sourceAddress,
+				               payout.getBatches().size(), payout.getTotalFees().toPlainString()),
+			langUtil.getString("batch.payout.confirm.title"),
+	        JOptionPane.YES_NO_OPTION);
+		if (reply != JOptionPane.YES_OPTION) 
+		{
+		   	return;
+		}
+		
+        boolean bEncryptedWallet = false;
+		// Backend operations are wrapped inside a wait cursor
+        Cursor oldCursor = this.getRootPane().getParent().getCursor();
+		try
+		{
+			this.getRootPane().getParent().setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+			// Check for encrypted wallet
+			bEncryptedWallet = this.clientCaller.isWalletEncrypted();
+			if (bEncryptedWallet)
+			{
+				this.getRootPane().getParent().setCursor(oldCursor);
+				PasswordDialog pd = new PasswordDialog((JFrame)(SendCashPanel.this.getRootPane().getParent()));
+				pd.setVisible(true);
+				this.getRootPane().getParent().setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+				
+				if (!pd.isOKPressed())
+				{
+					return;
+				}
+				
+				this.clientCaller.unlockWallet(pd.getPassword());
+			}
+		} finally
+		{
+			this.getRootPane().getParent().setCursor(oldCursor);
+		}
+		
+		this.setSendingControlsEnabled(false);
+		
+		final boolean bEncryptedWalletForThread = bEncryptedWallet;
+		final int numOperations = payout.getBatches().size();
+		operationStatusLabel.setText(
+			langUtil.getString("batch.payout.operation.status.progress.label", payout.getNumCompleteOperations(), numOperations));
+		operationStatusProhgressBar.setValue((200 * payout.getNumCompleteOperations()) / Math.max(1, numOperations));
+		
+		// The operations are submitted one after another - each may wait for the previous one to be confirmed
+		final BatchPayout.SubmitListener submitListener = new BatchPayout.SubmitListener() 
+		{
+			@Override
+			public void submitProgress(final int numComplete, final boolean waitingForBalance) 
+			{
+				SwingUtilities.invokeLater(new Runnable() 
+				{
+					@Override
+					public void run() 
+					{
+						operationStatusLabel.setText(langUtil.getString(
+							waitingForBalance ? "batch.payout.operation.status.waiting.label" : 
+							                    "batch.payout.operation.status.progress.label", 
+							numComplete, numOperations));
+						operationStatusProhgressBar.setValue((200 * numComplete) / Math.max(1, numOperations));
+						SendCashPanel.this.repaint();
+					}
+				});
+			}
+		};
+		
+		new Thread(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				Exception error = null;
+				try
+				{
+					payout.submit(SendCashPanel.this.operationTracker, submitListener);
+				} catch (Exception ex)
+				{
+					Log.error("Unexpected error in batch payout: ", ex);
+					error = ex;
+				} finally
+				{
+					SendCashPanel.this.changePlanner.invalidate();
+				}
+				
+				final Exception submitError = error;
+				SwingUtilities.invokeLater(new Runnable() 
+				{
+					@Override
+					public void run() 
+					{
+						try
+						{
+							if (submitError != null)
+							{
+								SendCashPanel.this.errorReporter.reportError(submitError, false);
+							}
+							SendCashPanel.this.completeBatchPayout(payout, bEncryptedWalletForThread);
+						} catch (Exception ex)
+						{
+							Log.error("Unexpected error: ", ex);
+							SendCashPanel.this.errorReporter.reportError(ex);
+						}
+					}
+				});
+			}
+		}, "Batch payout").start();
+	}
+	
+	
+	private void completeBatchPayout(BatchPayout payout, boolean lockWallet)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		int numOperations = payout.getBatches().size();
+		try
+		{
+			operationStatusProhgressBar.setValue(0);
+			operationStatusLabel.setText(
+				langUtil.getString("batch.payout.operation.status.complete.label", payout.getNumCompleteOperations(), numOperations));
+			
+			if (lockWallet)
+			{
+				this.clientCaller.lockWallet();
+			}
+		} finally
+		{
+			this.setSendingControlsEnabled(true);
+		}
+		
+		this.reportBatchPayoutToTheUser(payout);
+	}
+	
+	
+	private void reportBatchPayoutToTheUser(BatchPayout payout)
+		throws IOException
+	{
+		String report = payout.createReport();
+		Log.info("Batch payout complete: \n" + report);
+		
+		JTextArea reportArea = new JTextArea(report, 20, 90);
+		reportArea.setEditable(false);
+		reportArea.setLineWrap(false);
+		JScrollPane reportPane = new JScrollPane(reportArea);
+		
+		Object[] options = langUtil.getString("batch.payout.report.options").split(":");
+		int option = JOptionPane.showOptionDialog(
+			SendCashPanel.this.getRootPane().getParent(),
+			reportPane,
+			langUtil.getString("batch.payout.report.title"),
+			JOptionPane.DEFAULT_OPTION, 
+			JOptionPane.INFORMATION_MESSAGE,
+			null, 
+			options, 
+			options[0]);
+		
+		if (option == 1)
+		{
+			JFileChooser fileChooser = new JFileChooser();
+			fileChooser.setDialogTitle(langUtil.getString("batch.payout.report.save.title"));
+			fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+			fileChooser.setCurrentDirectory(OSUtil.getUserHomeDirectory());
+			if (fileChooser.showSaveDialog(this.getRootPane().getParent()) == JFileChooser.APPROVE_OPTION) 
+			{
+				Writer w = null;
+				try
+				{
+					w = new OutputStreamWriter(new FileOutputStream(fileChooser.getSelectedFile()), "UTF-8");
+					w.write(report);
+				} finally
+				{
+					if (w != null)
+					{
+						w.close();
+					}
+				}
+			}
+		}
+		
+	    // Call the backup tracker - to remind the user
+	    this.backupTracker.handleNewTransaction();
+	}
+	
+	
 	public void prepareForSending(String address) 
 	{
 	    destinationAddressField.setText(address);
 	}
 	
 	
+	// Checks that a source address with a positive balance is selected - if not, the user is informed
+	private boolean checkSourceAddressIsSelected()
+	{
+		if ((balanceAddressCombo.getItemCount() <= 0) ||
+			(this.lastAddressBalanceData == null)     || 
+			(this.lastAddressBalanceData.length <= 0))
+		{
+			JOptionPane.showMessageDialog(
+				SendCashPanel.this.getRootPane().getParent(), 
+				langUtil.getString("send.cash.panel.option.pane.no.funds.text"),
+				langUtil.getString("send.cash.panel.option.pane.no.funds.title"),
+				JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		if (this.balanceAddressCombo.getSelectedIndex() < 0)
+		{
+			JOptionPane.showMessageDialog(
+				SendCashPanel.this.getRootPane().getParent(),
+					langUtil.getString("send.cash.panel.option.pane.select.source.text"),
+					langUtil.getString("send.cash.panel.option.pane.select.source.title"),
+					JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	
+	// Enables/disables the controls that must not be used while a send operation is in progress
+	private void setSendingControlsEnabled(boolean enabled)
+	{
+		sendChangeBackToSourceAddress.setEnabled(enabled);
+		sendButton.setEnabled(enabled);
+		batchPayoutButton.setEnabled(enabled);
+		balanceAddressCombo.setEnabled(enabled);
+		destinationAddressField.setEnabled(enabled);
+		destinationAmountField.setEnabled(enabled);
+		destinationMemoField.setEnabled(enabled);
+		transactionFeeField.setEnabled(enabled);
+	}
+	
+	
 	private void updateWalletAddressPositiveBalanceComboBox()
 		throws WalletCallException, IOException, InterruptedException
 	{
@@ -790,7 +1122,7 @@ public class SendCashPanel
 			// Form the current combo item for sending cash. If an address label is available, it gets 
 			// displayed first. If the overall string is too long it gets cut at 120 chars
 			String address = lastAddressBalanceData[i][1];
-			String formattedBalance = new DecimalFormat("########0.00######").format(Double.valueOf(lastAddressBalanceData[i][0]));
+			String formattedBalance = Zatoshi.parse(lastAddressBalanceData[i][0]).toDisplayString();
 			String label = this.labelStorage.getLabel(address); // Empty str if not found
 			if (label.length() > 0)
 			{
@@ -872,24 +1204,24 @@ public class SendCashPanel
 
 		for (String address : tAddressesCombined)
 		{
-			String balance = this.clientCaller.getBalanceForAddress(address);
-			if (Double.valueOf(balance) > 0)
+			Zatoshi balance = this.clientCaller.getBalanceForAddress(address);
+			if (balance.signum() > 0)
 			{
 				tempAddressBalances[count++] = new String[] 
 				{  
-					balance, address
+					balance.toString(), address
 				};
 			}
 		}
 		
 		for (String address : zAddresses)
 		{
-			String balance = this.clientCaller.getBalanceForAddress(address);
-			if (Double.valueOf(balance) > 0)
+			Zatoshi balance = this.clientCaller.getBalanceForAddress(address);
+			if (balance.signum() > 0)
 			{
 				tempAddressBalances[count++] = new String[] 
 				{  
-					balance, address
+					balance.toString(), address
 				};
 			}
 		}
@@ -901,13 +1233,14 @@ public class SendCashPanel
 	}
 	
 	
-	private void reportCompleteOperationToTheUser(String amount, String sourceAddress, String destinationAddress)
+	private void reportCompleteOperationToTheUser(OperationTracker.OperationResult result, 
+			                                      String amount, String sourceAddress, String destinationAddress)
 		throws InterruptedException, WalletCallException, IOException, URISyntaxException
 	{
-		if (clientCaller.isCompletedOperationSuccessful(operationStatusID))
+		if (result.isSuccessful())
 		{
 			operationStatusLabel.setText(langUtil.getString("send.cash.panel.operation.status.success.label"));
-			String TXID = clientCaller.getSuccessfulOperationTXID(operationStatusID);
+			String TXID = result.getTXID();
 			
 			Object[] options = langUtil.getString("send.cash.panel.operation.complete.report").split(":");
 			
@@ -947,7 +1280,7 @@ public class SendCashPanel
 		    this.backupTracker.handleNewTransaction();
 		} else
 		{
-			String errorMessage = clientCaller.getOperationFinalErrorMessage(operationStatusID); 
+			String errorMessage = result.getErrorMessage(); 
 			operationStatusLabel.setText(
 				langUtil.getString("send.cash.panel.operation.status.error.label", errorMessage));
 
@@ -960,87 +1293,54 @@ public class SendCashPanel
 	}
 	
 	
-	// Checks if a number has more than 8 fractional digits. This is not normally allowed for ZEN
-	// Input must be a decimal number!
-	private boolean hasExcessiveFractionalDigits(String field)
-	{
-		BigDecimal num = new BigDecimal(field);
-		DecimalFormatSymbols decSymbols = new DecimalFormatSymbols(Locale.ROOT);
-		DecimalFormat longFormat = new DecimalFormat("############################0.00###############################", decSymbols);
-		String formattedNumber = longFormat.format(num);
-		String fractionalPart = formattedNumber.substring(formattedNumber.indexOf(".") + 1);
-			
-		if (fractionalPart.length() > 8)
-		{
-			return true;
-		}
-		
-		return false;
-	}
-	
-	
 	/**
-	 * Checks the conditions necessary for sending back the change. Also issues a warning to the user on the nature of this operation.
-	 * 
-	 * @param sourceAddress
-	 * @param destinationAddress
-	 * @param amount
-	 * @param memo
-	 * @param fee
+	 * Shows the plan of a send with change going back to the source address. If the plan is invalid
+	 * the problems are reported.
 	 * 
-	 * @return true if all conditions are met and the user has not cancelled the operation
+	 * @return true if the plan is valid and the user has confirmed it
 	 */
-	private boolean warnAndCheckConditionsForSendingBackChange(String sourceAddress, String destinationAddress, String amount, String memo, String fee)
-		throws WalletCallException, InterruptedException, IOException
+	private boolean confirmChangePlan(ChangePlanner.ChangePlan plan)
 	{
-		String balance = this.clientCaller.getBalanceForAddress(sourceAddress);
-		
-		// Get a confirmation from the user about the operation - general warning
-        String userDir = OSUtil.getSettingsDirectory();
-        File sendChangeBackNotToBeShownFlagFile = new File(userDir + File.separator + "sendBackChangeWarningNotToBeShown.flag");
-        if (!sendChangeBackNotToBeShownFlagFile.exists())
-        {
-        	Object[] options = 
-        	{ 
-        		langUtil.getString("send.cash.panel.option.pane.confirm.operation.button.yes"),
-        		langUtil.getString("send.cash.panel.option.pane.confirm.operation.button.no"),
-        		langUtil.getString("send.cash.panel.option.pane.confirm.operation.button.not.again")
-        	};
-
-    		int option = JOptionPane.showOptionDialog(
-    				SendCashPanel.this.getRootPane().getParent(), 
-    				langUtil.getString("send.cash.panel.send.change.back.general.warning"), 
-    			    langUtil.getString("send.cash.panel.send.change.back.general.warning.title"),
-    			    JOptionPane.DEFAULT_OPTION, 
-    			    JOptionPane.WARNING_MESSAGE,
-    			    null, 
-    			    options, 
-    			    options[0]);
-    		
-    	    if (option == 2)
-    	    {
-    	    	sendChangeBackNotToBeShownFlagFile.createNewFile();
-    	    }
-    	    
-            // on "no" or close ("X")
-            if (option == 1 || option == -1)
-    	    {
-    	    	return false;
-    	    }
-        }
-		
-		// Make sure the confirmed balance for the address is sufficient
-		if (new BigDecimal(balance).subtract(new BigDecimal(amount)).subtract(new BigDecimal(fee)).compareTo(new BigDecimal("0")) < 0)
+		if (!plan.isValid())
 		{
+			StringBuilder errors = new StringBuilder();
+			for (String error : plan.getErrors())
+			{
+				errors.append(error).append("\n\n");
+			}
+			
 			JOptionPane.showMessageDialog(
 				SendCashPanel.this.getRootPane().getParent(), 
-				langUtil.getString("send.cash.panel.insufficient.balance", sourceAddress, balance, amount, fee),
-				langUtil.getString("send.cash.panel.insufficient.balance.title"), 
+				errors.toString().trim(),
+				langUtil.getString("send.cash.panel.option.pane.error.incorrect.sending.parameters"), 
 				JOptionPane.ERROR_MESSAGE);
 			
 			return false;
 		}
-	
-		return true;
+		
+		StringBuilder planText = new StringBuilder();
+		planText.append(langUtil.getString("send.cash.panel.change.plan.text",
+			plan.getSourceAddress(), plan.getNumInputs(), plan.getInputsTotal().toString(),
+			plan.getAmount().toString(), plan.getDestinationAddress(), plan.getFee().toString(),
+			plan.getChange().toString()));
+		if (plan.getUnconfirmedTotal().signum() > 0)
+		{
+			planText.append(langUtil.getString("send.cash.panel.change.plan.unconfirmed", 
+				                               plan.getUnconfirmedTotal().toString()));
+		}
+		if (plan.getExcludedCoinbase().signum() > 0)
+		{
+			planText.append(langUtil.getString("send.cash.panel.change.plan.coinbase", 
+                                               plan.getExcludedCoinbase().toString()));
+		}
+		planText.append(langUtil.getString("send.cash.panel.change.plan.question"));
+		
+		int reply = JOptionPane.showConfirmDialog(
+			SendCashPanel.this.getRootPane().getParent(), 
+			planText.toString(),
+			langUtil.getString("send.cash.panel.change.plan.title"),
+	        JOptionPane.YES_NO_OPTION);
+		
+		return reply == JOptionPane.YES_OPTION;
 	}
 }
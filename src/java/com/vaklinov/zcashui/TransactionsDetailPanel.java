@@ -34,7 +34,6 @@ import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -281,8 +280,6 @@ public class TransactionsDetailPanel
 			notConfirmed = " \u25B6";
 		}
 
-		DecimalFormat df = new DecimalFormat("########0.00######");
-		
 		// Change the direction and date etc. attributes for presentation purposes
 		for (String[] trans : allTransactions)
 		{
@@ -310,12 +307,12 @@ public class TransactionsDetailPanel
 			// Amount
 			try
 			{
-				double amount = Double.valueOf(trans[3]);
-				if (amount < 0d)
+				Zatoshi amount = Zatoshi.parse(trans[3]);
+				if (amount.signum() < 0)
 				{
-					amount = -amount;
+					amount = amount.negate();
 				}
-				trans[3] = df.format(amount);
+				trans[3] = amount.toDisplayString();
 			} catch (NumberFormatException nfe)
 			{
 				Log.error("Error occurred while formatting amount: " + trans[3] + 
@@ -0,0 +1,524 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.eclipsesource.json.JsonObject;
+import com.vaklinov.zcashui.ZCashClientCaller.UnspentOutput;
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+
+
+/**
+ * Consolidates the UTXOs of a fragmented wallet (e.g. after heavy mining or many small deposits).
+ * Regular UTXOs of each T address are merged back into the same address with z_mergetoaddress and
+ * coinbase UTXOs are shielded to a Z address with z_shieldcoinbase. Every operation consumes a
+ * limited number of UTXOs so that the resulting transactions stay well within the size limits.
+ */
+public class UTXOConsolidator
+{
+	// Max. number of UTXOs consumed by one operation - the wallet default for both calls
+	public static final int UTXOS_PER_OPERATION = 50;
+	// Addresses with fewer regular UTXOs are not considered fragmented
+	public static final int MIN_UTXOS_TO_MERGE = 10;
+	// Max. number of operations submitted in one consolidation run
+	public static final int MAX_OPERATIONS_PER_RUN = 40;
+	// Default fee for one operation
+	public static final Zatoshi DEFAULT_FEE = Zatoshi.valueOf(10000);
+
+
+	/**
+	 * UTXO statistics for a single T address.
+	 */
+	public static class AddressFragmentation
+	{
+		private String     address;
+		private int        numUTXOs         = 0;
+		private int        numCoinbaseUTXOs = 0;
+		private Zatoshi    value            = Zatoshi.ZERO;
+		private Zatoshi    coinbaseValue    = Zatoshi.ZERO;
+
+
+		public String getAddress()
+		{
+			return this.address;
+		}
+
+
+		// Regular (non-coinbase) UTXOs
+		public int getNumUTXOs()
+		{
+			return this.numUTXOs;
+		}
+
+
+		public int getNumCoinbaseUTXOs()
+		{
+			return this.numCoinbaseUTXOs;
+		}
+
+
+		public Zatoshi getValue()
+		{
+			return this.value;
+		}
+
+
+		public Zatoshi getCoinbaseValue()
+		{
+			return this.coinbaseValue;
+		}
+	}
+
+
+	/**
+	 * Result of a fragmentation analysis of the wallet.
+	 */
+	public static class Analysis
+	{
+		private List<AddressFragmentation> addresses = new ArrayList<AddressFragmentation>();
+		private int  totalUTXOs;
+		private int  totalCoinbaseUTXOs;
+		private long listUnspentTime;
+		private long balanceQueryTime;
+
+
+		// Sorted by number of UTXOs - most fragmented first
+		public List<AddressFragmentation> getAddresses()
+		{
+			return this.addresses;
+		}
+
+
+		// All UTXOs including coinbase
+		public int getTotalUTXOs()
+		{
+			return this.totalUTXOs;
+		}
+
+
+		public int getTotalCoinbaseUTXOs()
+		{
+			return this.totalCoinbaseUTXOs;
+		}
+
+
+		// Time in ms of the listunspent call
+		public long getListUnspentTime()
+		{
+			return this.listUnspentTime;
+		}
+
+
+		// Time in ms for obtaining the total wallet balance
+		public long getBalanceQueryTime()
+		{
+			return this.balanceQueryTime;
+		}
+	}
+
+
+	public static enum StepType
+	{
+		MERGE, SHIELD_COINBASE
+	}
+
+
+	/**
+	 * One proposed consolidation operation.
+	 */
+	public static class Step
+	{
+		private StepType type;
+		private String   fromAddress;
+		private String   toAddress;
+		private int      expectedUTXOs;
+
+		// Set upon execution
+		private int        numUTXOs;
+		private Zatoshi    value;
+		private String     opID;
+		private OperationTracker.OperationResult result;
+		private String     errorMessage;
+
+
+		Step(StepType type, String fromAddress, String toAddress, int expectedUTXOs)
+		{
+			this.type          = type;
+			this.fromAddress   = fromAddress;
+			this.toAddress     = toAddress;
+			this.expectedUTXOs = expectedUTXOs;
+		}
+
+
+		public StepType getType()
+		{
+			return this.type;
+		}
+
+
+		public String getFromAddress()
+		{
+			return this.fromAddress;
+		}
+
+
+		public String getToAddress()
+		{
+			return this.toAddress;
+		}
+
+
+		public int getExpectedUTXOs()
+		{
+			return this.expectedUTXOs;
+		}
+
+
+		// Number of UTXOs actually consumed - 0 if not submitted
+		public int getNumUTXOs()
+		{
+			return this.numUTXOs;
+		}
+
+
+		public String getOperationID()
+		{
+			return this.opID;
+		}
+
+
+		public synchronized boolean isComplete()
+		{
+			return (this.opID == null) || ((this.result != null) && this.result.isComplete());
+		}
+
+
+		public synchronized boolean isSuccessful()
+		{
+			return (this.result != null) && this.result.isSuccessful();
+		}
+
+
+		public synchronized String getErrorMessage()
+		{
+			return (this.result != null) ? this.result.getErrorMessage() : this.errorMessage;
+		}
+	}
+
+
+	private ZCashClientCaller clientCaller;
+	private Zatoshi transactionFee;
+
+
+	public UTXOConsolidator(ZCashClientCaller clientCaller, Zatoshi transactionFee)
+	{
+		this.clientCaller   = clientCaller;
+		this.transactionFee = transactionFee;
+	}
+
+
+	/**
+	 * Analyzes the UTXO fragmentation of the wallet. Also measures the time for obtaining the wallet
+	 * balance, which grows with the number of UTXOs.
+	 */
+	public Analysis analyze()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		Analysis analysis = new Analysis();
+		Map<String, AddressFragmentation> addresses = new LinkedHashMap<String, AddressFragmentation>();
+
+		long start = System.currentTimeMillis();
+		List<UnspentOutput> unspentOutputs = this.clientCaller.getWalletUnspentOutputs(0);
+		analysis.listUnspentTime = System.currentTimeMillis() - start;
+
+		for (UnspentOutput output : unspentOutputs)
+		{
+			// Watch-only outputs cannot be consolidated
+			if (!output.spendable)
+			{
+				continue;
+			}
+
+			String address = output.address;
+			if ((address == null) || (output.amount == null))
+			{
+				throw new WalletCallException("Unexpected unspent output from wallet, txid: " + output.txID);
+			}
+
+			AddressFragmentation fragmentation = addresses.get(address);
+			if (fragmentation == null)
+			{
+				fragmentation = new AddressFragmentation();
+				fragmentation.address = address;
+				addresses.put(address, fragmentation);
+			}
+
+			Zatoshi value = output.amount;
+			if (output.coinbase)
+			{
+				fragmentation.numCoinbaseUTXOs++;
+				fragmentation.coinbaseValue = fragmentation.coinbaseValue.add(value);
+				analysis.totalCoinbaseUTXOs++;
+			} else
+			{
+				fragmentation.numUTXOs++;
+				fragmentation.value = fragmentation.value.add(value);
+			}
+			analysis.totalUTXOs++;
+		}
+
+		analysis.addresses.addAll(addresses.values());
+		Collections.sort(analysis.addresses, new Comparator<AddressFragmentation>()
+		{
+			public int compare(AddressFragmentation a1, AddressFragmentation a2)
+			{
+				return (a2.numUTXOs + a2.numCoinbaseUTXOs) - (a1.numUTXOs + a1.numCoinbaseUTXOs);
+			}
+		});
+
+		start = System.currentTimeMillis();
+		this.clientCaller.getTotalBalance();
+		analysis.balanceQueryTime = System.currentTimeMillis() - start;
+
+		Log.info("UTXO analysis: {0} UTXOs ({1} coinbase) in {2} addresses. listunspent: {3}ms, balance: {4}ms",
+			     analysis.totalUTXOs, analysis.totalCoinbaseUTXOs, analysis.addresses.size(),
+			     analysis.listUnspentTime, analysis.balanceQueryTime);
+
+		return analysis;
+	}
+
+
+	/**
+	 * Proposes the consolidation steps for an analysis. Regular UTXOs are merged back into their own
+	 * address, coinbase UTXOs are shielded to the given Z address. The number of steps is limited
+	 * to {@link #MAX_OPERATIONS_PER_RUN} - a further run may be needed for very fragmented wallets.
+	 *
+	 * @param analysis result of {@link #analyze()}
+	 * @param shieldingAddress Z address for the coinbase UTXOs - if null coinbase UTXOs are left as is
+	 */
+	public List<Step> proposeSteps(Analysis analysis, String shieldingAddress)
+	{
+		List<Step> steps = new ArrayList<Step>();
+
+		for (AddressFragmentation fragmentation : analysis.getAddresses())
+		{
+			if (fragmentation.numUTXOs >= MIN_UTXOS_TO_MERGE)
+			{
+				for (int remaining = fragmentation.numUTXOs; remaining > 1; remaining -= UTXOS_PER_OPERATION)
+				{
+					steps.add(new Step(StepType.MERGE, fragmentation.address, fragmentation.address,
+						               Math.min(remaining, UTXOS_PER_OPERATION)));
+				}
+			}
+
+			if ((shieldingAddress != null) && (fragmentation.numCoinbaseUTXOs > 0))
+			{
+				for (int remaining = fragmentation.numCoinbaseUTXOs; remaining > 0; remaining -= UTXOS_PER_OPERATION)
+				{
+					steps.add(new Step(StepType.SHIELD_COINBASE, fragmentation.address, shieldingAddress,
+						               Math.min(remaining, UTXOS_PER_OPERATION)));
+				}
+			}
+		}
+
+		if (steps.size() > MAX_OPERATIONS_PER_RUN)
+		{
+			steps = new ArrayList<Step>(steps.subList(0, MAX_OPERATIONS_PER_RUN));
+		}
+
+		return steps;
+	}
+
+
+	public Zatoshi getTotalFees(List<Step> steps)
+	{
+		return this.transactionFee.multiply(steps.size());
+	}
+
+
+	/**
+	 * Submits the steps to the wallet. The wallet locks the UTXOs of a running operation, so the
+	 * successive steps for one address select the next UTXOs. When a step cannot be submitted (e.g.
+	 * no more UTXOs), the remaining steps of the same kind for that address are skipped.
+	 *
+	 * @return the IDs of the operations started
+	 */
+	public List<String> execute(List<Step> steps)
+		throws IOException, InterruptedException
+	{
+		List<String> opIDs = new ArrayList<String>();
+		Set<String> exhaustedSources = new HashSet<String>();
+
+		for (Step step : steps)
+		{
+			String sourceKey = step.type + ":" + step.fromAddress;
+			if (exhaustedSources.contains(sourceKey))
+			{
+				step.errorMessage = "Skipped - no more UTXOs to consolidate";
+				continue;
+			}
+
+			try
+			{
+				JsonObject response;
+				if (step.type == StepType.MERGE)
+				{
+					response = this.clientCaller.mergeToAddress(
+						Collections.singletonList(step.fromAddress), step.toAddress, this.transactionFee, UTXOS_PER_OPERATION);
+				} else
+				{
+					response = this.clientCaller.shieldCoinbase(
+						step.fromAddress, step.toAddress, this.transactionFee, UTXOS_PER_OPERATION);
+				}
+
+				// The operation has started - it is tracked even if the rest of the response is malformed
+				step.opID = response.getString("opid", null);
+				if (step.opID != null)
+				{
+					opIDs.add(step.opID);
+				}
+
+				if (step.type == StepType.MERGE)
+				{
+					step.numUTXOs = response.getInt("mergingUTXOs", 0);
+					step.value    = Zatoshi.parse(response.get("mergingTransparentValue"));
+				} else
+				{
+					step.numUTXOs = response.getInt("shieldingUTXOs", 0);
+					step.value    = Zatoshi.parse(response.get("shieldingValue"));
+				}
+
+				if (response.getInt("remainingUTXOs", 0) <= ((step.type == StepType.MERGE) ? 1 : 0))
+				{
+					exhaustedSources.add(sourceKey);
+				}
+			} catch (WalletCallException wce)
+			{
+				Log.error("Consolidation step could not be submitted: ", wce);
+				step.errorMessage = wce.getMessage();
+				exhaustedSources.add(sourceKey);
+			} catch (RuntimeException rte)
+			{
+				// Unexpected response structure - the operation may still have been started
+				Log.error("Unexpected response in consolidation step: ", rte);
+				step.errorMessage = rte.getMessage();
+				exhaustedSources.add(sourceKey);
+			}
+		}
+
+		return opIDs;
+	}
+
+
+	/**
+	 * Records the final result of a step operation.
+	 *
+	 * @return true if all steps are now complete
+	 */
+	public boolean setOperationResult(List<Step> steps, OperationTracker.OperationResult result)
+	{
+		boolean allComplete = true;
+		for (Step step : steps)
+		{
+			synchronized (step)
+			{
+				if (result.getOperationID().equals(step.opID))
+				{
+					step.result = result;
+				}
+			}
+			allComplete = allComplete && step.isComplete();
+		}
+
+		return allComplete;
+	}
+
+
+	/**
+	 * Creates a text report of a consolidation run.
+	 *
+	 * @param before analysis before the run
+	 * @param steps steps executed
+	 * @param after analysis after the run (UTXOs created by the run may still be unconfirmed)
+	 */
+	public String createReport(Analysis before, List<Step> steps, Analysis after)
+	{
+		LanguageUtil langUtil = LanguageUtil.instance();
+
+		int successful = 0;
+		int consumedUTXOs = 0;
+		for (Step step : steps)
+		{
+			if (step.isSuccessful())
+			{
+				successful++;
+				consumedUTXOs += step.numUTXOs;
+			}
+		}
+
+		StringBuilder report = new StringBuilder();
+		report.append(langUtil.getString("utxo.consolidation.report.summary",
+			successful, steps.size(), consumedUTXOs,
+			before.getTotalUTXOs(), after.getTotalUTXOs(),
+			before.getTotalCoinbaseUTXOs(), after.getTotalCoinbaseUTXOs(),
+			before.getListUnspentTime(), after.getListUnspentTime(),
+			before.getBalanceQueryTime(), after.getBalanceQueryTime()));
+		report.append("\n\n");
+
+		for (Step step : steps)
+		{
+			report.append(step.type).append(", ");
+			report.append(step.fromAddress).append(" -> ").append(step.toAddress).append(", ");
+			report.append(step.numUTXOs).append(" UTXOs, ");
+			report.append((step.value != null) ? step.value.toString() : "-").append(" ZEN, ");
+			if (step.isSuccessful())
+			{
+				report.append("success, ").append(step.result.getTXID());
+			} else
+			{
+				String errorMessage = step.getErrorMessage();
+				report.append("failed, ").append((errorMessage != null) ? errorMessage.replace("\n", " ") : "");
+			}
+			report.append("\n");
+		}
+
+		return report.toString();
+	}
+}
@@ -211,6 +211,18 @@ public class Util
     }
     
     
+    public static byte[] decodeHexArray(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, (i * 2) + 2), 16);
+        }
+        
+        return bytes;
+    }
+    
+    
     public static String encodeHexString(String str)
         throws UnsupportedEncodingException
     {
@@ -33,10 +33,20 @@ import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -64,6 +74,16 @@ public class WalletOperations
 	private ZCashClientCaller         clientCaller;
 	private StatusUpdateErrorReporter errorReporter;
 	private BackupTracker             backupTracker;
+	private OperationTracker          operationTracker;
+	private PaymentWatcher            paymentWatcher;
+	
+	// Set while a UTXO consolidation run is under way
+	private boolean consolidationInProgress = false;
+	
+	// Payment status changes not yet shown - guarded by itself
+	private List<String> paymentStatusChanges = new ArrayList<String>();
+	// Set while a notification of payment status changes is scheduled or shown
+	private boolean paymentNotificationPending = false;
 
 	private LanguageUtil langUtil;
 
@@ -77,7 +97,9 @@ public class WalletOperations
 			                ZCashInstallationObserver installationObserver, 
 			                ZCashClientCaller clientCaller,
 			                StatusUpdateErrorReporter errorReporter,
-			                BackupTracker             backupTracker) 
+			                BackupTracker             backupTracker,
+			                OperationTracker          operationTracker,
+			                PaymentWatcher            paymentWatcher) 
         throws IOException, InterruptedException, WalletCallException 
 	{
 		this.parent    = parent;
@@ -91,7 +113,19 @@ public class WalletOperations
 		this.errorReporter = errorReporter;
 		
 		this.backupTracker = backupTracker;
+		this.operationTracker = operationTracker;
+		this.paymentWatcher = paymentWatcher;
 		this.langUtil = LanguageUtil.instance();
+		
+		this.paymentWatcher.addPaymentListener(new PaymentWatcher.PaymentListener() 
+		{
+			@Override
+			public void paymentStatusChanged(PaymentWatcher.ExpectedPayment payment, 
+					                         PaymentWatcher.PaymentStatus previousStatus) 
+			{
+				WalletOperations.this.queuePaymentStatusChange(payment, previousStatus);
+			}
+		});
 	}
 
 	
@@ -418,6 +452,191 @@ public class WalletOperations
 	}
 
 	
+	/**
+	 * Analyzes the UTXO fragmentation of the wallet and - if the user agrees - consolidates the
+	 * UTXOs. A report is shown when all consolidation operations are complete.
+	 */
+	public void consolidateUTXOs()
+	{
+		if (this.consolidationInProgress)
+		{
+			JOptionPane.showMessageDialog(
+				this.parent, 
+				langUtil.getString("utxo.consolidation.in.progress.text"),
+				langUtil.getString("utxo.consolidation.title"),
+				JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		
+		try
+		{
+			final UTXOConsolidator consolidator = new UTXOConsolidator(this.clientCaller, UTXOConsolidator.DEFAULT_FEE);
+			final UTXOConsolidator.Analysis before;
+			String shieldingAddress = null;
+			boolean newShieldingAddress = false;
+			
+			Cursor oldCursor = this.parent.getCursor();
+			try
+			{
+				this.parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+				before = consolidator.analyze();
+				
+				if (before.getTotalCoinbaseUTXOs() > 0)
+				{
+					String[] zAddresses = this.clientCaller.getWalletZAddresses();
+					if (zAddresses.length > 0)
+					{
+						shieldingAddress = zAddresses[0];
+					} else
+					{
+						shieldingAddress = this.clientCaller.createNewAddress(true);
+						newShieldingAddress = true;
+					}
+				}
+			} finally
+			{
+				this.parent.setCursor(oldCursor);
+			}
+			
+			final List<UTXOConsolidator.Step> steps = consolidator.proposeSteps(before, shieldingAddress);
+			if (steps.isEmpty())
+			{
+				JOptionPane.showMessageDialog(
+					this.parent, 
+					langUtil.getString("utxo.consolidation.not.needed.text", 
+						               before.getTotalUTXOs(), before.getAddresses().size(), 
+						               UTXOConsolidator.MIN_UTXOS_TO_MERGE),
+					langUtil.getString("utxo.consolidation.title"),
+					JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			
+			int numShieldingSteps = 0;
+			for (UTXOConsolidator.Step step : steps)
+			{
+				if (step.getType() == UTXOConsolidator.StepType.SHIELD_COINBASE)
+				{
+					numShieldingSteps++;
+				}
+			}
+			
+			int reply = JOptionPane.showConfirmDialog(
+				this.parent, 
+				langUtil.getString("utxo.consolidation.confirm.text",
+					               before.getTotalUTXOs(), before.getTotalCoinbaseUTXOs(), before.getAddresses().size(),
+					               before.getListUnspentTime(), before.getBalanceQueryTime(),
+					               steps.size() - numShieldingSteps, numShieldingSteps, 
+					               (shieldingAddress != null) ? shieldingAddress : "-",
+					               consolidator.getTotalFees(steps).toString()) +
+				(newShieldingAddress ? langUtil.getString("utxo.consolidation.confirm.new.address.text") : ""),
+				langUtil.getString("utxo.consolidation.title"),
+				JOptionPane.YES_NO_OPTION);
+			if (reply != JOptionPane.YES_OPTION) 
+			{
+			   	return;
+			}
+			
+			// Check for encrypted wallet
+			final boolean bEncryptedWallet = this.clientCaller.isWalletEncrypted();
+			if (bEncryptedWallet)
+			{
+				PasswordDialog pd = new PasswordDialog((JFrame)(this.parent));
+				pd.setVisible(true);
+				
+				if (!pd.isOKPressed())
+				{
+					return;
+				}
+				
+				this.clientCaller.unlockWallet(pd.getPassword());
+			}
+			
+			List<String> opIDs;
+			try
+			{
+				this.parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+				opIDs = consolidator.execute(steps);
+			} finally
+			{
+				this.parent.setCursor(oldCursor);
+			}
+			
+			if (opIDs.isEmpty())
+			{
+				if (bEncryptedWallet)
+				{
+					this.clientCaller.lockWallet();
+				}
+				
+				JOptionPane.showMessageDialog(
+					this.parent, 
+					langUtil.getString("utxo.consolidation.error.text", steps.get(0).getErrorMessage()),
+					langUtil.getString("utxo.consolidation.title"),
+					JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			
+			this.consolidationInProgress = true;
+			OperationTracker.OperationListener listener = new OperationTracker.OperationListener()
+			{
+				@Override
+				public void operationCompleted(OperationTracker.OperationResult result) 
+				{
+					if (!consolidator.setOperationResult(steps, result))
+					{
+						return;
+					}
+					
+					WalletOperations.this.consolidationInProgress = false;
+					Cursor oldCursor = WalletOperations.this.parent.getCursor();
+					try
+					{
+						WalletOperations.this.parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+						if (bEncryptedWallet)
+						{
+							WalletOperations.this.clientCaller.lockWallet();
+						}
+						
+						UTXOConsolidator.Analysis after = consolidator.analyze();
+						WalletOperations.this.parent.setCursor(oldCursor);
+						
+						String report = consolidator.createReport(before, steps, after);
+						Log.info("UTXO consolidation complete: \n" + report);
+						
+						JTextArea reportArea = new JTextArea(report, 20, 90);
+						reportArea.setEditable(false);
+						JOptionPane.showMessageDialog(
+							WalletOperations.this.parent, 
+							new JScrollPane(reportArea),
+							langUtil.getString("utxo.consolidation.report.title"),
+							JOptionPane.INFORMATION_MESSAGE);
+						
+						WalletOperations.this.backupTracker.handleNewTransaction();
+					} catch (Exception ex)
+					{
+						WalletOperations.this.parent.setCursor(oldCursor);
+						WalletOperations.this.errorReporter.reportError(ex, false);
+					}
+				}
+			};
+			
+			for (String opID : opIDs)
+			{
+				this.operationTracker.trackOperation(opID, listener);
+			}
+			
+			JOptionPane.showMessageDialog(
+				this.parent, 
+				langUtil.getString("utxo.consolidation.started.text", opIDs.size()),
+				langUtil.getString("utxo.consolidation.title"),
+				JOptionPane.INFORMATION_MESSAGE);
+		} catch (Exception ex)
+		{
+			this.errorReporter.reportError(ex, false);
+		}
+	}
+	
+	
 	/**
 	 * Brings up a GUI dialog box to edit the command line parameters of zend that the GUI starts.
 	 */
@@ -436,6 +655,375 @@ public class WalletOperations
 	}
 	
 
+	/**
+	 * Loads the payments expected on receiving addresses of the wallet (e.g. one address per invoice)
+	 * from a CSV file with rows of the form: address,amount,reference (reference is optional) and 
+	 * starts watching them. Addresses that are already watched are updated. The number of confirmations
+	 * after which payments are reported as confirmed may be changed.
+	 */
+	public void watchExpectedPayments()
+	{
+		try
+		{
+			JFileChooser fileChooser = new JFileChooser();
+			fileChooser.setDialogTitle(langUtil.getString("payment.watch.file.chooser.title"));
+			fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+			fileChooser.setCurrentDirectory(OSUtil.getUserHomeDirectory());
+			if (fileChooser.showOpenDialog(this.parent) != JFileChooser.APPROVE_OPTION) 
+			{
+			    return;
+			}
+			
+			List<String[]> expectedPayments = new ArrayList<String[]>();
+			List<String> errors;
+			Cursor oldCursor = this.parent.getCursor();
+			try
+			{
+				this.parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+				errors = this.loadExpectedPayments(fileChooser.getSelectedFile(), expectedPayments);
+			} finally
+			{
+				this.parent.setCursor(oldCursor);
+			}
+			
+			if (!errors.isEmpty())
+			{
+				StringBuilder errorList = new StringBuilder();
+				for (int i = 0; i < Math.min(errors.size(), 20); i++)
+				{
+					errorList.append(errors.get(i)).append("\n");
+				}
+				if (errors.size() > 20)
+				{
+					errorList.append("...\n");
+				}
+				
+				JOptionPane.showMessageDialog(
+					this.parent, 
+					langUtil.getString("payment.watch.validation.errors.text", errorList.toString()),
+					langUtil.getString("payment.watch.validation.errors.title"), 
+					JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			
+			// The depth applies to all watched payments
+			String depthText = (String)JOptionPane.showInputDialog(
+				this.parent, 
+				langUtil.getString("payment.watch.depth.text", expectedPayments.size()),
+				langUtil.getString("payment.watch.title"),
+				JOptionPane.QUESTION_MESSAGE,
+				null, null, String.valueOf(this.paymentWatcher.getConfirmationDepth()));
+			if (depthText == null)
+			{
+				return;
+			}
+			
+			int depth;
+			try
+			{
+				depth = Integer.parseInt(depthText.trim());
+			} catch (NumberFormatException nfe)
+			{
+				depth = 0;
+			}
+			if (depth < 1)
+			{
+				JOptionPane.showMessageDialog(
+					this.parent, 
+					langUtil.getString("payment.watch.depth.invalid.text", depthText),
+					langUtil.getString("payment.watch.title"), 
+					JOptionPane.ERROR_MESSAGE);
+				return;
+			}
+			
+			List<PaymentWatcher.ExpectedPayment> watched;
+			try
+			{
+				this.parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+				this.paymentWatcher.setConfirmationDepth(depth);
+				// All rows are registered with one store of the watch list
+				watched = this.paymentWatcher.watchAddresses(expectedPayments);
+			} finally
+			{
+				this.parent.setCursor(oldCursor);
+			}
+			
+			JOptionPane.showMessageDialog(
+				this.parent, 
+				langUtil.getString("payment.watch.started.text", watched.size(), 
+					               this.paymentWatcher.getExpectedPayments().size(), 
+					               this.paymentWatcher.getConfirmationDepth()),
+				langUtil.getString("payment.watch.title"),
+				JOptionPane.INFORMATION_MESSAGE);
+		} catch (Exception ex)
+		{
+			Log.error("Unexpected error: ", ex);
+			this.errorReporter.reportError(ex, false);
+		}
+	}
+	
+	
+	// Called on the watcher thread - the changes of a watch cycle are shown in one dialog
+	private void queuePaymentStatusChange(PaymentWatcher.ExpectedPayment payment, 
+			                              PaymentWatcher.PaymentStatus previousStatus)
+	{
+		String change = langUtil.getString("payment.watch.status.changed.line", 
+			payment.getAddress(), Util.stringIsEmpty(payment.getReference()) ? "-" : payment.getReference(),
+			previousStatus.name(), payment.getStatus().name());
+		
+		synchronized (this.paymentStatusChanges)
+		{
+			this.paymentStatusChanges.add(change);
+			if (this.paymentNotificationPending)
+			{
+				return;
+			}
+			this.paymentNotificationPending = true;
+		}
+		
+		SwingUtilities.invokeLater(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				WalletOperations.this.showPaymentStatusChanges();
+			}
+		});
+	}
+	
+	
+	// Changes that arrive while the dialog is shown are shown in another one once it is closed
+	private void showPaymentStatusChanges()
+	{
+		List<String> changes;
+		synchronized (this.paymentStatusChanges)
+		{
+			changes = new ArrayList<String>(this.paymentStatusChanges);
+			this.paymentStatusChanges.clear();
+		}
+		
+		StringBuilder changeList = new StringBuilder();
+		for (int i = 0; i < Math.min(changes.size(), 20); i++)
+		{
+			changeList.append(changes.get(i)).append("\n");
+		}
+		if (changes.size() > 20)
+		{
+			changeList.append("...\n");
+		}
+		
+		Object[] options = langUtil.getString("payment.watch.status.changed.options").split(":");
+		int option = JOptionPane.showOptionDialog(
+			this.parent,
+			langUtil.getString("payment.watch.status.changed.text", changes.size(), changeList.toString()),
+			langUtil.getString("payment.watch.status.changed.title"),
+			JOptionPane.DEFAULT_OPTION, 
+			JOptionPane.INFORMATION_MESSAGE,
+			null, 
+			options, 
+			options[0]);
+		
+		if (option == 1)
+		{
+			this.showExpectedPaymentsStatus();
+		}
+		
+		synchronized (this.paymentStatusChanges)
+		{
+			if (this.paymentStatusChanges.isEmpty())
+			{
+				this.paymentNotificationPending = false;
+				return;
+			}
+		}
+		
+		SwingUtilities.invokeLater(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				WalletOperations.this.showPaymentStatusChanges();
+			}
+		});
+	}
+	
+	
+	/**
+	 * Shows the status of all watched payments - it may be saved as a report.
+	 */
+	public void showExpectedPaymentsStatus()
+	{
+		try
+		{
+			List<PaymentWatcher.ExpectedPayment> payments = this.paymentWatcher.getExpectedPayments();
+			if (payments.isEmpty())
+			{
+				JOptionPane.showMessageDialog(
+					this.parent, 
+					langUtil.getString("payment.watch.none.text"),
+					langUtil.getString("payment.watch.title"),
+					JOptionPane.INFORMATION_MESSAGE);
+				return;
+			}
+			
+			Map<PaymentWatcher.PaymentStatus, Integer> counts = 
+				new EnumMap<PaymentWatcher.PaymentStatus, Integer>(PaymentWatcher.PaymentStatus.class);
+			for (PaymentWatcher.PaymentStatus status : PaymentWatcher.PaymentStatus.values())
+			{
+				counts.put(status, 0);
+			}
+			
+			StringBuilder details = new StringBuilder();
+			for (PaymentWatcher.ExpectedPayment payment : payments)
+			{
+				PaymentWatcher.PaymentStatus status = payment.getStatus();
+				counts.put(status, counts.get(status) + 1);
+				
+				details.append(payment.getAddress()).append(", ");
+				details.append(Util.stringIsEmpty(payment.getReference()) ? "-" : payment.getReference()).append(", ");
+				details.append(payment.getExpectedAmount().toPlainString()).append(", ");
+				details.append(payment.getReceivedAmount().toPlainString()).append(", ");
+				details.append(payment.getConfirmedAmount().toPlainString()).append(", ");
+				details.append(status.name()).append("\n");
+			}
+			
+			final String report = langUtil.getString("payment.watch.report.summary",
+				payments.size(), counts.get(PaymentWatcher.PaymentStatus.UNPAID), 
+				counts.get(PaymentWatcher.PaymentStatus.PARTIALLY_PAID), counts.get(PaymentWatcher.PaymentStatus.PAID),
+				counts.get(PaymentWatcher.PaymentStatus.CONFIRMED), this.paymentWatcher.getConfirmationDepth()) + 
+				"\n\n" + details.toString();
+			
+			JTextArea reportArea = new JTextArea(report, 20, 90);
+			reportArea.setEditable(false);
+			reportArea.setLineWrap(false);
+			JScrollPane reportPane = new JScrollPane(reportArea);
+			
+			Object[] options = langUtil.getString("payment.watch.report.options").split(":");
+			int option = JOptionPane.showOptionDialog(
+				this.parent,
+				reportPane,
+				langUtil.getString("payment.watch.report.title"),
+				JOptionPane.DEFAULT_OPTION, 
+				JOptionPane.INFORMATION_MESSAGE,
+				null, 
+				options, 
+				options[0]);
+			
+			if (option == 1)
+			{
+				JFileChooser fileChooser = new JFileChooser();
+				fileChooser.setDialogTitle(langUtil.getString("payment.watch.report.save.title"));
+				fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+				fileChooser.setCurrentDirectory(OSUtil.getUserHomeDirectory());
+				if (fileChooser.showSaveDialog(this.parent) == JFileChooser.APPROVE_OPTION) 
+				{
+					Writer w = null;
+					try
+					{
+						w = new OutputStreamWriter(new FileOutputStream(fileChooser.getSelectedFile()), "UTF-8");
+						w.write(report);
+					} finally
+					{
+						if (w != null)
+						{
+							w.close();
+						}
+					}
+				}
+			}
+		} catch (Exception ex)
+		{
+			Log.error("Unexpected error: ", ex);
+			this.errorReporter.reportError(ex, false);
+		}
+	}
+	
+	
+	// Reads and validates the rows of an expected payments CSV file - returns the errors found
+	private List<String> loadExpectedPayments(File csvFile, List<String[]> expectedPayments)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		// Payments may be watched only on addresses of the wallet
+		Set<String> walletAddresses = new HashSet<String>();
+		walletAddresses.addAll(Arrays.asList(this.clientCaller.getWalletZAddresses()));
+		walletAddresses.addAll(Arrays.asList(this.clientCaller.getWalletAllPublicAddresses()));
+		
+		List<String> errors = new ArrayList<String>();
+		LineNumberReader r = null;
+		try
+		{
+			r = new LineNumberReader(new InputStreamReader(new FileInputStream(csvFile), "UTF-8"));
+			String line;
+			while ((line = r.readLine()) != null)
+			{
+				int lineNumber = r.getLineNumber();
+				
+				// Byte order mark may be present in files saved by spreadsheets
+				if ((lineNumber == 1) && line.startsWith("\uFEFF"))
+				{
+					line = line.substring(1);
+				}
+				
+				if ((line.trim().length() <= 0) || line.trim().startsWith("#"))
+				{
+					continue;
+				}
+				
+				List<String> fields = BatchPayout.parseCSVLine(line);
+				// Optional header row
+				if ((lineNumber == 1) && fields.get(0).trim().equalsIgnoreCase("address"))
+				{
+					continue;
+				}
+				
+				String error = null;
+				String address = fields.get(0).trim();
+				if ((fields.size() < 2) || (fields.size() > 3))
+				{
+					error = langUtil.getString("payment.watch.error.field.count");
+				} else if (!walletAddresses.contains(address))
+				{
+					error = langUtil.getString("payment.watch.error.address.not.in.wallet", address);
+				} else
+				{
+					try
+					{
+						if (Zatoshi.parse(fields.get(1).trim()).signum() <= 0)
+						{
+							error = langUtil.getString("payment.watch.error.amount.invalid", fields.get(1).trim());
+						}
+					} catch (NumberFormatException nfe)
+					{
+						error = langUtil.getString("payment.watch.error.amount.invalid", fields.get(1).trim());
+					}
+				}
+				
+				if (error != null)
+				{
+					errors.add(langUtil.getString("payment.watch.error.line", lineNumber, error));
+				} else
+				{
+					expectedPayments.add(new String[] { 
+						address, fields.get(1).trim(), (fields.size() > 2) ? fields.get(2).trim() : null });
+				}
+			}
+		} finally
+		{
+			if (r != null)
+			{
+				r.close();
+			}
+		}
+		
+		if (errors.isEmpty() && expectedPayments.isEmpty())
+		{
+			errors.add(langUtil.getString("payment.watch.error.no.rows"));
+		}
+		
+		return errors;
+	}
+	
+	
 	/**
 	 * export to Arizen wallet
 	 */
@@ -509,7 +1097,7 @@ public class WalletOperations
 						for (String straddr : taddress) {
 							String pk = clientCaller.getTPrivateKey(straddr);
 							String pkHex = Util.wifToHex(pk);
-							String balance = clientCaller.getBalanceForAddress(straddr);
+							String balance = clientCaller.getBalanceForAddress(straddr).toString();
 							Address addr = new Address(Address.ADDRESS_TYPE.TRANSPARENT, straddr, pkHex, balance);
 							tMap.put(straddr, addr);
 						}
@@ -517,14 +1105,14 @@ public class WalletOperations
 						for (String straddr : tAddressesWithUnspentOuts) {
 							String pk = clientCaller.getTPrivateKey(straddr);
 							String pkHex = Util.wifToHex(pk);
-							String balance = clientCaller.getBalanceForAddress(straddr);
+							String balance = clientCaller.getBalanceForAddress(straddr).toString();
 							Address addr = new Address(Address.ADDRESS_TYPE.TRANSPARENT, straddr, pkHex, balance);
 							tMap.put(straddr, addr);
 						}
 
 						for (String straddr : zaddress) {
 							String pk = clientCaller.getZPrivateKey(straddr);
-							String balance = clientCaller.getBalanceForAddress(straddr);
+							String balance = clientCaller.getBalanceForAddress(straddr).toString();
 							Address addr = new Address(Address.ADDRESS_TYPE.PRIVATE, straddr, pk, balance);
 							zMap.put(straddr, addr);
 						}
@@ -37,19 +37,22 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.StringReader;
-import java.math.BigDecimal;
 import java.util.Date;
 import java.util.HashMap;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonArray;
@@ -58,6 +61,7 @@ import com.eclipsesource.json.JsonValue;
 import com.eclipsesource.json.ParseException;
 import com.eclipsesource.json.WriterConfig;
 import com.vaklinov.zcashui.OSUtil.OS_TYPE;
+import com.vaklinov.zcashui.msg.MemoCodec;
 
 
 /**
@@ -67,13 +71,13 @@ public class ZCashClientCaller
 {
 	public static class WalletBalance
 	{
-		public double transparentBalance;
-		public double privateBalance;
-		public double totalBalance;
+		public Zatoshi transparentBalance;
+		public Zatoshi privateBalance;
+		public Zatoshi totalBalance;
 
-		public double transparentUnconfirmedBalance;
-		public double privateUnconfirmedBalance;
-		public double totalUnconfirmedBalance;
+		public Zatoshi transparentUnconfirmedBalance;
+		public Zatoshi privateUnconfirmedBalance;
+		public Zatoshi totalUnconfirmedBalance;
 	}
 
 
@@ -84,6 +88,30 @@ public class ZCashClientCaller
 	}
 
 
+	// A T address transaction as listed by listtransactions - numbers as returned by the wallet
+	public static class WalletTransaction
+	{
+		public String txID;
+		public String category;
+		public String address; // null if not listed
+		public String amount;
+		public String confirmations;
+		public String time;
+	}
+
+
+	// An unspent T output (listunspent) or Z note (z_listunspent)
+	public static class UnspentOutput
+	{
+		public String     txID;
+		public String     address;
+		public Zatoshi    amount; // null if not returned
+		public int        confirmations;
+		public boolean    spendable;
+		public boolean    coinbase;
+	}
+
+
 	public static class WalletCallException
 		extends Exception
 	{
@@ -99,6 +127,58 @@ public class ZCashClientCaller
 	}
 
 
+	// Maximum number of concurrent gettransaction calls when obtaining transaction times in a batch
+	private static final int TRANSACTION_TIME_LOOKUPS = 4;
+
+	// Large responses are decoded directly into these records - no JsonValue tree is built
+	private static final JsonRecordDecoder.RecordFactory<String[]> VALUES_COPY_FACTORY = 
+		new JsonRecordDecoder.RecordFactory<String[]>()
+	{
+		@Override
+		public String[] createRecord(String[] values)
+		{
+			return values.clone();
+		}
+	};
+
+	private static final String[] TRANSACTION_MEMBERS = 
+		{ "txid", "category", "address", "amount", "confirmations", "time" };
+	private static final JsonRecordDecoder.RecordFactory<WalletTransaction> TRANSACTION_FACTORY = 
+		new JsonRecordDecoder.RecordFactory<WalletTransaction>()
+	{
+		@Override
+		public WalletTransaction createRecord(String[] values)
+		{
+			WalletTransaction transaction = new WalletTransaction();
+			transaction.txID          = values[0];
+			transaction.category      = values[1];
+			transaction.address       = values[2];
+			transaction.amount        = values[3];
+			transaction.confirmations = values[4];
+			transaction.time          = values[5];
+			return transaction;
+		}
+	};
+
+	private static final String[] UNSPENT_OUTPUT_MEMBERS = 
+		{ "txid", "address", "amount", "confirmations", "spendable", "generated" };
+	private static final JsonRecordDecoder.RecordFactory<UnspentOutput> UNSPENT_OUTPUT_FACTORY = 
+		new JsonRecordDecoder.RecordFactory<UnspentOutput>()
+	{
+		@Override
+		public UnspentOutput createRecord(String[] values)
+		{
+			UnspentOutput output = new UnspentOutput();
+			output.txID          = (values[0] != null) ? values[0] : "";
+			output.address       = values[1];
+			output.amount        = (values[2] != null) ? Zatoshi.parse(values[2]) : null;
+			output.confirmations = (values[3] != null) ? Integer.parseInt(values[3]) : 0;
+			output.spendable     = !"false".equals(values[4]);
+			output.coinbase      = "true".equals(values[5]);
+			return output;
+		}
+	};
+
 	// ZCash client program and daemon
 	private File zcashcli, zcashd;
 	
@@ -241,22 +321,50 @@ public class ZCashClientCaller
 	{
 		WalletBalance balance = new WalletBalance();
 
-		JsonObject objResponse = this.executeCommandAndGetJsonObject("z_gettotalbalance", null);
+		String[] confirmed = this.getTotalBalanceValues(null);
 
-    	balance.transparentBalance = Double.valueOf(objResponse.getString("transparent", "-1"));
-    	balance.privateBalance     = Double.valueOf(objResponse.getString("private", "-1"));
-    	balance.totalBalance       = Double.valueOf(objResponse.getString("total", "-1"));
+    	balance.transparentBalance = Zatoshi.parse(confirmed[0]);
+    	balance.privateBalance     = Zatoshi.parse(confirmed[1]);
+    	balance.totalBalance       = Zatoshi.parse(confirmed[2]);
 
-        objResponse = this.executeCommandAndGetJsonObject("z_gettotalbalance", "0");
+        String[] unconfirmed = this.getTotalBalanceValues("0");
 
-    	balance.transparentUnconfirmedBalance = Double.valueOf(objResponse.getString("transparent", "-1"));
-    	balance.privateUnconfirmedBalance     = Double.valueOf(objResponse.getString("private", "-1"));
-    	balance.totalUnconfirmedBalance       = Double.valueOf(objResponse.getString("total", "-1"));
+    	balance.transparentUnconfirmedBalance = Zatoshi.parse(unconfirmed[0]);
+    	balance.privateUnconfirmedBalance     = Zatoshi.parse(unconfirmed[1]);
+    	balance.totalUnconfirmedBalance       = Zatoshi.parse(unconfirmed[2]);
 
 		return balance;
 	}
 
 
+	// Total confirmed balance of the wallet - a single z_gettotalbalance call
+	public synchronized Zatoshi getTotalBalance()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		return Zatoshi.parse(this.getTotalBalanceValues(null)[2]);
+	}
+
+
+	// Transparent, private and total balance from z_gettotalbalance - "-1" if missing
+	private String[] getTotalBalanceValues(String minConfirmations)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		String[] values = this.executeCommandAndDecodeRecords(
+			new JsonRecordDecoder<String[]>(false, VALUES_COPY_FACTORY, "transparent", "private", "total"),
+			"z_gettotalbalance", minConfirmations, null).get(0);
+
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] == null)
+			{
+				values[i] = "-1";
+			}
+		}
+
+		return values;
+	}
+
+
 	public synchronized String[][] getWalletPublicTransactions()
 		throws WalletCallException, IOException, InterruptedException
 	{
@@ -268,30 +376,54 @@ public class ZCashClientCaller
 			notListed = " \u25B6";
 		}
 		
-	    JsonArray jsonTransactions = executeCommandAndGetJsonArray(
-	    	"listtransactions", wrapStringParameter(""), "2147483647");
-	    String strTransactions[][] = new String[jsonTransactions.size()][];
-	    for (int i = 0; i < jsonTransactions.size(); i++)
+	    List<WalletTransaction> transactions = this.getWalletPublicTransactionRecords();
+	    String strTransactions[][] = new String[transactions.size()][];
+	    for (int i = 0; i < transactions.size(); i++)
 	    {
 	    	strTransactions[i] = new String[7];
-	    	JsonObject trans = jsonTransactions.get(i).asObject();
+	    	WalletTransaction trans = transactions.get(i);
 
 	    	// Needs to be the same as in getWalletZReceivedTransactions()
 	    	// TODO: someday refactor to use object containers
 	    	strTransactions[i][0] = "\u2606T (Public)";
-	    	strTransactions[i][1] = trans.getString("category", "ERROR!");
-	    	strTransactions[i][2] = trans.get("confirmations").toString();
-	    	strTransactions[i][3] = trans.get("amount").toString();
-	    	strTransactions[i][4] = trans.get("time").toString();
-	    	strTransactions[i][5] = trans.getString("address", notListed + " (Z address not listed by wallet!)");
-	    	strTransactions[i][6] = trans.get("txid").toString();
-
+	    	strTransactions[i][1] = (trans.category != null) ? trans.category : "ERROR!";
+	    	strTransactions[i][2] = trans.confirmations;
+	    	strTransactions[i][3] = trans.amount;
+	    	strTransactions[i][4] = trans.time;
+	    	strTransactions[i][5] = (trans.address != null) ? trans.address : (notListed + " (Z address not listed by wallet!)");
+	    	strTransactions[i][6] = Json.value(trans.txID).toString(); // Quoted as before
 	    }
 
 	    return strTransactions;
 	}
 
 
+	/**
+	 * Lists all T address transactions of the wallet - decoded directly from the listtransactions 
+	 * response, which may be large.
+	 *
+	 * @return the transactions in the order returned by the wallet
+	 */
+	public synchronized List<WalletTransaction> getWalletPublicTransactionRecords()
+		throws WalletCallException, IOException, InterruptedException
+	{
+	    List<WalletTransaction> transactions = this.executeCommandAndDecodeRecords(
+	    	new JsonRecordDecoder<WalletTransaction>(true, TRANSACTION_FACTORY, TRANSACTION_MEMBERS),
+	    	"listtransactions", wrapStringParameter(""), "2147483647");
+
+	    for (WalletTransaction trans : transactions)
+	    {
+	    	if ((trans.txID == null) || (trans.amount == null) || 
+	    		(trans.confirmations == null) || (trans.time == null))
+	    	{
+	    		throw new WalletCallException("Unexpected transaction from wallet, txid: " + trans.txID);
+	    	}
+	    }
+
+	    return transactions;
+	}
+
+
 	public synchronized String[] getWalletZAddresses()
 		throws WalletCallException, IOException, InterruptedException
 	{
@@ -315,14 +447,19 @@ public class ZCashClientCaller
 
 		for (String zAddress : zAddresses)
 		{
-		    JsonArray jsonTransactions = executeCommandAndGetJsonArray(
+		    // Memos are not needed - only the TXID and amount are decoded
+		    List<String[]> jsonTransactions = this.executeCommandAndDecodeRecords(
+		    	new JsonRecordDecoder<String[]>(true, VALUES_COPY_FACTORY, "txid", "amount"),
 		    	"z_listreceivedbyaddress", wrapStringParameter(zAddress), "0");
-		    for (int i = 0; i < jsonTransactions.size(); i++)
+		    for (String[] trans : jsonTransactions)
 		    {
 		    	String[] currentTransaction = new String[7];
-		    	JsonObject trans = jsonTransactions.get(i).asObject();
 
-		    	String txID = trans.getString("txid", "ERROR!");
+		    	if ((trans[0] == null) || (trans[1] == null))
+		    	{
+		    		throw new WalletCallException("Unexpected received transaction from wallet, txid: " + trans[0]);
+		    	}
+		    	String txID = trans[0];
 		    	// Needs to be the same as in getWalletPublicTransactions()
 		    	// TODO: someday refactor to use object containers
 		    	currentTransaction[0] = "\u2605Z (Private)";
@@ -344,7 +481,7 @@ public class ZCashClientCaller
 		    		currentTransaction[2] = confirmations;
 		    	}
 		    	
-		    	currentTransaction[3] = trans.get("amount").toString();
+		    	currentTransaction[3] = trans[1];
 		    	
 		    	// Transaction time is cached - cleared every 10 min
 		    	if ((System.currentTimeMillis() - this.lastTransactionTimesAccess) > (10 * 60 * 1000))
@@ -363,7 +500,7 @@ public class ZCashClientCaller
 		    	}
 		    	
 		    	currentTransaction[5] = zAddress;
-		    	currentTransaction[6] = trans.get("txid").toString();
+		    	currentTransaction[6] = Json.value(txID).toString(); // Quoted as before
 
 		    	zReceivedTransactions.add(currentTransaction);
 		    }
@@ -387,25 +524,143 @@ public class ZCashClientCaller
 		
 		return transactions.toArray(new JsonObject[0]);
 	}
-	
+
+
+	/**
+	 * Lists the wallet (T address) transactions that are in blocks after the given one - listsinceblock.
+	 * Transactions with fewer than targetConfirmations confirmations are reported again on the next
+	 * call if the returned "lastblock" hash is passed back.
+	 *
+	 * @param blockHash hash of the block to list from - empty/null means all wallet transactions
+	 * @param targetConfirmations number of confirmations that determines the returned "lastblock"
+	 *
+	 * @return the raw response object - with members "transactions" and "lastblock"
+	 */
+	public synchronized JsonObject listTransactionsSinceBlock(String blockHash, int targetConfirmations)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		return this.executeCommandAndGetJsonObject(
+			"listsinceblock", wrapStringParameter((blockHash == null) ? "" : blockHash),
+			String.valueOf(Math.max(1, targetConfirmations)));
+	}
+
+
+	public synchronized int getBlockCount()
+		throws WalletCallException, IOException, InterruptedException
+	{
+		String strBlockCount = this.executeCommandAndGetSingleStringResponse("getblockcount");
+
+		return Integer.valueOf(strBlockCount.trim());
+	}
+
 
 	// ./src/zcash-cli listunspent only returns T addresses it seems
 	public synchronized String[] getWalletPublicAddressesWithUnspentOutputs()
 		throws WalletCallException, IOException, InterruptedException
 	{
-		JsonArray jsonUnspentOutputs = executeCommandAndGetJsonArray("listunspent", "0");
-
 		Set<String> addresses = new HashSet<>();
-	    for (int i = 0; i < jsonUnspentOutputs.size(); i++)
+	    for (UnspentOutput outp : this.getWalletUnspentOutputs(0))
 	    {
-	    	JsonObject outp = jsonUnspentOutputs.get(i).asObject();
-	    	addresses.add(outp.getString("address", "ERROR!"));
+	    	addresses.add((outp.address != null) ? outp.address : "ERROR!");
 	    }
 
 	    return addresses.toArray(new String[0]);
      }
 
 
+	/**
+	 * Lists all unspent T outputs of the wallet (coinbase outputs included).
+	 *
+	 * @param minConfirmations min. number of confirmations of the outputs
+	 *
+	 * @return the outputs decoded from the listunspent response
+	 */
+	public synchronized List<UnspentOutput> getWalletUnspentOutputs(int minConfirmations)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		return this.executeCommandAndDecodeRecords(
+			new JsonRecordDecoder<UnspentOutput>(true, UNSPENT_OUTPUT_FACTORY, UNSPENT_OUTPUT_MEMBERS),
+			"listunspent", String.valueOf(minConfirmations), null);
+	}
+
+
+	/**
+	 * Lists all unspent notes of the wallet's Z addresses.
+	 *
+	 * @param minConfirmations min. number of confirmations of the notes
+	 *
+	 * @return the notes decoded from the z_listunspent response
+	 */
+	public synchronized List<UnspentOutput> getWalletUnspentNotes(int minConfirmations)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		return this.executeCommandAndDecodeRecords(
+			new JsonRecordDecoder<UnspentOutput>(true, UNSPENT_OUTPUT_FACTORY, UNSPENT_OUTPUT_MEMBERS),
+			"z_listunspent", String.valueOf(minConfirmations), null);
+	}
+
+
+	/**
+	 * Merges (non-coinbase) UTXOs of the given T addresses into a single output with z_mergetoaddress.
+	 * The UTXOs selected are locked by the wallet until the operation completes, so successive calls
+	 * select the next UTXOs. The wallet must run with experimentalfeatures=1 and zmergetoaddress=1.
+	 *
+	 * @param fromAddresses T addresses whose UTXOs are to be merged - must not contain Z addresses or
+	 *        wildcards, since no limit is set on the number of notes merged
+	 * @param toAddress destination address (T/Z)
+	 * @param transactionFee transaction fee for the operation
+	 * @param transparentLimit max. number of UTXOs to merge
+	 *
+	 * @return the raw response - with members "opid", "mergingUTXOs", "remainingUTXOs" etc.
+	 */
+	public synchronized JsonObject mergeToAddress(List<String> fromAddresses, String toAddress,
+		                                          Zatoshi transactionFee, int transparentLimit)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		JsonArray jsonFromAddresses = new JsonArray();
+		for (String address : fromAddresses)
+		{
+			jsonFromAddresses.add(address);
+		}
+
+		return this.executeOperationCommand(new String[]
+		{
+			this.zcashcli.getCanonicalPath(), "z_mergetoaddress", 
+			wrapStringParameter(jsonFromAddresses.toString(WriterConfig.MINIMAL)),
+			wrapStringParameter(toAddress),
+			transactionFee.toString(),
+			String.valueOf(transparentLimit),
+			// Shielded limit - 0 means no limit. No notes are merged anyway since the
+			// source addresses are T addresses only
+			"0"
+		});
+	}
+
+
+	/**
+	 * Shields coinbase UTXOs of a T address to a Z address with z_shieldcoinbase.
+	 *
+	 * @param fromAddress T address with coinbase UTXOs or "*" for all
+	 * @param toAddress Z address to receive the shielded funds
+	 * @param transactionFee transaction fee for the operation
+	 * @param limit max. number of UTXOs to shield
+	 *
+	 * @return the raw response - with members "opid", "shieldingUTXOs", "remainingUTXOs" etc.
+	 */
+	public synchronized JsonObject shieldCoinbase(String fromAddress, String toAddress, Zatoshi transactionFee, int limit)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		return this.executeOperationCommand(new String[]
+		{
+			this.zcashcli.getCanonicalPath(), "z_shieldcoinbase", 
+			wrapStringParameter(fromAddress),
+			wrapStringParameter(toAddress),
+			transactionFee.toString(),
+			String.valueOf(limit)
+		});
+	}
+
+
 	// ./zcash-cli listreceivedbyaddress 0 true
 	public synchronized String[] getWalletAllPublicAddresses()
 		throws WalletCallException, IOException, InterruptedException
@@ -456,6 +711,19 @@ public class ZCashClientCaller
             	
                 String memoHex = jsonTransactions.get(i).asObject().getString("memo", "ERROR!");
                 String decodedMemo = Util.decodeHexMemo(memoHex);
+                // Compact messaging memos are binary - shown in their JSON form
+                if (MemoCodec.isCompactMemo(memoHex))
+                {
+                	try
+                	{
+                		JsonObject outerMessage = new JsonObject();
+                		outerMessage.set("zenmsg", MemoCodec.decodeMessage(memoHex));
+                		decodedMemo = outerMessage.toString();
+                	} catch (Exception ex)
+                	{
+                		Log.warning("Could not decode compact messaging memo: {0}", ex.getMessage());
+                	}
+                }
                 
                 // Return only if not null - sometimes multiple incoming transactions have the same ID
                 // if we have loopback send etc.
@@ -499,6 +767,84 @@ public class ZCashClientCaller
 	}
 	
 	
+	/**
+	 * Obtains the times of many wallet transactions in one batch. Times already known are taken 
+	 * from the cache of transaction times, the rest are looked up with up to TRANSACTION_TIME_LOOKUPS
+	 * concurrent gettransaction calls.
+	 *
+	 * @param txIDs IDs of the transactions
+	 *
+	 * @return map of transaction ID -> UNIX time in seconds (-1 if not known to the wallet).
+	 */
+	public synchronized Map<String, Long> getWalletTransactionTimes(Collection<String> txIDs)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		final Map<String, Long> times = new HashMap<String, Long>();
+		List<String> missingTxIDs = new ArrayList<String>();
+		for (String txID : new LinkedHashSet<String>(txIDs))
+		{
+			String time = this.transactionTimes.get(txID);
+			if ((time == null) || time.equals("-1"))
+			{
+				missingTxIDs.add(txID);
+			} else
+			{
+				times.put(txID, Long.valueOf(time));
+			}
+		}
+
+		if (missingTxIDs.isEmpty())
+		{
+			return times;
+		}
+
+		// Each lookup is a separate zen-cli process - so they may run concurrently
+		ExecutorService lookups = Executors.newFixedThreadPool(Math.min(TRANSACTION_TIME_LOOKUPS, missingTxIDs.size()));
+		try
+		{
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (final String txID : missingTxIDs)
+			{
+				results.add(lookups.submit(new Callable<String>()
+				{
+					@Override
+					public String call()
+						throws WalletCallException, IOException, InterruptedException
+					{
+						JsonObject jsonTransaction = ZCashClientCaller.this.executeCommandAndGetJsonObject(
+							"gettransaction", wrapStringParameter(txID));
+						return String.valueOf(jsonTransaction.getLong("time", -1));
+					}
+				}));
+			}
+
+			for (int i = 0; i < missingTxIDs.size(); i++)
+			{
+				String time;
+				try
+				{
+					time = results.get(i).get();
+				} catch (ExecutionException ee)
+				{
+					if (ee.getCause() instanceof WalletCallException)
+					{
+						throw (WalletCallException)ee.getCause();
+					}
+					throw new IOException("Unexpected error in obtaining transaction time: " + ee.getCause(), ee.getCause());
+				}
+
+				this.transactionTimes.put(missingTxIDs.get(i), time);
+				times.put(missingTxIDs.get(i), Long.valueOf(time));
+			}
+		} finally
+		{
+			lookups.shutdownNow();
+		}
+
+		return times;
+	}
+
+
 	public synchronized String getWalletTransactionConfirmations(String txID)
 		throws WalletCallException, IOException, InterruptedException
 	{
@@ -525,21 +871,21 @@ public class ZCashClientCaller
 	
 
 	// Returns confirmed balance only!
-	public synchronized String getBalanceForAddress(String address)
+	public synchronized Zatoshi getBalanceForAddress(String address)
 		throws WalletCallException, IOException, InterruptedException
 	{
 	    JsonValue response = this.executeCommandAndGetJsonValue("z_getbalance", wrapStringParameter(address));
 
-		return String.valueOf(response.toString());
+		return parseAmount(response);
 	}
 
 
-	public synchronized String getUnconfirmedBalanceForAddress(String address)
+	public synchronized Zatoshi getUnconfirmedBalanceForAddress(String address)
 		throws WalletCallException, IOException, InterruptedException
 	{
 	    JsonValue response = this.executeCommandAndGetJsonValue("z_getbalance", wrapStringParameter(address), "0");
 
-		return String.valueOf(response.toString());
+		return parseAmount(response);
 	}
 
 
@@ -554,7 +900,7 @@ public class ZCashClientCaller
 
 	// Returns OPID - this method is a bit old and could be improved, however it is known to work and would better not
 	// be changed unless there is a bug.
-	public synchronized String sendCash(String from, String to, String amount, String memo, String transactionFee)
+	public synchronized String sendCash(String from, String to, Zatoshi amount, String memo, Zatoshi transactionFee)
 		throws WalletCallException, IOException, InterruptedException
 	{
 		Log.info("Starting operation send-cash. Parameters are: from address: {0}, to address: {1}, " + 
@@ -597,23 +943,13 @@ public class ZCashClientCaller
 			throw new WalletCallException("Error in forming z_sendmany command: " + toManyBeforeReplace);
 		}
 
-		DecimalFormatSymbols decSymbols = new DecimalFormatSymbols(Locale.ROOT);
-		
-		// Properly format the transaction fee as a number
-		if ((transactionFee == null) || (transactionFee.trim().length() <= 0))
-		{
-			transactionFee = "0.0001"; // Default value
-		} else
-		{
-			transactionFee = new DecimalFormat(
-				"########0.00######", decSymbols).format(Double.valueOf(transactionFee));
-		}
+		// Default value if no fee is specified
+		String formattedTransactionFee = (transactionFee != null) ? transactionFee.toString() : "0.0001";
 
 	    // This replacement is a hack to make sure the JSON object amount has double format 0.00 etc.
-	    // TODO: find a better way to format the amount
+	    // The amount is formatted exactly - no rounding can occur
 		String toManyArrayStr =	toMany.toString().replace(
-		    amountPattern,
-			"\"amount\":" + new DecimalFormat("########0.00######", decSymbols).format(Double.valueOf(amount)));
+		    amountPattern, amount.appendTo(new StringBuilder("\"amount\":")));
 		
 		String[] sendCashParameters = new String[]
 	    {
@@ -622,20 +958,8 @@ public class ZCashClientCaller
 		    // Default min confirmations for the input transactions is 1
 		    "1",
 		    // transaction fee
-		    transactionFee
+		    formattedTransactionFee
 		};
-		
-		// Safeguard to make sure the monetary amount does not differ after formatting
-		BigDecimal bdAmout = new BigDecimal(amount);
-		JsonArray toManyVerificationArr = Json.parse(toManyArrayStr).asArray();
-		BigDecimal bdFinalAmount = 
-			new BigDecimal(toManyVerificationArr.get(0).asObject().getDouble("amount", -1));
-		BigDecimal difference = bdAmout.subtract(bdFinalAmount).abs();
-		if (difference.compareTo(new BigDecimal("0.000000015")) >= 0)
-		{
-			throw new WalletCallException("Error in forming z_sendmany command: Amount differs after formatting: " + 
-		                                  amount + " | " + toManyArrayStr);
-		}
 
 		Log.info("The following send command will be issued: " +
                 sendCashParameters[0] + " " + sendCashParameters[1] + " " +
@@ -663,72 +987,67 @@ public class ZCashClientCaller
 	
 	
 	/**
-	 * Sends ZEN from a source address to a destination address. The change is sent back to the source address.
-	 * The amount of change is calculated based on the existing confirmed balance for the address (parameter).
-	 * This may not be 100% accurate if the blockchain is not synchronized.
-	 * 
+	 * Sends ZEN from a source address to multiple destination addresses with one z_sendmany operation.
+	 * The caller is responsible for respecting the protocol limits on the number of outputs.
+	 *
 	 * @param from source address (T/Z)
-	 * @param to destination address (T/Z)
-	 * @param balance current confirmed balance of the source address
-	 * @param amount ZEN amount to send
-	 * @param memo text memo to include in the transaction
-	 * @param transactionFee transaction see to include
-	 * 
+	 * @param recipients list of {address, amount, memo} - memo may be null or empty
+	 * @param transactionFee transaction fee for the whole operation
+	 *
 	 * @return a zend operation ID for the send operation
-	 * 
-	 * @throws WalletCallException
-	 * @throws IOException
-	 * @throws InterruptedException
 	 */
-	public synchronized String sendCashWithReturnOfChange(String from, String to, String balance, 
-			                                              String amount, String memo, String transactionFee)
+	public synchronized String sendCashToMany(String from, List<String[]> recipients, Zatoshi transactionFee)
 		throws WalletCallException, IOException, InterruptedException
 	{
-		Log.info("Starting operation send cash with return of change. Parameters are: from address: {0}, to address: {1}, " + 
-	             "current balance: {2}, amount: {3}, memo: {4}, transaction fee: {5}",
-				 from, to, balance, amount, memo, transactionFee);
-		
-		final DecimalFormatSymbols decSymbols = new DecimalFormatSymbols(Locale.ROOT);
-		final DecimalFormat sendNumberFormat = new DecimalFormat("########0.00######", decSymbols);
-		
-		String hexMemo = Util.encodeHexString(memo);
-		// Form the main amount to send
-		JsonObject toDestinationArgument = new JsonObject();
-		toDestinationArgument.set("address", to);
-		if (hexMemo.length() >= 2)
-		{
-			toDestinationArgument.set("memo", hexMemo.toString());
-		}
-		String formattedAmountToSend = sendNumberFormat.format(new BigDecimal(amount));
-		String formattedTransactionFee = sendNumberFormat.format(new BigDecimal(transactionFee));
-		toDestinationArgument.set("amount", formattedAmountToSend);
-		// Form the return amount - based on the balance
-		JsonObject backToSourceArgument = new JsonObject();
-		backToSourceArgument.set("address", from);
-		BigDecimal changeToSendBackBD = new BigDecimal(balance).
-			subtract(new BigDecimal(formattedAmountToSend)).subtract(new BigDecimal(formattedTransactionFee));
-		boolean changeIsZero = false;
-		if (changeToSendBackBD.compareTo(new BigDecimal("0")) < 0)
-		{
-			throw new WalletCallException("Error: change was calculated negative");
-		} else if (changeToSendBackBD.compareTo(new BigDecimal("0")) == 0)
-		{
-			Log.info("Change was calculated exactly zero - will not be sent back!");
-			changeIsZero = true;
-		}
-		
-		String formattedChangeToReturn = sendNumberFormat.format(changeToSendBackBD);
-		backToSourceArgument.set("amount", formattedChangeToReturn);
+		return this.sendCashToMany(from, recipients, transactionFee, false);
+	}
+	
+	
+	/**
+	 * Sends ZEN from a source address to multiple destination addresses with one z_sendmany operation.
+	 * The caller is responsible for respecting the protocol limits on the number of outputs.
+	 *
+	 * @param from source address (T/Z)
+	 * @param recipients list of {address, amount, memo} - memo may be null or empty
+	 * @param transactionFee transaction fee for the whole operation
+	 * @param memosAreHex if true the memos are already HEX encoded (binary memos), otherwise
+	 *        they are text
+	 *
+	 * @return a zend operation ID for the send operation
+	 */
+	public synchronized String sendCashToMany(String from, List<String[]> recipients, Zatoshi transactionFee,
+			                                  boolean memosAreHex)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		Log.info("Starting operation send cash to many. Parameters are: from address: {0}, " +
+	             "number of recipients: {1}, transaction fee: {2}", from, recipients.size(), transactionFee);
 
-		// Array of two addresses to send to
 		JsonArray toMany = new JsonArray();
-		toMany.add(toDestinationArgument);
-		if (!changeIsZero)
+		for (String[] recipient : recipients)
 		{
-			toMany.add(backToSourceArgument);
+			// Amounts with more than 8 fractional digits are rejected - they cannot be sent exactly
+			Zatoshi amount;
+			try
+			{
+				amount = Zatoshi.parse(recipient[1]);
+			} catch (NumberFormatException nfe)
+			{
+				throw new WalletCallException("Error in forming z_sendmany command: invalid amount: " + recipient[1], nfe);
+			}
+			
+			JsonObject toArgument = new JsonObject();
+			toArgument.set("address", recipient[0]);
+			toArgument.set("amount", amount.toString());
+			if (!Util.stringIsEmpty(recipient[2]))
+			{
+				toArgument.set("memo", memosAreHex ? recipient[2] : Util.encodeHexString(recipient[2]));
+			}
+			toMany.add(toArgument);
 		}
-		
-		String toManyArrayStr =	toMany.toString(WriterConfig.MINIMAL);		
+
+		String formattedTransactionFee = transactionFee.toString();
+		String toManyArrayStr =	toMany.toString(WriterConfig.MINIMAL);
+
 		String[] sendCashParameters = new String[]
 	    {
 		    this.zcashcli.getCanonicalPath(), "z_sendmany", wrapStringParameter(from),
@@ -738,34 +1057,7 @@ public class ZCashClientCaller
 		    // transaction fee
 		    formattedTransactionFee
 		};
-		
-		// Safeguard to make sure the monetary amount does not differ after formatting
-		BigDecimal bdAmout = new BigDecimal(amount); // original amount used for check
-		JsonArray toManyVerificationArr = Json.parse(toManyArrayStr).asArray();
-		BigDecimal bdFinalAmount = 
-			new BigDecimal(toManyVerificationArr.get(0).asObject().getString("amount", "-1"));
-		BigDecimal amountCheckDifference = bdAmout.subtract(bdFinalAmount).abs();
-		if (amountCheckDifference.compareTo(new BigDecimal("0.0")) > 0) // MUST be exact
-		{
-			throw new WalletCallException("Error in forming z_sendmany command: Main amount differs after formatting: " + 
-					                      formattedAmountToSend + " | \n" + toManyArrayStr);
-		}		
-		// Amount + change + fee = balance // This must also match
-		BigDecimal bdFinalChange = changeIsZero ?  
-			new BigDecimal("0") : new BigDecimal(toManyVerificationArr.get(1).asObject().getString("amount", "-1"));
-		amountCheckDifference = bdFinalChange.add(bdFinalAmount).add(new BigDecimal(formattedTransactionFee)).
-			subtract(new BigDecimal(balance)).abs(); // Original balance used after formatting
-		if (amountCheckDifference.compareTo(new BigDecimal("0.0")) > 0) // MUST be exact
-		{
-			throw new WalletCallException("Error in forming z_sendmany command: Sum differs after formatting: " + 
-					                      formattedAmountToSend + " | \n" + toManyArrayStr);
-		}		
-		
-		Log.info("The following send command (with change return) will be issued: " +
-                sendCashParameters[0] + " " + sendCashParameters[1] + " " +
-                sendCashParameters[2] + " " + sendCashParameters[3] + " " +
-                sendCashParameters[4] + " " + sendCashParameters[5] + ".");
-		
+
 		// Create caller to send cash
 	    CommandExecutor caller = new CommandExecutor(sendCashParameters);
 	    String strResponse = caller.execute();
@@ -776,7 +1068,7 @@ public class ZCashClientCaller
 		  	throw new WalletCallException("Error response from wallet: " + strResponse);
 		}
 
-		Log.info("Sent cash (with change back) with the following command: " +
+		Log.info("Sent cash (to many) with the following command: " +
                 sendCashParameters[0] + " " + sendCashParameters[1] + " " +
                 sendCashParameters[2] + " " + sendCashParameters[3] + " " +
                 sendCashParameters[4] + " " + sendCashParameters[5] + "." +
@@ -784,10 +1076,10 @@ public class ZCashClientCaller
 
 		return strResponse.trim();
 	}
-	
-	
+
+
 	// Returns OPID
-	public synchronized String sendMessage(String from, String to, double amount, double fee, String memo)
+	public synchronized String sendMessage(String from, String to, Zatoshi amount, Zatoshi fee, String memo)
 		throws WalletCallException, IOException, InterruptedException
 	{
 		String hexMemo = Util.encodeHexString(memo);
@@ -798,12 +1090,10 @@ public class ZCashClientCaller
 			toArgument.set("memo", hexMemo.toString());
 		}
 		
-		DecimalFormatSymbols decSymbols = new DecimalFormatSymbols(Locale.ROOT);
-
 		// TODO: The JSON Builder has a problem with double values that have no fractional part
 		// it serializes them as integers that ZCash does not accept. This will work with the 
 		// fractional amounts always used for messaging
-		toArgument.set("amount", new DecimalFormat("########0.00######", decSymbols).format(amount));
+		toArgument.set("amount", amount.toString());
 
 		JsonArray toMany = new JsonArray();
 		toMany.add(toArgument);
@@ -816,7 +1106,7 @@ public class ZCashClientCaller
 		    // Default min confirmations for the input transactions is 1
 		    "1",
 		    // transaction fee
-		    new DecimalFormat("########0.00######", decSymbols).format(fee)
+		    fee.toString()
 		};
 				
 		// Create caller to send cash
@@ -864,88 +1154,38 @@ public class ZCashClientCaller
 	}
 
 
-	public synchronized boolean isSendingOperationComplete(String opID)
+	/**
+	 * Obtains the status of multiple operations with a single z_getoperationstatus call.
+	 *
+	 * @param opIDs IDs of the operations to check
+	 *
+	 * @return map of operation ID -> status object as returned by the wallet. Operations unknown to
+	 *         the wallet are not present in the map.
+	 */
+	public synchronized Map<String, JsonObject> getOperationStatuses(Collection<String> opIDs)
 	    throws WalletCallException, IOException, InterruptedException
 	{
-		JsonArray response = this.executeCommandAndGetJsonArray(
-			"z_getoperationstatus", wrapStringParameter("[\"" + opID + "\"]"));
-		JsonObject jsonStatus = response.get(0).asObject();
-
-		String status = jsonStatus.getString("status", "ERROR");
-
-		Log.info("Operation " + opID + " status is " + response + ".");
-
-		if ("success".equalsIgnoreCase(status) ||
-			"error".equalsIgnoreCase(status) ||
-			"failed".equalsIgnoreCase(status))
+		Map<String, JsonObject> statuses = new HashMap<String, JsonObject>();
+		if (opIDs.isEmpty())
 		{
-			return true;
-		} else if ("executing".equalsIgnoreCase(status) || "queued".equalsIgnoreCase(status))
-		{
-			return false;
-		} else
-		{
-			throw new WalletCallException("Unexpected status response from wallet: " + response.toString());
+			return statuses;
 		}
-	}
 
-
-	public synchronized boolean isCompletedOperationSuccessful(String opID)
-	    throws WalletCallException, IOException, InterruptedException
-	{
-		JsonArray response = this.executeCommandAndGetJsonArray(
-			"z_getoperationstatus", wrapStringParameter("[\"" + opID + "\"]"));
-		JsonObject jsonStatus = response.get(0).asObject();
-
-		String status = jsonStatus.getString("status", "ERROR");
-
-		Log.info("Operation " + opID + " status is " + response + ".");
-
-		if ("success".equalsIgnoreCase(status))
+		JsonArray jsonOpIDs = new JsonArray();
+		for (String opID : opIDs)
 		{
-			return true;
-		} else if ("error".equalsIgnoreCase(status) || "failed".equalsIgnoreCase(status))
-		{
-			return false;
-		} else
-		{
-			throw new WalletCallException("Unexpected final operation status response from wallet: " + response.toString());
+			jsonOpIDs.add(opID);
 		}
-	}
-	
-	
-	public synchronized String getSuccessfulOperationTXID(String opID)
-        throws WalletCallException, IOException, InterruptedException
-	{
-		String TXID = null;
+
 		JsonArray response = this.executeCommandAndGetJsonArray(
-			"z_getoperationstatus", wrapStringParameter("[\"" + opID + "\"]"));
-		JsonObject jsonStatus = response.get(0).asObject();
-		JsonValue  opResultValue = jsonStatus.get("result"); 
-		
-		if (opResultValue != null)
+			"z_getoperationstatus", wrapStringParameter(jsonOpIDs.toString()));
+		for (int i = 0; i < response.size(); i++)
 		{
-			JsonObject opResult = opResultValue.asObject();
-			if (opResult.get("txid") != null)
-			{
-				TXID = opResult.get("txid").asString();
-			}
+			JsonObject jsonStatus = response.get(i).asObject();
+			statuses.put(jsonStatus.getString("id", "ERROR"), jsonStatus);
 		}
-		
-		return TXID;
-	}
-
 
-	// May only be called for already failed operations
-	public synchronized String getOperationFinalErrorMessage(String opID)
-	    throws WalletCallException, IOException, InterruptedException
-	{
-		JsonArray response = this.executeCommandAndGetJsonArray(
-			"z_getoperationstatus", wrapStringParameter("[\"" + opID + "\"]"));
-		JsonObject jsonStatus = response.get(0).asObject();
-
-		JsonObject jsonError = jsonStatus.get("error").asObject();
-		return jsonError.getString("message", "ERROR!");
+		return statuses;
 	}
 
 
@@ -1201,10 +1441,65 @@ public class ZCashClientCaller
 	}
 	
 
+	// Executes a command that starts an asynchronous operation and returns a JSON object with its "opid"
+	private JsonObject executeOperationCommand(String[] params)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		CommandExecutor caller = new CommandExecutor(params);
+		String strResponse = caller.execute();
+
+		if (strResponse.trim().toLowerCase(Locale.ROOT).startsWith("error:") ||
+			strResponse.trim().toLowerCase(Locale.ROOT).startsWith("error code:"))
+		{
+		  	throw new WalletCallException("Error response from wallet: " + strResponse);
+		}
+
+		Log.info("Started operation with command: " + params[1] + " " + params[2] + " " + params[3] + 
+		         ". Got result: [" + strResponse.trim() + "]");
+
+		JsonValue response = null;
+		try
+		{
+		  	response = Json.parse(strResponse);
+		} catch (ParseException pe)
+		{
+		  	throw new WalletCallException(strResponse + "\n" + pe.getMessage() + "\n", pe);
+		}
+
+		if ((!response.isObject()) || (response.asObject().get("opid") == null))
+		{
+			throw new WalletCallException("Unexpected response from wallet: " + strResponse);
+		}
+
+		return response.asObject();
+	}
+
+
+	// Amounts are returned as JSON numbers (or strings) - in ZEN
+	private static Zatoshi parseAmount(JsonValue amount)
+		throws WalletCallException
+	{
+		try
+		{
+			return Zatoshi.parse(amount);
+		} catch (NumberFormatException nfe)
+		{
+			throw new WalletCallException("Unexpected amount from wallet: " + amount.toString(), nfe);
+		}
+	}
+
+
 	private JsonObject executeCommandAndGetJsonObject(String command1, String command2)
 		throws WalletCallException, IOException, InterruptedException
 	{
-		JsonValue response = this.executeCommandAndGetJsonValue(command1, command2);
+		return this.executeCommandAndGetJsonObject(command1, command2, null);
+	}
+
+
+	private JsonObject executeCommandAndGetJsonObject(String command1, String command2, String command3)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		JsonValue response = this.executeCommandAndGetJsonValue(command1, command2, command3);
 
 		if (response.isObject())
 		{
@@ -1264,6 +1559,26 @@ public class ZCashClientCaller
 	}
 
 
+	// Decodes the response into records without building a JsonValue tree
+	private <T> List<T> executeCommandAndDecodeRecords(
+			JsonRecordDecoder<T> decoder, String command1, String command2, String command3)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		String strResponse = this.executeCommandAndGetSingleStringResponse(command1, command2, command3);
+
+		try
+		{
+			return decoder.decode(strResponse);
+		} catch (ParseException pe)
+		{
+		  	throw new WalletCallException(strResponse + "\n" + pe.getMessage() + "\n", pe);
+		} catch (IOException | NumberFormatException e)
+		{
+			throw new WalletCallException("Unexpected response from wallet: " + strResponse, e);
+		}
+	}
+
+
 	private String executeCommandAndGetSingleStringResponse(String command1)
 		throws WalletCallException, IOException, InterruptedException
 	{
@@ -0,0 +1,462 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *    
+ * Copyright (c) 2023 Horizen Foundation                                   
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui;
+
+
+import java.math.BigDecimal;
+import java.text.DecimalFormatSymbols;
+
+import com.eclipsesource.json.JsonValue;
+
+
+/**
+ * An exact, immutable amount of ZEN kept as a number of zatoshis (1 ZEN = 100 000 000 zatoshis).
+ * Amounts are parsed directly from the decimal text the wallet returns in its JSON responses (or 
+ * the user enters) and formatted without any intermediate double, BigDecimal or DecimalFormat. 
+ * Comparing, sorting and adding amounts is plain long arithmetic. Arithmetic that does not fit in
+ * a long throws an ArithmeticException.
+ * <p>
+ * The format produced is the one the wallet used so far with "########0.00######": at least two
+ * and at most eight fractional digits, no grouping.
+ */
+public final class Zatoshi
+	implements Comparable<Zatoshi>
+{
+	public static final long ZATOSHIS_PER_ZEN = 100000000L;
+	
+	private static final int FRACTIONAL_DIGITS     = 8;
+	private static final int MIN_FRACTIONAL_DIGITS = 2;
+	
+	private static final long[] POWERS_OF_TEN = new long[19];
+	static
+	{
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+		{
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+	
+	// Separator for amounts shown in the GUI - DecimalFormat used the default locale
+	private static final char DISPLAY_DECIMAL_SEPARATOR = 
+		DecimalFormatSymbols.getInstance().getDecimalSeparator();
+	
+	public static final Zatoshi ZERO = new Zatoshi(0);
+	
+	private final long zatoshis;
+	
+	
+	private Zatoshi(long zatoshis)
+	{
+		this.zatoshis = zatoshis;
+	}
+	
+	
+	public static Zatoshi valueOf(long zatoshis)
+	{
+		return (zatoshis == 0) ? ZERO : new Zatoshi(zatoshis);
+	}
+	
+	
+	/**
+	 * Converts an amount of ZEN kept as a BigDecimal.
+	 * 
+	 * @throws ArithmeticException if the amount has non-zero digits beyond the eighth fractional 
+	 *         digit or is out of range
+	 */
+	public static Zatoshi valueOf(BigDecimal zen)
+		throws ArithmeticException
+	{
+		return valueOf(zen.movePointRight(FRACTIONAL_DIGITS).longValueExact());
+	}
+	
+	
+	/**
+	 * Converts an amount of ZEN kept as a double (e.g. in the messaging options), rounded to whole
+	 * zatoshis.
+	 */
+	public static Zatoshi valueOfZen(double zen)
+	{
+		return valueOf(Math.round(zen * ZATOSHIS_PER_ZEN));
+	}
+	
+	
+	/**
+	 * Parses a decimal amount of ZEN like "12.5", "-0.0001" or "1e-05" - the way numbers appear in 
+	 * wallet JSON responses.
+	 * 
+	 * @param text amount of ZEN
+	 * 
+	 * @return the amount
+	 * 
+	 * @throws NumberFormatException if the text is not a decimal number, has non-zero digits 
+	 *         beyond the eighth fractional digit or is out of range
+	 */
+	public static Zatoshi parse(String text)
+		throws NumberFormatException
+	{
+		return valueOf(parseZatoshis(text, false));
+	}
+	
+	
+	/**
+	 * Parses a decimal amount of ZEN like {@link #parse(String)} but rounds it half-even to whole 
+	 * zatoshis if it has more than eight fractional digits. 
+	 */
+	public static Zatoshi parseRounded(String text)
+		throws NumberFormatException
+	{
+		return valueOf(parseZatoshis(text, true));
+	}
+	
+	
+	/**
+	 * Parses an amount from a JSON number - as written in the JSON text - or a JSON string.
+	 */
+	public static Zatoshi parse(JsonValue value)
+		throws NumberFormatException
+	{
+		if (value.isString())
+		{
+			return parse(value.asString());
+		} else if (value.isNumber())
+		{
+			// The text of a JsonNumber is kept as parsed
+			return parse(value.toString());
+		} else
+		{
+			throw new NumberFormatException("Not an amount: " + value.toString());
+		}
+	}
+	
+	
+	/**
+	 * Checks if a decimal number has non-zero digits beyond the eighth fractional digit - i.e. 
+	 * it can not be sent exactly in a ZEN transaction.
+	 * 
+	 * @throws NumberFormatException if the text is not a decimal number or is out of range
+	 */
+	public static boolean hasExcessiveFractionalDigits(String text)
+		throws NumberFormatException
+	{
+		try
+		{
+			parseZatoshis(text, false);
+			return false;
+		} catch (NumberFormatException nfe)
+		{
+			// Throws again if the text is not an amount at all
+			parseZatoshis(text, true);
+			return true;
+		}
+	}
+	
+	
+	public long getZatoshis()
+	{
+		return this.zatoshis;
+	}
+	
+	
+	public int signum()
+	{
+		return Long.signum(this.zatoshis);
+	}
+	
+	
+	public Zatoshi add(Zatoshi other)
+	{
+		return valueOf(Math.addExact(this.zatoshis, other.zatoshis));
+	}
+	
+	
+	public Zatoshi subtract(Zatoshi other)
+	{
+		return valueOf(Math.subtractExact(this.zatoshis, other.zatoshis));
+	}
+	
+	
+	public Zatoshi multiply(long factor)
+	{
+		return valueOf(Math.multiplyExact(this.zatoshis, factor));
+	}
+	
+	
+	public Zatoshi negate()
+	{
+		return valueOf(Math.negateExact(this.zatoshis));
+	}
+	
+	
+	public BigDecimal toBigDecimal()
+	{
+		return BigDecimal.valueOf(this.zatoshis, FRACTIONAL_DIGITS);
+	}
+	
+	
+	/**
+	 * Approximate value in ZEN - only for display purposes such as conversion to other currencies.
+	 */
+	public double doubleValue()
+	{
+		return (double)this.zatoshis / ZATOSHIS_PER_ZEN;
+	}
+	
+	
+	/**
+	 * Appends the amount in ZEN to a buffer - with '.' as a decimal separator, as expected by 
+	 * the wallet. Nothing but the buffer content is allocated.
+	 * 
+	 * @return the buffer
+	 */
+	public StringBuilder appendTo(StringBuilder buffer)
+	{
+		return this.appendTo(buffer, '.');
+	}
+	
+	
+	public StringBuilder appendTo(StringBuilder buffer, char decimalSeparator)
+	{
+		long whole    = this.zatoshis / ZATOSHIS_PER_ZEN;
+		long fraction = this.zatoshis % ZATOSHIS_PER_ZEN;
+		if (this.zatoshis < 0)
+		{
+			buffer.append('-');
+			whole    = -whole;
+			fraction = -fraction;
+		}
+		
+		buffer.append(whole).append(decimalSeparator);
+		
+		int digits = FRACTIONAL_DIGITS;
+		while ((digits > MIN_FRACTIONAL_DIGITS) && ((fraction % 10) == 0))
+		{
+			fraction /= 10;
+			digits--;
+		}
+		
+		for (int i = digits - 1; i >= 0; i--)
+		{
+			buffer.append((char)('0' + ((fraction / POWERS_OF_TEN[i]) % 10)));
+		}
+		
+		return buffer;
+	}
+	
+	
+	/**
+	 * Returns the amount in ZEN with '.' as a decimal separator - as expected by the wallet.
+	 */
+	@Override
+	public String toString()
+	{
+		return this.appendTo(new StringBuilder(24)).toString();
+	}
+	
+	
+	/**
+	 * Returns the amount in ZEN with the decimal separator of the default locale - for the GUI.
+	 */
+	public String toDisplayString()
+	{
+		return this.appendTo(new StringBuilder(24), DISPLAY_DECIMAL_SEPARATOR).toString();
+	}
+	
+	
+	@Override
+	public int compareTo(Zatoshi other)
+	{
+		return Long.compare(this.zatoshis, other.zatoshis);
+	}
+	
+	
+	@Override
+	public boolean equals(Object o)
+	{
+		return (o instanceof Zatoshi) && (((Zatoshi)o).zatoshis == this.zatoshis);
+	}
+	
+	
+	@Override
+	public int hashCode()
+	{
+		return Long.hashCode(this.zatoshis);
+	}
+	
+	
+	private static long parseZatoshis(String text, boolean round)
+		throws NumberFormatException
+	{
+		if (text == null)
+		{
+			throw new NumberFormatException("Amount is null");
+		}
+		
+		int length = text.length();
+		int start = 0;
+		boolean negative = false;
+		if ((length > 0) && ((text.charAt(0) == '-') || (text.charAt(0) == '+')))
+		{
+			negative = text.charAt(0) == '-';
+			start = 1;
+		}
+		
+		// Find the extent of the digits, the decimal point and the exponent
+		int mantissaEnd = start;
+		int point = -1;
+		int numDigits = 0;
+		while (mantissaEnd < length)
+		{
+			char c = text.charAt(mantissaEnd);
+			if ((c >= '0') && (c <= '9'))
+			{
+				numDigits++;
+			} else if ((c == '.') && (point < 0))
+			{
+				point = mantissaEnd;
+			} else
+			{
+				break;
+			}
+			mantissaEnd++;
+		}
+		
+		if (numDigits == 0)
+		{
+			throw new NumberFormatException("Invalid amount: " + text);
+		}
+		
+		int exponent = 0;
+		if (mantissaEnd < length)
+		{
+			char c = text.charAt(mantissaEnd);
+			if ((c != 'e') && (c != 'E'))
+			{
+				throw new NumberFormatException("Invalid amount: " + text);
+			}
+			exponent = parseExponent(text, mantissaEnd + 1);
+		}
+		
+		// Digit k (counting from the first) has the decimal position integerDigits - 1 - k
+		int integerDigits = ((point < 0) ? mantissaEnd : point) - start;
+		long zatoshis = 0;
+		int roundingDigit = 0;
+		boolean sticky = false;
+		int k = 0;
+		for (int i = start; i < mantissaEnd; i++)
+		{
+			char c = text.charAt(i);
+			if (c == '.')
+			{
+				continue;
+			}
+			
+			int digit = c - '0';
+			long position = (long)integerDigits - 1 - k + exponent + FRACTIONAL_DIGITS;
+			k++;
+			if (digit == 0)
+			{
+				continue;
+			}
+			
+			if (position >= POWERS_OF_TEN.length)
+			{
+				throw new NumberFormatException("Amount is out of range: " + text);
+			} else if (position >= 0)
+			{
+				long value = digit * POWERS_OF_TEN[(int)position];
+				if (zatoshis > (Long.MAX_VALUE - value))
+				{
+					throw new NumberFormatException("Amount is out of range: " + text);
+				}
+				zatoshis += value;
+			} else if (position == -1)
+			{
+				roundingDigit = digit;
+			} else
+			{
+				sticky = true;
+			}
+		}
+		
+		if ((roundingDigit != 0) || sticky)
+		{
+			if (round)
+			{
+				if (((roundingDigit > 5) || 
+					 ((roundingDigit == 5) && (sticky || ((zatoshis & 1) != 0)))) &&
+					(zatoshis < Long.MAX_VALUE))
+				{
+					zatoshis++;
+				}
+			} else
+			{
+				throw new NumberFormatException("Amount has more than " + FRACTIONAL_DIGITS + 
+					                            " fractional digits: " + text);
+			}
+		}
+		
+		return negative ? -zatoshis : zatoshis;
+	}
+	
+	
+	private static int parseExponent(String text, int start)
+		throws NumberFormatException
+	{
+		int length = text.length();
+		int i = start;
+		boolean negative = false;
+		if ((i < length) && ((text.charAt(i) == '-') || (text.charAt(i) == '+')))
+		{
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+		
+		if (i >= length)
+		{
+			throw new NumberFormatException("Invalid amount: " + text);
+		}
+		
+		int exponent = 0;
+		for (; i < length; i++)
+		{
+			char c = text.charAt(i);
+			if ((c < '0') || (c > '9'))
+			{
+				throw new NumberFormatException("Invalid amount: " + text);
+			}
+			
+			// Larger exponents only matter for zero amounts
+			exponent = Math.min(exponent * 10 + (c - '0'), 100000);
+		}
+		
+		return negative ? -exponent : exponent;
+	}
+}
@@ -0,0 +1,145 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import com.eclipsesource.json.JsonObject;
+import com.vaklinov.zcashui.msg.Message.DIRECTION_TYPE;
+
+
+/**
+ * Summary of the conversation with one contact - number of unread messages and the time and 
+ * beginning of the last message. It is updated as messages are stored, so the contact list may 
+ * show it without reading any messages.
+ */
+public class ContactSummary
+{
+	// Max. number of characters of the last message kept as a snippet
+	static final int MAX_SNIPPET_LENGTH = 60;
+	
+	private int unreadCount;
+	private long lastMessageTime;
+	private String lastMessageSnippet;
+	
+	
+	public ContactSummary()
+	{
+		this.unreadCount        = 0;
+		this.lastMessageTime    = 0;
+		this.lastMessageSnippet = "";
+	}
+	
+	
+	public ContactSummary(JsonObject obj)
+	{
+		this.unreadCount        = obj.getInt("unreadcount",       0);
+		this.lastMessageTime    = obj.getLong("lastmessagetime",  0);
+		this.lastMessageSnippet = obj.getString("lastmessagesnippet", "");
+	}
+	
+	
+	public JsonObject toJSONObject()
+	{
+		JsonObject obj = new JsonObject();
+		obj.set("unreadcount",        this.unreadCount);
+		obj.set("lastmessagetime",    this.lastMessageTime);
+		obj.set("lastmessagesnippet", this.lastMessageSnippet);
+		return obj;
+	}
+	
+	
+	public ContactSummary getCloneCopy()
+	{
+		return new ContactSummary(this.toJSONObject());
+	}
+	
+	
+	/**
+	 * Updates the summary for a newly stored message. A received message is unread - a sent one 
+	 * means the conversation has been read.
+	 * 
+	 * @param msg the message stored
+	 */
+	public void messageStored(Message msg)
+	{
+		if (msg.getDirection() == DIRECTION_TYPE.RECEIVED)
+		{
+			this.unreadCount++;
+		} else
+		{
+			this.unreadCount = 0;
+		}
+		
+		// Messages are not necessarily stored in time order
+		if (msg.getTime().getTime() >= this.lastMessageTime)
+		{
+			this.lastMessageTime    = msg.getTime().getTime();
+			this.lastMessageSnippet = getSnippet(msg);
+		}
+	}
+	
+	
+	public void markAsRead()
+	{
+		this.unreadCount = 0;
+	}
+	
+	
+	public int getUnreadCount()
+	{
+		return this.unreadCount;
+	}
+	
+	
+	// 0 if there are no messages
+	public long getLastMessageTime()
+	{
+		return this.lastMessageTime;
+	}
+	
+	
+	public String getLastMessageSnippet()
+	{
+		return this.lastMessageSnippet;
+	}
+	
+	
+	// Beginning of a message on one line
+	static String getSnippet(Message msg)
+	{
+		if (MessagingIdentity.isIdentityMessage(msg.getMessage()))
+		{
+			return "[Contact details]";
+		}
+		
+		String text = (msg.getMessage() != null) ? msg.getMessage().replaceAll("\\s+", " ").trim() : "";
+		return (text.length() <= MAX_SNIPPET_LENGTH) ? text : (text.substring(0, MAX_SNIPPET_LENGTH) + "...");
+	}
+}
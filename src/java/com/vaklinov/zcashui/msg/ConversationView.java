@@ -0,0 +1,558 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.StatusUpdateErrorReporter;
+
+
+/**
+ * Displays the conversation with a contact in a text pane. Only the most recent page of 
+ * messages is shown initially and older pages are loaded when the view is scrolled to the top.
+ * When the same contact is displayed again only the new messages are appended. Reading and 
+ * rendering of messages is done in a background thread. Rendered HTML fragments are cached per
+ * message.
+ * <p>
+ * All public methods must be called on the EDT.
+ */
+public class ConversationView
+{
+	/**
+	 * Produces the HTML for messages. Called in the background thread.
+	 */
+	public static interface MessageRenderer
+	{
+		/**
+		 * Returns a string that describes everything besides the message itself that the 
+		 * rendered HTML depends on (e.g. the current date, nicknames). If it changes, all 
+		 * messages of the contact are rendered again.
+		 */
+		String getRenderingState(MessagingIdentity contact)
+			throws IOException;
+		
+		/**
+		 * Renders messages to HTML fragments - an empty fragment for a message that is not shown.
+		 */
+		List<String> renderMessages(MessagingIdentity contact, List<Message> messages)
+			throws IOException;
+	}
+	
+	
+	static final int PAGE_SIZE = 100;
+	
+	private static final int MAX_CACHED_FRAGMENTS = 10000;
+	
+	private JTextPane   textPane;
+	private JScrollPane scrollPane;
+	
+	private MessagingStorage          storage;
+	private MessageRenderer           renderer;
+	private StatusUpdateErrorReporter errorReporter;
+	
+	private ExecutorService loader;
+	
+	// Rendered fragments by contact, rendering state and message
+	private Map<String, String> fragmentCache;
+	
+	// State of the displayed conversation - only accessed on the EDT
+	private MessagingIdentity contact;
+	private int               generation;
+	private int               firstLoaded;
+	private int               endLoaded;
+	private String            lastLoadedKey;
+	private String            renderingState;
+	private boolean           loadingOlder;
+	private boolean           updatingDocument;
+	
+	
+	public ConversationView(JTextPane textPane, JScrollPane scrollPane, MessagingStorage storage, 
+			                MessageRenderer renderer, StatusUpdateErrorReporter errorReporter)
+	{
+		this.textPane      = textPane;
+		this.scrollPane    = scrollPane;
+		this.storage       = storage;
+		this.renderer      = renderer;
+		this.errorReporter = errorReporter;
+		
+		this.fragmentCache = new LinkedHashMap<String, String>(1000, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return this.size() > MAX_CACHED_FRAGMENTS;
+			}
+		};
+		
+		this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() 
+		{
+			@Override
+			public Thread newThread(Runnable r) 
+			{
+				Thread t = new Thread(r, "Conversation loader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		this.scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() 
+		{
+			@Override
+			public void adjustmentValueChanged(AdjustmentEvent e) 
+			{
+				JScrollBar bar = ConversationView.this.scrollPane.getVerticalScrollBar();
+				if ((!e.getValueIsAdjusting()) && (bar.getValue() == bar.getMinimum()))
+				{
+					ConversationView.this.loadOlderMessages();
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Displays the conversation with a contact. If the contact is already displayed only new 
+	 * messages are added, unless a reload is requested.
+	 * 
+	 * @param contact contact to display
+	 * @param reload if true, the conversation is displayed anew
+	 */
+	public void showContact(MessagingIdentity contact, boolean reload)
+	{
+		if (reload || (this.contact == null) || 
+			(!this.contact.getIdentityKey().equals(contact.getIdentityKey())))
+		{
+			this.contact      = contact;
+			this.generation++;
+			this.loadingOlder = false;
+			this.submitFullLoad(this.generation, contact);
+		} else
+		{
+			this.submitNewMessagesLoad(
+				this.generation, contact, this.endLoaded, this.lastLoadedKey, this.renderingState);
+		}
+	}
+	
+	
+	// Loads the last page of messages and replaces the document
+	private void submitFullLoad(final int generation, final MessagingIdentity contact)
+	{
+		this.loader.submit(new LoaderTask()
+		{
+			@Override
+			void load()
+				throws IOException
+			{
+				ConversationView.this.loadLastPage(generation, contact);
+			}
+		});
+	}
+	
+	
+	// Loads the messages after the last one displayed and appends them
+	private void submitNewMessagesLoad(final int generation, final MessagingIdentity contact, final int end, 
+			                           final String lastKey, final String state)
+	{
+		this.loader.submit(new LoaderTask()
+		{
+			@Override
+			void load()
+				throws IOException
+			{
+				final int count = ConversationView.this.storage.getMessageCountForContact(contact);
+				final String newState = ConversationView.this.renderer.getRenderingState(contact);
+				
+				if ((count == end) && newState.equals(state))
+				{
+					return; // Nothing new
+				}
+				
+				// The last displayed message is read again to make sure the new ones follow it - a
+				// received message may be older than the last one displayed.
+				List<Message> messages = ConversationView.this.storage.getMessagesForContact(
+					contact, Math.max(0, end - 1), count);
+				if ((!newState.equals(state)) || (count < end) ||
+					((end > 0) && (messages.isEmpty() || (!getMessageKey(messages.get(0)).equals(lastKey)))))
+				{
+					ConversationView.this.loadLastPage(generation, contact);
+					return;
+				}
+				
+				if (end > 0)
+				{
+					messages.remove(0);
+				}
+				
+				final List<String> fragments = ConversationView.this.render(contact, newState, messages);
+				final String newLastKey = getMessageKey(messages.get(messages.size() - 1));
+				
+				SwingUtilities.invokeLater(new Runnable() 
+				{
+					@Override
+					public void run() 
+					{
+						ConversationView view = ConversationView.this;
+						if ((generation != view.generation) || (end != view.endLoaded))
+						{
+							// Something else was displayed meanwhile - try again
+							if (generation == view.generation)
+							{
+								view.showContact(contact, false);
+							}
+							return;
+						}
+						
+						view.appendFragments(fragments);
+						view.endLoaded     = count;
+						view.lastLoadedKey = newLastKey;
+					}
+				});
+			}
+		});
+	}
+	
+	
+	// Called when the view is scrolled to the top
+	private void loadOlderMessages()
+	{
+		if ((this.contact == null) || this.loadingOlder || this.updatingDocument || (this.firstLoaded <= 0))
+		{
+			return;
+		}
+		
+		this.loadingOlder = true;
+		
+		final int generation = this.generation;
+		final MessagingIdentity contact = this.contact;
+		final int first = this.firstLoaded;
+		final String state = this.renderingState;
+		
+		this.loader.submit(new LoaderTask()
+		{
+			@Override
+			void load()
+				throws IOException
+			{
+				final int from = Math.max(0, first - PAGE_SIZE);
+				List<Message> messages = ConversationView.this.storage.getMessagesForContact(contact, from, first);
+				final List<String> fragments = ConversationView.this.render(contact, state, messages);
+				
+				SwingUtilities.invokeLater(new Runnable() 
+				{
+					@Override
+					public void run() 
+					{
+						ConversationView view = ConversationView.this;
+						if ((generation != view.generation) || (first != view.firstLoaded))
+						{
+							if (generation == view.generation)
+							{
+								view.loadingOlder = false;
+							}
+							return;
+						}
+						
+						boolean inserted = view.prependFragments(fragments);
+						view.firstLoaded  = from;
+						view.loadingOlder = false;
+						
+						if (!inserted)
+						{
+							// All messages were hidden - the view is still at the top
+							view.loadOlderMessages();
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	
+	// Runs in the loader thread
+	private void loadLastPage(final int generation, final MessagingIdentity contact)
+		throws IOException
+	{
+		final int count = this.storage.getMessageCountForContact(contact);
+		final int first = Math.max(0, count - PAGE_SIZE);
+		final String state = this.renderer.getRenderingState(contact);
+		
+		List<Message> messages = this.storage.getMessagesForContact(contact, first, count);
+		final List<String> fragments = this.render(contact, state, messages);
+		final String lastKey = messages.isEmpty() ? null : getMessageKey(messages.get(messages.size() - 1));
+		
+		SwingUtilities.invokeLater(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				ConversationView view = ConversationView.this;
+				if (generation != view.generation)
+				{
+					return;
+				}
+				
+				view.firstLoaded    = first;
+				view.endLoaded      = count;
+				view.lastLoadedKey  = lastKey;
+				view.renderingState = state;
+				view.loadingOlder   = false;
+				view.replaceDocument(fragments);
+			}
+		});
+	}
+	
+	
+	// Runs in the loader thread - renders only the messages that are not cached
+	private List<String> render(MessagingIdentity contact, String state, List<Message> messages)
+		throws IOException
+	{
+		String keyPrefix = contact.getIdentityKey() + "|" + state + "|";
+		
+		List<Message> toRender = new ArrayList<Message>();
+		synchronized (this.fragmentCache)
+		{
+			for (Message msg : messages)
+			{
+				if (!this.fragmentCache.containsKey(keyPrefix + getMessageKey(msg)))
+				{
+					toRender.add(msg);
+				}
+			}
+		}
+		
+		List<String> rendered = toRender.isEmpty() ? 
+			new ArrayList<String>() : this.renderer.renderMessages(contact, toRender);
+		
+		List<String> fragments = new ArrayList<String>(messages.size());
+		synchronized (this.fragmentCache)
+		{
+			for (int i = 0; i < toRender.size(); i++)
+			{
+				this.fragmentCache.put(keyPrefix + getMessageKey(toRender.get(i)), rendered.get(i));
+			}
+			
+			for (Message msg : messages)
+			{
+				String fragment = this.fragmentCache.get(keyPrefix + getMessageKey(msg));
+				if (fragment == null) 
+				{
+					// Evicted meanwhile - only possible for very large pages
+					fragment = this.renderer.renderMessages(contact, Collections.singletonList(msg)).get(0);
+				}
+				
+				fragments.add(fragment);
+			}
+		}
+		
+		return fragments;
+	}
+	
+	
+	private void replaceDocument(List<String> fragments)
+	{
+		this.updatingDocument = true;
+		this.textPane.setText("<html><body>" + joinFragments(fragments) + "</body></html>");
+		this.scrollToBottomLater();
+	}
+	
+	
+	private void appendFragments(List<String> fragments)
+	{
+		if (this.endLoaded == this.firstLoaded)
+		{
+			// Nothing displayed so far
+			this.replaceDocument(fragments);
+			return;
+		}
+		
+		String html = joinFragments(fragments);
+		if (html.length() == 0)
+		{
+			return;
+		}
+		
+		JScrollBar bar = this.scrollPane.getVerticalScrollBar();
+		boolean atBottom = (bar.getValue() + bar.getVisibleAmount()) >= (bar.getMaximum() - 10);
+		
+		HTMLDocument doc = (HTMLDocument)this.textPane.getDocument();
+		try
+		{
+			this.updatingDocument = true;
+			doc.insertBeforeEnd(getBody(doc), html);
+		} catch (Exception e)
+		{
+			Log.error("Unexpected error in appending messages: ", e);
+			this.errorReporter.reportError(e, false);
+		}
+		
+		if (atBottom)
+		{
+			this.scrollToBottomLater();
+		} else
+		{
+			this.updatingDocument = false;
+		}
+	}
+	
+	
+	// The view is kept at the same messages when older ones are inserted above them
+	private boolean prependFragments(List<String> fragments)
+	{
+		String html = joinFragments(fragments);
+		if (html.length() == 0)
+		{
+			return false;
+		}
+		
+		final JScrollBar bar = this.scrollPane.getVerticalScrollBar();
+		final int oldMaximum = bar.getMaximum();
+		final int oldValue = bar.getValue();
+		
+		HTMLDocument doc = (HTMLDocument)this.textPane.getDocument();
+		try
+		{
+			this.updatingDocument = true;
+			doc.insertAfterStart(getBody(doc), html);
+		} catch (Exception e)
+		{
+			Log.error("Unexpected error in inserting older messages: ", e);
+			this.errorReporter.reportError(e, false);
+		}
+		
+		SwingUtilities.invokeLater(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				ConversationView.this.scrollPane.validate();
+				bar.setValue(oldValue + (bar.getMaximum() - oldMaximum));
+				ConversationView.this.updatingDocument = false;
+			}
+		});
+		
+		return true;
+	}
+	
+	
+	private void scrollToBottomLater()
+	{
+		SwingUtilities.invokeLater(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				ConversationView.this.scrollPane.validate();
+				JScrollBar bar = ConversationView.this.scrollPane.getVerticalScrollBar();
+				bar.setValue(bar.getMaximum());
+				ConversationView.this.updatingDocument = false;
+				
+				// If the content does not fill the view, older messages are needed right away
+				if (bar.getValue() == bar.getMinimum())
+				{
+					ConversationView.this.loadOlderMessages();
+				}
+			}
+		});
+	}
+	
+	
+	private static Element getBody(HTMLDocument doc)
+	{
+		return doc.getElement(doc.getDefaultRootElement(), 
+			StyleConstants.NameAttribute, HTML.Tag.BODY);
+	}
+	
+	
+	// Every message is a separate block so that messages may be inserted before and after
+	private static String joinFragments(List<String> fragments)
+	{
+		StringBuilder html = new StringBuilder();
+		for (String fragment : fragments)
+		{
+			if (fragment.length() > 0)
+			{
+				html.append("<div>").append(fragment).append("</div>");
+			}
+		}
+		
+		return html.toString();
+	}
+	
+	
+	// Identifies a stored message
+	static String getMessageKey(Message msg)
+	{
+		return msg.getDirection() + "|" + msg.getTime().getTime() + "|" + msg.getTransactionID() + "|" +
+			   msg.getFrom() + "|" + msg.getThreadID() + "|" + msg.getMessage().hashCode();
+	}
+	
+	
+	// Reports errors of background loading
+	private abstract class LoaderTask
+		implements Runnable
+	{
+		abstract void load()
+			throws IOException;
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				this.load();
+			} catch (Exception e)
+			{
+				Log.error("Unexpected error in loading conversation: ", e);
+				ConversationView.this.errorReporter.reportError(e, false);
+			}
+		}
+	}
+}
@@ -0,0 +1,711 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+
+import org.bitcoinj.core.Base58;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.WriterConfig;
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.Util;
+
+
+/**
+ * Local cache of IPFS content, keyed by CID. The cache is bounded in size and the least recently 
+ * used files are evicted first. Content is checked against the CID once, when it is downloaded - 
+ * reading it from the cache only checks that its size is intact. The access order is stored lazily,
+ * with the next change of the cached content or by {@link #storeIndexIfChanged()}.
+ * 
+ * The CID may only be checked directly for raw CIDv1 content and for single block CIDv0 files 
+ * (up to 256 KB with the default chunker). Other content is cached only if it comes from the 
+ * local IPFS gateway - which verifies all blocks itself.
+ * 
+ * ~/.ZENCashSwingWalletUI/ipfs_cache - root dir
+ * ~/.ZENCashSwingWalletUI/ipfs_cache/cache_index.json - cached CIDs, sizes, names, access order
+ * ~/.ZENCashSwingWalletUI/ipfs_cache/CID.data - cached content
+ * ~/.ZENCashSwingWalletUI/ipfs_cache/open/CID/name - copies with their original name for opening
+ */
+public class IPFSContentCache
+{
+	static final String INDEX_FILE_NAME = "cache_index.json";
+	static final String OPEN_DIR_NAME   = "open";
+	
+	// Max. total size of the cached content and max. size of a single file
+	static final long MAX_CACHE_SIZE       = 256L * 1024 * 1024;
+	static final long MAX_CACHED_FILE_SIZE = 64L * 1024 * 1024;
+	
+	// Max. size of a file that is stored in one block by the default IPFS chunker
+	static final long MAX_SINGLE_BLOCK_SIZE = 256 * 1024;
+	
+	static final int CONNECT_TIMEOUT = 5000;
+	static final int READ_TIMEOUT    = 60 * 1000;
+	
+	// Extensions of passive content that may be opened by the desktop - the name comes from the sender
+	private static final Set<String> OPENABLE_EXTENSIONS = new HashSet<String>(Arrays.asList(
+		"txt", "jpg", "jpeg", "png", "gif", "bmp", "webp", "pdf", "mp3", "wav", "ogg", "mp4", "webm"));
+	
+	// Multicodec and multihash codes used in CIDs
+	private static final int CODEC_RAW    = 0x55;
+	private static final int CODEC_DAG_PB = 0x70;
+	private static final int HASH_SHA256  = 0x12;
+	
+	
+	// One cached file
+	private static class CacheEntry
+	{
+		String cid;
+		long   size;
+		String name; // Original file name if known, may be null
+		
+		CacheEntry(String cid, long size, String name)
+		{
+			this.cid    = cid;
+			this.size   = size;
+			this.name   = name;
+		}
+	}
+	
+	
+	private File rootDir;
+	
+	private long maxCacheSize;
+	
+	// CID -> entry, in access order - the first entry is evicted first
+	private LinkedHashMap<String, CacheEntry> entries;
+	
+	private long totalSize;
+	
+	// True if the index differs from the stored one - e.g. only in the access order
+	private boolean indexChanged;
+	
+	
+	public IPFSContentCache(File rootDir, long maxCacheSize)
+		throws IOException
+	{
+		this.rootDir      = rootDir;
+		this.maxCacheSize = maxCacheSize;
+		this.entries      = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		this.totalSize    = 0;
+		this.indexChanged = false;
+		
+		if (!rootDir.exists())
+		{
+			if (!rootDir.mkdirs())
+			{
+				throw new IOException("Could not create directory: " + rootDir.getAbsolutePath());
+			}
+		}
+		
+		this.loadIndex();
+		
+		// Copies made for opening are not needed any more
+		File openDir = new File(rootDir, OPEN_DIR_NAME);
+		if (openDir.exists())
+		{
+			Util.deleteDirectory(openDir);
+		}
+	}
+	
+	
+	public synchronized boolean isCached(String cid)
+	{
+		return this.entries.containsKey(cid);
+	}
+	
+	
+	/**
+	 * Returns the cached content of a CID. The content was verified when it was downloaded - 
+	 * content whose size does not match any more is removed from the cache.
+	 * 
+	 * @param cid IPFS CID
+	 * 
+	 * @return the file with the cached content or null if not cached
+	 */
+	public synchronized File getCachedFile(String cid)
+		throws IOException
+	{
+		CacheEntry entry = this.entries.get(cid);
+		if (entry == null)
+		{
+			return null;
+		}
+		
+		File dataFile = this.getDataFile(cid);
+		if ((!dataFile.exists()) || (dataFile.length() != entry.size))
+		{
+			Log.warning("Cached IPFS content for {0} is missing or corrupted - it is removed from the cache!", cid);
+			this.removeEntry(entry);
+			this.indexChanged = true;
+			return null;
+		}
+		
+		this.indexChanged = true; // Access order changed
+		return dataFile;
+	}
+	
+	
+	/**
+	 * Stores the index if it has changed since it was last stored - e.g. the access order. Called 
+	 * in the background after cached content is opened.
+	 */
+	public synchronized void storeIndexIfChanged()
+		throws IOException
+	{
+		if (this.indexChanged)
+		{
+			this.storeIndex();
+		}
+	}
+	
+	
+	/**
+	 * Returns a copy of the cached content with its original file name - so that it may be 
+	 * opened by the desktop. The name is chosen by the sender of the link, so the content is 
+	 * opened only if its name has the extension of a passive type - a sender may not have an 
+	 * executable (e.g. photo.jpg.exe) run by the file associations of the OS.
+	 * 
+	 * @param cid IPFS CID
+	 * 
+	 * @return a copy of the file or null if not cached or not of a type that may be opened
+	 */
+	public synchronized File getFileForOpening(String cid)
+		throws IOException
+	{
+		File dataFile = this.getCachedFile(cid);
+		if (dataFile == null)
+		{
+			return null;
+		}
+		
+		String name = this.entries.get(cid).name;
+		if (!isOpenableFileName(name))
+		{
+			return null;
+		}
+		
+		File openDir = new File(new File(this.rootDir, OPEN_DIR_NAME), cid);
+		File openFile = new File(openDir, name);
+		if (!openFile.exists())
+		{
+			if ((!openDir.exists()) && (!openDir.mkdirs()))
+			{
+				throw new IOException("Could not create directory: " + openDir.getAbsolutePath());
+			}
+			
+			copyFile(dataFile, openFile);
+		}
+		
+		return openFile;
+	}
+	
+	
+	/**
+	 * Downloads content to the cache unless it is already cached. Called in the background.
+	 * 
+	 * @param cid IPFS CID of the content
+	 * @param url gateway URL of the content
+	 * @param name original name of the file if known - may be null
+	 * 
+	 * @return true if the content is cached
+	 */
+	public boolean fetch(String cid, URL url, String name)
+		throws IOException
+	{
+		synchronized (this)
+		{
+			CacheEntry existing = this.entries.get(cid);
+			if (existing != null)
+			{
+				if ((existing.name == null) && (name != null))
+				{
+					existing.name = sanitizeFileName(name);
+					this.storeIndex();
+				}
+				return true;
+			}
+		}
+		
+		File tempFile = new File(this.rootDir, cid + ".tmp");
+		long size = 0;
+		MessageDigest sha256 = getSHA256Digest();
+		
+		// The download is not synchronized - it may take long
+		HttpURLConnection con = (HttpURLConnection)url.openConnection();
+		try
+		{
+			con.setConnectTimeout(CONNECT_TIMEOUT);
+			con.setReadTimeout(READ_TIMEOUT);
+			
+			if (con.getResponseCode() != HttpURLConnection.HTTP_OK)
+			{
+				Log.warning("IPFS content {0} could not be fetched - HTTP code {1}", url, con.getResponseCode());
+				return false;
+			}
+			
+			if (con.getContentLengthLong() > MAX_CACHED_FILE_SIZE)
+			{
+				Log.info("IPFS content {0} is too large to be cached: {1} bytes", url, con.getContentLengthLong());
+				return false;
+			}
+			
+			InputStream in = new BufferedInputStream(con.getInputStream());
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+			try
+			{
+				byte[] buf = new byte[64 * 1024];
+				int n;
+				while ((n = in.read(buf)) > 0)
+				{
+					size += n;
+					if (size > MAX_CACHED_FILE_SIZE)
+					{
+						Log.info("IPFS content {0} is too large to be cached!", url);
+						return false;
+					}
+					
+					sha256.update(buf, 0, n);
+					out.write(buf, 0, n);
+				}
+			} finally
+			{
+				in.close();
+				out.close();
+			}
+			
+			byte[] digest = sha256.digest();
+			if (!this.isContentAcceptable(cid, url, tempFile, digest))
+			{
+				return false;
+			}
+			
+			synchronized (this)
+			{
+				File dataFile = this.getDataFile(cid);
+				if (dataFile.exists())
+				{
+					dataFile.delete();
+				}
+				
+				if (!tempFile.renameTo(dataFile))
+				{
+					throw new IOException("Could not rename " + tempFile.getAbsolutePath() + " to " + 
+				                          dataFile.getAbsolutePath());
+				}
+				
+				this.entries.put(cid, new CacheEntry(cid, size, (name != null) ? sanitizeFileName(name) : null));
+				this.totalSize += size;
+				this.evictOverLimit();
+				this.storeIndex();
+			}
+			
+			Log.info("IPFS content {0} of {1} bytes has been cached", cid, size);
+			return true;
+		} finally
+		{
+			con.disconnect();
+			if (tempFile.exists())
+			{
+				tempFile.delete();
+			}
+		}
+	}
+	
+	
+	// Checks the content against the CID - if this is not possible only the local gateway is trusted
+	private boolean isContentAcceptable(String cid, URL url, File content, byte[] contentSHA256)
+		throws IOException
+	{
+		Boolean matches = verifyCID(cid, content, contentSHA256);
+		if (matches != null)
+		{
+			if (!matches)
+			{
+				Log.warning("IPFS content from {0} does not match its CID - it will not be cached!", url);
+			}
+			
+			return matches;
+		}
+		
+		if (!InetAddress.getByName(url.getHost()).isLoopbackAddress())
+		{
+			Log.info("IPFS content from {0} cannot be verified - it will not be cached!", url);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Checks content against a CID.
+	 * 
+	 * @param contentSHA256 SHA-256 digest of the content - as calculated when it was downloaded
+	 * 
+	 * @return true/false if the content matches or not, null if it may not be checked
+	 */
+	static Boolean verifyCID(String cid, File content, byte[] contentSHA256)
+		throws IOException
+	{
+		int codec;
+		byte[] multihash;
+		try
+		{
+			if (cid.startsWith("Qm"))
+			{
+				// CIDv0 - a base58 sha2-256 multihash of a dag-pb block
+				codec = CODEC_DAG_PB;
+				multihash = Base58.decode(cid);
+			} else if (cid.startsWith("b"))
+			{
+				// CIDv1 in base32 - version, codec and multihash
+				byte[] bytes = decodeBase32(cid.substring(1));
+				if ((bytes.length < 3) || (bytes[0] != 1))
+				{
+					return null;
+				}
+				codec = bytes[1] & 0xff;
+				multihash = Arrays.copyOfRange(bytes, 2, bytes.length);
+			} else
+			{
+				return null;
+			}
+		} catch (RuntimeException e)
+		{
+			return null; // Not a valid CID
+		}
+		
+		if ((multihash.length != 34) || (multihash[0] != HASH_SHA256) || (multihash[1] != 32))
+		{
+			return null;
+		}
+		
+		byte[] digest = Arrays.copyOfRange(multihash, 2, multihash.length);
+		
+		if (codec == CODEC_RAW)
+		{
+			return Arrays.equals(digest, contentSHA256);
+		} else if (codec == CODEC_DAG_PB)
+		{
+			// Only a file in one block may be checked without fetching the DAG
+			if (content.length() > MAX_SINGLE_BLOCK_SIZE)
+			{
+				return null;
+			}
+			
+			byte[] block = encodeSingleBlockFile(Util.loadFileInMemory(content));
+			return Arrays.equals(digest, Util.calculateSHA256Digest(block)) ? Boolean.TRUE : null;
+		}
+		
+		return null;
+	}
+	
+	
+	// The dag-pb block of a file stored in one block - PBNode { Data: UnixFS { Type: File, Data, filesize } }
+	static byte[] encodeSingleBlockFile(byte[] data)
+	{
+		ByteArrayOutputStream unixfs = new ByteArrayOutputStream();
+		unixfs.write(0x08); // Type
+		unixfs.write(0x02); // File
+		if (data.length > 0)
+		{
+			unixfs.write(0x12); // Data
+			writeVarint(unixfs, data.length);
+			unixfs.write(data, 0, data.length);
+		}
+		unixfs.write(0x18); // filesize
+		writeVarint(unixfs, data.length);
+		
+		byte[] unixfsBytes = unixfs.toByteArray();
+		
+		ByteArrayOutputStream node = new ByteArrayOutputStream();
+		node.write(0x0a); // Data
+		writeVarint(node, unixfsBytes.length);
+		node.write(unixfsBytes, 0, unixfsBytes.length);
+		
+		return node.toByteArray();
+	}
+	
+	
+	private static void writeVarint(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.write((int)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+	
+	
+	// RFC 4648 base32, lower case without padding - as used by CIDv1
+	static byte[] decodeBase32(String s)
+	{
+		final String alphabet = "abcdefghijklmnopqrstuvwxyz234567";
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int buffer = 0;
+		int bits = 0;
+		for (char c : s.toLowerCase().toCharArray())
+		{
+			int value = alphabet.indexOf(c);
+			if (value < 0)
+			{
+				throw new IllegalArgumentException("Invalid base32 character: " + c);
+			}
+			
+			buffer = (buffer << 5) | value;
+			bits += 5;
+			if (bits >= 8)
+			{
+				out.write((buffer >> (bits - 8)) & 0xff);
+				bits -= 8;
+			}
+		}
+		
+		return out.toByteArray();
+	}
+	
+	
+	private void evictOverLimit()
+	{
+		Iterator<CacheEntry> it = this.entries.values().iterator();
+		while ((this.totalSize > this.maxCacheSize) && it.hasNext())
+		{
+			CacheEntry entry = it.next();
+			it.remove();
+			this.deleteContent(entry);
+			Log.info("IPFS content {0} evicted from the cache", entry.cid);
+		}
+	}
+	
+	
+	private void removeEntry(CacheEntry entry)
+	{
+		this.entries.remove(entry.cid);
+		this.deleteContent(entry);
+	}
+	
+	
+	private void deleteContent(CacheEntry entry)
+	{
+		this.totalSize -= entry.size;
+		this.getDataFile(entry.cid).delete();
+	}
+	
+	
+	private File getDataFile(String cid)
+	{
+		return new File(this.rootDir, cid + ".data");
+	}
+	
+	
+	private void loadIndex()
+		throws IOException
+	{
+		File indexFile = new File(this.rootDir, INDEX_FILE_NAME);
+		if (!indexFile.exists())
+		{
+			return;
+		}
+		
+		InputStream is = null;
+		try
+		{
+			is = new BufferedInputStream(new FileInputStream(indexFile));
+			JsonArray ar = Util.parseJsonObject(new InputStreamReader(is, "UTF-8")).get("entries").asArray();
+			for (int i = 0; i < ar.size(); i++)
+			{
+				JsonObject obj = ar.get(i).asObject();
+				CacheEntry entry = new CacheEntry(
+					obj.getString("cid", ""), obj.getLong("size", 0), obj.getString("name", null));
+				
+				// Entries whose content is gone are dropped
+				if (this.getDataFile(entry.cid).exists())
+				{
+					this.entries.put(entry.cid, entry);
+					this.totalSize += entry.size;
+				}
+			}
+		} catch (Exception e)
+		{
+			Log.warning("IPFS cache index {0} is not readable, the cache will be emptied: {1}", 
+				        indexFile.getAbsolutePath(), e.getMessage());
+			this.entries.clear();
+			this.totalSize = 0;
+		} finally
+		{
+			if (is != null)
+			{
+				is.close();
+			}
+		}
+		
+		// Content not in the index is not needed
+		File[] files = this.rootDir.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				String fileName = f.getName();
+				if ((fileName.endsWith(".data") && (!this.entries.containsKey(fileName.substring(0, fileName.length() - 5)))) ||
+					fileName.endsWith(".tmp"))
+				{
+					f.delete();
+				}
+			}
+		}
+	}
+	
+	
+	private void storeIndex()
+		throws IOException
+	{
+		JsonArray ar = new JsonArray();
+		for (CacheEntry entry : this.entries.values())
+		{
+			JsonObject obj = new JsonObject();
+			obj.set("cid",    entry.cid);
+			obj.set("size",   entry.size);
+			if (entry.name != null)
+			{
+				obj.set("name", entry.name);
+			}
+			ar.add(obj);
+		}
+		
+		JsonObject index = new JsonObject();
+		index.set("entries", ar);
+		
+		File indexFile = new File(this.rootDir, INDEX_FILE_NAME);
+		File tempFile  = new File(this.rootDir, INDEX_FILE_NAME + ".tmp");
+		OutputStream os = null;
+		try
+		{
+			os = new FileOutputStream(tempFile);
+			index.writeTo(os, WriterConfig.MINIMAL);
+		} finally 
+		{
+			if (os != null)
+			{
+				os.close();
+			}
+		}
+		
+		if ((indexFile.exists() && (!indexFile.delete())) || (!tempFile.renameTo(indexFile)))
+		{
+			throw new IOException("Could not replace IPFS cache index " + indexFile.getAbsolutePath());
+		}
+		
+		this.indexChanged = false;
+	}
+	
+	
+	static boolean isOpenableFileName(String name)
+	{
+		if (Util.stringIsEmpty(name) || (name.lastIndexOf('.') < 0))
+		{
+			return false;
+		}
+		
+		String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+		return OPENABLE_EXTENSIONS.contains(extension);
+	}
+	
+	
+	// A shared name must not lead outside the directory
+	private static String sanitizeFileName(String name)
+	{
+		String safe = name.replaceAll("[\\\\/:*?\"<>|\\x00-\\x1f]", "_").trim();
+		if (safe.startsWith("."))
+		{
+			safe = "_" + safe.substring(1);
+		}
+		
+		return safe.isEmpty() ? null : safe;
+	}
+	
+	
+	private static void copyFile(File from, File to)
+		throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(from));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+		try
+		{
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) > 0)
+			{
+				out.write(buf, 0, n);
+			}
+		} finally
+		{
+			in.close();
+			out.close();
+		}
+	}
+	
+	
+	private static MessageDigest getSHA256Digest()
+		throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.UUID;
+
+import com.eclipsesource.json.JsonObject;
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.Util;
+
+
+/**
+ * Accesses a local IPFS daemon via its HTTP API (by default http://127.0.0.1:5001/api/v0/).
+ * Files are uploaded as chunked multipart requests - streamed from disk and never loaded in 
+ * memory. The API URL may be set to point to a local stand-in server for testing.
+ */
+public class IPFSHttpClient
+{
+	public static final String DEFAULT_API_URL = "http://127.0.0.1:5001/api/v0/";
+	
+	// Size of the HTTP chunks and the buffer used to read the file
+	static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+	
+	// Timeouts of the readiness probe - the daemon is local so it answers quickly if up
+	static final int PROBE_CONNECT_TIMEOUT = 1000;
+	static final int PROBE_READ_TIMEOUT    = 3000;
+	
+	// Timeout for reading the response after the whole file has been sent
+	static final int UPLOAD_READ_TIMEOUT   = 5 * 60 * 1000;
+	
+	
+	/**
+	 * Receives progress notifications while a file is uploaded - called on the uploading thread.
+	 */
+	public static interface UploadProgressListener
+	{
+		/**
+		 * @param bytesSent bytes of the file sent so far
+		 * @param totalBytes size of the file
+		 * 
+		 * @return false to cancel the upload
+		 */
+		boolean uploadProgress(long bytesSent, long totalBytes);
+	}
+	
+	
+	private String apiURL;
+	
+	
+	public IPFSHttpClient()
+	{
+		this(DEFAULT_API_URL);
+	}
+	
+	
+	// apiURL - like http://127.0.0.1:5001/api/v0/
+	public IPFSHttpClient(String apiURL)
+	{
+		this.apiURL = apiURL.endsWith("/") ? apiURL : (apiURL + "/");
+	}
+	
+	
+	/**
+	 * Checks if the daemon is up and answers API calls - by calling the id command.
+	 * 
+	 * @return true if the daemon is ready
+	 */
+	public boolean isReady()
+	{
+		HttpURLConnection con = null;
+		try
+		{
+			con = (HttpURLConnection)new URL(this.apiURL + "id").openConnection();
+			con.setConnectTimeout(PROBE_CONNECT_TIMEOUT);
+			con.setReadTimeout(PROBE_READ_TIMEOUT);
+			// The API accepts only POST requests
+			con.setRequestMethod("POST");
+			
+			int responseCode = con.getResponseCode();
+			readFully(con.getInputStream());
+			
+			return responseCode == HttpURLConnection.HTTP_OK;
+		} catch (IOException ioe)
+		{
+			return false; // Not started yet or not running
+		} finally
+		{
+			if (con != null)
+			{
+				con.disconnect();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Polls the daemon until it is ready or the timeout expires.
+	 * 
+	 * @param timeout max. time to wait in ms
+	 * @param pollInterval time between two probes in ms
+	 * 
+	 * @return true if the daemon is ready
+	 */
+	public boolean waitUntilReady(long timeout, long pollInterval)
+		throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		while (!this.isReady())
+		{
+			if (System.currentTimeMillis() >= deadline)
+			{
+				return false;
+			}
+			
+			Thread.sleep(pollInterval);
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Adds a file to IPFS. The file is streamed to the daemon in chunks.
+	 * 
+	 * @param f file to add
+	 * @param listener receives the progress, may be null
+	 * 
+	 * @return the IPFS hash (CID) of the added file
+	 * 
+	 * @throws IOException if the upload fails or is cancelled by the listener
+	 */
+	public String addFile(File f, UploadProgressListener listener)
+		throws IOException
+	{
+		String boundary = "----ZENIPFSBoundary" + UUID.randomUUID().toString().replace("-", "");
+		
+		byte[] partHeader = (
+			"--" + boundary + "\r\n" +
+			"Content-Disposition: form-data; name=\"file\"; filename=\"" + 
+				URLEncoder.encode(f.getName(), "UTF-8") + "\"\r\n" +
+			"Content-Type: application/octet-stream\r\n" +
+			"\r\n").getBytes("UTF-8");
+		byte[] partTrailer = ("\r\n--" + boundary + "--\r\n").getBytes("UTF-8");
+		
+		HttpURLConnection con = (HttpURLConnection)new URL(this.apiURL + "add?pin=true").openConnection();
+		try
+		{
+			con.setRequestMethod("POST");
+			con.setDoOutput(true);
+			con.setChunkedStreamingMode(UPLOAD_CHUNK_SIZE);
+			con.setConnectTimeout(PROBE_CONNECT_TIMEOUT);
+			con.setReadTimeout(UPLOAD_READ_TIMEOUT);
+			con.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+			
+			long totalBytes = f.length();
+			long bytesSent = 0;
+			
+			OutputStream out = con.getOutputStream();
+			InputStream in = new FileInputStream(f);
+			try
+			{
+				out.write(partHeader);
+				
+				byte[] buf = new byte[UPLOAD_CHUNK_SIZE];
+				int n;
+				while ((n = in.read(buf)) > 0)
+				{
+					out.write(buf, 0, n);
+					bytesSent += n;
+					
+					if ((listener != null) && (!listener.uploadProgress(bytesSent, totalBytes)))
+					{
+						throw new IOException("Upload of file " + f.getName() + " has been cancelled!");
+					}
+				}
+				
+				out.write(partTrailer);
+				out.flush();
+			} finally
+			{
+				in.close();
+				out.close();
+			}
+			
+			int responseCode = con.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK)
+			{
+				InputStream err = con.getErrorStream();
+				String errorText = (err != null) ? new String(readFully(err), "UTF-8") : "";
+				throw new IOException("IPFS add failed with HTTP code " + responseCode + ": " + errorText);
+			}
+			
+			// One JSON object per line is returned - the file's entry is last
+			String lastLine = null;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream(), "UTF-8"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					if (line.trim().length() > 0)
+					{
+						lastLine = line;
+					}
+				}
+			} finally
+			{
+				reader.close();
+			}
+			
+			if (lastLine == null)
+			{
+				throw new IOException("IPFS add returned an empty response!");
+			}
+			
+			JsonObject added = Util.parseJsonObject(lastLine);
+			String hash = added.getString("Hash", null);
+			if (Util.stringIsEmpty(hash))
+			{
+				throw new IOException("IPFS add returned no hash: " + lastLine);
+			}
+			
+			Log.info("File {0} of {1} bytes added to IPFS with hash {2}", f.getName(), totalBytes, hash);
+			return hash;
+		} finally
+		{
+			con.disconnect();
+		}
+	}
+	
+	
+	// Reads the stream to the end and closes it
+	private static byte[] readFully(InputStream in)
+		throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0)
+			{
+				bytes.write(buf, 0, n);
+			}
+			
+			return bytes.toByteArray();
+		} finally
+		{
+			in.close();
+		}
+	}
+}
@@ -34,52 +34,104 @@ import java.awt.Desktop;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 
 import com.vaklinov.zcashui.CommandExecutor;
 import com.vaklinov.zcashui.Log;
 import com.vaklinov.zcashui.OSUtil;
 import com.vaklinov.zcashui.OSUtil.OS_TYPE;
-import com.vaklinov.zcashui.Util;
-import com.vaklinov.zcashui.ZCashClientCaller;
-import com.vaklinov.zcashui.ZCashInstallationObserver;
-import com.vaklinov.zcashui.ZCashInstallationObserver.DAEMON_STATUS;
-import com.vaklinov.zcashui.ZCashInstallationObserver.DaemonInfo;
 
 
 /**
- * Encapsulates access to IPFS for file sharing.
+ * Encapsulates access to IPFS for file sharing. The IPFS daemon is accessed via its HTTP API.
  */
 public class IPFSWrapper
 {
+	// Shared files are linked via the gateway of the local IPFS daemon
+	static final String IPFS_GATEWAY_URL = "http://localhost:8080/ipfs/";
+	
+	// Max. time to wait for a started daemon to answer API calls and the interval of checks
+	static final long IPFS_STARTUP_TIMEOUT       = 60 * 1000;
+	static final long IPFS_STARTUP_POLL_INTERVAL = 500;
+	
+	
+	/**
+	 * Receives the link to a shared file - called on the event dispatch thread once the upload
+	 * is complete.
+	 */
+	public static interface FileSharedListener
+	{
+		// link - [name](link)
+		void fileShared(String link);
+	}
+	
+	
 	private JFrame parentFrame;
 	
 	private Process IPFSProcess;
 	
+	private IPFSHttpClient httpClient;
+	
+	// Null if the cache directory is not usable
+	private IPFSContentCache contentCache;
+	
+	// Downloads content to the cache in the background
+	private ExecutorService prefetcher;
+	
+	// CIDs being fetched - each is fetched once at a time
+	private Set<String> pendingFetches;
+	
 	private final Pattern ipfsUrlPattern = Pattern.compile(
-		"https?://[a-zA-Z0-9\\.\\-]+(:[0-9]{2,5})?/ipfs/[a-zA-Z0-9]{15,100}"); 
+		"https?://[a-zA-Z0-9\\.\\-]+(:[0-9]{2,5})?/ipfs/([a-zA-Z0-9]{15,100})"); 
+	
+	// Links in messages as inserted when sharing - [name](link)
+	private final Pattern ipfsMarkdownLinkPattern = Pattern.compile(
+		"\\[([^\\]\\n]{1,200})\\]\\((" + ipfsUrlPattern.pattern() + ")\\)");
 	
 	
 	public IPFSWrapper(JFrame parentFrame)
 	{
 		this.parentFrame = parentFrame;
 		this.IPFSProcess = null;
+		this.httpClient  = new IPFSHttpClient();
+		
+		try
+		{
+			this.contentCache = new IPFSContentCache(
+				new File(OSUtil.getSettingsDirectory(), "ipfs_cache"), IPFSContentCache.MAX_CACHE_SIZE);
+		} catch (IOException ioe)
+		{
+			Log.error("IPFS content cache could not be opened - content will not be cached: ", ioe);
+			this.contentCache = null;
+		}
+		
+		this.pendingFetches = new HashSet<String>();
+		this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() 
+		{
+			@Override
+			public Thread newThread(Runnable r) 
+			{
+				Thread t = new Thread(r, "IPFS content prefetcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 	}
 	
 	
@@ -104,23 +156,200 @@ public class IPFSWrapper
 	}
 	
 	
-	public void followIPFSLink(URL u)
+	/**
+	 * Opens IPFS content - from the local cache if available. Content not cached yet is fetched 
+	 * in the background and then opened. Content that may not be cached, or whose name is not
+	 * that of a passive type, is opened in the browser.
+	 * 
+	 * @param u IPFS gateway URL
+	 */
+	public void followIPFSLink(final URL u)
 		throws IOException, InterruptedException, URISyntaxException
 	{
-		if (this.ensureIPFSIsRunning())
+		if (!this.ensureIPFSIsRunning())
+		{
+			Log.info("NOT opening IPFS link: {0} due to IPFS not running!!!", u.toString());
+			return;
+		}
+		
+		final String cid = this.getCID(u.toString());
+		if ((this.contentCache != null) && (cid != null))
+		{
+			if (this.contentCache.isCached(cid))
+			{
+				this.openCachedContent(cid, u);
+				return;
+			}
+			
+			this.fetchInBackground(cid, u, null, new Runnable() 
+			{
+				@Override
+				public void run() 
+				{
+					try
+					{
+						IPFSWrapper.this.openCachedContent(cid, u);
+					} catch (Exception e)
+					{
+						Log.error("Unexpected error in opening IPFS link: ", e);
+					}
+				}
+			});
+			return;
+		}
+		
+		Log.info("Opening IPFS link: {0}", u.toString());
+		Desktop.getDesktop().browse(u.toURI());
+	}
+	
+	
+	private void openCachedContent(String cid, URL u)
+		throws IOException, URISyntaxException
+	{
+		File cached = this.contentCache.getFileForOpening(cid);
+		if (cached != null)
+		{
+			Log.info("Opening cached IPFS content: {0}", cid);
+			Desktop.getDesktop().open(cached);
+			this.storeCacheIndexInBackground();
+		} else
 		{
 			Log.info("Opening IPFS link: {0}", u.toString());
 			Desktop.getDesktop().browse(u.toURI());
-		} else
+		}
+	}
+	
+	
+	/**
+	 * Fetches the content of IPFS links in a message to the cache in the background - called 
+	 * for messages as they are shown in the conversation. Content is fetched only via the local
+	 * gateway - the host in a link is chosen by the sender, contacting it without a click would 
+	 * reveal the IP address of the recipient.
+	 * 
+	 * @param message text of a message
+	 */
+	public void prefetchLinks(String message)
+	{
+		if ((this.contentCache == null) || (message == null) || (message.indexOf("/ipfs/") < 0))
 		{
-			Log.info("NOT opening IPFS link: {0} due to IPFS not running!!!", u.toString());
+			return;
+		}
+		
+		// Names of shared files are known from the links inserted on sharing
+		Set<String> linksWithNames = new HashSet<String>();
+		Matcher markdown = ipfsMarkdownLinkPattern.matcher(message);
+		while (markdown.find())
+		{
+			this.prefetchLink(markdown.group(2), markdown.group(1));
+			linksWithNames.add(markdown.group(2));
+		}
+		
+		Matcher m = ipfsUrlPattern.matcher(message);
+		while (m.find())
+		{
+			if (!linksWithNames.contains(m.group(0)))
+			{
+				this.prefetchLink(m.group(0), null);
+			}
+		}
+	}
+	
+	
+	private void prefetchLink(String link, String name)
+	{
+		String cid = this.getCID(link);
+		if ((cid == null) || this.contentCache.isCached(cid))
+		{
+			return;
+		}
+		
+		try
+		{
+			this.fetchInBackground(cid, new URL(IPFS_GATEWAY_URL + cid), name, null);
+		} catch (IOException ioe)
+		{
+			Log.warningOneTime("Malformed IPFS link {0} - not prefetched: {1}", link, ioe.getMessage());
+		}
+	}
+	
+	
+	// The access order of the cache changes when content is opened - it is stored lazily
+	private void storeCacheIndexInBackground()
+	{
+		this.prefetcher.submit(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				try
+				{
+					IPFSWrapper.this.contentCache.storeIndexIfChanged();
+				} catch (IOException ioe)
+				{
+					Log.warning("IPFS cache index could not be stored: {0}", ioe.getMessage());
+				}
+			}
+		});
+	}
+	
+	
+	// onCompletion - called on the EDT when the fetch ends, successful or not - may be null
+	private void fetchInBackground(final String cid, final URL u, final String name, final Runnable onCompletion)
+	{
+		synchronized (this.pendingFetches)
+		{
+			boolean added = this.pendingFetches.add(cid);
+			if ((!added) && (onCompletion == null))
+			{
+				return; // Already being prefetched
+			}
 		}
+		
+		this.prefetcher.submit(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				try
+				{
+					IPFSWrapper.this.contentCache.fetch(cid, u, name);
+				} catch (IOException ioe)
+				{
+					// The local gateway is not available if the IPFS server is not running
+					Log.warningOneTime("IPFS content {0} could not be fetched: {1}", u.toString(), ioe.getMessage());
+				} finally
+				{
+					synchronized (IPFSWrapper.this.pendingFetches)
+					{
+						IPFSWrapper.this.pendingFetches.remove(cid);
+					}
+				}
+				
+				if (onCompletion != null)
+				{
+					SwingUtilities.invokeLater(onCompletion);
+				}
+			}
+		});
+	}
+	
+	
+	// CID in an IPFS gateway URL - null if not an IPFS URL
+	private String getCID(String url)
+	{
+		Matcher m = ipfsUrlPattern.matcher(url);
+		return m.matches() ? m.group(2) : null;
 	}
 	
 
-	// Returns null or [name](link)
-	public String shareFileViaIPFS()
-		throws IOException, InterruptedException
+	/**
+	 * Lets the user choose a file and uploads it to IPFS in the background - with a progress 
+	 * dialog that allows cancelling. The listener is called only if the file is shared.
+	 * 
+	 * @param listener receives the link of the shared file
+	 */
+	public void shareFileViaIPFS(final FileSharedListener listener)
+		throws IOException, InterruptedException, URISyntaxException
 	{
 		JFileChooser fileChooser = new JFileChooser();
 		fileChooser.setDialogTitle("Share file via IPFS...");
@@ -130,67 +359,96 @@ public class IPFSWrapper
 		 
 		if (result != JFileChooser.APPROVE_OPTION) 
 		{
-		    return null;
+		    return;
 		}
 		
-		File f = fileChooser.getSelectedFile();
+		final File f = fileChooser.getSelectedFile();
 		
-		Cursor oldCursor = this.parentFrame.getCursor();
-		try
+		Log.info("Sharing file: {0}", f.getCanonicalPath());
+		
+		if (!this.ensureIPFSIsRunning())
 		{
-			this.parentFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-						
-			Log.info("Sharing file: {0}", f.getCanonicalPath());
-			
-			if (!this.ensureIPFSIsRunning())
+			return;
+		}
+		
+		final ProgressMonitor progressMonitor = new ProgressMonitor(
+			this.parentFrame, "Sharing file " + f.getName() + " via IPFS...", null, 0, 1000);
+		progressMonitor.setMillisToDecideToPopup(500);
+		
+		new Thread(new Runnable() 
+		{
+			@Override
+			public void run() 
 			{
-				return null;
+				try
+				{
+					final String hash = IPFSWrapper.this.httpClient.addFile(
+						f, new IPFSHttpClient.UploadProgressListener() 
+						{
+							@Override
+							public boolean uploadProgress(long bytesSent, long totalBytes) 
+							{
+								final int progress = (totalBytes > 0) ? (int)((bytesSent * 1000) / totalBytes) : 1000;
+								SwingUtilities.invokeLater(new Runnable() 
+								{
+									@Override
+									public void run() 
+									{
+										progressMonitor.setProgress(progress);
+									}
+								});
+								
+								return !progressMonitor.isCanceled();
+							}
+						});
+					
+					SwingUtilities.invokeLater(new Runnable() 
+					{
+						@Override
+						public void run() 
+						{
+							progressMonitor.close();
+							IPFSWrapper.this.fileUploaded(f, hash, listener);
+						}
+					});
+				} catch (final Exception e)
+				{
+					Log.error("Unexpected error in sharing file via IPFS: ", e);
+					SwingUtilities.invokeLater(new Runnable() 
+					{
+						@Override
+						public void run() 
+						{
+							progressMonitor.close();
+							JOptionPane.showMessageDialog(
+								IPFSWrapper.this.parentFrame, 
+								"An unexpected error occurred while sharing file via IPFS!" +
+								"\n" + String.valueOf(e.getMessage()).replace(",", ",\n"),
+								"Error in sharing file via IPFS...", JOptionPane.ERROR_MESSAGE);
+						}
+					});
+				}
 			}
-			
-			String ipfs = this.getIPFSFullExecutablePath();
-			String pathParameter = ZCashClientCaller.wrapStringParameter(f.getCanonicalPath());
-			
-			CommandExecutor exec = new CommandExecutor(new String[]
-			{
-				ipfs, "add", "--quieter", pathParameter
-			});
-			
-			String strResponse = exec.execute().trim();
-			
-			Log.info("IPFS hash of added file is: " + strResponse);
-			
-			// TODO: add via HTTP to some public writable IPFS gateway
-			//this.uploadIPFSDataViaPost(f, "http://localhost:8080/ipfs/");
-			
-			this.parentFrame.setCursor(oldCursor);
-			
-			Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-			clipboard.setContents(new StringSelection("http://localhost:8080/ipfs/" + strResponse), null);
-			
-			JOptionPane.showMessageDialog(
-				this.parentFrame, 
-				"The file " + f.getName() + " has been shared successfully via IPFS. It may be\n" +
-				"reached by other users (who have a local IPFS server running) via IPFS link: \n" +
-				"http://localhost:8080/ipfs/" + strResponse + "\n\n" +
-				"The link has been added to the messaging text box and also copied to the clipboard.\n", 
-				"File shared successfully", JOptionPane.INFORMATION_MESSAGE);
-			
-			return "[" + f.getName() + "](" +
-			       "http://localhost:8080/ipfs/" + strResponse + ")";
-		} catch (Exception wce)
-		{
-			Log.error("Unexpected error: ", wce);
-			
-			JOptionPane.showMessageDialog(
-				this.parentFrame, 
-				"An unexpected error occurred while sharing file via IPFS!" +
-				"\n" + wce.getMessage().replace(",", ",\n"),
-				"Error in importing wallet private keys...", JOptionPane.ERROR_MESSAGE);
-			return null;
-		} finally
-		{
-			this.parentFrame.setCursor(oldCursor);
-		}
+		}, "IPFS file upload").start();
+	}
+	
+	
+	private void fileUploaded(File f, String hash, FileSharedListener listener)
+	{
+		String url = IPFS_GATEWAY_URL + hash;
+		
+		Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+		clipboard.setContents(new StringSelection(url), null);
+		
+		JOptionPane.showMessageDialog(
+			this.parentFrame, 
+			"The file " + f.getName() + " has been shared successfully via IPFS. It may be\n" +
+			"reached by other users (who have a local IPFS server running) via IPFS link: \n" +
+			url + "\n\n" +
+			"The link has been added to the messaging text box and also copied to the clipboard.\n", 
+			"File shared successfully", JOptionPane.INFORMATION_MESSAGE);
+		
+		listener.fileShared("[" + f.getName() + "](" + url + ")");
 	}
 	
 	
@@ -278,13 +536,34 @@ public class IPFSWrapper
 		    
 		this.IPFSProcess = starter.startChildProcess();
 		
-		// Wait 20 sec to make sure the daemon is started
-		// TODO: better way to find out if it is started
+		// Wait until the daemon answers API calls - usually some seconds
+		boolean ready;
 		Cursor oldCursor = this.parentFrame.getCursor();
-		this.parentFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-		Thread.sleep(20 * 1000);
-		this.parentFrame.setCursor(oldCursor);
+		try
+		{
+			this.parentFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+			ready = this.httpClient.waitUntilReady(IPFS_STARTUP_TIMEOUT, IPFS_STARTUP_POLL_INTERVAL);
+		} finally
+		{
+			this.parentFrame.setCursor(oldCursor);
+		}
+		
+		if (!ready)
+		{
+			Log.error("IPFS daemon did not become ready within {0} ms!", IPFS_STARTUP_TIMEOUT);
+			this.IPFSProcess.destroy();
+			this.IPFSProcess = null;
+			
+	        JOptionPane.showMessageDialog(
+	        	this.parentFrame,
+	        	"The IPFS server has been started but it did not become ready within " + 
+	        	(IPFS_STARTUP_TIMEOUT / 1000) + " seconds.\n" +
+	        	"IPFS cannot be used at this time!", 
+	        	"IPFS server is not ready", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
 		
+		final Process process = this.IPFSProcess;
         Runtime.getRuntime().addShutdownHook(new Thread() 
         {
             public void run() 
@@ -292,7 +571,7 @@ public class IPFSWrapper
             	Log.info("Stopping IPFS...");
                 try 
                 {
-                    IPFSWrapper.this.IPFSProcess.destroy();
+                    process.destroy();
                 } catch (Exception bad) 
                 {
                 	Log.error("Couldn't stop IPFS!", bad);
@@ -350,27 +629,10 @@ public class IPFSWrapper
 	}
 	
 	
+	// The daemon may also have been started outside of the wallet
 	private boolean isIPFSWrapperRunning()
-		throws IOException, InterruptedException
 	{
-		DaemonInfo info = this.getIPFSDaemonInfo();
-		
-		return info.status == DAEMON_STATUS.RUNNING;
-	}
-	
-	
-	private DaemonInfo getIPFSDaemonInfo()
-		throws IOException, InterruptedException
-	{
-		OS_TYPE os = OSUtil.getOSType();
-		
-		if (os == OS_TYPE.WINDOWS)
-		{
-			return ZCashInstallationObserver.getDaemonInfoForWindowsOS("ipfs");
-		} else
-		{
-			return ZCashInstallationObserver.getDaemonInfoForUNIXLikeOS("ipfs");
-		}
+		return this.httpClient.isReady();
 	}
 	
 	
@@ -401,30 +663,4 @@ public class IPFSWrapper
 		
 		return ipfs;
 	}
-		
-	
-	// Uploads IPFS data via a writable gateway
-	// serverURL - like http://localhost:8080/ipfs/
-	private boolean uploadIPFSDataViaPost(File f, String serverURL) 
-		throws MalformedURLException, ProtocolException, IOException
-	{
-		URL obj = new URL(serverURL);
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-
-		con.setRequestMethod("POST");
-		con.setRequestProperty("User-Agent", "Mozilla/5.0");
-		con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-		
-		con.setDoOutput(true);
-		DataOutputStream out = new DataOutputStream(con.getOutputStream());
-		out.write(Util.loadFileInMemory(f));
-		out.flush();
-		out.close();
-		
-		int responseCode = con.getResponseCode();
-		// TODO: for now compare hashes until it is clear POST works the same way
-		System.out.println("IPFS header fields:" + con.getHeaderFields());
-		
-		return responseCode == 201; // Created
-	}
 }
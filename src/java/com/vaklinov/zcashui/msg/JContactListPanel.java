@@ -47,7 +47,9 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
@@ -72,6 +74,7 @@ import com.vaklinov.zcashui.DataTable;
 import com.vaklinov.zcashui.Log;
 import com.vaklinov.zcashui.SingleKeyImportDialog;
 import com.vaklinov.zcashui.StatusUpdateErrorReporter;
+import com.vaklinov.zcashui.Util;
 
 
 /**
@@ -104,7 +107,7 @@ public class JContactListPanel
 		this.setLayout(new BorderLayout(0, 0));
 		
 		list = new ContactList();
-		list.setIdentities(this.mesagingStorage.getContactIdentities(true));
+		this.reloadMessagingIdentities();
 		this.add(new JScrollPane(list), BorderLayout.CENTER);
 		
 		JPanel upperPanel = new JPanel(new BorderLayout(0, 0));
@@ -173,9 +176,9 @@ public class JContactListPanel
 			{
 				try
 				{
-					if (e.getValueIsAdjusting())
+					if (e.getValueIsAdjusting() || JContactListPanel.this.list.reordering)
 					{
-						return; // Change is not final
+						return; // Change is not final or the selected contact is only moved
 					}
 					
 					MessagingIdentity id = JContactListPanel.this.list.getSelectedValue();
@@ -321,11 +324,35 @@ public class JContactListPanel
 	public void reloadMessagingIdentities()
 		throws IOException
 	{
-		list.setIdentities(this.mesagingStorage.getContactIdentities(true));
+		List<MessagingIdentity> identities = this.mesagingStorage.getContactIdentities(true);
+		
+		Map<String, ContactSummary> summaries = new HashMap<String, ContactSummary>();
+		for (MessagingIdentity id : identities)
+		{
+			summaries.put(id.getIdentityKey(), this.mesagingStorage.getContactSummary(id));
+		}
+		
+		list.setIdentities(identities, summaries);
 		list.revalidate();
 	}
 	
 	
+	/**
+	 * Updates the unread count and last message of contacts whose messages changed and moves 
+	 * them to their place by activity. Other contacts are not touched and the selection is kept.
+	 * 
+	 * @param contacts the contacts with changed messages
+	 */
+	public void contactsChanged(List<MessagingIdentity> contacts)
+		throws IOException
+	{
+		for (MessagingIdentity contact : contacts)
+		{
+			list.contactChanged(contact, this.mesagingStorage.getContactSummary(contact));
+		}
+	}
+	
+	
 	public int getNumberOfContacts()
 	{
 		return list.getModel().getSize();
@@ -339,6 +366,21 @@ public class JContactListPanel
 	}
 	
 	
+	// Selecting a contact displays its messages
+	public void selectContact(MessagingIdentity contact)
+	{
+		for (int i = 0; i < this.list.getModel().getSize(); i++)
+		{
+			if (this.list.getModel().getElementAt(i).getIdentityKey().equals(contact.getIdentityKey()))
+			{
+				this.list.setSelectedIndex(i);
+				this.list.ensureIndexIsVisible(i);
+				return;
+			}
+		}
+	}
+	
+	
 	private static class ContactList
 		extends JList<MessagingIdentity>
 	{
@@ -346,6 +388,11 @@ public class JContactListPanel
 		ImageIcon contactGroupBlackIcon;
 		JLabel    renderer;
 		
+		// Identity key -> summary of the conversation
+		Map<String, ContactSummary> summaries;
+		// Set while contacts are moved - selection changes are not made by the user
+		boolean reordering;
+		
 		public ContactList()
 		{
 			super();
@@ -359,32 +406,20 @@ public class JContactListPanel
 	        
 	        renderer = new JLabel();
 	        renderer.setOpaque(true);
+	        
+	        summaries = new HashMap<String, ContactSummary>();
+	        reordering = false;
 		}
 		
 		
-		public void setIdentities(List<MessagingIdentity> identities)
+		public void setIdentities(List<MessagingIdentity> identities, Map<String, ContactSummary> summaries)
 		{
+			this.summaries = new HashMap<String, ContactSummary>(summaries);
+			
 			List<MessagingIdentity> localIdentities = new ArrayList<MessagingIdentity>();
 			localIdentities.addAll(identities);
 			
-			Collections.sort(
-				localIdentities,
-				new Comparator<MessagingIdentity>() 
-				{ 
-					@Override
-					public int compare(MessagingIdentity o1, MessagingIdentity o2) 
-					{
-						if (o1.isGroup() != o2.isGroup())
-						{
-							return o1.isGroup() ? -1 : +1;
-						} else
-						{						
-							return o1.getDiplayString().toUpperCase().compareTo(
-								   o2.getDiplayString().toUpperCase());
-						}
-					}
-				}
-			);
+			Collections.sort(localIdentities, new ContactComparator());
 			
 			DefaultListModel<MessagingIdentity> newModel = new DefaultListModel<MessagingIdentity>();
 			for (MessagingIdentity id : localIdentities)
@@ -396,6 +431,87 @@ public class JContactListPanel
 		}
 		
 		
+		// Moves a single contact to its place for the new summary - the list is already sorted
+		public void contactChanged(MessagingIdentity contact, ContactSummary summary)
+		{
+			DefaultListModel<MessagingIdentity> model = (DefaultListModel<MessagingIdentity>)this.getModel();
+			
+			int oldIndex = -1;
+			for (int i = 0; i < model.getSize(); i++)
+			{
+				if (model.getElementAt(i).getIdentityKey().equals(contact.getIdentityKey()))
+				{
+					oldIndex = i;
+					break;
+				}
+			}
+			
+			if (oldIndex < 0)
+			{
+				return; // Not in the list (yet)
+			}
+			
+			MessagingIdentity id = model.getElementAt(oldIndex);
+			this.summaries.put(id.getIdentityKey(), summary);
+			
+			boolean wasSelected = (this.getSelectedIndex() == oldIndex);
+			ContactComparator comparator = new ContactComparator();
+			
+			this.reordering = true;
+			try
+			{
+				model.remove(oldIndex);
+				
+				int newIndex = 0;
+				while ((newIndex < model.getSize()) && (comparator.compare(model.getElementAt(newIndex), id) < 0))
+				{
+					newIndex++;
+				}
+				
+				model.add(newIndex, id);
+				
+				if (wasSelected)
+				{
+					this.setSelectedIndex(newIndex);
+				}
+			} finally
+			{
+				this.reordering = false;
+			}
+		}
+		
+		
+		// Most recent conversations first, then groups first and by name
+		private class ContactComparator
+			implements Comparator<MessagingIdentity>
+		{
+			@Override
+			public int compare(MessagingIdentity o1, MessagingIdentity o2) 
+			{
+				long time1 = getLastMessageTime(o1);
+				long time2 = getLastMessageTime(o2);
+				if (time1 != time2)
+				{
+					return (time1 > time2) ? -1 : +1;
+				} else if (o1.isGroup() != o2.isGroup())
+				{
+					return o1.isGroup() ? -1 : +1;
+				} else
+				{						
+					return o1.getDiplayString().toUpperCase().compareTo(
+						   o2.getDiplayString().toUpperCase());
+				}
+			}
+			
+			
+			private long getLastMessageTime(MessagingIdentity id)
+			{
+				ContactSummary summary = summaries.get(id.getIdentityKey());
+				return (summary != null) ? summary.getLastMessageTime() : 0;
+			}
+		}
+		
+		
 		@Override
 		public ListCellRenderer<MessagingIdentity> getCellRenderer() 
 		{
@@ -405,7 +521,22 @@ public class JContactListPanel
 				public Component getListCellRendererComponent(JList<? extends MessagingIdentity> list,
 						MessagingIdentity id, int index, boolean isSelected, boolean cellHasFocus) 
 				{					
-					renderer.setText(id.getDiplayString());
+					ContactSummary summary = summaries.get(id.getIdentityKey());
+					
+					StringBuilder text = new StringBuilder("<html>");
+					text.append(Util.escapeHTMLValue(id.getDiplayString()));
+					if ((summary != null) && (summary.getUnreadCount() > 0))
+					{
+						text.append(" <b>(" + summary.getUnreadCount() + ")</b>");
+					}
+					if ((summary != null) && (!summary.getLastMessageSnippet().isEmpty()))
+					{
+						text.append("<br/><span style=\"font-size:0.85em;color:gray;\">" + 
+					                Util.escapeHTMLValue(summary.getLastMessageSnippet()) + "</span>");
+					}
+					text.append("</html>");
+					
+					renderer.setText(text.toString());
 					if (!id.isGroup())
 					{
 						renderer.setIcon(contactBlackIcon);
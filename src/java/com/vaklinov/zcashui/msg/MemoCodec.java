@@ -0,0 +1,462 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.vaklinov.zcashui.Util;
+
+
+/**
+ * Encodes and decodes the memos that carry ZEN messaging protocol messages. Two wire formats 
+ * are supported:
+ * 
+ * 1. The original JSON form: {"zenmsg":{"ver":1,"from":"...","message":"...","sign":"..."}}
+ * 
+ * 2. A compact form for peers that advertise it in their messaging identity (field 
+ * "compactmemo"). The memo starts with the header 0xF5 'Z' 'M' version - 0xF5 marks the memo as
+ * non-text data (ZIP 302) so older wallets do not show it as text. The header is followed by the
+ * inner message as JSON with short keys, compressed with raw deflate and a preset dictionary. 
+ * 
+ * A compact memo decodes to the same inner message as the JSON form - so the rest of the 
+ * messaging code (validation, signatures, storage) does not depend on the format.
+ * 
+ * Messages too long for one memo may be split into fragments for peers that advertise memo 
+ * version 2 or later. A fragment memo has the header: 0xF5 'Z' 'F' version, message ID (8 bytes), 
+ * fragment index, fragment count, payload length (2 bytes, big endian) followed by the payload. 
+ * The payloads of all fragments concatenated by index form a memo in one of the forms above.
+ */
+public class MemoCodec
+{
+	// Version of the compact memo format - identities advertising it or later can decode it
+	public static final int COMPACT_FORMAT_VERSION = 1;
+	
+	// Memo version from which identities can reassemble fragmented messages
+	public static final int FRAGMENTED_FORMAT_VERSION = 2;
+	
+	// Highest memo version supported - advertised in the messaging identity (field "compactmemo")
+	public static final int SUPPORTED_MEMO_VERSION = FRAGMENTED_FORMAT_VERSION;
+	
+	// Max. size of a memo in bytes
+	public static final int MAX_MEMO_SIZE = 512;
+	
+	// Max. number of fragments of one message
+	public static final int MAX_FRAGMENTS = 8;
+	
+	private static final byte[] COMPACT_HEADER = new byte[] { (byte)0xF5, 'Z', 'M', COMPACT_FORMAT_VERSION };
+	
+	private static final byte[] FRAGMENT_HEADER = new byte[] { (byte)0xF5, 'Z', 'F', 1 };
+	
+	private static final int MESSAGE_ID_SIZE = 8;
+	
+	private static final int FRAGMENT_HEADER_SIZE = FRAGMENT_HEADER.length + MESSAGE_ID_SIZE + 4;
+	
+	private static final int MAX_FRAGMENT_PAYLOAD = MAX_MEMO_SIZE - FRAGMENT_HEADER_SIZE;
+	
+	// Max. size of a compact memo that may be sent in fragments
+	public static final int MAX_FRAGMENTED_MESSAGE_SIZE = MAX_FRAGMENTS * MAX_FRAGMENT_PAYLOAD;
+	
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	
+	/**
+	 * One fragment of a message - as decoded from a memo.
+	 */
+	public static class Fragment
+	{
+		private String messageID;
+		private int index;
+		private int count;
+		private byte[] payload;
+		
+		
+		public String getMessageID()
+		{
+			return this.messageID;
+		}
+		
+		
+		public int getIndex()
+		{
+			return this.index;
+		}
+		
+		
+		public int getCount()
+		{
+			return this.count;
+		}
+	}
+	
+	// Full protocol keys and their short forms in the compact format
+	private static final String[][] KEYS = new String[][]
+	{
+		{ "ver",           "v" },
+		{ "from",          "f" },
+		{ "message",       "m" },
+		{ "sign",          "s" },
+		{ "threadid",      "t" },
+		{ "returnaddress", "r" }
+	};
+	
+	// Preset dictionary for deflate - fragments typical of messages. Changing it breaks decoding 
+	// of version 1 memos, a new dictionary requires a new format version. Most likely strings are 
+	// at the end since deflate prefers near matches.
+	private static final byte[] DICTIONARY = getUTF8Bytes(
+		"sendreceiveaddress\":\"zc\",\"senderidaddress\":\"zn\",\"firstname\":\"\",\"surname\":\"\"," +
+		"{\"zenmessagingidentity\":{\"nickname\":\"\",\"compactmemo\":1}}" +
+		"https://www. http:// .com the and you that for with this have are not but what your " +
+		"will can all was just when there from about they know like would please thanks thank " +
+		"Hello Hi ok OK yes no ZEN Horizen message send sent received address wallet transaction " +
+		"the of to in is it I you a " +
+		"\",\"r\":\"zc\",\"t\":\"\",\"s\":\"\",\"m\":\"\",\"f\":\"zn{\"v\":1,\"f\":\"zn\",\"m\":\"");
+	
+	
+	/**
+	 * Encodes an inner message (the value of "zenmsg") as memo bytes. 
+	 * 
+	 * @param innerMessage the inner message
+	 * @param compact if true the compact form is used - unless it is larger than the JSON form.
+	 * 
+	 * @return the memo bytes - not padded
+	 */
+	public static byte[] encodeMessage(JsonObject innerMessage, boolean compact)
+		throws UnsupportedEncodingException
+	{
+		JsonObject outerMessage = new JsonObject();
+		outerMessage.set("zenmsg", innerMessage);
+		byte[] jsonMemo = outerMessage.toString().getBytes("UTF-8");
+		
+		if (!compact)
+		{
+			return jsonMemo;
+		}
+		
+		byte[] compactMemo = encodeCompact(innerMessage);
+		return (compactMemo.length < jsonMemo.length) ? compactMemo : jsonMemo;
+	}
+	
+	
+	/**
+	 * Decodes a memo as returned by the wallet into an inner message (the value of "zenmsg").
+	 * 
+	 * @param memoHex HEX encoded memo
+	 * 
+	 * @return the inner message or null if the memo is not a message. Validity is not checked. 
+	 */
+	public static JsonObject decodeMessage(String memoHex)
+		throws Exception
+	{
+		if (isCompactMemo(memoHex))
+		{
+			return decodeCompact(Util.decodeHexArray(memoHex));
+		}
+		
+		String decodedMemo = Util.decodeHexMemo(memoHex);
+		if (decodedMemo == null)
+		{
+			return null;
+		}
+		
+		JsonObject jsonMessage = Util.parseJsonObject(decodedMemo);
+		JsonValue innerMessage = jsonMessage.get("zenmsg");
+		return ((innerMessage != null) && innerMessage.isObject()) ? innerMessage.asObject() : null;
+	}
+	
+	
+	/**
+	 * Splits an encoded memo that is too long into fragment memos. 
+	 * 
+	 * @param memo memo as returned by encodeMessage()
+	 * 
+	 * @return the fragment memos - there are more than MAX_FRAGMENTS if the memo is longer than 
+	 *         MAX_FRAGMENTED_MESSAGE_SIZE
+	 */
+	public static List<byte[]> encodeFragments(byte[] memo)
+	{
+		byte[] messageID = new byte[MESSAGE_ID_SIZE];
+		RANDOM.nextBytes(messageID);
+		
+		int count = (memo.length + MAX_FRAGMENT_PAYLOAD - 1) / MAX_FRAGMENT_PAYLOAD;
+		List<byte[]> fragments = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++)
+		{
+			int offset = i * MAX_FRAGMENT_PAYLOAD;
+			int length = Math.min(MAX_FRAGMENT_PAYLOAD, memo.length - offset);
+			
+			byte[] fragment = new byte[FRAGMENT_HEADER_SIZE + length];
+			System.arraycopy(FRAGMENT_HEADER, 0, fragment, 0, FRAGMENT_HEADER.length);
+			System.arraycopy(messageID, 0, fragment, FRAGMENT_HEADER.length, MESSAGE_ID_SIZE);
+			int pos = FRAGMENT_HEADER.length + MESSAGE_ID_SIZE;
+			fragment[pos++] = (byte)i;
+			fragment[pos++] = (byte)count;
+			fragment[pos++] = (byte)(length >>> 8);
+			fragment[pos++] = (byte)length;
+			System.arraycopy(memo, offset, fragment, pos, length);
+			
+			fragments.add(fragment);
+		}
+		
+		return fragments;
+	}
+	
+	
+	/**
+	 * Decodes a fragment memo.
+	 * 
+	 * @param memoHex HEX encoded memo - see isFragmentMemo()
+	 * 
+	 * @return the fragment
+	 */
+	public static Fragment decodeFragment(String memoHex)
+		throws DataFormatException
+	{
+		byte[] memo = Util.decodeHexArray(memoHex);
+		if ((memo.length < FRAGMENT_HEADER_SIZE) || (memo[3] != FRAGMENT_HEADER[3]))
+		{
+			throw new DataFormatException("Unsupported fragment memo format!");
+		}
+		
+		int pos = FRAGMENT_HEADER.length + MESSAGE_ID_SIZE;
+		Fragment fragment = new Fragment();
+		fragment.messageID = Util.encodeHexArray(Arrays.copyOfRange(memo, FRAGMENT_HEADER.length, pos));
+		fragment.index     = memo[pos++] & 0xFF;
+		fragment.count     = memo[pos++] & 0xFF;
+		int length         = ((memo[pos++] & 0xFF) << 8) | (memo[pos++] & 0xFF);
+		
+		if ((fragment.index >= fragment.count) || (fragment.count > MAX_FRAGMENTS) || 
+			(length > (memo.length - pos)))
+		{
+			throw new DataFormatException("Invalid fragment memo header!");
+		}
+		
+		fragment.payload = Arrays.copyOfRange(memo, pos, pos + length);
+		return fragment;
+	}
+	
+	
+	/**
+	 * Reassembles a message from all of its fragments.
+	 * 
+	 * @param fragments all fragments of the message - in any order
+	 * 
+	 * @return the inner message
+	 */
+	public static JsonObject decodeFragmentedMessage(List<Fragment> fragments)
+		throws Exception
+	{
+		Fragment[] ordered = new Fragment[fragments.get(0).count];
+		for (Fragment fragment : fragments)
+		{
+			if ((fragment.count != ordered.length) || (ordered[fragment.index] != null))
+			{
+				throw new DataFormatException("Inconsistent fragments of message: " + fragment.messageID);
+			}
+			
+			ordered[fragment.index] = fragment;
+		}
+		
+		ByteArrayOutputStream memo = new ByteArrayOutputStream(ordered.length * MAX_FRAGMENT_PAYLOAD);
+		for (Fragment fragment : ordered)
+		{
+			if (fragment == null)
+			{
+				throw new DataFormatException("Missing fragment of message: " + fragments.get(0).messageID);
+			}
+			
+			memo.write(fragment.payload, 0, fragment.payload.length);
+		}
+		
+		String memoHex = Util.encodeHexArray(memo.toByteArray());
+		if (isFragmentMemo(memoHex))
+		{
+			throw new DataFormatException("Fragments may not be nested: " + fragments.get(0).messageID);
+		}
+		
+		return decodeMessage(memoHex);
+	}
+	
+	
+	/**
+	 * Checks if a memo is a fragment of a message - of any version.
+	 * 
+	 * @param memoHex HEX encoded memo
+	 * 
+	 * @return true if the memo is a fragment of a message
+	 */
+	public static boolean isFragmentMemo(String memoHex)
+	{
+		return memoHex.toLowerCase(Locale.ROOT).startsWith("f55a46");
+	}
+	
+	
+	/**
+	 * Checks if a memo is in the compact form - of any version.
+	 * 
+	 * @param memoHex HEX encoded memo
+	 * 
+	 * @return true if the memo is in the compact form
+	 */
+	public static boolean isCompactMemo(String memoHex)
+	{
+		return memoHex.toLowerCase(Locale.ROOT).startsWith("f55a4d");
+	}
+	
+	
+	private static byte[] encodeCompact(JsonObject innerMessage)
+		throws UnsupportedEncodingException
+	{
+		JsonObject shortMessage = new JsonObject();
+		for (JsonObject.Member member : innerMessage)
+		{
+			shortMessage.set(getShortKey(member.getName()), member.getValue());
+		}
+		
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try
+		{
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(shortMessage.toString().getBytes("UTF-8"));
+			deflater.finish();
+			
+			ByteArrayOutputStream memo = new ByteArrayOutputStream(MAX_MEMO_SIZE);
+			memo.write(COMPACT_HEADER, 0, COMPACT_HEADER.length);
+			byte[] buffer = new byte[MAX_MEMO_SIZE];
+			while (!deflater.finished())
+			{
+				int count = deflater.deflate(buffer);
+				memo.write(buffer, 0, count);
+			}
+			
+			return memo.toByteArray();
+		} finally
+		{
+			deflater.end();
+		}
+	}
+	
+	
+	private static JsonObject decodeCompact(byte[] memo)
+		throws Exception
+	{
+		if ((memo.length < COMPACT_HEADER.length) || (memo[3] != COMPACT_FORMAT_VERSION))
+		{
+			throw new DataFormatException("Unsupported compact memo format version: " + 
+		                                  ((memo.length >= COMPACT_HEADER.length) ? memo[3] : -1));
+		}
+		
+		// The memo is zero padded - the padding follows the end of the deflate stream and is ignored
+		Inflater inflater = new Inflater(true);
+		try
+		{
+			// A raw deflate stream does not ask for the dictionary - it is set upfront
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(memo, COMPACT_HEADER.length, memo.length - COMPACT_HEADER.length);
+			
+			ByteArrayOutputStream json = new ByteArrayOutputStream(MAX_MEMO_SIZE * 2);
+			byte[] buffer = new byte[MAX_MEMO_SIZE];
+			while (!inflater.finished())
+			{
+				int count = inflater.inflate(buffer);
+				if ((count == 0) && inflater.needsInput())
+				{
+					throw new DataFormatException("Compact memo is truncated!");
+				}
+				
+				json.write(buffer, 0, count);
+			}
+			
+			JsonObject shortMessage = Util.parseJsonObject(json.toString("UTF-8"));
+			JsonObject innerMessage = new JsonObject();
+			for (JsonObject.Member member : shortMessage)
+			{
+				innerMessage.set(getFullKey(member.getName()), member.getValue());
+			}
+			
+			return innerMessage;
+		} finally
+		{
+			inflater.end();
+		}
+	}
+	
+	
+	// Keys not known to this version are kept as they are
+	private static String getShortKey(String key)
+	{
+		for (String[] keys : KEYS)
+		{
+			if (keys[0].equals(key))
+			{
+				return keys[1];
+			}
+		}
+		
+		return key;
+	}
+	
+	
+	private static String getFullKey(String key)
+	{
+		for (String[] keys : KEYS)
+		{
+			if (keys[1].equals(key))
+			{
+				return keys[0];
+			}
+		}
+		
+		return key;
+	}
+	
+	
+	private static byte[] getUTF8Bytes(String s)
+	{
+		try
+		{
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException uee)
+		{
+			throw new RuntimeException(uee);
+		}
+	}
+}
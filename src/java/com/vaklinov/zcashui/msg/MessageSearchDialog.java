@@ -0,0 +1,248 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+import java.awt.BorderLayout;
+import java.awt.Cursor;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.table.DefaultTableModel;
+
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.StatusUpdateErrorReporter;
+import com.vaklinov.zcashui.msg.Message.DIRECTION_TYPE;
+
+
+/**
+ * Dialog for searching the messages of all contacts. Double clicking a result shows the
+ * conversation with its contact.
+ */
+public class MessageSearchDialog
+	extends JDialog
+{
+	private static final long serialVersionUID = 1L;
+	
+	private static final int MAX_RESULTS = 200;
+	
+	protected MessagingPanel messagingPanel;
+	protected MessagingStorage storage;
+	protected StatusUpdateErrorReporter errorReporter;
+	
+	protected JTextField queryTextField;
+	protected JLabel     resultLabel;
+	protected JTable     resultTable;
+	protected DefaultTableModel resultTableModel;
+	
+	protected List<MessageSearchIndex.SearchResult> results;
+	
+	
+	public MessageSearchDialog(JFrame parentFrame, MessagingPanel messagingPanel, MessagingStorage storage, 
+			                   StatusUpdateErrorReporter errorReporter)
+	{
+		super(parentFrame);
+		
+		this.messagingPanel = messagingPanel;
+		this.storage        = storage;
+		this.errorReporter  = errorReporter;
+		this.results        = new ArrayList<MessageSearchIndex.SearchResult>();
+		
+		this.setTitle("Search messages");
+		this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		
+		this.getContentPane().setLayout(new BorderLayout(0, 0));
+		
+		JPanel upperPanel = new JPanel(new BorderLayout(0, 0));
+		upperPanel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+		upperPanel.add(new JLabel(
+			"<html><span style=\"font-size:0.93em;\">" +
+			"Search the messages of all contacts. All words must be found in a message. It is also<br/>" +
+			"possible to search for: word* - words starting with a prefix, \"several words\" - words in<br/>" +
+			"sequence, from:name - messages from a sender, after:yyyy-MM-dd, before:yyyy-MM-dd<br/><br/>" +
+			"</span>"), BorderLayout.NORTH);
+		
+		JPanel queryPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 2));
+		queryPanel.add(new JLabel("Search for:"));
+		queryPanel.add(this.queryTextField = new JTextField(40));
+		JButton searchButton = new JButton("Search");
+		queryPanel.add(searchButton);
+		upperPanel.add(queryPanel, BorderLayout.CENTER);
+		upperPanel.add(this.resultLabel = new JLabel(" "), BorderLayout.SOUTH);
+		this.getContentPane().add(upperPanel, BorderLayout.NORTH);
+		
+		this.resultTableModel = new DefaultTableModel(
+			new Object[] { "Contact", "Time", "From", "Message" }, 0)
+		{
+			@Override
+			public boolean isCellEditable(int row, int column)
+			{
+				return false;
+			}
+		};
+		this.resultTable = new JTable(this.resultTableModel);
+		this.resultTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		this.resultTable.getColumnModel().getColumn(0).setPreferredWidth(130);
+		this.resultTable.getColumnModel().getColumn(1).setPreferredWidth(130);
+		this.resultTable.getColumnModel().getColumn(2).setPreferredWidth(110);
+		this.resultTable.getColumnModel().getColumn(3).setPreferredWidth(400);
+		JScrollPane resultScrollPane = new JScrollPane(this.resultTable);
+		resultScrollPane.setPreferredSize(new Dimension(780, 380));
+		this.getContentPane().add(resultScrollPane, BorderLayout.CENTER);
+		
+		JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 15, 3));
+		JButton closeButon = new JButton("Close");
+		buttonPanel.add(closeButon);
+		this.getContentPane().add(buttonPanel, BorderLayout.SOUTH);
+		
+		ActionListener searchAction = new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				MessageSearchDialog.this.search();
+			}
+		};
+		searchButton.addActionListener(searchAction);
+		this.queryTextField.addActionListener(searchAction);
+		
+		closeButon.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				MessageSearchDialog.this.setVisible(false);
+				MessageSearchDialog.this.dispose();
+			}
+		});
+		
+		this.resultTable.addMouseListener(new MouseAdapter()
+		{
+			@Override
+			public void mouseClicked(MouseEvent e)
+			{
+				int row = MessageSearchDialog.this.resultTable.getSelectedRow();
+				if ((e.getClickCount() == 2) && (row >= 0) && (row < MessageSearchDialog.this.results.size()))
+				{
+					MessageSearchDialog.this.messagingPanel.showConversationWithContact(
+						MessageSearchDialog.this.results.get(row).getContact());
+				}
+			}
+		});
+		
+		this.pack();
+		this.setLocationRelativeTo(parentFrame);
+	}
+	
+	
+	// Searches in the background - the first search may have to load the index
+	private void search()
+	{
+		final String query = this.queryTextField.getText();
+		if ((query == null) || (query.trim().length() <= 0))
+		{
+			return;
+		}
+		
+		this.resultLabel.setText("Searching...");
+		this.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		
+		new SwingWorker<List<MessageSearchIndex.SearchResult>, Void>()
+		{
+			private long start = System.currentTimeMillis();
+			
+			@Override
+			protected List<MessageSearchIndex.SearchResult> doInBackground()
+				throws Exception
+			{
+				return MessageSearchDialog.this.storage.searchMessages(query, MAX_RESULTS);
+			}
+			
+			@Override
+			protected void done()
+			{
+				MessageSearchDialog.this.setCursor(Cursor.getDefaultCursor());
+				try
+				{
+					MessageSearchDialog.this.showResults(this.get(), System.currentTimeMillis() - this.start);
+				} catch (Exception ex)
+				{
+					Log.error("Unexpected error in searching messages!", ex);
+					MessageSearchDialog.this.resultLabel.setText(" ");
+					MessageSearchDialog.this.errorReporter.reportError(ex, false);
+				}
+			}
+		}.execute();
+	}
+	
+	
+	private void showResults(List<MessageSearchIndex.SearchResult> results, long time)
+	{
+		this.results = results;
+		this.resultTableModel.setRowCount(0);
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		for (MessageSearchIndex.SearchResult result : results)
+		{
+			String from = (result.getDirection() == DIRECTION_TYPE.SENT) ? "(me) " : "";
+			from += (result.getSenderName().length() > 0) ? result.getSenderName() : result.getFrom();
+			
+			String text = result.getText().replaceAll("\\s+", " ");
+			this.resultTableModel.addRow(new Object[] 
+			{
+				result.getContact().getDiplayString(),
+				dateFormat.format(result.getTime()),
+				from,
+				(text.length() > 300) ? (text.substring(0, 300) + "...") : text
+			});
+		}
+		
+		this.resultLabel.setText(
+			((results.size() >= MAX_RESULTS) ? "The most recent " + MAX_RESULTS : "" + results.size()) + 
+			" messages found in " + time + "ms");
+	}
+}
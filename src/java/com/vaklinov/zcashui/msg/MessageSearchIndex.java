@@ -0,0 +1,924 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.msg.Message.DIRECTION_TYPE;
+
+
+/**
+ * Full-text index over the stored messages - their text, senders and times. The index is held
+ * in memory as a sorted map from terms to postings (message, word position) so that prefix 
+ * queries are range scans over the map and phrase queries are position checks. The indexed 
+ * messages are kept in an append-only binary log that is replayed when the index is opened:
+ * 
+ * ~/.ZENCashSwingWalletUI/messaging/search_index.dat
+ * 
+ * A message is identified by the store it is in (contact_XXXX/sent or contact_XXXX/received) 
+ * and its position in the append order of the store. A store with more messages than are 
+ * indexed is caught up by indexing just the messages appended since. Contact deletions are 
+ * recorded in the log so that the messages of deleted contacts are dropped.
+ * 
+ * A query consists of clauses - all of them must match a message:
+ * word        - a word in the message
+ * word*       - a word starting with a prefix
+ * "w1 w2 w3"  - words in sequence
+ * from:name   - a word in the sender's name or address (from:name* for a prefix)
+ * after:yyyy-MM-dd, before:yyyy-MM-dd - messages on/after a day or before a day
+ */
+public class MessageSearchIndex
+{
+	static final String INDEX_FILE_NAME = "search_index.dat";
+	
+	private static final int FILE_MAGIC   = 0x5A534958;
+	private static final int FILE_VERSION = 1;
+	
+	private static final byte RECORD_MESSAGE         = 1;
+	private static final byte RECORD_CONTACT_DELETED = 2;
+	
+	// Sender words are indexed as terms with this prefix
+	private static final String SENDER_TERM_PREFIX = "from:";
+	
+	private static final int MAX_TERM_LENGTH = 64;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private File indexFile;
+	
+	private boolean loaded;
+	
+	// Open for appending while the index is loaded
+	private DataOutputStream logOutput;
+	private long logSize;
+	
+	private TreeMap<String, Postings> terms;
+	
+	// Per message data - indexed by message number, which is the order in the log
+	private int    messageCount;
+	private long[] messageOffsets;
+	private long[] messageTimes;
+	private int[]  messageStores;
+	
+	// Messages that have text and do not belong to deleted contacts
+	private BitSet searchableMessages;
+	
+	// Stores by number and number of their indexed messages
+	private List<String>         storeKeys;
+	private Map<String, Integer> storeNumbers;
+	private List<Integer>        indexedCounts;
+	
+	
+	/**
+	 * Creates the index in the messaging directory. It is loaded by load() - until then new 
+	 * messages are not indexed.
+	 * 
+	 * @param rootDir messaging directory
+	 */
+	public MessageSearchIndex(File rootDir)
+	{
+		this.indexFile = new File(rootDir, INDEX_FILE_NAME);
+		this.loaded = false;
+	}
+	
+	
+	public synchronized boolean isLoaded()
+	{
+		return this.loaded;
+	}
+	
+	
+	/**
+	 * Loads the index by replaying the log. A partially written record at the end of the log
+	 * (due to a crash) is cut off - its message is indexed again by the next catch-up.
+	 */
+	public synchronized void load()
+		throws IOException
+	{
+		if (this.loaded)
+		{
+			return;
+		}
+		
+		long start = System.currentTimeMillis();
+		
+		this.terms              = new TreeMap<String, Postings>();
+		this.messageCount       = 0;
+		this.messageOffsets     = new long[1024];
+		this.messageTimes       = new long[1024];
+		this.messageStores      = new int[1024];
+		this.searchableMessages = new BitSet();
+		this.storeKeys          = new ArrayList<String>();
+		this.storeNumbers       = new HashMap<String, Integer>();
+		this.indexedCounts      = new ArrayList<Integer>();
+		
+		long validLength = 0;
+		if (this.indexFile.exists())
+		{
+			validLength = this.replayLog();
+		}
+		
+		if (validLength <= 0)
+		{
+			// No usable log - start a new one
+			DataOutputStream dos = new DataOutputStream(new FileOutputStream(this.indexFile));
+			try
+			{
+				dos.writeInt(FILE_MAGIC);
+				dos.writeInt(FILE_VERSION);
+			} finally
+			{
+				dos.close();
+			}
+			validLength = 8;
+		} else if (validLength < this.indexFile.length())
+		{
+			Log.warning("Search index {0} has an incomplete record at the end - cutting it off at {1}", 
+					    this.indexFile.getAbsolutePath(), validLength);
+			RandomAccessFile raf = new RandomAccessFile(this.indexFile, "rw");
+			try
+			{
+				raf.setLength(validLength);
+			} finally
+			{
+				raf.close();
+			}
+		}
+		
+		this.logSize = validLength;
+		this.logOutput = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(this.indexFile, true)));
+		this.loaded = true;
+		
+		Log.info("Search index loaded with {0} messages and {1} terms in {2}ms", 
+				 this.messageCount, this.terms.size(), (System.currentTimeMillis() - start));
+	}
+	
+	
+	/**
+	 * Returns the number of messages of a store that are indexed. These are the first 
+	 * messages in the append order of the store.
+	 * 
+	 * @param storeKey contact_XXXX/sent or contact_XXXX/received
+	 */
+	public synchronized int getIndexedMessageCount(String storeKey)
+	{
+		Integer number = this.storeNumbers.get(storeKey);
+		return (number != null) ? this.indexedCounts.get(number) : 0;
+	}
+	
+	
+	/**
+	 * Indexes a message. Ignored if the index is not loaded or if the message is not the next 
+	 * one to index for the store - it is then picked up by a later catch-up.
+	 * 
+	 * @param storeKey contact_XXXX/sent or contact_XXXX/received
+	 * @param position position of the message in the append order of the store
+	 * @param msg the message
+	 * @param senderName name under which the sender is searched (besides the from address)
+	 */
+	public synchronized void addMessage(String storeKey, int position, Message msg, String senderName)
+		throws IOException
+	{
+		if ((!this.loaded) || (position != this.getIndexedMessageCount(storeKey)))
+		{
+			return;
+		}
+		
+		// Identity messages are not searchable but are logged to keep the positions
+		String text = msg.getMessage();
+		if ((text == null) || MessagingIdentity.isIdentityMessage(text))
+		{
+			text = "";
+		}
+		
+		String transactionID = (msg.getTransactionID() != null) ? msg.getTransactionID() : "";
+		String from          = (msg.getFrom() != null) ? msg.getFrom() : "";
+		senderName           = (senderName != null) ? senderName : "";
+		byte textBytes[]     = text.getBytes(UTF8);
+		
+		long offset = this.logSize;
+		this.logOutput.writeByte(RECORD_MESSAGE);
+		this.logOutput.writeUTF(storeKey);
+		this.logOutput.writeLong(msg.getTime().getTime());
+		this.logOutput.writeUTF(transactionID);
+		this.logOutput.writeUTF(senderName);
+		this.logOutput.writeUTF(from);
+		this.logOutput.writeInt(textBytes.length);
+		this.logOutput.write(textBytes);
+		this.logSize = offset + 1 + 8 + 4 + textBytes.length + 
+			utfLength(storeKey) + utfLength(transactionID) + utfLength(senderName) + utfLength(from);
+		
+		this.indexMessage(offset, storeKey, msg.getTime().getTime(), senderName + " " + from, text);
+	}
+	
+	
+	/**
+	 * Records that a contact is deleted - its messages are no longer found. Recorded even if
+	 * the index is not loaded, since the directory of the contact may be reused.
+	 * 
+	 * @param contactDirName contact_XXXX
+	 */
+	public synchronized void contactDeleted(String contactDirName)
+		throws IOException
+	{
+		if (this.loaded)
+		{
+			this.logOutput.writeByte(RECORD_CONTACT_DELETED);
+			this.logOutput.writeUTF(contactDirName);
+			this.logOutput.flush();
+			this.logSize += 1 + utfLength(contactDirName);
+			
+			this.removeContact(contactDirName);
+		} else if (this.indexFile.exists())
+		{
+			DataOutputStream dos = new DataOutputStream(new FileOutputStream(this.indexFile, true));
+			try
+			{
+				dos.writeByte(RECORD_CONTACT_DELETED);
+				dos.writeUTF(contactDirName);
+			} finally
+			{
+				dos.close();
+			}
+		}
+	}
+	
+	
+	// Writes the buffered log records to the file
+	public synchronized void flush()
+		throws IOException
+	{
+		if (this.loaded)
+		{
+			this.logOutput.flush();
+		}
+	}
+	
+	
+	/**
+	 * Searches the index - see the class description for the query syntax.
+	 * 
+	 * @param query the query
+	 * @param maxResults maximum number of results to return
+	 * 
+	 * @return the matching messages - the most recent first. Empty if the index is not loaded.
+	 */
+	public synchronized List<SearchResult> search(String query, int maxResults)
+		throws IOException
+	{
+		List<SearchResult> results = new ArrayList<SearchResult>();
+		if ((!this.loaded) || (query == null) || (query.trim().length() <= 0))
+		{
+			return results;
+		}
+		
+		BitSet matches = (BitSet)this.searchableMessages.clone();
+		long after  = Long.MIN_VALUE;
+		long before = Long.MAX_VALUE;
+		
+		for (String clause : splitQuery(query))
+		{
+			String lowerCaseClause = clause.toLowerCase(Locale.ROOT);
+			if (lowerCaseClause.startsWith("after:") || lowerCaseClause.startsWith("before:"))
+			{
+				try
+				{
+					SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+					format.setLenient(false);
+					long dayStart = format.parse(clause.substring(clause.indexOf(':') + 1)).getTime();
+					if (lowerCaseClause.startsWith("after:"))
+					{
+						after = Math.max(after, dayStart);
+					} else
+					{
+						before = Math.min(before, dayStart);
+					}
+					continue;
+				} catch (ParseException pe)
+				{
+					// Not a date - searched as text
+				}
+			}
+			
+			boolean prefix = clause.endsWith("*");
+			if (lowerCaseClause.startsWith(SENDER_TERM_PREFIX))
+			{
+				List<String> words = tokenize(clause.substring(SENDER_TERM_PREFIX.length()));
+				for (int i = 0; i < words.size(); i++)
+				{
+					matches.and(this.findTerm(
+						SENDER_TERM_PREFIX + words.get(i), prefix && (i == words.size() - 1)));
+				}
+			} else if (clause.startsWith("\""))
+			{
+				matches.and(this.findPhrase(tokenize(clause)));
+			} else
+			{
+				List<String> words = tokenize(clause);
+				if (words.size() == 1)
+				{
+					matches.and(this.findTerm(words.get(0), prefix));
+				} else if (words.size() > 1)
+				{
+					// Like e-mail or ZEN addresses - the words are expected in sequence
+					matches.and(this.findPhrase(words));
+				}
+			}
+		}
+		
+		final List<Integer> matchingMessages = new ArrayList<Integer>();
+		for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+		{
+			if ((this.messageTimes[i] >= after) && (this.messageTimes[i] < before))
+			{
+				matchingMessages.add(i);
+			}
+		}
+		
+		Collections.sort(matchingMessages, 
+			new Comparator<Integer>() 
+			{
+				@Override
+				public int compare(Integer m1, Integer m2) 
+				{
+					int c = Long.compare(MessageSearchIndex.this.messageTimes[m2], 
+							             MessageSearchIndex.this.messageTimes[m1]);
+					return (c != 0) ? c : Integer.compare(m2, m1);
+				}
+			}
+		);
+		
+		this.logOutput.flush();
+		RandomAccessFile raf = new RandomAccessFile(this.indexFile, "r");
+		try
+		{
+			for (Integer m : matchingMessages.subList(0, Math.min(maxResults, matchingMessages.size())))
+			{
+				raf.seek(this.messageOffsets[m]);
+				raf.readByte();
+				results.add(readSearchResult(raf));
+			}
+		} finally
+		{
+			raf.close();
+		}
+		
+		return results;
+	}
+	
+	
+	// Replays the log and returns the length of its valid part - 0 if it is unusable
+	private long replayLog()
+		throws IOException
+	{
+		CountingInputStream cis = new CountingInputStream(
+			new BufferedInputStream(new FileInputStream(this.indexFile), 64 * 1024));
+		DataInputStream dis = new DataInputStream(cis);
+		try
+		{
+			try
+			{
+				if ((dis.readInt() != FILE_MAGIC) || (dis.readInt() != FILE_VERSION))
+				{
+					Log.warning("Search index {0} has an unknown format - it will be rebuilt", 
+							    this.indexFile.getAbsolutePath());
+					return 0;
+				}
+			} catch (EOFException eofe)
+			{
+				return 0;
+			}
+			
+			long validLength = cis.getCount();
+			while (true)
+			{
+				try
+				{
+					int recordType = dis.read();
+					if (recordType == RECORD_MESSAGE)
+					{
+						SearchResult msg = readSearchResult(dis);
+						this.indexMessage(validLength, msg.storeKey, msg.getTime().getTime(), 
+								          msg.getSenderName() + " " + msg.getFrom(), msg.getText());
+					} else if (recordType == RECORD_CONTACT_DELETED)
+					{
+						this.removeContact(dis.readUTF());
+					} else
+					{
+						if (recordType != -1)
+						{
+							Log.warning("Unknown record type {0} in search index {1} at {2}", 
+									    recordType, this.indexFile.getAbsolutePath(), validLength);
+						}
+						return validLength;
+					}
+				} catch (EOFException eofe)
+				{
+					return validLength;
+				} catch (UTFDataFormatException ufe)
+				{
+					return validLength;
+				}
+				
+				validLength = cis.getCount();
+			}
+		} finally
+		{
+			dis.close();
+		}
+	}
+	
+	
+	// Reads a message record - after its type
+	private static SearchResult readSearchResult(DataInput in)
+		throws IOException
+	{
+		SearchResult result = new SearchResult();
+		result.storeKey      = in.readUTF();
+		result.time          = in.readLong();
+		result.transactionID = in.readUTF();
+		result.senderName    = in.readUTF();
+		result.from          = in.readUTF();
+		int length = in.readInt();
+		if ((length < 0) || (length > 10 * 1024 * 1024))
+		{
+			throw new UTFDataFormatException("Invalid message length: " + length);
+		}
+		byte textBytes[] = new byte[length];
+		in.readFully(textBytes);
+		result.text = new String(textBytes, UTF8);
+		
+		return result;
+	}
+	
+	
+	private void indexMessage(long offset, String storeKey, long time, String sender, String text)
+	{
+		Integer store = this.storeNumbers.get(storeKey);
+		if (store == null)
+		{
+			store = this.storeKeys.size();
+			this.storeKeys.add(storeKey);
+			this.storeNumbers.put(storeKey, store);
+			this.indexedCounts.add(0);
+		}
+		this.indexedCounts.set(store, this.indexedCounts.get(store) + 1);
+		
+		if (this.messageCount == this.messageOffsets.length)
+		{
+			int newLength = this.messageOffsets.length * 2;
+			this.messageOffsets = Arrays.copyOf(this.messageOffsets, newLength);
+			this.messageTimes   = Arrays.copyOf(this.messageTimes,   newLength);
+			this.messageStores  = Arrays.copyOf(this.messageStores,  newLength);
+		}
+		
+		int number = this.messageCount++;
+		this.messageOffsets[number] = offset;
+		this.messageTimes[number]   = time;
+		this.messageStores[number]  = store;
+		
+		if (text.length() <= 0)
+		{
+			return;
+		}
+		
+		this.searchableMessages.set(number);
+		
+		int position = 0;
+		for (String word : tokenize(text))
+		{
+			this.getPostings(word).add(number, position++);
+		}
+		
+		for (String word : tokenize(sender))
+		{
+			this.getPostings(SENDER_TERM_PREFIX + word).add(number, 0);
+		}
+	}
+	
+	
+	// Drops the messages of a deleted contact
+	private void removeContact(String contactDirName)
+	{
+		BitSet removedStores = new BitSet();
+		for (int i = 0; i < this.storeKeys.size(); i++)
+		{
+			if (this.storeKeys.get(i).startsWith(contactDirName + "/"))
+			{
+				removedStores.set(i);
+				this.indexedCounts.set(i, 0);
+			}
+		}
+		
+		if (removedStores.isEmpty())
+		{
+			return;
+		}
+		
+		for (int i = 0; i < this.messageCount; i++)
+		{
+			if (removedStores.get(this.messageStores[i]))
+			{
+				this.searchableMessages.clear(i);
+			}
+		}
+	}
+	
+	
+	private Postings getPostings(String term)
+	{
+		Postings postings = this.terms.get(term);
+		if (postings == null)
+		{
+			postings = new Postings();
+			this.terms.put(term, postings);
+		}
+		
+		return postings;
+	}
+	
+	
+	// Messages containing a term - or any term starting with it if prefix is set
+	private BitSet findTerm(String term, boolean prefix)
+	{
+		BitSet found = new BitSet();
+		
+		if (prefix)
+		{
+			SortedMap<String, Postings> range = this.terms.subMap(term, term + Character.MAX_VALUE);
+			for (Postings postings : range.values())
+			{
+				postings.addMessagesTo(found);
+			}
+		} else
+		{
+			Postings postings = this.terms.get(term);
+			if (postings != null)
+			{
+				postings.addMessagesTo(found);
+			}
+		}
+		
+		return found;
+	}
+	
+	
+	// Messages containing the words in sequence
+	private BitSet findPhrase(List<String> words)
+	{
+		BitSet found = (BitSet)this.searchableMessages.clone();
+		List<Postings> phrasePostings = new ArrayList<Postings>();
+		for (String word : words)
+		{
+			Postings postings = this.terms.get(word);
+			if (postings == null)
+			{
+				return new BitSet();
+			}
+			
+			BitSet wordMessages = new BitSet();
+			postings.addMessagesTo(wordMessages);
+			found.and(wordMessages);
+			phrasePostings.add(postings);
+		}
+		
+		if (phrasePostings.size() <= 1)
+		{
+			return found;
+		}
+		
+		Postings first = phrasePostings.get(0);
+		for (int m = found.nextSetBit(0); m >= 0; m = found.nextSetBit(m + 1))
+		{
+			boolean phraseFound = false;
+			for (int i = first.find(m); (!phraseFound) && (i < first.size) && (first.data[i] == m); i += 2)
+			{
+				int position = first.data[i + 1];
+				phraseFound = true;
+				for (int w = 1; phraseFound && (w < phrasePostings.size()); w++)
+				{
+					phraseFound = phrasePostings.get(w).contains(m, position + w);
+				}
+			}
+			
+			if (!phraseFound)
+			{
+				found.clear(m);
+			}
+		}
+		
+		return found;
+	}
+	
+	
+	/**
+	 * Splits a text into lower case words - sequences of letters and digits.
+	 * 
+	 * @param text the text
+	 * 
+	 * @return the words in text order.
+	 */
+	static List<String> tokenize(String text)
+	{
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++)
+		{
+			char c = (i < text.length()) ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c))
+			{
+				if (word.length() < MAX_TERM_LENGTH)
+				{
+					word.append(Character.toLowerCase(c));
+				}
+			} else if (word.length() > 0)
+			{
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		
+		return words;
+	}
+	
+	
+	// Splits a query into clauses on white space - except inside quotes
+	private static List<String> splitQuery(String query)
+	{
+		List<String> clauses = new ArrayList<String>();
+		StringBuilder clause = new StringBuilder();
+		boolean inQuotes = false;
+		for (int i = 0; i <= query.length(); i++)
+		{
+			char c = (i < query.length()) ? query.charAt(i) : ' ';
+			if (c == '"')
+			{
+				inQuotes = !inQuotes;
+			}
+			
+			if (Character.isWhitespace(c) && (!inQuotes))
+			{
+				if (clause.length() > 0)
+				{
+					clauses.add(clause.toString());
+					clause.setLength(0);
+				}
+			} else
+			{
+				clause.append(c);
+			}
+		}
+		
+		if (clause.length() > 0)
+		{
+			clauses.add(clause.toString());
+		}
+		
+		return clauses;
+	}
+	
+	
+	// Length of a string written by DataOutput.writeUTF()
+	private static int utfLength(String s)
+	{
+		int length = 2;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			length += ((c >= 0x0001) && (c <= 0x007F)) ? 1 : ((c > 0x07FF) ? 3 : 2);
+		}
+		
+		return length;
+	}
+	
+	
+	/**
+	 * A message found by a search.
+	 */
+	public static class SearchResult
+	{
+		private String storeKey;
+		private long   time;
+		private String transactionID;
+		private String senderName;
+		private String from;
+		private String text;
+		
+		private MessagingIdentity contact;
+		
+		
+		// contact_XXXX directory of the contact the message belongs to
+		public String getContactDirName()
+		{
+			return this.storeKey.substring(0, this.storeKey.indexOf('/'));
+		}
+		
+		public DIRECTION_TYPE getDirection()
+		{
+			return this.storeKey.endsWith("/sent") ? DIRECTION_TYPE.SENT : DIRECTION_TYPE.RECEIVED;
+		}
+		
+		public Date getTime()
+		{
+			return new Date(this.time);
+		}
+		
+		public String getTransactionID()
+		{
+			return this.transactionID;
+		}
+		
+		public String getSenderName()
+		{
+			return this.senderName;
+		}
+		
+		public String getFrom()
+		{
+			return this.from;
+		}
+		
+		public String getText()
+		{
+			return this.text;
+		}
+		
+		public MessagingIdentity getContact()
+		{
+			return this.contact;
+		}
+		
+		public void setContact(MessagingIdentity contact)
+		{
+			this.contact = contact;
+		}
+	}
+	
+	
+	// Pairs (message number, word position) in ascending order
+	private static class Postings
+	{
+		int data[] = new int[4];
+		int size   = 0;
+		
+		void add(int message, int position)
+		{
+			if (this.size == this.data.length)
+			{
+				this.data = Arrays.copyOf(this.data, this.data.length * 2);
+			}
+			
+			this.data[this.size++] = message;
+			this.data[this.size++] = position;
+		}
+		
+		void addMessagesTo(BitSet messages)
+		{
+			for (int i = 0; i < this.size; i += 2)
+			{
+				messages.set(this.data[i]);
+			}
+		}
+		
+		// Index of the first pair of a message or later
+		int find(int message)
+		{
+			int low = 0, high = this.size / 2;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (this.data[mid * 2] < message)
+				{
+					low = mid + 1;
+				} else
+				{
+					high = mid;
+				}
+			}
+			
+			return low * 2;
+		}
+		
+		boolean contains(int message, int position)
+		{
+			for (int i = this.find(message); (i < this.size) && (this.data[i] == message); i += 2)
+			{
+				if (this.data[i + 1] == position)
+				{
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	
+	// Counts the bytes read - to know the offsets of log records
+	private static class CountingInputStream
+		extends FilterInputStream
+	{
+		private long count = 0;
+		
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+		
+		long getCount()
+		{
+			return this.count;
+		}
+		
+		@Override
+		public int read()
+			throws IOException
+		{
+			int b = super.read();
+			if (b >= 0)
+			{
+				this.count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte b[], int off, int len)
+			throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0)
+			{
+				this.count += n;
+			}
+			return n;
+		}
+		
+		@Override
+		public long skip(long n)
+			throws IOException
+		{
+			long skipped = super.skip(n);
+			this.count += skipped;
+			return skipped;
+		}
+	}
+}
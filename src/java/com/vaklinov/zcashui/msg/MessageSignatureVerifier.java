@@ -0,0 +1,270 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.bitcoinj.core.Base58;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.VarInt;
+
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.Util;
+import com.vaklinov.zcashui.ZCashClientCaller;
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+
+
+/**
+ * Verifies the signatures of received messages in-process - without a verifymessage call to 
+ * zen-cli per message. Signatures are the compact (recoverable) ECDSA signatures produced by 
+ * signmessage: the public key is recovered from the signature and the message hash and is 
+ * matched against the sender ID (T) address. Messages are verified in parallel.
+ * 
+ * A signature that is not verified locally is passed to zen-cli, which remains the authority. 
+ * If zen-cli accepts such a signature, local verification is not in line with the node and it 
+ * is no longer used. Signing itself is always done by the wallet, so private keys are not 
+ * exposed to the GUI.
+ */
+public class MessageSignatureVerifier
+{
+	// Message prefix used by signmessage/verifymessage
+	private static final String MESSAGE_MAGIC = "Zcash Signed Message:\n";
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private ZCashClientCaller clientCaller;
+	
+	private ExecutorService verifiers;
+	
+	private volatile boolean localVerificationUsable;
+	
+	
+	public MessageSignatureVerifier(ZCashClientCaller clientCaller)
+	{
+		this.clientCaller = clientCaller;
+		this.localVerificationUsable = true;
+		
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		this.verifiers = Executors.newFixedThreadPool(threads, new ThreadFactory() 
+		{
+			@Override
+			public Thread newThread(Runnable r) 
+			{
+				Thread t = new Thread(r, "Message signature verifier");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	
+	/**
+	 * Verifies the signatures of messages locally and in parallel. Anonymous messages are not 
+	 * signed and are skipped.
+	 * 
+	 * @param messages messages to verify
+	 * 
+	 * @return the messages whose signatures are valid - an identity based set. Messages not in 
+	 *         it need to be verified by verify().
+	 */
+	public Set<Message> verifyLocally(List<Message> messages)
+		throws InterruptedException
+	{
+		Set<Message> verified = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+		if (!this.localVerificationUsable)
+		{
+			return verified;
+		}
+		
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (final Message message : messages)
+		{
+			results.add(message.isAnonymous() ? null : this.verifiers.submit(
+				new Callable<Boolean>() 
+				{
+					@Override
+					public Boolean call()
+						throws UnsupportedEncodingException
+					{
+						return isSignatureValid(message.getFrom(), message.getSign(), getSignedText(message));
+					}
+				}));
+		}
+		
+		for (int i = 0; i < messages.size(); i++)
+		{
+			try
+			{
+				if ((results.get(i) != null) && results.get(i).get())
+				{
+					verified.add(messages.get(i));
+				}
+			} catch (ExecutionException ee)
+			{
+				// Left for zen-cli to decide
+				Log.warning("Unexpected error in verifying message signature locally: {0}", ee.getCause());
+			}
+		}
+		
+		return verified;
+	}
+	
+	
+	/**
+	 * Verifies a message signature - locally and if that fails via zen-cli.
+	 * 
+	 * @param message message to verify
+	 * @param verifiedLocally messages already verified locally - may be null
+	 * 
+	 * @return true if the signature is valid.
+	 */
+	public boolean verify(Message message, Set<Message> verifiedLocally)
+		throws WalletCallException, IOException, InterruptedException
+	{
+		if ((verifiedLocally != null) && verifiedLocally.contains(message))
+		{
+			return true;
+		}
+		
+		String signedText = getSignedText(message);
+		if ((verifiedLocally == null) && this.localVerificationUsable && 
+			isSignatureValid(message.getFrom(), message.getSign(), signedText))
+		{
+			return true;
+		}
+		
+		boolean valid = this.clientCaller.verifyMessage(message.getFrom(), message.getSign(), signedText);
+		if (valid && this.localVerificationUsable)
+		{
+			this.localVerificationUsable = false;
+			Log.warning("Message signature from {0} is valid according to zen-cli but not according to " +
+			            "local verification. Signatures will only be verified by zen-cli from now on.", 
+			            message.getFrom());
+		}
+		
+		return valid;
+	}
+	
+	
+	// Messages are signed HEX encoded - to avoid possible UNICODE issues
+	private static String getSignedText(Message message)
+		throws UnsupportedEncodingException
+	{
+		return Util.encodeHexString(message.getMessage()).toUpperCase();
+	}
+	
+	
+	/**
+	 * Checks a compact signature of a message as produced by signmessage.
+	 * 
+	 * @param address T address of the signer
+	 * @param signatureBase64 Base64 encoded 65 byte signature
+	 * @param text signed text
+	 * 
+	 * @return true if the signature is made by the key of the address. False also for any 
+	 *         malformed input.
+	 */
+	static boolean isSignatureValid(String address, String signatureBase64, String text)
+	{
+		if ((address == null) || (signatureBase64 == null) || (text == null))
+		{
+			return false;
+		}
+		
+		try
+		{
+			byte addressBytes[] = Base58.decodeChecked(address);
+			byte signature[] = Base64.getDecoder().decode(signatureBase64);
+			if ((addressBytes.length != 22) || (signature.length != 65))
+			{
+				return false;
+			}
+			
+			// Header byte: 27 + recovery ID, + 4 for a compressed public key
+			int header = signature[0] & 0xFF;
+			if ((header < 27) || (header > 34))
+			{
+				return false;
+			}
+			int recoveryID = (header - 27) & 3;
+			boolean compressed = header >= 31;
+			
+			BigInteger r = new BigInteger(1, Arrays.copyOfRange(signature, 1, 33));
+			BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, 33, 65));
+			
+			ECKey key = ECKey.recoverFromSignature(
+				recoveryID, new ECKey.ECDSASignature(r, s), Sha256Hash.twiceOf(formatTextForSigning(text)), compressed);
+			
+			return (key != null) && 
+				   Arrays.equals(key.getPubKeyHash(), Arrays.copyOfRange(addressBytes, 2, 22));
+		} catch (RuntimeException re)
+		{
+			// Malformed address or signature
+			return false;
+		}
+	}
+	
+	
+	// Magic and text - each preceded by its length
+	static byte[] formatTextForSigning(String text)
+	{
+		byte magicBytes[] = MESSAGE_MAGIC.getBytes(UTF8);
+		byte textBytes[]  = text.getBytes(UTF8);
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(magicBytes.length + textBytes.length + 10);
+		byte length[] = new VarInt(magicBytes.length).encode();
+		bos.write(length, 0, length.length);
+		bos.write(magicBytes, 0, magicBytes.length);
+		length = new VarInt(textBytes.length).encode();
+		bos.write(length, 0, length.length);
+		bos.write(textBytes, 0, textBytes.length);
+		
+		return bos.toByteArray();
+	}
+}
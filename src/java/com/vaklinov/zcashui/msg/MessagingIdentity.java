@@ -30,15 +30,13 @@
 package com.vaklinov.zcashui.msg;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.Writer;
 
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.WriterConfig;
@@ -63,6 +61,7 @@ public class MessagingIdentity
 	private String streetaddress;
 	private String facebook;
 	private String twitter;
+	private int compactmemo; // Highest compact memo format version supported, 0 - none
 	
 	// Additional fields not based on the ZEN messaging protocol
 	private boolean isAnonymous; // If the remote contact sends messages anonymously
@@ -124,7 +123,8 @@ public class MessagingIdentity
 		this.email              = obj.getString("email",              "");
 		this.streetaddress      = obj.getString("streetaddress",      "");
 		this.facebook           = obj.getString("facebook",           "");		
-		this.twitter            = obj.getString("twitter",            "");	
+		this.twitter            = obj.getString("twitter",            "");
+		this.compactmemo        = obj.getInt("compactmemo",           0);	
 		
 		this.isAnonymous        = obj.getBoolean("isanonymous",       false);
 		this.isGroup            = obj.getBoolean("isgroup",           false);
@@ -168,6 +168,12 @@ public class MessagingIdentity
 		obj.set("facebook",           nonNull(facebook));		
 		obj.set("twitter",            nonNull(twitter));
 		
+		// Optional - not known to older wallets
+		if (compactmemo > 0)
+		{
+			obj.set("compactmemo",    compactmemo);
+		}
+		
 		if (!bForMesagingProtocol)
 		{
 			obj.set("isanonymous",    isAnonymous);
@@ -182,17 +188,17 @@ public class MessagingIdentity
 	public void writeToFile(File f)
 		throws IOException
 	{
-		Writer w = null;
+		OutputStream os = null;
 		
 		try
 		{
-			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
-			w.write(this.toJSONObject(false).toString(WriterConfig.PRETTY_PRINT));
+			os = new FileOutputStream(f);
+			this.toJSONObject(false).writeTo(os, WriterConfig.PRETTY_PRINT);
 		} finally
 		{
-			if (w != null)
+			if (os != null)
 			{
-				w.close();
+				os.close();
 			}
 		}
 	}
@@ -328,6 +334,16 @@ public class MessagingIdentity
 		this.isGroup = isGroup;
 	}
 
+	public int getCompactMemoVersion() 
+	{
+		return compactmemo;
+	}
+
+	public void setCompactMemoVersion(int compactmemo) 
+	{
+		this.compactmemo = compactmemo;
+	}
+
 
 	/**
 	 * Produces a string in the form nick (first middle sur) suitable for display purposes.
@@ -403,6 +419,74 @@ public class MessagingIdentity
 	}
 	
 	
+	/**
+	 * Returns a key for hash lookups consistent with isIdenticalTo() - two identities are 
+	 * identical if and only if their keys are equal.
+	 * 
+	 * @return a key for hash lookups
+	 */
+	public String getIdentityKey()
+	{
+		if (this.isAnonymous())
+		{
+			return "anonymous:" + nonNull(this.getThreadID());
+		} else if (this.isGroup())
+		{
+			return "group:" + nonNull(this.sendreceiveaddress);
+		} else
+		{
+			return "normal:" + nonNull(this.senderidaddress) + ":" + nonNull(this.sendreceiveaddress);
+		}
+	}
+	
+	
+	/**
+	 * Checks if a message contains a ZEN messaging identity in it.
+	 * 
+	 * @param message
+	 * 
+	 * @return true if a ZEN identity is inside
+	 */
+	public static boolean isIdentityMessage(String message)
+	{
+		if (message == null)
+		{
+			return false;
+		}
+		
+		if (!message.trim().startsWith("{"))
+		{
+			return false;
+		}
+		
+		JsonObject jsonMessage = null;
+		try
+		{
+			jsonMessage = Util.parseJsonObject(message);
+		} catch (Exception ex)
+		{
+			return false;
+		}
+		
+		if ((jsonMessage.get("zenmessagingidentity") == null) || 
+			(!jsonMessage.get("zenmessagingidentity").isObject()))
+		{
+			return false;
+		}
+		
+		JsonObject innerMessage = jsonMessage.get("zenmessagingidentity").asObject();
+		if ((innerMessage.get("nickname") == null)           ||
+			(innerMessage.get("sendreceiveaddress") == null) ||
+			(innerMessage.get("senderidaddress") == null))
+		{
+			return false;
+		}
+		
+		// All conditions met - return true
+		return true;
+	}
+	
+	
 	private String nonNull(String s)
 	{
 		return (s != null) ? s : "";
@@ -41,19 +41,23 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -83,6 +87,7 @@ import com.vaklinov.zcashui.DataGatheringThread;
 import com.vaklinov.zcashui.LabelStorage;
 import com.vaklinov.zcashui.Log;
 import com.vaklinov.zcashui.OSUtil;
+import com.vaklinov.zcashui.OperationTracker;
 import com.vaklinov.zcashui.SendCashPanel;
 import com.vaklinov.zcashui.StatusUpdateErrorReporter;
 import com.vaklinov.zcashui.Util;
@@ -90,6 +95,7 @@ import com.vaklinov.zcashui.WalletTabPanel;
 import com.vaklinov.zcashui.ZCashClientCaller;
 import com.vaklinov.zcashui.ZCashClientCaller.NetworkAndBlockchainInfo;
 import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+import com.vaklinov.zcashui.Zatoshi;
 import com.vaklinov.zcashui.msg.Message.DIRECTION_TYPE;
 import com.vaklinov.zcashui.msg.Message.VERIFICATION_TYPE;
 
@@ -106,13 +112,16 @@ public class MessagingPanel
 	
 	private ZCashClientCaller clientCaller;
 	private StatusUpdateErrorReporter errorReporter;
+	private OperationTracker operationTracker;
 	
 	private MessagingStorage messagingStorage;
+	private MessageSignatureVerifier signatureVerifier;
 	
 	private JContactListPanel contactList;
 	
 	private JLabel conversationLabel;
 	private JTextPane conversationTextPane;
+	private ConversationView conversationView;
 	
 	private JTextArea    writeMessageTextArea;
 	private JButton      sendButton;
@@ -124,6 +133,8 @@ public class MessagingPanel
 	
 	private DataGatheringThread<Object> receivedMesagesGatheringThread = null;
 	
+	private OutboundMessageQueue outboundQueue;
+	
 	private Long lastTaddressCheckTime = null;
 	
 	private boolean identityZAddressValidityChecked = false;
@@ -137,7 +148,7 @@ public class MessagingPanel
 	
 	public MessagingPanel(JFrame parentFrame, SendCashPanel sendCashPanel, JTabbedPane parentTabs, 
 			              ZCashClientCaller clientCaller, StatusUpdateErrorReporter errorReporter,
-			              LabelStorage labelStorage)
+			              OperationTracker operationTracker, LabelStorage labelStorage)
 		throws IOException, InterruptedException, WalletCallException
 	{
 		super();
@@ -149,7 +160,9 @@ public class MessagingPanel
 		
 		this.clientCaller     = clientCaller;
 		this.errorReporter    = errorReporter;
+		this.operationTracker = operationTracker;
 		this.messagingStorage = new MessagingStorage();
+		this.signatureVerifier = new MessageSignatureVerifier(clientCaller);
 		this.ipfs             = new IPFSWrapper(parentFrame);
 		
 		// Start building UI
@@ -164,15 +177,17 @@ public class MessagingPanel
 		textAndContactsPane.setRightComponent(this.contactList);
 		
 		JPanel conversationPanel = new JPanel(new BorderLayout(0, 0));
-		conversationPanel.add(
-			new JScrollPane(
-				this.conversationTextPane = new JTextPane(),
-				JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
-				JScrollPane.HORIZONTAL_SCROLLBAR_NEVER), 
-			BorderLayout.CENTER);
+		JScrollPane conversationScrollPane = new JScrollPane(
+			this.conversationTextPane = new JTextPane(),
+			JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+			JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+		conversationPanel.add(conversationScrollPane, BorderLayout.CENTER);
 		this.conversationTextPane.setEditable(false);
 		this.conversationTextPane.setContentType("text/html");
 		this.conversationTextPane.addHyperlinkListener(new GroupLinkHandler());
+		this.conversationView = new ConversationView(
+			this.conversationTextPane, conversationScrollPane, this.messagingStorage, 
+			new ConversationRenderer(), this.errorReporter);
 		JPanel upperPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
 		upperPanel.add(this.conversationLabel = new JLabel(
 			"<html><span style=\"font-size:1.2em;font-style:italic;\">Conversation ...</span>"));
@@ -268,12 +283,32 @@ public class MessagingPanel
 					
 					long end = System.currentTimeMillis();
 					Log.info("Gathering of received messages done in " + (end - start) + "ms." );
+					
+					// Loads the search index in the background and keeps it current
+					MessagingPanel.this.messagingStorage.updateSearchIndex();
 						
 					return null;
 				}
 			}, 
 			this.errorReporter, 45 * 1000, true);
 		this.threads.add(receivedMesagesGatheringThread);
+		
+		// Messages are sent from the outbound queue in batches
+		this.outboundQueue = new OutboundMessageQueue(
+			this.messagingStorage.getRootDir(), this.clientCaller, this.operationTracker, this.messagingStorage);
+		this.outboundQueue.addQueueListener(new OutboundQueueStatusUpdater());
+		this.outboundQueue.reportUncertainMessages();
+		this.threads.add(new DataGatheringThread<Object>(
+			new DataGatheringThread.DataGatherer<Object>() 
+			{
+				public Object gatherData()
+					throws Exception
+				{
+					MessagingPanel.this.outboundQueue.dispatch();
+					return null;
+				}
+			}, 
+			this.errorReporter, 5 * 1000, true));
 	}
 	
 	
@@ -323,7 +358,7 @@ public class MessagingPanel
 				}
 				
 				String messageStart;
-				Map<String, MessagingIdentity> senders = MessagingPanel.this.getKnownSendersForGroup(selectedContact);
+				Map<String, MessagingIdentity> senders = MessagingPanel.this.messagingStorage.getKnownSendersForGroup(selectedContact);
 				if (senders.containsKey(id))
 				{
 					MessagingIdentity sender = senders.get(id);
@@ -361,160 +396,228 @@ public class MessagingPanel
 			    Log.info("Ignoring all messages sent by user id {0} for group conversation {1}", 
 			    		 id, selectedContact.getDiplayString());
 			    MessagingPanel.this.messagingStorage.addIgnoredSenderIdentityForGroup(id, selectedContact);
-			    MessagingPanel.this.displayMessagesForContact(selectedContact);
+			    MessagingPanel.this.displayMessagesForContact(selectedContact, true);
 			}
 		}
 	} // End private class GroupLinkHandler
 
 	
 	/**
-	 * Loads all messages for a specific contact and displays them in the conversation text area.
+	 * Displays the messages for a specific contact in the conversation text area. If the contact
+	 * is already displayed, only the new messages are added. Messages are loaded in the background.
 	 * 
 	 * @param conact
 	 */
 	public void displayMessagesForContact(MessagingIdentity contact)
 		throws IOException
 	{
-		MessagingIdentity ownIdentity = this.messagingStorage.getOwnIdentity();
-		List<Message> messages = this.messagingStorage.getAllMessagesForContact(contact);
-		
-		// Analyze the received messages to extract from them messaging identities (if there are any)
-		// TODO: This could be cached to optimize performance
-		Map<String, MessagingIdentity> knownSenders = this.getKnownSendersForGroup(contact);
+		this.displayMessagesForContact(contact, false);
+	}
+	
+	
+	private void displayMessagesForContact(MessagingIdentity contact, boolean reload)
+	{
+		this.conversationView.showContact(contact, reload);
 		
-		Date now = new Date();
-		StringBuilder text = new StringBuilder();
-
-		final SimpleDateFormat defaultFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-		final SimpleDateFormat shortFormat = new SimpleDateFormat("HH:mm:ss");
+		// Messages of the displayed conversation are considered read
+		try
+		{
+			this.messagingStorage.markContactAsRead(contact);
+			this.contactList.contactsChanged(Collections.singletonList(contact));
+		} catch (IOException ioe)
+		{
+			Log.error("Unexpected error in marking messages as read: ", ioe);
+			this.errorReporter.reportError(ioe, false);
+		}
 		
-		message_loop:
-		for (Message msg : messages)
+		if (contact.isGroup())
 		{
-			// Skip messages sent to a group from ignored IDs.
-			String mesageIDToCheck = msg.isAnonymous() ? msg.getThreadID() : msg.getFrom();
-			if (contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) &&
-				this.messagingStorage.isSenderIdentityIgnoredForGroup(mesageIDToCheck, contact))
+			this.conversationLabel.setText(
+				"<html><span style=\"font-size:1.25em;font-style:italic;\">Conversation in group: " + 
+			    contact.getDiplayString() + "</span>");			
+		} else
+		{
+			this.conversationLabel.setText(
+				"<html><span style=\"font-size:1.25em;font-style:italic;\">Conversation with: " + 
+		        contact.getDiplayString() + "</span>");
+		}
+	}
+	
+	
+	// Produces the HTML of the messages in a conversation - called by the ConversationView off the EDT
+	private class ConversationRenderer
+		implements ConversationView.MessageRenderer
+	{
+		@Override
+		public String getRenderingState(MessagingIdentity contact)
+			throws IOException
+		{
+			MessagingIdentity ownIdentity = MessagingPanel.this.messagingStorage.getOwnIdentity();
+			
+			// Sender names in groups depend on the identities received so far and the ignored ones
+			StringBuilder senders = new StringBuilder();
+			if (contact.isGroup())
 			{
-				Log.warningOneTime("Ignoring message sent to group {1} due to user preference: {0}",
-						           msg.toJSONObject(false).toString(), contact.getDiplayString());
-				continue message_loop;
+				Map<String, MessagingIdentity> knownSenders = 
+					new TreeMap<String, MessagingIdentity>(MessagingPanel.this.messagingStorage.getKnownSendersForGroup(contact));
+				for (Map.Entry<String, MessagingIdentity> sender : knownSenders.entrySet())
+				{
+					senders.append(sender.getKey()).append("=").append(sender.getValue().getDiplayString()).append(";");
+				}
+				
+				// Messages of ignored senders are not shown
+				for (String ignoredID : new TreeSet<String>(
+					MessagingPanel.this.messagingStorage.getIgnoredSenderIdentitiesForGroup(contact)))
+				{
+					senders.append("!").append(ignoredID).append(";");
+				}
 			}
 			
-			// Skip message if sent from own id to group
-			if (contact.isGroup() && (!msg.isAnonymous()) && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) && 
-				msg.getFrom().equals(ownIdentity.getSenderidaddress()))
+			// Time stamps of today's messages are shorter
+			return new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + "|" + 
+			       ((ownIdentity != null) ? ownIdentity.getNickname() : "") + "|" + contact.getNickname() + "|" + 
+				   Integer.toHexString(senders.toString().hashCode());
+		}
+		
+		
+		@Override
+		public List<String> renderMessages(MessagingIdentity contact, List<Message> messages)
+			throws IOException
+		{
+			MessagingIdentity ownIdentity = MessagingPanel.this.messagingStorage.getOwnIdentity();
+			
+			// Analyze the received messages to extract from them messaging identities (if there are any)
+			Map<String, MessagingIdentity> knownSenders = contact.isGroup() ?
+				MessagingPanel.this.messagingStorage.getKnownSendersForGroup(contact) : new HashMap<String, MessagingIdentity>();
+			
+			List<String> fragments = new ArrayList<String>(messages.size());
+			Date now = new Date();
+	
+			final SimpleDateFormat defaultFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			final SimpleDateFormat shortFormat = new SimpleDateFormat("HH:mm:ss");
+			
+			message_loop:
+			for (Message msg : messages)
 			{
-				continue message_loop;
-			}
+				StringBuilder text = new StringBuilder();
+				fragments.add("");
+
+				// Skip messages sent to a group from ignored IDs.
+				String mesageIDToCheck = msg.isAnonymous() ? msg.getThreadID() : msg.getFrom();
+				if (contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) &&
+					MessagingPanel.this.messagingStorage.isSenderIdentityIgnoredForGroup(mesageIDToCheck, contact))
+				{
+					Log.warningOneTime("Ignoring message sent to group {1} due to user preference: {0}",
+							           msg.toJSONObject(false).toString(), contact.getDiplayString());
+					continue message_loop;
+				}
 			
-			String color = msg.getDirection() == DIRECTION_TYPE.SENT ? "blue" : "red";
+				// Skip message if sent from own id to group
+				if (contact.isGroup() && (!msg.isAnonymous()) && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) && 
+					msg.getFrom().equals(ownIdentity.getSenderidaddress()))
+				{
+					continue message_loop;
+				}
+			
+				String color = msg.getDirection() == DIRECTION_TYPE.SENT ? "blue" : "red";
 
-			String stamp = defaultFormat.format(msg.getTime()); // TODO: correct date further
-			if (Math.abs(now.getTime() - msg.getTime().getTime()) < (24L * 3600 * 1000)) // 24 h
-			{
-				if (now.getDay() == msg.getTime().getDay())
+				String stamp = defaultFormat.format(msg.getTime()); // TODO: correct date further
+				if (Math.abs(now.getTime() - msg.getTime().getTime()) < (24L * 3600 * 1000)) // 24 h
 				{
-					stamp = shortFormat.format(msg.getTime());
+					if (now.getDay() == msg.getTime().getDay())
+					{
+						stamp = shortFormat.format(msg.getTime());
+					}
 				}
-			}
 			
-			String preparedMessage = null;
+				String preparedMessage = null;
 			
-			if (this.isZENIdentityMessage(msg.getMessage()))
-			{
-				MessagingIdentity msgID = new MessagingIdentity(
-					Util.parseJsonObject(msg.getMessage()).get("zenmessagingidentity").asObject());
+				if (MessagingPanel.this.isZENIdentityMessage(msg.getMessage()))
+				{
+					MessagingIdentity msgID = new MessagingIdentity(
+						Util.parseJsonObject(msg.getMessage()).get("zenmessagingidentity").asObject());
 				
-				preparedMessage = "<span style=\"color:green;\">" +
-					"Special identity carrying message; Contains details of contact: " +
-					msgID.getDiplayString() +
-					"</span>";
-			} else
-			{
-				// Replace line end characters, for multi-line messages
-				preparedMessage = Util.escapeHTMLValue(msg.getMessage());
-				preparedMessage = preparedMessage.replace("\n", "<br/>");
-				// Possibly replace IPFS links
-				preparedMessage = this.ipfs.replaceIPFSHTMLLinks(preparedMessage);
-			};
+					preparedMessage = "<span style=\"color:green;\">" +
+						"Special identity carrying message; Contains details of contact: " +
+						msgID.getDiplayString() +
+						"</span>";
+				} else
+				{
+					// Replace line end characters, for multi-line messages
+					preparedMessage = Util.escapeHTMLValue(msg.getMessage());
+					preparedMessage = preparedMessage.replace("\n", "<br/>");
+					// Possibly replace IPFS links
+					preparedMessage = MessagingPanel.this.ipfs.replaceIPFSHTMLLinks(preparedMessage);
+					// Shared content is cached while the messages are shown
+					MessagingPanel.this.ipfs.prefetchLinks(msg.getMessage());
+				};
 			
-			text.append("<span style=\"color:" + color +";\">");
-			if (!contact.isGroup())
-			{
-				text.append("<span style=\"font-weight:bold;font-size:1.5em;\">");
-				text.append(msg.getDirection() == DIRECTION_TYPE.SENT ? "\u21E8 " : "\u21E6 ");
-				text.append("</span>");
-			}
-			text.append("(");
-			text.append(stamp); 
-			text.append(") ");
+				text.append("<span style=\"color:" + color +";\">");
+				if (!contact.isGroup())
+				{
+					text.append("<span style=\"font-weight:bold;font-size:1.5em;\">");
+					text.append(msg.getDirection() == DIRECTION_TYPE.SENT ? "\u21E8 " : "\u21E6 ");
+					text.append("</span>");
+				}
+				text.append("(");
+				text.append(stamp); 
+				text.append(") ");
 			
-			if (!msg.isAnonymous())
-			{
-				if ((msg.getDirection() == DIRECTION_TYPE.RECEIVED) && 
-					(msg.getVerification() == VERIFICATION_TYPE.UNVERIFIED))
+				if (!msg.isAnonymous())
+				{
+					if ((msg.getDirection() == DIRECTION_TYPE.RECEIVED) && 
+						(msg.getVerification() == VERIFICATION_TYPE.UNVERIFIED))
+					{
+						text.append("<span style=\"font-weight:bold;\">");
+						text.append("[WARNING: Message signature is unverified.] ");
+						text.append("</span>");	
+					} else if ((msg.getDirection() == DIRECTION_TYPE.RECEIVED) && 
+							   (msg.getVerification() == VERIFICATION_TYPE.VERIFICATION_FAILED))
+					{
+						text.append("<span style=\"font-weight:bold;font-size:1.25em;\">");
+						text.append("[ERROR: Message signature is invalid! Message may be forged!] ");
+						text.append("</span>");
+					}
+				} else
 				{
+					text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? 
+						"<a href=\"http://ANON_" + msg.getThreadID() + "\">" : "");
 					text.append("<span style=\"font-weight:bold;\">");
-					text.append("[WARNING: Message signature is unverified.] ");
-					text.append("</span>");	
-				} else if ((msg.getDirection() == DIRECTION_TYPE.RECEIVED) && 
-						   (msg.getVerification() == VERIFICATION_TYPE.VERIFICATION_FAILED))
+					text.append("[Anonymous] ");
+					text.append(contact.isGroup() ? "[" + msg.getThreadID().substring(0, 15) + "...] " : "");
+					text.append("</span>");
+					text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? "</a>" : "");
+				}
+			
+				// Try to resolve the identity of the sender
+				MessagingIdentity groupSenderIdentity = knownSenders.containsKey(msg.getFrom()) ?
+					knownSenders.get(msg.getFrom()) : null;
+				String groupSenderNickName = (groupSenderIdentity != null) ?
+					groupSenderIdentity.getDiplayString() : ("<" + msg.getFrom() + ">");
+				String senderNickname = contact.isGroup() ?
+					Util.escapeHTMLValue(groupSenderNickName) :
+			        Util.escapeHTMLValue(contact.getNickname());
+			
+				if ((!msg.isAnonymous()) || (msg.getDirection() == DIRECTION_TYPE.SENT))
 				{
-					text.append("<span style=\"font-weight:bold;font-size:1.25em;\">");
-					text.append("[ERROR: Message signature is invalid! Message may be forged!] ");
+					text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? 
+							"<a href=\"http://NORM_" + msg.getFrom() + "\">" : "");
+					text.append("<span style=\"font-weight:bold;\">");
+					text.append(msg.getDirection() == DIRECTION_TYPE.SENT ? 
+							    Util.escapeHTMLValue(ownIdentity.getNickname()) : senderNickname);
 					text.append("</span>");
+					text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? "</a>" : "");
 				}
-			} else
-			{
-				text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? 
-					"<a href=\"http://ANON_" + msg.getThreadID() + "\">" : "");
-				text.append("<span style=\"font-weight:bold;\">");
-				text.append("[Anonymous] ");
-				text.append(contact.isGroup() ? "[" + msg.getThreadID().substring(0, 15) + "...] " : "");
+				text.append(": ");
 				text.append("</span>");
-				text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? "</a>" : "");
-			}
+				text.append(preparedMessage);
 			
-			// Try to resolve the identity of the sender
-			MessagingIdentity groupSenderIdentity = knownSenders.containsKey(msg.getFrom()) ?
-				knownSenders.get(msg.getFrom()) : null;
-			String groupSenderNickName = (groupSenderIdentity != null) ?
-				groupSenderIdentity.getDiplayString() : ("<" + msg.getFrom() + ">");
-			String senderNickname = contact.isGroup() ?
-				Util.escapeHTMLValue(groupSenderNickName) :
-		        Util.escapeHTMLValue(contact.getNickname());
-			
-			if ((!msg.isAnonymous()) || (msg.getDirection() == DIRECTION_TYPE.SENT))
-			{
-				text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? 
-						"<a href=\"http://NORM_" + msg.getFrom() + "\">" : "");
-				text.append("<span style=\"font-weight:bold;\">");
-				text.append(msg.getDirection() == DIRECTION_TYPE.SENT ? 
-						    Util.escapeHTMLValue(ownIdentity.getNickname()) : senderNickname);
-				text.append("</span>");
-				text.append(contact.isGroup() && (msg.getDirection() == DIRECTION_TYPE.RECEIVED) ? "</a>" : "");
+				fragments.set(fragments.size() - 1, text.toString());
 			}
-			text.append(": ");
-			text.append("</span>");
-			text.append(preparedMessage);
-			text.append("<br/>");
-		}
-		
-		this.conversationTextPane.setText("<html>" + text.toString() + "</html>");
-		
-		if (contact.isGroup())
-		{
-			this.conversationLabel.setText(
-				"<html><span style=\"font-size:1.25em;font-style:italic;\">Conversation in group: " + 
-			    contact.getDiplayString() + "</span>");			
-		} else
-		{
-			this.conversationLabel.setText(
-				"<html><span style=\"font-size:1.25em;font-style:italic;\">Conversation with: " + 
-		        contact.getDiplayString() + "</span>");
+			
+			return fragments;
 		}
-	}
+	} // End private class ConversationRenderer
 	
 
 	/**
@@ -599,7 +702,7 @@ public class MessagingPanel
 				// Own identity exists, check balance of T address !!! - must be none
 				MessagingIdentity ownIdentity =  this.messagingStorage.getOwnIdentity();
 				Cursor oldCursor = this.parentFrame.getCursor();
-				String balance = null;
+				Zatoshi balance = null;
 				try
 				{
      				this.parentFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
@@ -609,7 +712,7 @@ public class MessagingPanel
 					this.parentFrame.setCursor(oldCursor);
 				}
 				
-		    	if (Double.valueOf(balance) > 0)
+		    	if (balance.signum() > 0)
 		    	{
 			        JOptionPane.showMessageDialog(
 					    this.parentFrame,
@@ -632,6 +735,29 @@ public class MessagingPanel
 	}
 	
 	
+	public void searchMessages()
+	{
+		try
+		{
+			MessageSearchDialog searchDialog = new MessageSearchDialog(
+				this.parentFrame, this, this.messagingStorage, this.errorReporter);
+			searchDialog.setVisible(true);
+		} catch (Exception ex)
+		{
+			Log.error("Unexpected error in searching messages!", ex);
+			this.errorReporter.reportError(ex, false);
+		}
+	}
+	
+	
+	// Selects a contact and shows the conversation with it
+	public void showConversationWithContact(MessagingIdentity contact)
+	{
+		this.parentTabs.setSelectedComponent(this);
+		this.contactList.selectContact(contact);
+	}
+	
+	
 	public void openOptionsDialog()
 	{
 		try
@@ -677,8 +803,8 @@ public class MessagingPanel
 				     for (int i = 0; i < 10; i++)
 				     {
 				    	 TAddress = this.clientCaller.createNewAddress(false);
-				    	 String balance = this.clientCaller.getBalanceForAddress(TAddress);
-				    	 if (Double.valueOf(balance) <= 0)
+				    	 Zatoshi balance = this.clientCaller.getBalanceForAddress(TAddress);
+				    	 if (balance.signum() <= 0)
 				    	 {
 				    		 break;
 				    	 }
@@ -760,17 +886,16 @@ public class MessagingPanel
 			
 			File f = fileChooser.getSelectedFile();
 			
+			JsonObject innerIdentityObject = ownIdentity.toJSONObject(true);
+			innerIdentityObject.set("compactmemo", MemoCodec.SUPPORTED_MEMO_VERSION);
 			JsonObject identityObject = new JsonObject();
-			identityObject.set("zenmessagingidentity", ownIdentity.toJSONObject(true));
-			String identityString = identityObject.toString(WriterConfig.PRETTY_PRINT);
+			identityObject.set("zenmessagingidentity", innerIdentityObject);
 			
 			FileOutputStream fos = null;
 			try
 			{
 				fos = new FileOutputStream(f);
-				OutputStreamWriter osw = new OutputStreamWriter(fos, "UTF-8");
-				osw.write(identityString);
-				osw.flush();
+				identityObject.writeTo(fos, WriterConfig.PRETTY_PRINT);
 			} finally
 			{
 				if (fos != null)
@@ -1159,7 +1284,8 @@ public class MessagingPanel
 		}
 		
 		// Get the text to send as a message
-		if (textToSend == null)
+		final boolean textIsFromTextArea = (textToSend == null);
+		if (textIsFromTextArea)
 		{
 			textToSend = this.writeMessageTextArea.getText();
 		}
@@ -1174,45 +1300,30 @@ public class MessagingPanel
 			return;
 		}
 		
-		// Make sure there is not another send operation going on - at this time
-		if ((this.operationStatusTimer != null) || (!this.sendButton.isEnabled()))
-		{
-	        JOptionPane.showMessageDialog(
-	        	this.parentFrame,
-	        	"There is currently another message sending operation under way.\n" +
-	        	"Please wait until the operation is completed...", 
-		        "Another message sending operation is under way!", JOptionPane.ERROR_MESSAGE);					
-			return;
-		}
-		
-		// Disable sending controls, set status.
-		this.sendButton.setEnabled(false);
-		this.writeMessageTextArea.setEnabled(false);
-				
 		// Form the JSON message to be sent
 		MessagingIdentity ownIdentity = this.messagingStorage.getOwnIdentity(); 
 		
 		MessagingOptions msgOptions = this.messagingStorage.getMessagingOptions();
 		
-		// Check to make sure the sending address has some funds!!!
-		final double minimumBalance = msgOptions.getAmountToSend() + msgOptions.getTransactionFee();
+		// Check to make sure the sending address has some funds!!! Confirmed balance is not required
+		// since the outbound queue waits for it.
+		final Zatoshi minimumBalance = Zatoshi.valueOfZen(msgOptions.getAmountToSend()).add(
+			Zatoshi.valueOfZen(msgOptions.getTransactionFee()));
 		
-		Double balance = null;
-		Double unconfirmedBalance = null;
+		Zatoshi balance = null;
+		Zatoshi unconfirmedBalance = null;
 		Cursor oldCursor = this.parentFrame.getCursor();
 		try
 		{
 			this.parentFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-			balance = Double.valueOf(
-				this.clientCaller.getBalanceForAddress(ownIdentity.getSendreceiveaddress()));
-			unconfirmedBalance = Double.valueOf(
-				this.clientCaller.getUnconfirmedBalanceForAddress(ownIdentity.getSendreceiveaddress()));
+			balance = this.clientCaller.getBalanceForAddress(ownIdentity.getSendreceiveaddress());
+			unconfirmedBalance = this.clientCaller.getUnconfirmedBalanceForAddress(ownIdentity.getSendreceiveaddress());
 		} finally
 		{
 			this.parentFrame.setCursor(oldCursor);
 		}		
 		
-		if ((balance < minimumBalance) && (unconfirmedBalance < minimumBalance))
+		if ((balance.compareTo(minimumBalance) < 0) && (unconfirmedBalance.compareTo(minimumBalance) < 0))
 		{
 			Log.warning("Sending address has balance: {0} and unconfirmed balance: {1}",
 					    balance, unconfirmedBalance);
@@ -1227,38 +1338,12 @@ public class MessagingPanel
 	        	"transaction is sufficient).", 
 		        "Z address to send/receive messages has insufficient balance...", JOptionPane.ERROR_MESSAGE);
 		        
-	            // Restore controls and move to the send cash tab etc.
-		        this.sendButton.setEnabled(true);
-				this.writeMessageTextArea.setEnabled(true);
-				
+	            // Move to the send cash tab etc.
 				sendCashPanel.prepareForSending(ownIdentity.getSendreceiveaddress());
 	            parentTabs.setSelectedIndex(3);				
 				return;
 		}
 		
-		if ((balance < minimumBalance) && (unconfirmedBalance >= minimumBalance))
-		{
-			Log.warning("Sending address has balance: {0} and unconfirmed balance: {1}",
-				        balance, unconfirmedBalance);
-	        JOptionPane.showMessageDialog(
-	        	this.parentFrame,
-	        	"The Z address used to send/receive messages has insufficient confirmed balance: \n" +
-	        	ownIdentity.getSendreceiveaddress() + "\n" +
-	        	"This usually means that the previous messaging transaction is not yet confirmed. You\n" +
-	        	"need to wait for the transaction to be confirmed (typically takes 2.5 minutes). This\n" +
-	        	"problem may be avoided if you send ZEN to this Z address in two or more separate \n" +
-	        	"transactions (when you supply the ZEN balance to be used for messaging).", 
-		        "Z address to send/receive messages has insufficient confirmed balance...", JOptionPane.ERROR_MESSAGE);
-		        
-	            // Restore controls and move to the send cash tab etc.
-		        this.sendButton.setEnabled(true);
-				this.writeMessageTextArea.setEnabled(true);
-				
-				return;
-		}
-		
-		
-		String memoString = null;
 		JsonObject jsonInnerMessage = null;
 		
 		if (sendAnonymously)
@@ -1272,10 +1357,6 @@ public class MessagingPanel
 			{
 				jsonInnerMessage.set("returnaddress", ownIdentity.getSendreceiveaddress());
 			}
-			
-			JsonObject jsonOuterMessage = new JsonObject();
-			jsonOuterMessage.set("zenmsg", jsonInnerMessage);
-			memoString = jsonOuterMessage.toString();			
 		} else
 		{
 			// Sign a HEX encoded message ... to avoid possible UNICODE issues
@@ -1287,16 +1368,19 @@ public class MessagingPanel
 			jsonInnerMessage.set("from", ownIdentity.getSenderidaddress());
 			jsonInnerMessage.set("message", textToSend);
 			jsonInnerMessage.set("sign", signature);
-			JsonObject jsonOuterMessage = new JsonObject();
-			jsonOuterMessage.set("zenmsg", jsonInnerMessage);
-			memoString = jsonOuterMessage.toString();
 		}
 		
-		final JsonObject jsonInnerMessageForFurtherUse = jsonInnerMessage;
-		
 		// Check the size of the message to be sent, error if it exceeds.
-		final int maxSendingLength = 512;
-		int overallSendingLength = memoString.getBytes("UTF-8").length; 
+		// Peers advertising it get the compact memo form. Groups have members of unknown version. 
+		boolean compactMemo = (!contactIdentity.isGroup()) && 
+			(contactIdentity.getCompactMemoVersion() >= MemoCodec.COMPACT_FORMAT_VERSION);
+		// Long messages are split into fragments for peers that can reassemble them 
+		boolean fragmentedMemo = (!contactIdentity.isGroup()) && 
+			(contactIdentity.getCompactMemoVersion() >= MemoCodec.FRAGMENTED_FORMAT_VERSION);
+		byte[] memo = MemoCodec.encodeMessage(jsonInnerMessage, compactMemo);
+		final int maxSendingLength = fragmentedMemo ? 
+			MemoCodec.MAX_FRAGMENTED_MESSAGE_SIZE : MemoCodec.MAX_MEMO_SIZE;
+		int overallSendingLength = memo.length; 
 		if (overallSendingLength > maxSendingLength)
 		{
 			Log.warning("Text length of exceeding message: {0}", textToSend.length());
@@ -1312,11 +1396,15 @@ public class MessagingPanel
         		"characters per message (number is not exact - depends on character\n" + 
         		"encoding specifics).", 
 	        	"Message size exceeds currently supported limits...", JOptionPane.ERROR_MESSAGE);
-	        // Restore controls and exit
-	        this.sendButton.setEnabled(true);
-			this.writeMessageTextArea.setEnabled(true);
 			return;
 		}
+		
+		List<byte[]> memos = Collections.singletonList(memo);
+		if (memo.length > MemoCodec.MAX_MEMO_SIZE)
+		{
+			memos = MemoCodec.encodeFragments(memo);
+			Log.info("Message is sent in {0} fragments.", memos.size());
+		}
 			
 		if (updateMessagingIdentityJustBeforeSend)
 		{
@@ -1331,143 +1419,160 @@ public class MessagingPanel
 			}
 		}
 		
-		// Finally send the message		
-		String tempOperationID = null;
-		try
+		// Finally queue the message - it is sent with the next batch
+		this.outboundQueue.enqueue(contactIdentity, jsonInnerMessage, memos);
+		
+		if (textIsFromTextArea)
 		{
-			tempOperationID = this.clientCaller.sendMessage(
-	    	    ownIdentity.getSendreceiveaddress(), contactIdentity.getSendreceiveaddress(), 
-	    	    msgOptions.getAmountToSend(), msgOptions.getTransactionFee(), memoString);
-		} catch (WalletCallException wce)
+			this.writeMessageTextArea.setText(""); // clear message from text area
+		}
+	}
+	
+	
+	// Shows the state of the outbound queue and the outcome of sending queued messages
+	private class OutboundQueueStatusUpdater
+		implements OutboundMessageQueue.QueueListener
+	{
+		@Override
+		public void messageDelivered(MessagingIdentity contact, Message message) 
 		{
-			Log.error("Wallet call error in sending message: ", wce);
+			try
+			{
+				MessagingPanel.this.contactList.contactsChanged(Collections.singletonList(contact));
+			} catch (IOException ioe)
+			{
+				Log.error("Unexpected error in updating contact list after sending message: ", ioe);
+			}
 			
+			MessagingIdentity selectedContact = MessagingPanel.this.contactList.getSelectedContact();
+			if ((selectedContact != null) && selectedContact.isIdenticalTo(contact))
+			{
+				try
+				{
+					// Update conversation text pane
+					MessagingPanel.this.displayMessagesForContact(selectedContact);
+				} catch (Exception ex)
+				{
+					Log.error("Unexpected error in displaying sent message: ", ex);
+					MessagingPanel.this.errorReporter.reportError(ex);
+				}
+			}
+		}
+		
+		
+		@Override
+		public void messageFailed(MessagingIdentity contact, String errorMessage) 
+		{
 			sendResultLabel.setText(
 				"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
 				"<span style=\"color:red;font-weight:bold\">ERROR! </span></span></html>");
 			JOptionPane.showMessageDialog(
 				MessagingPanel.this.getRootPane().getParent(), 
-				"An error occurred upon sending message to contact: " + contactIdentity.getDiplayString() + ". \n" +
-				"Error message is: " +	wce.getMessage() + "\n" +
+				"An error occurred when sending message to contact: " + contact.getDiplayString() + ". \n" +
+				"Error message is: " +	errorMessage + "\n\n" +
 				"If the problem persists, you may need technical support :( ...\n", 
 				"Error in sending message", JOptionPane.ERROR_MESSAGE);
+		}
+		
+		
+		@Override
+		public void deliveryUncertain(int uncertainMessages) 
+		{
+			Object[] options = { "Send again", "Mark as sent", "Decide later" };
+			int option = JOptionPane.showOptionDialog(
+				MessagingPanel.this.getRootPane().getParent(), 
+				"The wallet does not know any more the operation that sent " + uncertainMessages + 
+				" message(s) - it may \n" +
+				"have been restarted in the meantime. The message(s) could not be found on the blockchain, \n" +
+				"but they may still have been delivered. Sending them again may deliver them twice. \n\n" +
+				"Do you want to send the message(s) again or mark them as sent?\n" +
+				"If you decide later, you will be asked again the next time the wallet is started.", 
+				"Message delivery is uncertain", 
+				JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null, options, options[2]);
 			
-			sendMessageProgressBar.setValue(0);						 
-			sendButton.setEnabled(true);
-			writeMessageTextArea.setEnabled(true);
-			
-			// Exit prematurely
-			return;
+			if ((option == 0) || (option == 1))
+			{
+				MessagingPanel.this.outboundQueue.resolveUncertainMessages(option == 0);
+			}
 		}
 		
-		final String operationStatusID = tempOperationID;
 		
-		// Start a data gathering thread specific to the operation being executed - this is done is a separate 
-		// thread since the server responds more slowly during JoinSPlits and this blocks he GUI somewhat.
-		final DataGatheringThread<Boolean> opFollowingThread = new DataGatheringThread<Boolean>(
-			new DataGatheringThread.DataGatherer<Boolean>() 
+		@Override
+		public void queueChanged(int pendingMessages, int messagesInProgress) 
+		{
+			if (messagesInProgress > 0)
 			{
-				public Boolean gatherData()
-					throws Exception
+				sendResultLabel.setText(
+					"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
+					"<span style=\"color:orange;font-weight:bold\">IN PROGRESS (" + 
+					(pendingMessages + messagesInProgress) + ")</span></span></html>");
+				this.startProgressAnimation();
+			} else 
+			{
+				this.stopProgressAnimation();
+				if (pendingMessages > 0)
 				{
-					long start = System.currentTimeMillis();
-					Boolean result = MessagingPanel.this.clientCaller.isSendingOperationComplete(operationStatusID);
-					long end = System.currentTimeMillis();
-					Log.info("Checking for messaging operation " + operationStatusID + " status done in " + (end - start) + "ms." );
-					
-					return result;
+					sendResultLabel.setText(
+						"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
+						"<span style=\"color:orange;font-weight:bold\">QUEUED (" + 
+						pendingMessages + ")</span></span></html>");
+				} else if (sendResultLabel.getText().contains("QUEUED") || 
+						   sendResultLabel.getText().contains("IN PROGRESS"))
+				{
+					sendResultLabel.setText(
+						"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
+						"<span style=\"color:green;font-weight:bold\">SUCCESSFUL</span></span></html>");
 				}
-			}, 
-			this.errorReporter, 2000, true);
-
-		// Start a timer to update the progress of the operation
-		this.operationStatusTimer = new Timer(2000, new ActionListener() 
+			}
+			
+			MessagingPanel.this.repaint();
+		}
+		
+		
+		// The timer only animates the progress while a batch is in flight
+		private void startProgressAnimation()
 		{
-			public int operationStatusCounter = 0;
+			if (operationStatusTimer != null)
+			{
+				return;
+			}
 			
-			@Override
-			public void actionPerformed(ActionEvent e) 
+			operationStatusTimer = new Timer(2000, new ActionListener() 
 			{
-				try
+				public int operationStatusCounter = 0;
+				
+				@Override
+				public void actionPerformed(ActionEvent e) 
 				{
-					Boolean opComplete = opFollowingThread.getLastData();
-					
-					if ((opComplete != null) && opComplete.booleanValue())
+					operationStatusCounter += 2;
+					int progress = 0;
+					if (operationStatusCounter <= 100)
 					{
-						// End the special thread used to follow the operation
-						opFollowingThread.setSuspended(true);
-						
-						boolean sendWasSuccessful = clientCaller.isCompletedOperationSuccessful(operationStatusID); 
-						if (sendWasSuccessful)
-						{
-							sendResultLabel.setText(
-								"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
-								"<span style=\"color:green;font-weight:bold\">SUCCESSFUL</span></span></html>");
-						} else
-						{
-							String errorMessage = clientCaller.getOperationFinalErrorMessage(operationStatusID); 
-							sendResultLabel.setText(
-								"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
-								"<span style=\"color:red;font-weight:bold\">ERROR! </span></span></html>");
-							JOptionPane.showMessageDialog(
-								MessagingPanel.this.getRootPane().getParent(), 
-								"An error occurred when sending message to contact: " + contactIdentity.getDiplayString() + ". \n" +
-								"Error message is: " +	errorMessage + "\n\n" +
-								"If the problem persists, you may need technical support :( ...\n", 
-								"Error in sending message", JOptionPane.ERROR_MESSAGE);
-						}
-								
-								
-						// Restore controls etc. final actions - reenable
-						sendMessageProgressBar.setValue(0);
-						operationStatusTimer.stop();
-						operationStatusTimer = null;
-						sendButton.setEnabled(true);
-						writeMessageTextArea.setEnabled(true);
-						writeMessageTextArea.setText(""); // clear message from text area
-					    
-						if (sendWasSuccessful)
-						{
-						    // Save message as outgoing
-							Message msg = new Message(jsonInnerMessageForFurtherUse);
-							msg.setTime(new Date());
-							msg.setDirection(DIRECTION_TYPE.SENT);
-							// TODO: We can get the transaction ID for outgoing messages but is is probably unnecessary
-							msg.setTransactionID(""); 
-							messagingStorage.writeNewSentMessageForContact(contactIdentity, msg);
-						}
-					    
-					    // Update conversation text pane
-						displayMessagesForContact(contactIdentity);
-								
+						progress = operationStatusCounter;
 					} else
 					{
-						// Update the progress
-						sendResultLabel.setText(
-							"<html><span style=\"font-size:0.8em;\">Send status: &nbsp;" +
-							"<span style=\"color:orange;font-weight:bold\">IN PROGRESS</span></span></html>");
-						operationStatusCounter += 2;
-						int progress = 0;
-						if (operationStatusCounter <= 100)
-						{
-							progress = operationStatusCounter;
-						} else
-						{
-							progress = 100 + (((operationStatusCounter - 100) * 6) / 10);
-						}
-						sendMessageProgressBar.setValue(progress);
+						progress = 100 + (((operationStatusCounter - 100) * 6) / 10);
 					}
-							
+					sendMessageProgressBar.setValue(Math.min(progress, sendMessageProgressBar.getMaximum()));
+					
 					MessagingPanel.this.repaint();
-				} catch (Exception ex)
-				{
-					Log.error("Unexpected error in sending message: ", ex);
-					MessagingPanel.this.errorReporter.reportError(ex);
 				}
+			});
+			operationStatusTimer.setInitialDelay(0);
+			operationStatusTimer.start();
+		}
+		
+		
+		private void stopProgressAnimation()
+		{
+			if (operationStatusTimer != null)
+			{
+				operationStatusTimer.stop();
+				operationStatusTimer = null;
 			}
-		}); // End timer operation
-		operationStatusTimer.setInitialDelay(0);
-		operationStatusTimer.start();	    
+			
+			sendMessageProgressBar.setValue(0);
+		}
 	}
 	
 	
@@ -1490,17 +1595,24 @@ public class MessagingPanel
 					return;
 				}
 				
+				// The own identity and all groups are collected in one pass, the UI is updated once
+				CollectionResult result = new CollectionResult();
+				
 				// Call it for the own identity
-				collectAndStoreNewReceivedMessages(null);
+				collectAndStoreNewReceivedMessages(null, result);
 				
 				// Call it for all existing groups
 				for (MessagingIdentity id : this.messagingStorage.getContactIdentities(false))
 				{
 					if (id.isGroup())
 					{
-						collectAndStoreNewReceivedMessages(id);
+						collectAndStoreNewReceivedMessages(id, result);
 					}
 				}
+				
+				this.messagingStorage.flush();
+				
+				this.updateUIAfterCollection(result);
 			}
 		} catch (Exception e)
 		{
@@ -1519,7 +1631,17 @@ public class MessagingPanel
 	}
 	
 	
-	private void collectAndStoreNewReceivedMessages(MessagingIdentity groupIdentity)
+	// Outcome of one message collection pass over all receiving addresses
+	private static class CollectionResult
+	{
+		boolean newMessagesStored = false;
+		boolean newContactCreated = false;
+		// Contacts that received messages - their unread counts are updated
+		List<MessagingIdentity> contactsWithNewMessages = new ArrayList<MessagingIdentity>();
+	}
+	
+	
+	private void collectAndStoreNewReceivedMessages(MessagingIdentity groupIdentity, CollectionResult result)
 		throws IOException, WalletCallException, InterruptedException
 	{
 		MessagingIdentity ownIdentity = this.messagingStorage.getOwnIdentity();
@@ -1559,21 +1681,6 @@ public class MessagingPanel
 			this.identityZAddressValidityChecked = true;
 		}
 		
-		// Get the transaction IDs from all received transactions in the local storage
-		// TODO: optimize/cache this
-		Set<String> storedTransactionIDs = new HashSet<String>();
-		for (MessagingIdentity identity : this.messagingStorage.getContactIdentities(true))
-		{
-			for (Message localMessage : this.messagingStorage.getAllMessagesForContact(identity))
-			{
-				if ((localMessage.getDirection() == DIRECTION_TYPE.RECEIVED) &&
-					(!Util.stringIsEmpty(localMessage.getTransactionID())))
-				{
-					storedTransactionIDs.add(localMessage.getTransactionID());
-				}
-			}
-		}
-	 
 		if (ownIdentity == null)
 		{
 			Log.warning("Own messaging identity does not exist yet. No received messages collected!");
@@ -1586,63 +1693,66 @@ public class MessagingPanel
 		// TODO: there seems to be no way to limit the number of transactions returned!
 		JsonObject[] walletTransactions = this.clientCaller.getTransactionMessagingDataForZaddress(ZAddress);
 		
-		// Filter the transactions to obtain only those that have memos parsable as JSON
-		// and being real messages. In addition only those remain that are not registered before
-		List<Message> filteredMessages = new ArrayList<Message>();
+		// Notes are only processed if their number changed since the last complete scan of the address
+		if (!this.messagingStorage.hasNewNotesForReceiveAddress(ZAddress, walletTransactions.length))
+		{
+			return;
+		}
+		
+		// Only transactions not registered before are decoded
+		List<JsonObject> newTransactions = new ArrayList<JsonObject>();
 		for (JsonObject trans : walletTransactions)
 		{
-			String memoHex = trans.getString("memo", "ERROR");
-			String transactionID = trans.getString("txid",  "ERROR");
-			if (!"ERROR".equals(memoHex))
+			if ((!"ERROR".equals(trans.getString("memo", "ERROR"))) &&
+				(!this.messagingStorage.isReceivedTransactionStored(trans.getString("txid",  "ERROR"))))
 			{
-				String decodedMemo = Util.decodeHexMemo(memoHex);
-				JsonObject jsonMessage = null;
-				try
-				{
-					if (decodedMemo != null)
-					{
-						jsonMessage = Util.parseJsonObject(decodedMemo);
-					}
-				} catch (Exception ex)
-				{
-					Log.warningOneTime(
-						"Decoded memo is not parsable: {0}, due to {1}: {2}", 
-						decodedMemo, ex.getClass().getName(), ex.getMessage());
-				}
-				
-				if ((jsonMessage != null) &&
-				   ((jsonMessage.get("zenmsg") != null) &&
-				   (!storedTransactionIDs.contains(transactionID))))
-				{
-					JsonObject innerZenmsg = jsonMessage.get("zenmsg").asObject();
-					if (Message.isValidZENMessagingProtocolMessage(innerZenmsg))
-					{
-						// Finally test that the message has all attributes required
-						Message message = new Message(innerZenmsg);
-						// Set additional message attributes not available over the wire
-						message.setDirection(DIRECTION_TYPE.RECEIVED);
-						message.setTransactionID(transactionID);
-						String UNIXDate = this.clientCaller.getWalletTransactionTime(transactionID);
-						message.setTime(new Date(Long.valueOf(UNIXDate).longValue() * 1000L));						
-						// TODO: additional sanity check that T/Z addresses are valid etc.
-						filteredMessages.add(message);
-					} else
-					{
-						// Warn of unexpected message content
-						Log.warningOneTime(
-							"Ignoring received message with invalid or incomplete content: {0}",
-							jsonMessage.toString());
-					}
-				}	
-			} // End if (!memoHex.equals("ERROR"))
-		} // for (JsonObject trans : walletTransactions)
+				newTransactions.add(trans);
+			}
+		}
+		
+		// Fragments of long messages are reassembled separately
+		List<JsonObject> fragmentTransactions = new ArrayList<JsonObject>();
+		for (Iterator<JsonObject> i = newTransactions.iterator(); i.hasNext(); )
+		{
+			JsonObject trans = i.next();
+			if (MemoCodec.isFragmentMemo(trans.getString("memo", "")))
+			{
+				fragmentTransactions.add(trans);
+				i.remove();
+			}
+		}
+		
+		// Decode the memos in parallel and obtain only those that are real messages. Bursts of
+		// group traffic are mostly decoding and parsing work
+		List<Message> filteredMessages = ForkJoinPool.commonPool().invoke(
+			new MemoDecodingTask(newTransactions, 0, newTransactions.size()));
+		Map<String, List<String>> furtherFragmentTransactionIDs = new HashMap<String, List<String>>();
+		filteredMessages.addAll(
+			this.reassembleFragmentedMessages(fragmentTransactions, furtherFragmentTransactionIDs));
+		
+		// Set additional message attributes not available over the wire - times in one batch
+		List<String> transactionIDs = new ArrayList<String>();
+		for (Message message : filteredMessages)
+		{
+			transactionIDs.add(message.getTransactionID());
+		}
+		Map<String, Long> transactionTimes = this.clientCaller.getWalletTransactionTimes(transactionIDs);
+		for (Message message : filteredMessages)
+		{
+			message.setTime(new Date(transactionTimes.get(message.getTransactionID()) * 1000L));
+		}
+		
+		// Messages are stored in one batch once all are processed
+		List<MessagingIdentity> messageContacts = new ArrayList<MessagingIdentity>();
+		List<Message> messagesToStore = new ArrayList<Message>();
 		
 		MessagingOptions msgOptions = this.messagingStorage.getMessagingOptions();
+		
+		// Signatures are checked in parallel up front - messages not verified locally go to zen-cli
+		Set<Message> verifiedLocally = this.signatureVerifier.verifyLocally(filteredMessages);
 
 		// Finally we have all messages that are new and unprocessed. For every message we find out
 		// who the sender is, verify it and store it
-		boolean bNewContactCreated = false;
-		
 		// Loop for processing standard (not anonymous messages)
 		standard_message_loop:
 		for (Message message : filteredMessages)
@@ -1686,12 +1796,11 @@ public class MessagingPanel
 						    "A new Unknown_xxx contact will be created!", 
 						    message.toJSONObject(false).toString());
 				contactID = this.messagingStorage.createAndStoreUnknownContactIdentity(message.getFrom());
-			    bNewContactCreated = true;
+			    result.newContactCreated = true;
 			}
 			
 			// Verify the message signature
-			if (this.clientCaller.verifyMessage(message.getFrom(), message.getSign(), 
-				                                Util.encodeHexString(message.getMessage()).toUpperCase()))
+			if (this.signatureVerifier.verify(message, verifiedLocally))
 			{
 				// Handle the special case of a messaging identity sent as payload - update identity then
 				if ((groupIdentity == null) && this.isZENIdentityMessage(message.getMessage()))
@@ -1707,8 +1816,8 @@ public class MessagingPanel
 				message.setVerification(VERIFICATION_TYPE.VERIFICATION_FAILED);
 			}
 			
-		    this.messagingStorage.writeNewReceivedMessageForContact(
-		    		(groupIdentity == null) ? contactID : groupIdentity, message);
+		    messageContacts.add((groupIdentity == null) ? contactID : groupIdentity);
+		    messagesToStore.add(message);
 		} // End for (Message message : filteredMessages)
 
 		// Loop for processing anonymous messages
@@ -1756,7 +1865,7 @@ public class MessagingPanel
 				anonContctID = this.messagingStorage.createAndStoreAnonumousContactIdentity(
 					message.getThreadID(), message.getReturnAddress());
 				Log.info("Created new anonymous contact identity: ", anonContctID.toJSONObject(false).toString());
-				bNewContactCreated = true;
+				result.newContactCreated = true;
 			} else if ((groupIdentity == null) && Util.stringIsEmpty(anonContctID.getSendreceiveaddress()))
 			{
 				if (!Util.stringIsEmpty(message.getReturnAddress()))
@@ -1768,11 +1877,204 @@ public class MessagingPanel
 				}
 			}
 
-			this.messagingStorage.writeNewReceivedMessageForContact(
-				(groupIdentity == null) ? anonContctID : groupIdentity, message);
+			messageContacts.add((groupIdentity == null) ? anonContctID : groupIdentity);
+			messagesToStore.add(message);
+		}
+		
+		if (!messagesToStore.isEmpty())
+		{
+			this.messagingStorage.writeNewReceivedMessages(messageContacts, messagesToStore);
+			result.newMessagesStored = true;
+			result.contactsWithNewMessages.addAll(messageContacts);
+			
+			// The transactions of further fragments are registered after the message is stored
+			List<String> fragmentTransactionIDs = new ArrayList<String>();
+			for (Message message : messagesToStore)
+			{
+				List<String> furtherIDs = furtherFragmentTransactionIDs.get(message.getTransactionID());
+				if (furtherIDs != null)
+				{
+					fragmentTransactionIDs.addAll(furtherIDs);
+				}
+			}
+			
+			if (!fragmentTransactionIDs.isEmpty())
+			{
+				this.messagingStorage.registerReceivedTransactionsStored(fragmentTransactionIDs);
+			}
+		}
+		
+		this.messagingStorage.updateNoteWatermarkForReceiveAddress(ZAddress, walletTransactions.length);
+	}
+	
+	
+	/**
+	 * Reassembles the messages whose fragments have all been received. Fragments of incomplete 
+	 * messages are not registered as stored - so they are decoded again in the next collection.
+	 * 
+	 * @param fragmentTransactions wallet transactions with fragment memos
+	 * @param furtherTransactionIDs filled with: transaction ID of a message -> IDs of the 
+	 *        transactions of its further fragments
+	 *        
+	 * @return the valid messages - their transaction ID is the one of the first fragment
+	 */
+	private List<Message> reassembleFragmentedMessages(List<JsonObject> fragmentTransactions, 
+			                                           Map<String, List<String>> furtherTransactionIDs)
+	{
+		// Message ID -> fragment index -> fragment/transaction ID
+		Map<String, Map<Integer, MemoCodec.Fragment>> fragmentsByMessage = 
+			new HashMap<String, Map<Integer, MemoCodec.Fragment>>();
+		Map<String, Map<Integer, String>> transactionsByMessage = new HashMap<String, Map<Integer, String>>();
+		for (JsonObject trans : fragmentTransactions)
+		{
+			try
+			{
+				MemoCodec.Fragment fragment = MemoCodec.decodeFragment(trans.getString("memo", ""));
+				if (!fragmentsByMessage.containsKey(fragment.getMessageID()))
+				{
+					fragmentsByMessage.put(fragment.getMessageID(), new TreeMap<Integer, MemoCodec.Fragment>());
+					transactionsByMessage.put(fragment.getMessageID(), new TreeMap<Integer, String>());
+				}
+				
+				// Same fragment may be listed more than once e.g. for a loopback send
+				fragmentsByMessage.get(fragment.getMessageID()).put(fragment.getIndex(), fragment);
+				transactionsByMessage.get(fragment.getMessageID()).put(
+					fragment.getIndex(), trans.getString("txid", "ERROR"));
+			} catch (Exception ex)
+			{
+				Log.warningOneTime("Fragment memo is not decodable: {0}, due to {1}: {2}", 
+					trans.getString("memo", ""), ex.getClass().getName(), ex.getMessage());
+			}
+		}
+		
+		List<Message> messages = new ArrayList<Message>();
+		for (String messageID : fragmentsByMessage.keySet())
+		{
+			List<MemoCodec.Fragment> fragments = 
+				new ArrayList<MemoCodec.Fragment>(fragmentsByMessage.get(messageID).values());
+			if (fragments.size() < fragments.get(0).getCount())
+			{
+				continue; // Not all fragments received yet
+			}
+			
+			List<String> transactionIDs = new ArrayList<String>(transactionsByMessage.get(messageID).values());
+			Message message = null;
+			try
+			{
+				message = MemoDecodingTask.createReceivedMessage(
+					MemoCodec.decodeFragmentedMessage(fragments), transactionIDs.get(0));
+			} catch (Exception ex)
+			{
+				Log.warningOneTime("Fragmented message {0} is not decodable, due to {1}: {2}",
+					messageID, ex.getClass().getName(), ex.getMessage());
+			}
+			
+			if (message != null)
+			{
+				messages.add(message);
+				furtherTransactionIDs.put(transactionIDs.get(0), transactionIDs.subList(1, transactionIDs.size()));
+			}
+		}
+		
+		return messages;
+	}
+	
+	
+	// Decodes the memos of a range of wallet transactions into valid messages - forks for large ranges
+	private static class MemoDecodingTask
+		extends RecursiveTask<List<Message>>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private static final int MAX_SEQUENTIAL_DECODINGS = 16;
+		
+		private List<JsonObject> transactions;
+		private int from, to;
+		
+		MemoDecodingTask(List<JsonObject> transactions, int from, int to)
+		{
+			this.transactions = transactions;
+			this.from         = from;
+			this.to           = to;
 		}
 		
-		if (bNewContactCreated)
+		@Override
+		protected List<Message> compute()
+		{
+			List<Message> messages = new ArrayList<Message>();
+			
+			if ((this.to - this.from) > MAX_SEQUENTIAL_DECODINGS)
+			{
+				int middle = (this.from + this.to) >>> 1;
+				MemoDecodingTask secondHalf = new MemoDecodingTask(this.transactions, middle, this.to);
+				secondHalf.fork();
+				messages.addAll(new MemoDecodingTask(this.transactions, this.from, middle).compute());
+				messages.addAll(secondHalf.join());
+				return messages;
+			}
+			
+			for (int i = this.from; i < this.to; i++)
+			{
+				Message message = decodeMessage(this.transactions.get(i));
+				if (message != null)
+				{
+					messages.add(message);
+				}
+			}
+			
+			return messages;
+		}
+		
+		// Returns null if the memo is not a valid message
+		private static Message decodeMessage(JsonObject trans)
+		{
+			String memoHex = trans.getString("memo", "ERROR");
+			String transactionID = trans.getString("txid",  "ERROR");
+			JsonObject innerZenmsg = null;
+			try
+			{
+				// Both the JSON and the compact memo forms
+				innerZenmsg = MemoCodec.decodeMessage(memoHex);
+			} catch (Exception ex)
+			{
+				Log.warningOneTime(
+					"Decoded memo is not parsable: {0}, due to {1}: {2}", 
+					memoHex, ex.getClass().getName(), ex.getMessage());
+			}
+			
+			return createReceivedMessage(innerZenmsg, transactionID);
+		}
+		
+		// Returns null if the inner message is not a valid message
+		static Message createReceivedMessage(JsonObject innerZenmsg, String transactionID)
+		{
+			if (innerZenmsg == null)
+			{
+				return null;
+			}
+			
+			if (!Message.isValidZENMessagingProtocolMessage(innerZenmsg))
+			{
+				// Warn of unexpected message content
+				Log.warningOneTime(
+					"Ignoring received message with invalid or incomplete content: {0}",
+					innerZenmsg.toString());
+				return null;
+			}
+			
+			// Finally test that the message has all attributes required
+			Message message = new Message(innerZenmsg);
+			message.setDirection(DIRECTION_TYPE.RECEIVED);
+			message.setTransactionID(transactionID);
+			// TODO: additional sanity check that T/Z addresses are valid etc.
+			return message;
+		}
+	}
+	
+	
+	private void updateUIAfterCollection(final CollectionResult result)
+	{
+		if (result.newContactCreated)
 		{
 			SwingUtilities.invokeLater(new Runnable() 
 			{	
@@ -1791,7 +2093,11 @@ public class MessagingPanel
 			});
 		}		
 		
-		// TODO: Call this only if anything was changed - e.g. new messages saved
+		if (!result.newMessagesStored)
+		{
+			return;
+		}
+		
 		SwingUtilities.invokeLater(new Runnable() 
 		{	
 			@Override
@@ -1799,6 +2105,8 @@ public class MessagingPanel
 			{
 				try
 				{
+					MessagingPanel.this.contactList.contactsChanged(result.contactsWithNewMessages);
+					
 					// Reload the messages for the currently selected user
 					final MessagingIdentity selectedContact = MessagingPanel.this.contactList.getSelectedContact();
 					if (selectedContact != null)
@@ -1824,40 +2132,7 @@ public class MessagingPanel
 	 */
 	public boolean isZENIdentityMessage(String message)
 	{
-		if (message == null)
-		{
-			return false;
-		}
-		
-		if (!message.trim().startsWith("{"))
-		{
-			return false;
-		}
-		
-		JsonObject jsonMessage = null;
-		try
-		{
-			jsonMessage = Util.parseJsonObject(message);
-		} catch (Exception ex)
-		{
-			return false;
-		}
-		
-		if (jsonMessage.get("zenmessagingidentity") == null)
-		{
-			return false;
-		}
-		
-		JsonObject innerMessage = jsonMessage.get("zenmessagingidentity").asObject();
-		if ((innerMessage.get("nickname") == null)           ||
-			(innerMessage.get("sendreceiveaddress") == null) ||
-			(innerMessage.get("senderidaddress") == null))
-		{
-			return false;
-		}
-		
-		// All conditions met - return true
-		return true;
+		return MessagingIdentity.isIdentityMessage(message);
 	}
 	
 
@@ -1939,6 +2214,7 @@ public class MessagingPanel
 				innerIDObject.set("surname",            ownIdentity.getSurname());
 				innerIDObject.set("senderidaddress",    ownIdentity.getSenderidaddress());
 				innerIDObject.set("sendreceiveaddress", ownIdentity.getSendreceiveaddress());
+				innerIDObject.set("compactmemo",        MemoCodec.SUPPORTED_MEMO_VERSION);
 				JsonObject outerObject = new JsonObject();
 				outerObject.set("zenmessagingidentity", innerIDObject);
 				String identityString = outerObject.toString();
@@ -1970,30 +2246,6 @@ public class MessagingPanel
 	}
 	
 	
-	private Map<String, MessagingIdentity> getKnownSendersForGroup(MessagingIdentity group)
-		throws IOException
-	{
-		List<Message> messages = this.messagingStorage.getAllMessagesForContact(group);
-		
-		// Analyze the received messages to extract from them messaging identities (if there are any)
-		// TODO: This could be cached to optimize performance
-		Map<String, MessagingIdentity> knownSenders = new HashMap<String, MessagingIdentity>();
-		for (Message msg : messages)
-		{
-			if (isZENIdentityMessage(msg.getMessage()) && 
-				((msg.getDirection() == DIRECTION_TYPE.SENT) || 
-				 (msg.getVerification() == VERIFICATION_TYPE.VERIFICATION_OK)))
-			{
-				MessagingIdentity senderIdentity = new MessagingIdentity(
-						Util.parseJsonObject(msg.getMessage()).get("zenmessagingidentity").asObject());
-				knownSenders.put(senderIdentity.getSenderidaddress(), senderIdentity);
-			}
-		}
-		
-		return knownSenders;
-	}
-	
-	
 	public void sendIdentityMessageTo(MessagingIdentity contactIdentity)
 		throws InterruptedException, IOException, WalletCallException
 	{
@@ -2006,6 +2258,7 @@ public class MessagingPanel
 		innerIDObject.set("surname",            ownIdentity.getSurname());
 		innerIDObject.set("senderidaddress",    ownIdentity.getSenderidaddress());
 		innerIDObject.set("sendreceiveaddress", ownIdentity.getSendreceiveaddress());
+		innerIDObject.set("compactmemo",        MemoCodec.SUPPORTED_MEMO_VERSION);
 		JsonObject outerObject = new JsonObject();
 		outerObject.set("zenmessagingidentity", innerIDObject);
 		String identityString = outerObject.toString();
@@ -2031,16 +2284,20 @@ public class MessagingPanel
 	{
 		try
 		{
-			String ipfsLink = this.ipfs.shareFileViaIPFS();
-			Log.info("IPFS Link is: {0}", ipfsLink);
-			
-			if (ipfsLink != null)
+			// The file is uploaded in the background
+			this.ipfs.shareFileViaIPFS(new IPFSWrapper.FileSharedListener() 
 			{
-				String oldText = this.writeMessageTextArea.getText();
-				oldText = oldText != null ? oldText : "";
-				
-				this.writeMessageTextArea.setText(oldText + "\n" + ipfsLink);
-			}
+				@Override
+				public void fileShared(String ipfsLink) 
+				{
+					Log.info("IPFS Link is: {0}", ipfsLink);
+					
+					String oldText = MessagingPanel.this.writeMessageTextArea.getText();
+					oldText = oldText != null ? oldText : "";
+					
+					MessagingPanel.this.writeMessageTextArea.setText(oldText + "\n" + ipfsLink);
+				}
+			});
 		} catch (Exception ex)
 		{
 			Log.error("Unexpected error in sharing file via IPFS: ", ex);
@@ -31,6 +31,8 @@ package com.vaklinov.zcashui.msg;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -39,22 +41,42 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.Utf8OutputBuffer;
 import com.eclipsesource.json.WriterConfig;
 import com.vaklinov.zcashui.Log;
 import com.vaklinov.zcashui.OSUtil;
 import com.vaklinov.zcashui.Util;
+import com.vaklinov.zcashui.msg.Message.DIRECTION_TYPE;
+import com.vaklinov.zcashui.msg.Message.VERIFICATION_TYPE;
 
 
 /**
@@ -70,21 +92,51 @@ import com.vaklinov.zcashui.Util;
  * ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/identity.json - contact's identity
  * ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/sent - sent messages dir
  * ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/received - received messages dir
+ * ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/known_senders.json - identities of group members
+ * ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/summary.json - unread count and last message
  * ~/.ZENCashSwingWalletUI/messaging/ignored_contacts - dir where ignored msg identities reside
  * ~/.ZENCashSwingWalletUI/messaging/ignored_contacts/UUID.json - single ignored identity.
+ * ~/.ZENCashSwingWalletUI/messaging/received_txids.dat - IDs of all stored received messages' transactions
+ * ~/.ZENCashSwingWalletUI/messaging/search_index.dat - full-text search index of all messages
  * 
- * The sent/received directories have a substructure of type:
- * sent/XXXX/message_xxx.json - where XXXX is between 0000 and 9999, xxx is between 000 and 999 
+ * The sent/received directories hold an append-only message log:
+ * sent/segment_XXXX.log - messages, one JSON object per line, XXXX is between 0000 and 9999
+ * sent/messages.idx - index of all messages in the segments by time and transaction ID
+ * sent/XXXX.migrated[.N] - messages in the older message_xxx.json layout, kept after migration
+ * sent/migration.tmp, sent/migration.complete - log being migrated from the older layout and its
+ *   completion marker, present only while the migration has not finished
+ * 
+ * Only the contact identities and summaries are loaded when the storage is opened. The message 
+ * stores of a contact are opened on first use and keep a bounded cache of recently read messages.
  */
 public class MessagingStorage
 {
+	// Max. number of threads used to open the contacts
+	private static final int STORAGE_OPEN_THREADS = 4;
+	
 	private File rootDir;
 	private File ignoredContactsDir;
 	
 	private List<SingleContactStorage> contactsList;
 	
+	// Indexes over contactsList - lists are in contactsList order. They are updated when contacts 
+	// are added and rebuilt when contacts are updated or deleted.
+	private Map<String, SingleContactStorage>       contactsByIdentityKey;
+	private Map<String, List<SingleContactStorage>> contactsBySenderIDAddress;  // Not anonymous
+	private Map<String, List<SingleContactStorage>> groupsBySendReceiveAddress;
+	private Map<String, List<SingleContactStorage>> contactsByThreadID;
+	private Set<String>                             lowerCaseNicknames;
+	
 	private List<MessagingIdentity> ignoredContacts;
 	
+	private ReceivedTransactionIndex receivedTransactionIndex;
+	
+	// Loaded on first use - messages written before that are indexed by catching up
+	private MessageSearchIndex searchIndex;
+	
+	// Receive address -> number of notes at the last complete message collection 
+	private Map<String, Integer> receiveAddressNoteWatermarks;
+	
 	MessagingIdentity cachedOwnIdentity;
 		
 	
@@ -116,6 +168,67 @@ public class MessagingStorage
 		this.reloadContactListFromStorage();
 		
 		this.reloadIgnoredContactsFromStorage();
+		
+		this.receiveAddressNoteWatermarks = new HashMap<String, Integer>();
+		
+		this.receivedTransactionIndex = new ReceivedTransactionIndex(this.rootDir);
+		if (!this.receivedTransactionIndex.isPersisted())
+		{
+			this.buildReceivedTransactionIndex();
+		}
+		
+		this.searchIndex = new MessageSearchIndex(this.rootDir);
+	}
+	
+	
+	/**
+	 * Checks if a message received with a certain transaction has already been stored. IDs of 
+	 * deleted contacts' messages remain known - such contacts are ignored anyway.
+	 * 
+	 * @param transactionID ID of the transaction to check
+	 * 
+	 * @return true if a message of this transaction is already stored.
+	 */
+	public boolean isReceivedTransactionStored(String transactionID)
+	{
+		return this.receivedTransactionIndex.contains(transactionID);
+	}
+	
+	
+	/**
+	 * Checks if the notes received at an address need to be processed by the message collector - 
+	 * i.e. if their number changed since the last complete collection for the address. 
+	 * 
+	 * @param address receive address of the own identity or a group
+	 * @param numberOfNotes number of notes currently returned by the wallet for the address
+	 * 
+	 * @return true if the notes need to be processed.
+	 */
+	public synchronized boolean hasNewNotesForReceiveAddress(String address, int numberOfNotes)
+	{
+		Integer watermark = this.receiveAddressNoteWatermarks.get(address);
+		
+		return (watermark == null) || (watermark.intValue() != numberOfNotes);
+	}
+	
+	
+	/**
+	 * Records the number of notes for an address after all of them have been processed. 
+	 * 
+	 * @param address receive address of the own identity or a group
+	 * @param numberOfNotes number of notes processed
+	 */
+	public synchronized void updateNoteWatermarkForReceiveAddress(String address, int numberOfNotes)
+	{
+		this.receiveAddressNoteWatermarks.put(address, numberOfNotes);
+	}
+	
+	
+	// Messages skipped earlier (e.g. from unknown users) may be accepted after options or
+	// contacts change - so all notes are processed once again.
+	private synchronized void resetNoteWatermarks()
+	{
+		this.receiveAddressNoteWatermarks.clear();
 	}
 	
 	
@@ -161,6 +274,13 @@ public class MessagingStorage
 	}
 	
 	
+	// Messaging directory - shared with the other persistent messaging structures
+	File getRootDir()
+	{
+		return this.rootDir;
+	}
+	
+	
 	public MessagingOptions getMessagingOptions()
 		throws IOException
 	{
@@ -184,6 +304,8 @@ public class MessagingStorage
 		File optionsFile = new File(rootDir, OPTIONS_FILE_NAME);	
 		Util.renameFileForMultiVersionBackup(rootDir, OPTIONS_FILE_NAME);
 		newOptions.writeToFile(optionsFile);
+		
+		this.resetNoteWatermarks();
 	}
 	
 	
@@ -243,51 +365,49 @@ public class MessagingStorage
 	public MessagingIdentity getContactIdentityForSenderIDAddress(String senderIDAddress)
 		throws IOException
 	{
-		List<MessagingIdentity> allIdentities = this.getContactIdentities(false);
-		
-		MessagingIdentity id = null;
-		
-		for (MessagingIdentity tempID : allIdentities)
-		{
-			if ((!tempID.isAnonymous()) && tempID.getSenderidaddress().equals(senderIDAddress))
-			{
-				id = tempID;
-			}
-		}
+		SingleContactStorage contact = getLast(this.contactsBySenderIDAddress.get(senderIDAddress));
 		
-		return id;		
+		return (contact != null) ? contact.getIdentity() : null;		
 	}
 	
 	
 	public void updateContactIdentityForSenderIDAddress(String senderIDAddress, MessagingIdentity newID)
 		throws IOException
 	{
-		for (SingleContactStorage contact : this.contactsList)
+		List<SingleContactStorage> contacts = this.contactsBySenderIDAddress.get(senderIDAddress);
+		if (contacts == null)
+		{
+			return;
+		}
+		
+		for (SingleContactStorage contact : new ArrayList<SingleContactStorage>(contacts))
 		{
 			MessagingIdentity tempID = contact.getIdentity();
-			
-			if ((!tempID.isAnonymous()) && tempID.getSenderidaddress().equals(senderIDAddress))
-			{
-				tempID.copyFromJSONObject(newID.toJSONObject(false));
-				contact.updateIdentity(tempID);
-			}
-		}			
+			tempID.copyFromJSONObject(newID.toJSONObject(false));
+			contact.updateIdentity(tempID);
+		}
+		
+		this.reindexContacts();
 	}
 	
 	
 	public void updateGroupContactIdentityForSendReceiveAddress(String sendReceiveAddress, MessagingIdentity newID)
 		throws IOException
 	{
-		for (SingleContactStorage contact : this.contactsList)
+		List<SingleContactStorage> groups = this.groupsBySendReceiveAddress.get(sendReceiveAddress);
+		if (groups == null)
+		{
+			return;
+		}
+		
+		for (SingleContactStorage contact : new ArrayList<SingleContactStorage>(groups))
 		{
 			MessagingIdentity tempID = contact.getIdentity();
-			
-			if ((tempID.isGroup()) && tempID.getSendreceiveaddress().equals(sendReceiveAddress))
-			{
-				tempID.copyFromJSONObject(newID.toJSONObject(false));
-				contact.updateIdentity(tempID);
-			}
-		}			
+			tempID.copyFromJSONObject(newID.toJSONObject(false));
+			contact.updateIdentity(tempID);
+		}
+		
+		this.reindexContacts();
 	}
 	
 	
@@ -305,20 +425,39 @@ public class MessagingStorage
 	public boolean isSenderIdentityIgnoredForGroup(String senderID, MessagingIdentity groupID)
 		throws IOException
 	{
-		for (SingleContactStorage contact : this.contactsList)
+		SingleContactStorage contact = this.contactsByIdentityKey.get(groupID.getIdentityKey());
+		
+		if ((contact != null) && contact.getIdentity().isGroup())
 		{
-			MessagingIdentity tempID = contact.getIdentity();
-			
-			if ((tempID.isGroup()) && tempID.isIdenticalTo(groupID))
-			{
-				return contact.isGroupSenderIDIgnored(senderID);
-			}
-		}			
+			return contact.isGroupSenderIDIgnored(senderID);
+		}
 
 		return false;
 	}
 	
 	
+	/**
+	 * Returns the IDs of all senders ignored in a group. 
+	 * 
+	 * @param groupID
+	 * @return the ignored sender IDs - empty if the contact is not a group
+	 * 
+	 * @throws IOException
+	 */
+	public Set<String> getIgnoredSenderIdentitiesForGroup(MessagingIdentity groupID)
+		throws IOException
+	{
+		SingleContactStorage contact = this.contactsByIdentityKey.get(groupID.getIdentityKey());
+		
+		if ((contact != null) && contact.getIdentity().isGroup())
+		{
+			return contact.getGroupIgnoredSenderIDs();
+		}
+
+		return new HashSet<String>();
+	}
+	
+	
 	/**
 	 * Adds a new ignored sender ID. This makes sense only if the
 	 * current contact is a group. The ID may be an anonymous sender UUID or a
@@ -329,16 +468,12 @@ public class MessagingStorage
 	public void addIgnoredSenderIdentityForGroup(String senderID, MessagingIdentity groupID)
 		throws IOException
 	{
-		for (SingleContactStorage contact : this.contactsList)
+		SingleContactStorage contact = this.contactsByIdentityKey.get(groupID.getIdentityKey());
+		
+		if ((contact != null) && contact.getIdentity().isGroup())
 		{
-			MessagingIdentity tempID = contact.getIdentity();
-			
-			if ((tempID.isGroup()) && tempID.isIdenticalTo(groupID))
-			{
-				contact.addGroupIgnoredSenderID(senderID);
-				return;
-			}
-		}	
+			contact.addGroupIgnoredSenderID(senderID);
+		}
 	}
 
 		
@@ -373,6 +508,9 @@ public class MessagingStorage
 		SingleContactStorage contactStorage = new SingleContactStorage(new File(this.rootDir, contactDirName));
 		contactStorage.updateIdentity(identity);
 		this.contactsList.add(contactStorage);
+		this.indexContact(contactStorage);
+		
+		this.resetNoteWatermarks();
 	}
 	
 	
@@ -390,22 +528,7 @@ public class MessagingStorage
 	{
 		MessagingIdentity newID = new MessagingIdentity();
 		
-		String nickName = null;
-		naming_loop:
-		for (int i = 1; i <= 1000; i++) // TODO: more reliable naming scheme
-		{
-			nickName = "Unknown_" + i;
-			for (MessagingIdentity existignID : this.getContactIdentities(true))
-			{
-				if (nickName.equalsIgnoreCase(existignID.getNickname()))
-				{
-					continue naming_loop;
-				}
-			}
-			break naming_loop;
-		}
-		
-		newID.setNickname(nickName);
+		newID.setNickname(this.getUnusedNickname("Unknown_"));
 		newID.setFirstname(senderIDAdderss.substring(0, 10) + "...");
 		newID.setSenderidaddress(senderIDAdderss);
 		newID.setSendreceiveaddress(""); // Empty - unknown
@@ -438,19 +561,9 @@ public class MessagingStorage
 	public MessagingIdentity findAnonymousOrNormalContactIdentityByThreadID(String threadID)
 		throws IOException
 	{
-		List<MessagingIdentity> allIdentities = this.getContactIdentities(true);
+		SingleContactStorage contact = getLast(this.contactsByThreadID.get(threadID));
 		
-		MessagingIdentity id = null;
-		
-		for (MessagingIdentity tempID : allIdentities)
-		{
-			if ((!Util.stringIsEmpty(tempID.getThreadID())) && tempID.getThreadID().equals(threadID))
-			{
-				id = tempID;
-			}
-		}
-		
-		return id;	
+		return (contact != null) ? contact.getIdentity() : null;	
 	}
 	
 	
@@ -461,22 +574,7 @@ public class MessagingStorage
 		newID.setAnonymous(true);
 		newID.setThreadID(threadID);
 			
-		String nickName = null;
-		naming_loop:
-		for (int i = 1; i <= 1000; i++) // TODO: more reliable naming scheme
-		{
-			nickName = "Anonymous_" + i;
-			for (MessagingIdentity existignID : this.getContactIdentities(true))
-			{
-				if (nickName.equalsIgnoreCase(existignID.getNickname()))
-				{
-					continue naming_loop;
-				}
-			}
-			break naming_loop;
-		}
-			
-		newID.setNickname(nickName);
+		newID.setNickname(this.getUnusedNickname("Anonymous_"));
 		newID.setFirstname(threadID.substring(0, 10) + "...");
 		newID.setSendreceiveaddress(returnAddress);
 		newID.setSenderidaddress("");
@@ -498,17 +596,25 @@ public class MessagingStorage
 	public void updateAnonumousContactIdentityForThreadID(String threadID, MessagingIdentity newID)
 		throws IOException
 	{
-		for (SingleContactStorage contact : this.contactsList)
+		List<SingleContactStorage> contacts = this.contactsByThreadID.get(threadID);
+		if (contacts == null)
+		{
+			return;
+		}
+		
+		for (SingleContactStorage contact : contacts)
 		{
 			MessagingIdentity tempID = contact.getIdentity();
 			
-			if ((tempID.isAnonymous()) && tempID.getThreadID().equals(threadID))
+			if (tempID.isAnonymous())
 			{
 				tempID.copyFromJSONObject(newID.toJSONObject(false));
 				contact.updateIdentity(tempID);
 				break;
 			}
-		}			
+		}
+		
+		this.reindexContacts();
 	}
 	
 
@@ -523,117 +629,500 @@ public class MessagingStorage
 	public List<Message> getAllMessagesForContact(MessagingIdentity contact)
 		throws IOException
 	{
-		// Find the contact
-		SingleContactStorage contactStorage = null;
-		for (SingleContactStorage scs : this.contactsList)
+		return this.getMessagesForContact(contact, 0, this.getMessageCountForContact(contact));
+	}
+	
+	
+	/**
+	 * Returns the number of messages (sent and received) for a contact. Does not read any messages.
+	 * 
+	 * @param contact
+	 * 
+	 * @return the number of messages for a contact.
+	 */
+	public int getMessageCountForContact(MessagingIdentity contact)
+		throws IOException
+	{
+		SingleContactStorage contactStorage = this.getContactStorage(contact);
+		
+		return contactStorage.getReceivedMessages().getMessageCount() + 
+			   contactStorage.getSentMessages().getMessageCount();
+	}
+	
+	
+	/**
+	 * Returns a range of the messages for a contact - in the same ascending date order as 
+	 * getAllMessagesForContact(). Only the messages in the range are read. 
+	 * 
+	 * @param contact
+	 * @param from index of the first message to return
+	 * @param to index after the last message to return
+	 * 
+	 * @return the messages in the range
+	 */
+	public List<Message> getMessagesForContact(MessagingIdentity contact, int from, int to)
+		throws IOException
+	{
+		SingleContactStorage contactStorage = this.getContactStorage(contact);
+		
+		List<IndexEntry> received = contactStorage.getReceivedMessages().getIndexEntries();
+		List<IndexEntry> sent     = contactStorage.getSentMessages().getIndexEntries();
+		
+		from = Math.max(0, from);
+		to   = Math.min(to, received.size() + sent.size());
+		
+		// Merge the two time ordered indexes - received first on equal times, as in a stable sort
+		List<IndexEntry> receivedInRange = new ArrayList<IndexEntry>();
+		List<IndexEntry> sentInRange     = new ArrayList<IndexEntry>();
+		List<Boolean>    isReceived      = new ArrayList<Boolean>();
+		int r = 0, s = 0;
+		for (int i = 0; i < to; i++)
 		{
-			if (scs.getIdentity().isIdenticalTo(contact))
+			boolean takeReceived = (s >= sent.size()) || 
+				((r < received.size()) && (received.get(r).time <= sent.get(s).time));
+			IndexEntry entry = takeReceived ? received.get(r++) : sent.get(s++);
+			
+			if (i >= from)
 			{
-				contactStorage = scs;
+				(takeReceived ? receivedInRange : sentInRange).add(entry);
+				isReceived.add(takeReceived);
 			}
 		}
 		
-		List<Message> messages = new ArrayList<Message>();
+		List<Message> receivedMessages = contactStorage.getReceivedMessages().readMessages(receivedInRange);
+		List<Message> sentMessages     = contactStorage.getSentMessages().readMessages(sentInRange);
+		
+		List<Message> messages = new ArrayList<Message>(isReceived.size());
+		r = 0;
+		s = 0;
+		for (boolean rec : isReceived)
+		{
+			messages.add(rec ? receivedMessages.get(r++) : sentMessages.get(s++));
+		}
+		
+		return messages;
+	}
+	
+	
+	private SingleContactStorage getContactStorage(MessagingIdentity contact)
+		throws IOException
+	{
+		SingleContactStorage contactStorage = this.contactsByIdentityKey.get(contact.getIdentityKey());
 		
-		// Should never happen but ...
 		if (contactStorage == null)
 		{
-			Log.warning("Could not find messaging identity in the contact list {0}", 
-					    contact.toJSONObject(false).toString());
 			throw new IOException("Could not find messaging identity in the contact list " +
 					              contact.toJSONObject(false).toString());
 		}
 		
-		messages.addAll(contactStorage.getAllReceivedMessages());
-		messages.addAll(contactStorage.getAllSentMessages());
-		
-		// Finally sort them
-		Collections.sort(messages,
-			new Comparator<Message>() 
-			{
-				@Override
-				public int compare(Message o1, Message o2) 
-				{
-					return o1.getTime().compareTo(o2.getTime());
-				}
-			}
-		);
-		
-		return messages;
+		return contactStorage;
 	}
 	
 	
 	public void writeNewSentMessageForContact(MessagingIdentity contact, Message msg)
 		throws IOException
 	{
-		// Find the contact
-		SingleContactStorage contactStorage = null;
-		for (SingleContactStorage scs : this.contactsList)
-		{
-			if (scs.getIdentity().isIdenticalTo(contact))
-			{
-				contactStorage = scs;
-			}
-		}
+		SingleContactStorage contactStorage = this.getContactStorage(contact);
 
-		contactStorage.sentMessages.writeNewMessage(msg);
+		// Sent messages are rare - no need to batch them
+		contactStorage.writeNewSentMessage(msg);
+		contactStorage.flush();
+		
+		this.addMessageToSearchIndex(contactStorage, contactStorage.getSentMessages(), msg);
+		this.searchIndex.flush();
 	}
 	
 	
 	public void writeNewReceivedMessageForContact(MessagingIdentity contact, Message msg)
 		throws IOException
 	{
-		// Find the contact
-		SingleContactStorage contactStorage = null;
-		for (SingleContactStorage scs : this.contactsList)
+		this.writeNewReceivedMessages(Collections.singletonList(contact), Collections.singletonList(msg));
+	}
+	
+	
+	/**
+	 * Writes a batch of received messages. The messages are forced to disk before their 
+	 * transactions are recorded as stored - so a crash may not cause a message to be lost.
+	 * 
+	 * @param contacts contacts of the messages - contacts.get(i) is the contact of messages.get(i)
+	 * @param messages the messages
+	 */
+	public void writeNewReceivedMessages(List<MessagingIdentity> contacts, List<Message> messages)
+		throws IOException
+	{
+		Set<SingleContactStorage> writtenContacts = new HashSet<SingleContactStorage>();
+		List<String> transactionIDs = new ArrayList<String>();
+		for (int i = 0; i < messages.size(); i++)
 		{
-			if (scs.getIdentity().isIdenticalTo(contact))
-			{
-				contactStorage = scs;
-			}
+			SingleContactStorage contactStorage = this.getContactStorage(contacts.get(i));
+			Message msg = messages.get(i);
+			
+			contactStorage.writeNewReceivedMessage(msg);
+			this.addMessageToSearchIndex(contactStorage, contactStorage.getReceivedMessages(), msg);
+			
+			writtenContacts.add(contactStorage);
+			transactionIDs.add(msg.getTransactionID());
 		}
-		contactStorage.receivedMessages.writeNewMessage(msg);
+		
+		for (SingleContactStorage contactStorage : writtenContacts)
+		{
+			contactStorage.flush();
+		}
+		
+		this.receivedTransactionIndex.addAll(transactionIDs);
 	}
 	
 	
-	// Deletes a certain contact and reloads the contact list
-	public void deleteContact(MessagingIdentity contact)
+	/**
+	 * Registers received transactions as stored that carry no message of their own - such as the
+	 * further fragments of a fragmented message. 
+	 * 
+	 * @param transactionIDs IDs of the transactions
+	 */
+	public void registerReceivedTransactionsStored(Collection<String> transactionIDs)
+		throws IOException
+	{
+		this.receivedTransactionIndex.addAll(transactionIDs);
+	}
+	
+	
+	/**
+	 * Searches all stored messages - see MessageSearchIndex for the query syntax. The search
+	 * index is loaded and brought up to date first if necessary.
+	 * 
+	 * @param query the query
+	 * @param maxResults maximum number of results to return
+	 * 
+	 * @return the matching messages, most recent first, with their contacts set.
+	 */
+	public List<MessageSearchIndex.SearchResult> searchMessages(String query, int maxResults)
 		throws IOException
 	{
+		this.updateSearchIndex();
+		
+		Map<String, MessagingIdentity> contactsByDirName = new HashMap<String, MessagingIdentity>();
 		for (SingleContactStorage scs : this.contactsList)
 		{
-			if (scs.getIdentity().isIdenticalTo(contact))
+			contactsByDirName.put(scs.getRootDir().getName(), scs.getIdentity());
+		}
+		
+		List<MessageSearchIndex.SearchResult> results = new ArrayList<MessageSearchIndex.SearchResult>();
+		for (MessageSearchIndex.SearchResult result : this.searchIndex.search(query, maxResults))
+		{
+			MessagingIdentity contact = contactsByDirName.get(result.getContactDirName());
+			if (contact != null)
 			{
-				Util.deleteDirectory(scs.getRootDir());
-				this.reloadContactListFromStorage();
-				break;
+				result.setContact(contact);
+				results.add(result);
 			}
 		}
+		
+		return results;
 	}
 	
 	
-	private void reloadContactListFromStorage()
+	/**
+	 * Loads the search index if not loaded and indexes the messages written while it was not
+	 * loaded. Only message counts are compared if the index is up to date.
+	 */
+	public void updateSearchIndex()
 		throws IOException
 	{
-			this.contactsList = new ArrayList<SingleContactStorage>();
-			
-			File contactDirs[] = this.rootDir.listFiles(new FileFilter() 
-			{	
-				@Override
-				public boolean accept(File pathname) 
-				{
-					return pathname.isDirectory() && pathname.getName().matches("contact_[0-9]{4}");
-				}
-			});
+		synchronized (this.searchIndex)
+		{
+			this.searchIndex.load();
 			
-			for (File dir : contactDirs)
+			for (SingleContactStorage scs : this.contactsList)
 			{
-				this.contactsList.add(new SingleContactStorage(dir));
-		    }
+				this.catchUpSearchIndex(scs, scs.getSentMessages());
+				this.catchUpSearchIndex(scs, scs.getReceivedMessages());
+			}
+			
+			this.searchIndex.flush();
+		}
 	}
+	
+	
+	private void catchUpSearchIndex(SingleContactStorage contactStorage, SentOrReceivedMessagesStore store)
+		throws IOException
+	{
+		String storeKey = getSearchIndexStoreKey(contactStorage, store);
+		int indexedCount = this.searchIndex.getIndexedMessageCount(storeKey);
+		if (indexedCount >= store.getMessageCount())
+		{
+			return;
+		}
 		
+		Map<String, MessagingIdentity> knownSenders = contactStorage.getIdentity().isGroup() ?
+			contactStorage.getKnownSenders() : null;
+		for (Message msg : store.readMessagesAppendedAfter(indexedCount))
+		{
+			this.searchIndex.addMessage(
+				storeKey, indexedCount++, msg, this.getSenderNameForSearch(contactStorage, knownSenders, msg));
+		}
+	}
+	
+	
+	// Indexes a newly written message if the search index is loaded - otherwise it is caught up later 
+	private void addMessageToSearchIndex(SingleContactStorage contactStorage, SentOrReceivedMessagesStore store, 
+			                             Message msg)
+		throws IOException
+	{
+		if (!this.searchIndex.isLoaded())
+		{
+			return;
+		}
 		
-	private void reloadIgnoredContactsFromStorage()
+		Map<String, MessagingIdentity> knownSenders = contactStorage.getIdentity().isGroup() ?
+			contactStorage.getKnownSenders() : null;
+		this.searchIndex.addMessage(
+			getSearchIndexStoreKey(contactStorage, store), store.getMessageCount() - 1, 
+			msg, this.getSenderNameForSearch(contactStorage, knownSenders, msg));
+	}
+	
+	
+	// Name under which the sender of a message is found by searches - the from address is also indexed
+	private String getSenderNameForSearch(SingleContactStorage contactStorage, 
+			                              Map<String, MessagingIdentity> knownSenders, Message msg)
+		throws IOException
+	{
+		if (msg.getDirection() == DIRECTION_TYPE.SENT)
+		{
+			MessagingIdentity ownIdentity = this.getOwnIdentity();
+			return (ownIdentity != null) ? ownIdentity.getNickname() : "";
+		}
+		
+		if (knownSenders != null)
+		{
+			MessagingIdentity sender = knownSenders.get(msg.getFrom());
+			return (sender != null) ? sender.getNickname() : "";
+		}
+		
+		return contactStorage.getIdentity().getNickname();
+	}
+	
+	
+	private static String getSearchIndexStoreKey(SingleContactStorage contactStorage, SentOrReceivedMessagesStore store)
+	{
+		return contactStorage.getRootDir().getName() + "/" + store.getRootDir().getName();
+	}
+	
+	
+	/**
+	 * Returns the summary of the conversation with a contact - unread messages and the last 
+	 * message. It is maintained as messages are written, no messages are read.
+	 * 
+	 * @param contact
+	 * 
+	 * @return a copy of the contact's summary
+	 */
+	public ContactSummary getContactSummary(MessagingIdentity contact)
+		throws IOException
+	{
+		SingleContactStorage contactStorage = this.getContactStorage(contact);
+		
+		synchronized (contactStorage)
+		{
+			return contactStorage.getSummary().getCloneCopy();
+		}
+	}
+	
+	
+	// Marks all messages of a contact as read - when the conversation is displayed
+	public void markContactAsRead(MessagingIdentity contact)
+		throws IOException
+	{
+		this.getContactStorage(contact).markRead();
+	}
+	
+	
+	/**
+	 * Returns the identities of group members that have been sent to the group in identity 
+	 * messages. The map is maintained as messages are written and is not computed on each call.
+	 * 
+	 * @param group the group
+	 * 
+	 * @return sender ID address -> identity of the sender.
+	 */
+	public Map<String, MessagingIdentity> getKnownSendersForGroup(MessagingIdentity group)
+		throws IOException
+	{
+		return this.getContactStorage(group).getKnownSenders();
+	}
+	
+	
+	/**
+	 * Forces all messages written so far to disk. Received messages are written in batches and
+	 * this should be called when a batch is complete.
+	 */
+	public void flush()
+		throws IOException
+	{
+		for (SingleContactStorage scs : this.contactsList)
+		{
+			scs.flush();
+		}
+		
+		this.searchIndex.flush();
+	}
+	
+	
+	// Deletes a certain contact and reloads the contact list
+	public void deleteContact(MessagingIdentity contact)
+		throws IOException
+	{
+		SingleContactStorage scs = this.contactsByIdentityKey.get(contact.getIdentityKey());
+		if (scs != null)
+		{
+			scs.flush();
+			Util.deleteDirectory(scs.getRootDir());
+			this.searchIndex.contactDeleted(scs.getRootDir().getName());
+			this.reloadContactListFromStorage();
+		}
+	}
+	
+	
+	// Returns an unused nickname of type prefix + number
+	private String getUnusedNickname(String prefix)
+	{
+		String nickName = null;
+		for (int i = 1; i <= 1000; i++) // TODO: more reliable naming scheme
+		{
+			nickName = prefix + i;
+			if (!this.lowerCaseNicknames.contains(nickName.toLowerCase(Locale.ROOT)))
+			{
+				break;
+			}
+		}
+		
+		return nickName;
+	}
+	
+	
+	private void reindexContacts()
+		throws IOException
+	{
+		this.contactsByIdentityKey      = new HashMap<String, SingleContactStorage>();
+		this.contactsBySenderIDAddress  = new HashMap<String, List<SingleContactStorage>>();
+		this.groupsBySendReceiveAddress = new HashMap<String, List<SingleContactStorage>>();
+		this.contactsByThreadID         = new HashMap<String, List<SingleContactStorage>>();
+		this.lowerCaseNicknames         = new HashSet<String>();
+		
+		for (SingleContactStorage contact : this.contactsList)
+		{
+			this.indexContact(contact);
+		}
+	}
+	
+	
+	private void indexContact(SingleContactStorage contact)
+		throws IOException
+	{
+		MessagingIdentity id = contact.getIdentity();
+		
+		this.contactsByIdentityKey.put(id.getIdentityKey(), contact);
+		
+		if (!id.isAnonymous())
+		{
+			addToIndex(this.contactsBySenderIDAddress, id.getSenderidaddress(), contact);
+		}
+		
+		if (id.isGroup())
+		{
+			addToIndex(this.groupsBySendReceiveAddress, id.getSendreceiveaddress(), contact);
+		}
+		
+		if (!Util.stringIsEmpty(id.getThreadID()))
+		{
+			addToIndex(this.contactsByThreadID, id.getThreadID(), contact);
+		}
+		
+		if (id.getNickname() != null)
+		{
+			this.lowerCaseNicknames.add(id.getNickname().toLowerCase(Locale.ROOT));
+		}
+	}
+	
+	
+	private static void addToIndex(Map<String, List<SingleContactStorage>> index, String key, 
+			                       SingleContactStorage contact)
+	{
+		List<SingleContactStorage> contacts = index.get(key);
+		if (contacts == null)
+		{
+			contacts = new ArrayList<SingleContactStorage>(1);
+			index.put(key, contacts);
+		}
+		
+		contacts.add(contact);
+	}
+	
+	
+	private static SingleContactStorage getLast(List<SingleContactStorage> contacts)
+	{
+		return ((contacts == null) || contacts.isEmpty()) ? null : contacts.get(contacts.size() - 1);
+	}
+	
+	
+	// One time creation of the received transactions index from the messages already stored 
+	private void buildReceivedTransactionIndex()
+		throws IOException
+	{
+		Log.info("Building the index of received message transactions...");
+		
+		Set<String> transactionIDs = new HashSet<String>();
+		for (SingleContactStorage scs : this.contactsList)
+		{
+			// The index entries have the transaction IDs - no messages are read
+			for (IndexEntry entry : scs.getReceivedMessages().getIndexEntries())
+			{
+				if (!Util.stringIsEmpty(entry.transactionID))
+				{
+					transactionIDs.add(entry.transactionID);
+				}
+			}
+		}
+		
+		this.receivedTransactionIndex.addAll(transactionIDs);
+		
+		Log.info("Index of received message transactions built with {0} transactions", transactionIDs.size());
+	}
+	
+	
+	private void reloadContactListFromStorage()
+		throws IOException
+	{
+			this.contactsList = new ArrayList<SingleContactStorage>();
+			
+			File contactDirs[] = this.rootDir.listFiles(new FileFilter() 
+			{	
+				@Override
+				public boolean accept(File pathname) 
+				{
+					return pathname.isDirectory() && pathname.getName().matches("contact_[0-9]{4}");
+				}
+			});
+			
+			// Only the identities and summaries are loaded - in parallel since there may be many contacts
+			this.contactsList.addAll(openInParallel(Arrays.asList(contactDirs), 
+				new StorageOpener<SingleContactStorage>() 
+				{
+					@Override
+					public SingleContactStorage open(File dir)
+						throws IOException
+					{
+						SingleContactStorage contact = new SingleContactStorage(dir);
+						contact.getIdentity();
+						contact.getSummary();
+						return contact;
+					}
+				}));
+			
+			this.reindexContacts();
+	}
+		
+		
+	private void reloadIgnoredContactsFromStorage()
 		throws IOException
 	{
 			this.ignoredContacts = new ArrayList<MessagingIdentity>();
@@ -647,10 +1136,82 @@ public class MessagingStorage
 				}
 			});
 			
-			for (File contactFile : ignoredContacts)
+			this.ignoredContacts.addAll(openInParallel(Arrays.asList(ignoredContacts), 
+				new StorageOpener<MessagingIdentity>() 
+				{
+					@Override
+					public MessagingIdentity open(File contactFile)
+						throws IOException
+					{
+						return new MessagingIdentity(contactFile);
+					}
+				}));
+	}
+	
+	
+	// Opens one stored item (e.g. contact) from its file or directory
+	private static interface StorageOpener<T>
+	{
+		T open(File f)
+			throws IOException;
+	}
+	
+	
+	// Opens stored items concurrently - returns them in the order of the files
+	private static <T> List<T> openInParallel(List<File> files, final StorageOpener<T> opener)
+		throws IOException
+	{
+		List<T> items = new ArrayList<T>(files.size());
+		if (files.size() <= 1)
+		{
+			for (File f : files)
+			{
+				items.add(opener.open(f));
+			}
+			
+			return items;
+		}
+		
+		ExecutorService openers = Executors.newFixedThreadPool(Math.min(STORAGE_OPEN_THREADS, files.size()));
+		try
+		{
+			List<Future<T>> results = new ArrayList<Future<T>>();
+			for (final File f : files)
+			{
+				results.add(openers.submit(new Callable<T>()
+				{
+					@Override
+					public T call()
+						throws IOException
+					{
+						return opener.open(f);
+					}
+				}));
+			}
+			
+			for (Future<T> result : results)
 			{
-				this.ignoredContacts.add(new MessagingIdentity(contactFile));
+				try
+				{
+					items.add(result.get());
+				} catch (ExecutionException ee)
+				{
+					if (ee.getCause() instanceof IOException)
+					{
+						throw (IOException)ee.getCause();
+					}
+					throw new IOException("Unexpected error in opening messaging storage: " + ee.getCause(), ee.getCause());
+				} catch (InterruptedException ie)
+				{
+					throw new IOException("Interrupted in opening messaging storage", ie);
+				}
 			}
+		} finally
+		{
+			openers.shutdownNow();
+		}
+		
+		return items;
 	}
 	
 	
@@ -663,6 +1224,8 @@ public class MessagingStorage
 	static class SingleContactStorage
 	{
 		final String IGNORED_GROUP_IDS = "ignored_group_ids.json";
+		final String KNOWN_SENDERS     = "known_senders.json";
+		final String CONTACT_SUMMARY   = "summary.json";
 		
 		private File rootDir;
 		
@@ -673,6 +1236,16 @@ public class MessagingStorage
 		
 		private Set<String> cachedIgnoredGroupSenderIDs;
 		
+		// Known group senders - loaded on first use, null before that
+		private Map<String, KnownSender> cachedKnownSenders;
+		// Set if the known senders file does not reflect the messages written so far
+		private boolean knownSendersChanged;
+		
+		// Unread count and last message - loaded on first use, null before that
+		private ContactSummary cachedSummary;
+		// Set if the summary file does not reflect the messages written so far
+		private boolean summaryChanged;
+		
 		
 		public SingleContactStorage(File rootDir)
 			throws IOException
@@ -689,9 +1262,9 @@ public class MessagingStorage
 					throw new IOException("Could not create directory: " + rootDir.getAbsolutePath());
 				}
 			}
-		
-			this.sentMessages     = new SentOrReceivedMessagesStore(new File(rootDir, "sent"));
-			this.receivedMessages = new SentOrReceivedMessagesStore(new File(rootDir, "received"));
+			
+			this.sentMessages     = null;
+			this.receivedMessages = null;
 		}
 		
 		
@@ -743,6 +1316,20 @@ public class MessagingStorage
 		}
 		
 
+		/**
+		 * Returns the IDs of all ignored senders. This makes sense only if the
+		 * current contact is a group.
+		 * 
+		 * @return a copy of the ignored sender IDs
+		 */
+		public Set<String> getGroupIgnoredSenderIDs()
+			throws IOException
+		{
+			this.preloadCachedIgnoredGroupSenderIDs();
+			return new HashSet<String>(this.cachedIgnoredGroupSenderIDs);
+		}
+		
+
 		/**
 		 * Adds a new ignored sender ID. This makes sense only if the
 		 * current contact is a group. The ID may be an anonymous sender UUID or a
@@ -770,10 +1357,8 @@ public class MessagingStorage
 			OutputStream os = null;
 			try
 			{
-				os = new BufferedOutputStream(new FileOutputStream(ignoredIDsFile));
-				OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-				ar.writeTo(osw, WriterConfig.PRETTY_PRINT);
-				osw.flush();
+				os = new FileOutputStream(ignoredIDsFile);
+				ar.writeTo(os, WriterConfig.PRETTY_PRINT);
 			} finally 
 			{
 				if (os != null)
@@ -832,204 +1417,1187 @@ public class MessagingStorage
 		}
 		
 		
-		public List<Message> getAllSentMessages()
-		    throws IOException
+		// The message stores are opened on first use - only the identity is needed for the contact list
+		public synchronized SentOrReceivedMessagesStore getSentMessages()
+			throws IOException
 		{
-			return this.sentMessages.getAllMessages();
+			if (this.sentMessages == null)
+			{
+				this.sentMessages = new SentOrReceivedMessagesStore(new File(rootDir, "sent"));
+			}
+			
+			return this.sentMessages;
 		}
 		
 		
-		public void writeNewSentMessage(Message msg)
+		public synchronized SentOrReceivedMessagesStore getReceivedMessages()
 			throws IOException
 		{
-			this.sentMessages.writeNewMessage(msg);
+			if (this.receivedMessages == null)
+			{
+				this.receivedMessages = new SentOrReceivedMessagesStore(new File(rootDir, "received"));
+			}
+			
+			return this.receivedMessages;
 		}
-
 		
-		public List<Message> getAllReceivedMessages()
-		    throws IOException
+		
+		public void writeNewSentMessage(Message msg)
+			throws IOException
 		{
-			return this.receivedMessages.getAllMessages();
+			this.getSummary(); // Built from the earlier messages if missing
+			this.getSentMessages().writeNewMessage(msg);
+			this.knownSenderMessageWritten(msg);
+			this.summaryMessageWritten(msg);
 		}
 
 		
 		public void writeNewReceivedMessage(Message msg)
 			throws IOException
 		{
-			this.receivedMessages.writeNewMessage(msg);
+			this.getSummary(); // Built from the earlier messages if missing
+			this.getReceivedMessages().writeNewMessage(msg);
+			this.knownSenderMessageWritten(msg);
+			this.summaryMessageWritten(msg);
 		}
 
 		
-		public File getRootDir()
-		{
-			return this.rootDir;
-		}
-	}
-	
-	
-	// Stores messages of one type - sent/received for one contact
-	// Root directory may be like:
-	// ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/sent
-	static class SentOrReceivedMessagesStore
-	{
-		private File rootDir;
-		
-		private int currentOutputDirForWrite;
-		
-		public SentOrReceivedMessagesStore(File rootDir)
-		    throws IOException
+		public void flush()
+			throws IOException
 		{
-			this.rootDir = rootDir;
+			// Stores not opened have nothing to flush
+			SentOrReceivedMessagesStore sent, received;
+			synchronized (this)
+			{
+				sent     = this.sentMessages;
+				received = this.receivedMessages;
+			}
 			
-			if (!rootDir.exists())
+			if (sent != null)
 			{
-				if (!rootDir.mkdirs())
-				{
-					throw new IOException("Could not create directory: " + rootDir.getAbsolutePath());
-				}
+				sent.flush();
 			}
 			
-			// Use the dir with the highest number created so far
-			this.currentOutputDirForWrite = 0;
-			File currentDirs[] = rootDir.listFiles(new FileFilter() 
-			{	
-				@Override
-				public boolean accept(File pathname) 
-				{
-					return pathname.isDirectory() && pathname.getName().matches("[0-9]{4}");
-				}
-			});
+			if (received != null)
+			{
+				received.flush();
+			}
+			
+			if (this.knownSendersChanged)
+			{
+				this.storeKnownSenders();
+			}
 			
-			for (File dir : currentDirs)
+			synchronized (this)
 			{
-				if (Integer.parseInt(dir.getName()) > this.currentOutputDirForWrite)
+				if (this.summaryChanged)
 				{
-					this.currentOutputDirForWrite = Integer.parseInt(dir.getName());
+					this.storeSummary();
 				}
 			}
 		}
 		
 		
-		// Returns all messages in ascending time order
-		public List<Message> getAllMessages()
+		/**
+		 * Returns the summary of the conversation - it is maintained as messages are written. 
+		 * Built from the last messages if there is no summary stored yet.
+		 * 
+		 * @return the summary - not a copy, callers must not modify it
+		 */
+		public synchronized ContactSummary getSummary()
 			throws IOException
 		{
-			List<Message> allMessages = new ArrayList<Message>();
+			if (this.cachedSummary != null)
+			{
+				return this.cachedSummary;
+			}
+			
+			File summaryFile = new File(rootDir, CONTACT_SUMMARY);
+			if (summaryFile.exists())
+			{
+				InputStream is = null;
+				try
+				{
+					is = new BufferedInputStream(new FileInputStream(summaryFile));
+					this.cachedSummary = new ContactSummary(Util.parseJsonObject(new InputStreamReader(is, "UTF-8")));
+					return this.cachedSummary;
+				} catch (Exception e)
+				{
+					Log.warning("Contact summary file {0} is not readable, it will be rebuilt: {1}", 
+							    summaryFile.getAbsolutePath(), e.getMessage());
+				} finally
+				{
+					if (is != null)
+					{
+						is.close();
+					}
+				}
+			}
+			
+			// Only the last message in each store is needed - older history is considered read
+			this.cachedSummary = new ContactSummary();
+			for (SentOrReceivedMessagesStore store : Arrays.asList(this.getReceivedMessages(), this.getSentMessages()))
+			{
+				int count = store.getMessageCount();
+				if (count > 0)
+				{
+					for (Message msg : store.readMessagesAppendedAfter(count - 1))
+					{
+						this.cachedSummary.messageStored(msg);
+					}
+				}
+			}
+			this.cachedSummary.markAsRead();
+			
+			this.storeSummary();
+			
+			return this.cachedSummary;
+		}
+		
+		
+		// Resets the unread count - stored right away since it changes rarely
+		public synchronized void markRead()
+			throws IOException
+		{
+			ContactSummary summary = this.getSummary();
+			if (summary.getUnreadCount() > 0)
+			{
+				summary.markAsRead();
+				this.storeSummary();
+			}
+		}
+		
+		
+		// Keeps the summary up to date - it is loaded before the message is written
+		private synchronized void summaryMessageWritten(Message msg)
+		{
+			this.cachedSummary.messageStored(msg);
+			this.summaryChanged = true;
+		}
+		
+		
+		private void storeSummary()
+			throws IOException
+		{
+			OutputStream os = null;
+			try
+			{
+				os = new FileOutputStream(new File(rootDir, CONTACT_SUMMARY));
+				this.cachedSummary.toJSONObject().writeTo(os, WriterConfig.PRETTY_PRINT);
+			} finally 
+			{
+				if (os != null)
+				{
+					os.close();
+				}
+			}
+			
+			this.summaryChanged = false;
+		}
+		
+		
+		/**
+		 * Returns the identities sent in identity messages to a group - the latest for every 
+		 * sender. Sent messages and received messages with a valid signature are considered.
+		 * 
+		 * @return sender ID address -> identity of the sender.
+		 */
+		public Map<String, MessagingIdentity> getKnownSenders()
+			throws IOException
+		{
+			this.preloadKnownSenders();
+			
+			Map<String, MessagingIdentity> senders = new HashMap<String, MessagingIdentity>();
+			for (Map.Entry<String, KnownSender> sender : this.cachedKnownSenders.entrySet())
+			{
+				senders.put(sender.getKey(), sender.getValue().identity);
+			}
+			
+			return senders;
+		}
+		
+		
+		// Keeps the known senders up to date. If not loaded yet, the message is picked up on loading.
+		private void knownSenderMessageWritten(Message msg)
+			throws IOException
+		{
+			if (this.cachedKnownSenders == null)
+			{
+				return;
+			}
+			
+			this.knownSendersChanged = true;
+			
+			// Store a sender's identity change right away - otherwise on flush()
+			if (this.addKnownSender(msg))
+			{
+				this.storeKnownSenders();
+			}
+		}
+		
+		
+		// Returns true if the known senders changed
+		private boolean addKnownSender(Message msg)
+			throws IOException
+		{
+			if ((!MessagingIdentity.isIdentityMessage(msg.getMessage())) || 
+				((msg.getDirection() != DIRECTION_TYPE.SENT) && 
+				 (msg.getVerification() != VERIFICATION_TYPE.VERIFICATION_OK)))
+			{
+				return false;
+			}
+			
+			MessagingIdentity senderIdentity = new MessagingIdentity(
+				Util.parseJsonObject(msg.getMessage()).get("zenmessagingidentity").asObject());
+			
+			// A later identity of the same sender replaces the earlier one
+			KnownSender existing = this.cachedKnownSenders.get(senderIdentity.getSenderidaddress());
+			if ((existing != null) && (existing.time > msg.getTime().getTime()))
+			{
+				return false;
+			}
+			
+			this.cachedKnownSenders.put(
+				senderIdentity.getSenderidaddress(), new KnownSender(msg.getTime().getTime(), senderIdentity));
+			return true;
+		}
+		
+		
+		// Loads the stored known senders and adds those from messages written after they were stored
+		private void preloadKnownSenders()
+			throws IOException
+		{
+			if (this.cachedKnownSenders != null)
+			{
+				return;
+			}
+			
+			this.cachedKnownSenders = new HashMap<String, KnownSender>();
+			int scannedReceived = 0;
+			int scannedSent = 0;
+			
+			File knownSendersFile = new File(rootDir, KNOWN_SENDERS);
+			if (knownSendersFile.exists())
+			{
+				InputStream is = null;
+				try
+				{
+					is = new BufferedInputStream(new FileInputStream(knownSendersFile));
+					JsonObject obj = Util.parseJsonObject(new InputStreamReader(is, "UTF-8"));
+					
+					scannedReceived = obj.getInt("receivedmessages", 0);
+					scannedSent     = obj.getInt("sentmessages",     0);
+					JsonArray senders = obj.get("senders").asArray();
+					for (int i = 0; i < senders.size(); i++)
+					{
+						JsonObject sender = senders.get(i).asObject();
+						MessagingIdentity identity = new MessagingIdentity(sender.get("identity").asObject());
+						this.cachedKnownSenders.put(
+							identity.getSenderidaddress(), new KnownSender(sender.getLong("time", 0), identity));
+					}
+				} catch (Exception e)
+				{
+					Log.warning("Known senders file {0} is not readable, it will be rebuilt: {1}", 
+							    knownSendersFile.getAbsolutePath(), e.getMessage());
+					this.cachedKnownSenders.clear();
+					scannedReceived = scannedSent = 0;
+				} finally
+				{
+					if (is != null)
+					{
+						is.close();
+					}
+				}
+				
+				if ((scannedReceived > this.getReceivedMessages().getMessageCount()) || 
+					(scannedSent > this.getSentMessages().getMessageCount()))
+				{
+					this.cachedKnownSenders.clear();
+					scannedReceived = scannedSent = 0;
+				}
+			}
+			
+			List<Message> newMessages = new ArrayList<Message>();
+			newMessages.addAll(this.getReceivedMessages().readMessagesAppendedAfter(scannedReceived));
+			newMessages.addAll(this.getSentMessages().readMessagesAppendedAfter(scannedSent));
+			for (Message msg : newMessages)
+			{
+				this.addKnownSender(msg);
+			}
+			
+			if ((!newMessages.isEmpty()) || (!knownSendersFile.exists()))
+			{
+				this.storeKnownSenders();
+			}
+		}
+		
+		
+		private void storeKnownSenders()
+			throws IOException
+		{
+			JsonArray senders = new JsonArray();
+			for (KnownSender sender : this.cachedKnownSenders.values())
+			{
+				JsonObject obj = new JsonObject();
+				obj.set("time",     sender.time);
+				obj.set("identity", sender.identity.toJSONObject(false));
+				senders.add(obj);
+			}
+			
+			JsonObject knownSenders = new JsonObject();
+			knownSenders.set("receivedmessages", this.getReceivedMessages().getMessageCount());
+			knownSenders.set("sentmessages",     this.getSentMessages().getMessageCount());
+			knownSenders.set("senders",          senders);
+			
+			OutputStream os = null;
+			try
+			{
+				os = new FileOutputStream(new File(rootDir, KNOWN_SENDERS));
+				knownSenders.writeTo(os, WriterConfig.PRETTY_PRINT);
+			} finally 
+			{
+				if (os != null)
+				{
+					os.close();
+				}
+			}
+			
+			this.knownSendersChanged = false;
+		}
+
+		
+		public File getRootDir()
+		{
+			return this.rootDir;
+		}
+	}
+	
+	
+	// Stores messages of one type - sent/received for one contact
+	// Root directory may be like:
+	// ~/.ZENCashSwingWalletUI/messaging/contact_XXXX/sent
+	//
+	// Messages are appended to segment files segment_XXXX.log - one compact JSON object per
+	// line. Each append also adds a fixed position record to messages.idx (segment, offset, 
+	// length, time, transaction ID) so that the store may be opened and read without parsing 
+	// every message. The index is kept in memory sorted by time. Older stores using the
+	// XXXX/message_xxx.json layout are migrated on first open.
+	static class SentOrReceivedMessagesStore
+	{
+		static final String INDEX_FILE_NAME = "messages.idx";
+		
+		// Temporary directory of the log being migrated, marker created when it is complete
+		static final String MIGRATION_DIR_NAME    = "migration.tmp";
+		static final String MIGRATION_MARKER_NAME = "migration.complete";
+		
+		static final String SEGMENT_PREFIX = "segment_";
+		static final String SEGMENT_SUFFIX = ".log";
+		
+		// A new segment is started when the current one would exceed this size
+		static final long MAX_SEGMENT_SIZE = 4L * 1024 * 1024;
+		
+		// Segments at least this large are memory mapped for reading
+		static final long MIN_MAPPED_SEGMENT_SIZE = 64L * 1024;
+		
+		// Appends are forced to disk after this many messages or this many ms
+		static final int  SYNC_BATCH_SIZE     = 32;
+		static final long SYNC_INTERVAL       = 5000;
+		
+		// Max. number of recently read messages kept in memory
+		static final int  MAX_CACHED_MESSAGES = 256;
+		
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+		
+		private File rootDir;
+		
+		// All index entries in ascending time order
+		private List<IndexEntry> entriesByTime;
+		
+		private Map<String, IndexEntry> entriesByTransactionID;
+		
+		private int  currentSegment;
+		private long currentSegmentSize;
+		
+		// Open only while there are appends that are not yet forced to disk
+		private FileChannel segmentChannel;
+		private FileChannel indexChannel;
+		
+		private int  unsyncedAppends;
+		private long lastSyncTime;
+		
+		// Reused for encoding appended messages - grows to the largest message written
+		private Utf8OutputBuffer appendBuffer = new Utf8OutputBuffer(4096);
+		
+		// Recently read messages by position (segment, offset) - least recently used first. The
+		// cached messages are shared with the callers which must not modify them.
+		private LinkedHashMap<Long, Message> messageCache;
+		
+		
+		public SentOrReceivedMessagesStore(File rootDir)
+		    throws IOException
+		{
+			this.rootDir = rootDir;
+			
+			if (!rootDir.exists())
+			{
+				if (!rootDir.mkdirs())
+				{
+					throw new IOException("Could not create directory: " + rootDir.getAbsolutePath());
+				}
+			}
+			
+			this.entriesByTime          = new ArrayList<IndexEntry>();
+			this.entriesByTransactionID = new HashMap<String, IndexEntry>();
+			this.lastSyncTime           = System.currentTimeMillis();
+			this.messageCache           = new LinkedHashMap<Long, Message>(64, 0.75f, true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, Message> eldest)
+				{
+					return this.size() > MAX_CACHED_MESSAGES;
+				}
+			};
+			
+			File legacyDirs[] = this.listLegacyMessageDirs();
+			if ((legacyDirs.length > 0) || new File(rootDir, MIGRATION_MARKER_NAME).exists())
+			{
+				this.migrateLegacyMessageDirs(legacyDirs);
+			}
+			this.loadIndex();
+		}
+		
+		
+		// Returns all messages in ascending time order
+		public synchronized List<Message> getAllMessages()
+			throws IOException
+		{
+			return this.readMessages(this.entriesByTime);
+		}
+		
+		
+		// Reads the messages appended after the first n, in the order they were appended
+		public synchronized List<Message> readMessagesAppendedAfter(int n)
+			throws IOException
+		{
+			List<IndexEntry> entries = new ArrayList<IndexEntry>(this.entriesByTime);
+			Collections.sort(entries,
+				new Comparator<IndexEntry>() 
+				{
+					public int compare(IndexEntry e1, IndexEntry e2)
+					{
+						return (e1.segment != e2.segment) ? 
+							Integer.compare(e1.segment, e2.segment) : Long.compare(e1.offset, e2.offset);
+					}
+				}
+			);
+			
+			return this.readMessages(entries.subList(Math.min(n, entries.size()), entries.size()));
+		}
+		
+		
+		// Returns a copy of the index in ascending time order
+		public synchronized List<IndexEntry> getIndexEntries()
+		{
+			return new ArrayList<IndexEntry>(this.entriesByTime);
+		}
+		
+		
+		// Reads the messages for the given index entries, in the same order
+		public synchronized List<Message> readMessages(List<IndexEntry> entries)
+			throws IOException
+		{
+			List<Message> allMessages = new ArrayList<Message>(entries.size());
+			
+			// Each segment is read (or mapped) once and messages are sliced out of it
+			Map<Integer, ByteBuffer> segmentBuffers = new HashMap<Integer, ByteBuffer>();
+			for (IndexEntry entry : entries)
+			{
+				Long position = (((long)entry.segment) << 32) | entry.offset;
+				Message message = this.messageCache.get(position);
+				if (message != null)
+				{
+					allMessages.add(message);
+					continue;
+				}
+				
+				ByteBuffer segmentBuffer = segmentBuffers.get(entry.segment);
+				if (segmentBuffer == null)
+				{
+					segmentBuffer = this.readSegment(entry.segment);
+					segmentBuffers.put(entry.segment, segmentBuffer);
+				}
+				
+				message = this.decodeMessage(segmentBuffer, entry);
+				this.messageCache.put(position, message);
+				allMessages.add(message);
+			}
+			
+			return allMessages;
+		}
+		
+		
+		// Returns the message with the given transaction ID or null if not stored
+		public synchronized Message getMessageForTransactionID(String transactionID)
+			throws IOException
+		{
+			IndexEntry entry = this.entriesByTransactionID.get(transactionID);
+			if (entry == null)
+			{
+				return null;
+			}
+			
+			ByteBuffer buf = ByteBuffer.allocate(entry.length);
+			FileChannel channel = new RandomAccessFile(this.getSegmentFile(entry.segment), "r").getChannel();
+			try
+			{
+				this.readFully(channel, buf, entry.offset);
+			} finally
+			{
+				channel.close();
+			}
+			
+			buf.flip();
+			return this.decodeMessage(buf, new IndexEntry(entry.segment, 0, entry.length, entry.time, entry.transactionID));
+		}
+		
+		
+		public synchronized int getMessageCount()
+		{
+			return this.entriesByTime.size();
+		}
+		
+		
+		public synchronized void writeNewMessage(Message msg)
+			throws IOException
+		{
+			this.appendMessage(msg);
+			
+			if ((this.unsyncedAppends >= SYNC_BATCH_SIZE) || 
+				((System.currentTimeMillis() - this.lastSyncTime) >= SYNC_INTERVAL))
+			{
+				this.sync(false);
+			}
+		}
+		
+		
+		// Forces all appended messages to disk and releases the open files
+		public synchronized void flush()
+			throws IOException
+		{
+			this.sync(true);
+		}
+		
+		
+		public File getRootDir()
+		{
+			return this.rootDir;
+		}
+		
+		
+		private void appendMessage(Message msg)
+			throws IOException
+		{
+			// The message is encoded straight to UTF-8 bytes, terminated by a new line
+			this.appendBuffer.reset().append(msg.toJSONObject(false), WriterConfig.MINIMAL);
+			int dataLength = this.appendBuffer.size();
+			this.appendBuffer.write('\n');
+			
+			if ((this.currentSegmentSize > 0) && 
+				((this.currentSegmentSize + dataLength + 1) > MAX_SEGMENT_SIZE))
+			{
+				this.sync(true);
+				this.currentSegment++;
+				this.currentSegmentSize = 0;
+			}
+			
+			if (this.segmentChannel == null)
+			{
+				this.segmentChannel = new RandomAccessFile(this.getSegmentFile(this.currentSegment), "rw").getChannel();
+				this.indexChannel   = new RandomAccessFile(new File(this.rootDir, INDEX_FILE_NAME), "rw").getChannel();
+				this.indexChannel.position(this.indexChannel.size());
+			}
+			
+			this.writeFully(this.segmentChannel, this.appendBuffer.asByteBuffer(), this.currentSegmentSize);
+
+			IndexEntry entry = new IndexEntry(
+				this.currentSegment, this.currentSegmentSize, dataLength, 
+				msg.getTime().getTime(), msg.getTransactionID());
+			this.writeFully(this.indexChannel, entry.toBytes(), this.indexChannel.position());
+			this.indexChannel.position(this.indexChannel.size());
+			
+			this.currentSegmentSize += dataLength + 1;
+			this.addToMemoryIndex(entry);
+			this.unsyncedAppends++;
+		}
+		
+		
+		private void sync(boolean close)
+			throws IOException
+		{
+			if (this.segmentChannel == null)
+			{
+				return;
+			}
 			
-			File currentDirs[] = this.rootDir.listFiles(new FileFilter() 
-			{	
-				@Override
-				public boolean accept(File pathname) 
+			try
+			{
+				if (this.unsyncedAppends > 0)
 				{
-					return pathname.isDirectory() && pathname.getName().matches("[0-9]{4}");
+					// Segment first - an index entry must never point past the data
+					this.segmentChannel.force(true);
+					this.indexChannel.force(true);
 				}
-			});
-			
-			for (File dir : currentDirs)
+			} finally
 			{
-				this.collectMessagesFromDir(dir, allMessages);
+				this.unsyncedAppends = 0;
+				this.lastSyncTime = System.currentTimeMillis();
+				
+				if (close)
+				{
+					try
+					{
+						this.segmentChannel.close();
+					} finally
+					{
+						this.indexChannel.close();
+						this.segmentChannel = null;
+						this.indexChannel   = null;
+					}
+				}
 			}
+		}
+		
+		
+		// Loads the index and reconciles it with the segments - an interrupted append may
+		// leave a partial index record, a partial message or a message with no index entry.
+		private void loadIndex()
+			throws IOException
+		{
+			File indexFile = new File(this.rootDir, INDEX_FILE_NAME);
+			List<IndexEntry> entries = new ArrayList<IndexEntry>();
+			Map<Integer, Long> segmentSizes = new HashMap<Integer, Long>();
+			long validIndexLength = 0;
 			
-			Collections.sort(allMessages,
-				new Comparator<Message>() 
+			if (indexFile.exists())
+			{
+				DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+				try
 				{
-					public int compare(Message m1, Message m2)
+					while (true)
 					{
-						return m1.getTime().compareTo(m2.getTime());
+						IndexEntry entry = IndexEntry.read(dis);
+						if (entry == null)
+						{
+							break;
+						}
+						
+						Long segmentSize = segmentSizes.get(entry.segment);
+						if (segmentSize == null)
+						{
+							segmentSize = this.getSegmentFile(entry.segment).length();
+							segmentSizes.put(entry.segment, segmentSize);
+						}
+						
+						if ((entry.offset + entry.length + 1) > segmentSize)
+						{
+							break;
+						}
+						
+						entries.add(entry);
+						validIndexLength += entry.getSerializedLength();
 					}
+				} finally
+				{
+					dis.close();
 				}
-			);
+				
+				if (validIndexLength < indexFile.length())
+				{
+					Log.warning("Truncating message index {0} from {1} to {2} bytes",
+							    indexFile.getAbsolutePath(), indexFile.length(), validIndexLength);
+					this.truncateFile(indexFile, validIndexLength);
+				}
+			}
 			
-			return allMessages;
+			int lastSegment = 0;
+			long lastSegmentIndexedSize = 0;
+			if (!entries.isEmpty())
+			{
+				IndexEntry last = entries.get(entries.size() - 1);
+				lastSegment = last.segment;
+				lastSegmentIndexedSize = last.offset + last.length + 1;
+			}
+			
+			// Index any messages written after the last index entry
+			List<IndexEntry> recovered = new ArrayList<IndexEntry>();
+			int maxSegment = Math.max(lastSegment, this.getMaxSegmentNumber());
+			for (int segment = lastSegment; segment <= maxSegment; segment++)
+			{
+				long from = (segment == lastSegment) ? lastSegmentIndexedSize : 0;
+				long size = this.recoverSegmentTail(segment, from, recovered);
+				
+				this.currentSegment     = segment;
+				this.currentSegmentSize = size;
+			}
+			
+			for (IndexEntry entry : entries)
+			{
+				this.addToMemoryIndex(entry);
+			}
+			
+			if (!recovered.isEmpty())
+			{
+				Log.warning("Recovered {0} messages not present in index {1}", 
+						    recovered.size(), indexFile.getAbsolutePath());
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(indexFile, true));
+				try
+				{
+					for (IndexEntry entry : recovered)
+					{
+						os.write(entry.toBytes().array());
+						this.addToMemoryIndex(entry);
+					}
+				} finally
+				{
+					os.close();
+				}
+			}
 		}
 		
 		
-		public void writeNewMessage(Message msg)
+		// Scans a segment from the given offset and indexes the complete messages found. A 
+		// trailing partial message is cut off. Returns the resulting segment size.
+		private long recoverSegmentTail(int segment, long from, List<IndexEntry> recovered)
 			throws IOException
 		{
-			File dir = this.getCurrentDirForWrite();
+			File segmentFile = this.getSegmentFile(segment);
+			if ((!segmentFile.exists()) || (segmentFile.length() <= from))
+			{
+				return segmentFile.exists() ? segmentFile.length() : 0;
+			}
 			
-			// See how many message files currently exist (000 -> 999)
-			// TODO: This could be avoided - cache current number of files
-			File messages[] = dir.listFiles(new FileFilter() 
-			{	
-				@Override
-				public boolean accept(File pathname) 
+			ByteBuffer buf = this.readSegment(segment);
+			long recordStart = from;
+			for (long pos = from; pos < buf.limit(); pos++)
+			{
+				if (buf.get((int)pos) == (byte)'\n')
 				{
-					return pathname.isFile();
+					IndexEntry entry = new IndexEntry(segment, recordStart, (int)(pos - recordStart), 0, "");
+					try
+					{
+						Message msg = this.decodeMessage(buf, entry);
+						recovered.add(new IndexEntry(
+							segment, recordStart, entry.length, msg.getTime().getTime(), msg.getTransactionID()));
+					} catch (IOException ioe)
+					{
+						Log.warning("Skipping unreadable message at offset {0} of {1}: {2}", 
+								    recordStart, segmentFile.getAbsolutePath(), ioe.getMessage());
+					}
+					
+					recordStart = pos + 1;
 				}
-			});
+			}
 			
-			String name = String.valueOf(messages.length);
-			while (name.length() < 3)
+			if (recordStart < buf.limit())
 			{
-				name = "0" + name;
+				Log.warning("Truncating partially written message log {0} from {1} to {2} bytes",
+						    segmentFile.getAbsolutePath(), buf.limit(), recordStart);
+				this.truncateFile(segmentFile, recordStart);
 			}
-			name = "message_" + name + ".json";
 			
-			msg.writeToFile(new File(dir, name));
+			return recordStart;
 		}
 		
 		
-		private void collectMessagesFromDir(File dir, List<Message> messages)
+		// Moves messages from the old XXXX/message_xxx.json layout into the log. The new log is built
+		// in a temporary directory - from a copy of the current log, to which the messages of the old
+		// directories are added unless already present. A marker file is created once it is on disk.
+		// Only then are its files moved into place and the old directories renamed to XXXX.migrated.
+		// An interrupted migration is thus either redone from scratch (no marker) or just completed.
+		// An old directory may appear again if an older release is run - it is merged the same way.
+		private void migrateLegacyMessageDirs(File legacyDirs[])
 			throws IOException
 		{
-			File messageFiles[] = dir.listFiles(new FileFilter() 
+			File migrationDir = new File(this.rootDir, MIGRATION_DIR_NAME);
+			File marker       = new File(this.rootDir, MIGRATION_MARKER_NAME);
+			
+			if (!marker.exists())
+			{
+				Log.info("Migrating messages in {0} to a message log...", this.rootDir.getAbsolutePath());
+				
+				if (migrationDir.exists())
+				{
+					Util.deleteDirectory(migrationDir);
+				}
+				if (!migrationDir.mkdirs())
+				{
+					throw new IOException("Could not create directory: " + migrationDir.getAbsolutePath());
+				}
+				
+				// Messages already in the log are kept - it is the only copy of those written since
+				// an earlier migration
+				for (File f : this.listLogFiles(this.rootDir))
+				{
+					Files.copy(f.toPath(), new File(migrationDir, f.getName()).toPath(), 
+						       StandardCopyOption.REPLACE_EXISTING);
+				}
+				
+				SentOrReceivedMessagesStore migrationStore = new SentOrReceivedMessagesStore(migrationDir);
+				Set<String> knownMessages = new HashSet<String>();
+				for (Message msg : migrationStore.getAllMessages())
+				{
+					knownMessages.add(msg.toJSONObject(false).toString());
+				}
+				
+				// Directories renamed by an earlier migration that was interrupted before it could
+				// create the marker are migrated again - their messages may not be in the log
+				List<File> sourceDirs = new ArrayList<File>(Arrays.asList(legacyDirs));
+				sourceDirs.addAll(Arrays.asList(this.listMigratedMessageDirs()));
+				
+				List<Message> messages = new ArrayList<Message>();
+				for (File dir : sourceDirs)
+				{
+					File messageFiles[] = dir.listFiles(new FileFilter() 
+					{	
+						@Override
+						public boolean accept(File pathname) 
+						{
+							return pathname.isFile() && pathname.getName().endsWith(".json");
+						}
+					});
+					
+					for (File f : messageFiles)
+					{
+						Message msg = new Message(f);
+						if (knownMessages.add(msg.toJSONObject(false).toString()))
+						{
+							messages.add(msg);
+						}
+					}
+				}
+				
+				Collections.sort(messages,
+					new Comparator<Message>() 
+					{
+						public int compare(Message m1, Message m2)
+						{
+							return m1.getTime().compareTo(m2.getTime());
+						}
+					}
+				);
+				
+				for (Message msg : messages)
+				{
+					migrationStore.appendMessage(msg);
+				}
+				migrationStore.sync(true);
+				
+				FileOutputStream fos = new FileOutputStream(marker);
+				try
+				{
+					fos.getFD().sync();
+				} finally
+				{
+					fos.close();
+				}
+				
+				Log.info("Migrated {0} messages in {1}", messages.size(), this.rootDir.getAbsolutePath());
+			} else
+			{
+				Log.info("Completing an interrupted migration of messages in {0}", this.rootDir.getAbsolutePath());
+			}
+			
+			// The log in the temporary directory has all segments of the current one - so every
+			// file in place is replaced
+			File migratedFiles[] = migrationDir.listFiles();
+			if (migratedFiles != null)
+			{
+				for (File f : migratedFiles)
+				{
+					Files.move(f.toPath(), new File(this.rootDir, f.getName()).toPath(), 
+						       StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			
+			for (File dir : legacyDirs)
+			{
+				// A directory of the same name may have been migrated before
+				File migratedDir = new File(this.rootDir, dir.getName() + ".migrated");
+				for (int i = 1; migratedDir.exists(); i++)
+				{
+					migratedDir = new File(this.rootDir, dir.getName() + ".migrated." + i);
+				}
+				
+				if (!dir.renameTo(migratedDir))
+				{
+					throw new IOException("Could not rename directory: " + dir.getAbsolutePath() + 
+							              " to " + migratedDir.getAbsolutePath());
+				}
+			}
+			
+			if (migrationDir.exists())
+			{
+				Util.deleteDirectory(migrationDir);
+			}
+			if (!marker.delete())
+			{
+				throw new IOException("Could not delete file: " + marker.getAbsolutePath());
+			}
+		}
+		
+		
+		// The message index and the segment files in a directory
+		private File[] listLogFiles(File dir)
+		{
+			return dir.listFiles(new FileFilter() 
 			{	
 				@Override
 				public boolean accept(File pathname) 
 				{
-					return pathname.isFile();
+					return pathname.isFile() &&
+						   (pathname.getName().equals(INDEX_FILE_NAME) ||
+						    pathname.getName().matches(SEGMENT_PREFIX + "[0-9]{4}\\" + SEGMENT_SUFFIX));
 				}
 			});
-
-			for (File f : messageFiles)
+		}
+		
+		
+		private File[] listMigratedMessageDirs()
+		{
+			return this.rootDir.listFiles(new FileFilter() 
+			{	
+				@Override
+				public boolean accept(File pathname) 
+				{
+					return pathname.isDirectory() && pathname.getName().matches("[0-9]{4}\\.migrated(\\.[0-9]+)?");
+				}
+			});
+		}
+		
+		
+		private File[] listLegacyMessageDirs()
+		{
+			return this.rootDir.listFiles(new FileFilter() 
+			{	
+				@Override
+				public boolean accept(File pathname) 
+				{
+					return pathname.isDirectory() && pathname.getName().matches("[0-9]{4}");
+				}
+			});
+		}
+		
+		
+		private int getMaxSegmentNumber()
+		{
+			File segments[] = this.rootDir.listFiles(new FileFilter() 
+			{	
+				@Override
+				public boolean accept(File pathname) 
+				{
+					return pathname.isFile() && 
+						   pathname.getName().matches(SEGMENT_PREFIX + "[0-9]{4}\\" + SEGMENT_SUFFIX);
+				}
+			});
+			
+			int max = 0;
+			for (File f : segments)
 			{
-				messages.add(new Message(f));
+				String number = f.getName().substring(
+					SEGMENT_PREFIX.length(), f.getName().length() - SEGMENT_SUFFIX.length());
+				max = Math.max(max, Integer.parseInt(number));
 			}
+			
+			return max;
 		}
 		
 		
-		private File getCurrentDirForWrite()
-			throws IOException
+		private File getSegmentFile(int segment)
 		{
-			String name = String.valueOf(this.currentOutputDirForWrite);
+			String name = String.valueOf(segment);
 			while (name.length() < 4)
 			{
 				name = "0" + name;
 			}
 			
-			File dir = new File(this.rootDir, name);
-			
-			if (!dir.exists())
+			return new File(this.rootDir, SEGMENT_PREFIX + name + SEGMENT_SUFFIX);
+		}
+		
+		
+		// Reads a whole segment sequentially. Large segments that are no longer appended to 
+		// are mapped instead. On Windows a mapped file may not be deleted until the mapping is 
+		// garbage collected, so mapping is not used there.
+		private ByteBuffer readSegment(int segment)
+			throws IOException
+		{
+			File segmentFile = this.getSegmentFile(segment);
+			FileChannel channel = new RandomAccessFile(segmentFile, "r").getChannel();
+			try
 			{
-				if (!dir.mkdirs())
+				long size = channel.size();
+				if ((size >= MIN_MAPPED_SEGMENT_SIZE) && (segment < this.currentSegment) &&
+					(OSUtil.getOSType() != OSUtil.OS_TYPE.WINDOWS))
 				{
-					throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
 				}
-			} else
-			{
-				// Make sure there are not too many messages
-				// TODO: This could be avoided - cache current number of files
-				File messages[] = dir.listFiles(new FileFilter() 
-				{	
-					@Override
-					public boolean accept(File pathname) 
-					{
-						return pathname.isFile();
-					}
-				});
 				
-				if (messages.length > 999)
+				ByteBuffer buf = ByteBuffer.allocate((int)size);
+				this.readFully(channel, buf, 0);
+				buf.flip();
+				return buf;
+			} finally
+			{
+				channel.close();
+			}
+		}
+		
+		
+		private Message decodeMessage(ByteBuffer segmentBuffer, IndexEntry entry)
+			throws IOException
+		{
+			ByteBuffer slice = segmentBuffer.duplicate();
+			slice.position((int)entry.offset);
+			slice.limit((int)entry.offset + entry.length);
+			
+			String json = UTF8.decode(slice).toString();
+			return new Message(Util.parseJsonObject(json));
+		}
+		
+		
+		private void addToMemoryIndex(IndexEntry entry)
+		{
+			// Insert after all entries with the same or earlier time - appends are mostly in order
+			int pos = this.entriesByTime.size();
+			while ((pos > 0) && (this.entriesByTime.get(pos - 1).time > entry.time))
+			{
+				pos--;
+			}
+			this.entriesByTime.add(pos, entry);
+			
+			if (!Util.stringIsEmpty(entry.transactionID))
+			{
+				this.entriesByTransactionID.put(entry.transactionID, entry);
+			}
+		}
+		
+		
+		private void readFully(FileChannel channel, ByteBuffer buf, long position)
+			throws IOException
+		{
+			while (buf.hasRemaining())
+			{
+				int read = channel.read(buf, position);
+				if (read < 0)
 				{
-					this.currentOutputDirForWrite++;
-					
-					return getCurrentDirForWrite(); // Recurse 
+					throw new EOFException("Unexpected end of message log file!");
 				}
+				position += read;
+			}
+		}
+		
+		
+		private void writeFully(FileChannel channel, ByteBuffer buf, long position)
+			throws IOException
+		{
+			while (buf.hasRemaining())
+			{
+				position += channel.write(buf, position);
+			}
+		}
+		
+		
+		private void truncateFile(File f, long size)
+			throws IOException
+		{
+			FileChannel channel = new RandomAccessFile(f, "rw").getChannel();
+			try
+			{
+				channel.truncate(size);
+				channel.force(true);
+			} finally
+			{
+				channel.close();
 			}
-			
-			return dir;
 		}
 		
 	} // End static class SentOrReceivedMessagesStore
+	
+	
+	// Identity of a group member and the time of the message that carried it
+	static class KnownSender
+	{
+		final long              time;
+		final MessagingIdentity identity;
+		
+		KnownSender(long time, MessagingIdentity identity)
+		{
+			this.time     = time;
+			this.identity = identity;
+		}
+	}
+	
+	
+	// One record of the messages.idx file
+	static class IndexEntry
+	{
+		final int    segment;
+		final long   offset;
+		final int    length;
+		final long   time;
+		final String transactionID;
+		
+		
+		IndexEntry(int segment, long offset, int length, long time, String transactionID)
+		{
+			this.segment       = segment;
+			this.offset        = offset;
+			this.length        = length;
+			this.time          = time;
+			this.transactionID = (transactionID != null) ? transactionID : "";
+		}
+		
+		
+		// Layout: int segment, long offset, int length, long time, short txid length, txid (ASCII)
+		ByteBuffer toBytes()
+		{
+			byte[] txid = this.transactionID.getBytes(Charset.forName("US-ASCII"));
+			ByteBuffer buf = ByteBuffer.allocate(4 + 8 + 4 + 8 + 2 + txid.length);
+			buf.putInt(this.segment);
+			buf.putLong(this.offset);
+			buf.putInt(this.length);
+			buf.putLong(this.time);
+			buf.putShort((short)txid.length);
+			buf.put(txid);
+			buf.flip();
+			
+			return buf;
+		}
+		
+		
+		int getSerializedLength()
+		{
+			return 4 + 8 + 4 + 8 + 2 + this.transactionID.length();
+		}
+		
+		
+		// Returns null at the end of the data or on a partially written record
+		static IndexEntry read(DataInputStream dis)
+			throws IOException
+		{
+			try
+			{
+				int  segment = dis.readInt();
+				long offset  = dis.readLong();
+				int  length  = dis.readInt();
+				long time    = dis.readLong();
+				byte[] txid  = new byte[dis.readUnsignedShort()];
+				dis.readFully(txid);
+				
+				return new IndexEntry(segment, offset, length, time, new String(txid, "US-ASCII"));
+			} catch (EOFException eofe)
+			{
+				return null;
+			}
+		}
+	} // End static class IndexEntry
 }
@@ -0,0 +1,979 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.WriterConfig;
+import com.vaklinov.zcashui.BatchPayout;
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.OperationTracker;
+import com.vaklinov.zcashui.Util;
+import com.vaklinov.zcashui.ZCashClientCaller;
+import com.vaklinov.zcashui.ZCashClientCaller.WalletCallException;
+import com.vaklinov.zcashui.Zatoshi;
+import com.vaklinov.zcashui.msg.Message.DIRECTION_TYPE;
+
+
+/**
+ * Persistent queue of outgoing messages. Messages are accepted immediately and sent later in 
+ * batches - pending messages to different recipients go out as outputs of one z_sendmany. The 
+ * queue is kept in:
+ * 
+ * ~/.ZENCashSwingWalletUI/messaging/outbound_queue.json
+ * 
+ * Only one batch is in flight at a time - its outputs spend the confirmed notes of the messaging 
+ * address, so a second operation started meanwhile would typically fail for lack of funds. The 
+ * size of a batch is limited by the confirmed balance. A message whose batch fails is retried 
+ * with exponential backoff until MAX_SEND_ATTEMPTS is reached. Messages that have been delivered
+ * are written to the messaging storage as sent.
+ * 
+ * A fragmented message has several memos - they are sent one per batch, since a z_sendmany may 
+ * not have two outputs to the same address. The message is delivered with its last fragment.
+ * 
+ * The wallet forgets its operations when it is restarted. If the operation of a batch is no longer
+ * known, the transaction of the batch is looked for in the wallet - a note received by the sending
+ * address after the batch was sent (its change, or a memo of the batch sent to oneself). If none is
+ * found, the delivery of the batch is uncertain and the user decides whether to send it again.
+ */
+public class OutboundMessageQueue
+{
+	static final String QUEUE_FILE_NAME = "outbound_queue.json";
+	
+	// Max. number of messages sent in one z_sendmany - all outputs are Z outputs with memos
+	public static final int MAX_MESSAGES_PER_OPERATION = BatchPayout.MAX_Z_OUTPUTS_PER_OPERATION;
+	
+	// Max. number of attempts to send a message before it is given up
+	private static final int MAX_SEND_ATTEMPTS = 6;
+	
+	// Delay before the first retry - doubled on every subsequent attempt
+	private static final long INITIAL_RETRY_DELAY = 30 * 1000L;
+	
+	// Max. delay between retries
+	private static final long MAX_RETRY_DELAY = 30 * 60 * 1000L;
+	
+	// Tolerance when comparing the wallet time of a transaction with the time a batch was sent
+	private static final long SEND_TIME_TOLERANCE = 60 * 1000L;
+	
+	
+	/**
+	 * Implemented by parties interested in the delivery of queued messages. Notifications are
+	 * delivered on the Swing event dispatch thread.
+	 */
+	public static interface QueueListener
+	{
+		void messageDelivered(MessagingIdentity contact, Message message);
+		
+		void messageFailed(MessagingIdentity contact, String errorMessage);
+		
+		void queueChanged(int pendingMessages, int messagesInProgress);
+		
+		/**
+		 * Messages of a batch whose operation the wallet no longer knows could not be found on the 
+		 * blockchain. They are neither sent again nor stored as sent until 
+		 * {@link OutboundMessageQueue#resolveUncertainMessages(boolean)} is called.
+		 */
+		void deliveryUncertain(int uncertainMessages);
+	}
+	
+	
+	// One message waiting in the queue
+	private static class QueuedMessage
+	{
+		static final String STATE_PENDING     = "pending";
+		static final String STATE_IN_PROGRESS = "inprogress";
+		static final String STATE_UNCERTAIN   = "uncertain";
+		
+		String id;
+		JsonObject contact;
+		JsonObject innerMessage;
+		List<String> memos; // HEX encoded
+		int memosSent;
+		String state;
+		int attempts;
+		long nextAttemptTime;
+		String operationID;
+		long sentTime;
+		long sentBalance; // confirmed balance before the batch was sent, -1 if not known
+		String lastError;
+		
+		
+		QueuedMessage()
+		{
+			this.id              = UUID.randomUUID().toString();
+			this.memos           = new ArrayList<String>();
+			this.memosSent       = 0;
+			this.state           = STATE_PENDING;
+			this.attempts        = 0;
+			this.nextAttemptTime = 0;
+			this.operationID     = "";
+			this.sentTime        = 0;
+			this.sentBalance     = -1;
+			this.lastError       = "";
+		}
+		
+		
+		QueuedMessage(JsonObject obj)
+			throws IOException
+		{
+			this.id              = obj.getString("id",              UUID.randomUUID().toString());
+			this.contact         = obj.get("contact").asObject();
+			this.innerMessage    = obj.get("message").asObject();
+			this.memos           = new ArrayList<String>();
+			if (obj.get("memos") != null)
+			{
+				for (JsonValue memo : obj.get("memos").asArray())
+				{
+					this.memos.add(memo.asString());
+				}
+			} else
+			{
+				// Single memo, as first stored - HEX or text
+				this.memos.add((obj.get("memohex") != null) ? obj.getString("memohex", "") :
+				               Util.encodeHexString(obj.getString("memo", "")));
+			}
+			this.memosSent       = obj.getInt("memossent",          0);
+			this.state           = obj.getString("state",           STATE_PENDING);
+			this.attempts        = obj.getInt("attempts",           0);
+			this.nextAttemptTime = obj.getLong("nextattempttime",   0);
+			this.operationID     = obj.getString("operationid",     "");
+			this.sentTime        = obj.getLong("senttime",          0);
+			this.sentBalance     = obj.getLong("sentbalance",       -1);
+			this.lastError       = obj.getString("lasterror",       "");
+		}
+		
+		
+		JsonObject toJSONObject()
+		{
+			JsonObject obj = new JsonObject();
+			obj.set("id",              this.id);
+			obj.set("contact",         this.contact);
+			obj.set("message",         this.innerMessage);
+			JsonArray memos = new JsonArray();
+			for (String memo : this.memos)
+			{
+				memos.add(memo);
+			}
+			obj.set("memos",           memos);
+			obj.set("memossent",       this.memosSent);
+			obj.set("state",           this.state);
+			obj.set("attempts",        this.attempts);
+			obj.set("nextattempttime", this.nextAttemptTime);
+			obj.set("operationid",     this.operationID);
+			obj.set("senttime",        this.sentTime);
+			obj.set("sentbalance",     this.sentBalance);
+			obj.set("lasterror",       this.lastError);
+			return obj;
+		}
+		
+		
+		String getRecipientAddress()
+		{
+			return this.contact.getString("sendreceiveaddress", "");
+		}
+		
+		
+		String getNextMemo()
+		{
+			return this.memos.get(this.memosSent);
+		}
+	}
+	
+	
+	private File queueFile;
+	
+	private ZCashClientCaller clientCaller;
+	private OperationTracker operationTracker;
+	private MessagingStorage messagingStorage;
+	
+	private List<QueuedMessage> messages;
+	
+	// Operations whose batches are not yet complete
+	private Set<String> operationsInFlight;
+	
+	private List<QueueListener> listeners;
+	
+	// Completed batches are processed here - storing them involves fsync'd writes
+	private ExecutorService completionExecutor;
+	
+	
+	/**
+	 * Opens the queue in the messaging directory. Batches that were in flight when the queue was 
+	 * last stored are tracked again.
+	 * 
+	 * @param rootDir messaging directory
+	 */
+	public OutboundMessageQueue(File rootDir, ZCashClientCaller clientCaller, 
+			                    OperationTracker operationTracker, MessagingStorage messagingStorage)
+		throws IOException
+	{
+		this.queueFile          = new File(rootDir, QUEUE_FILE_NAME);
+		this.clientCaller       = clientCaller;
+		this.operationTracker   = operationTracker;
+		this.messagingStorage   = messagingStorage;
+		this.messages           = new ArrayList<QueuedMessage>();
+		this.operationsInFlight = new HashSet<String>();
+		this.listeners          = new ArrayList<QueueListener>();
+		this.completionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() 
+		{
+			@Override
+			public Thread newThread(Runnable r) 
+			{
+				Thread t = new Thread(r, "Outbound message batch completion");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		this.load();
+		
+		for (QueuedMessage msg : this.messages)
+		{
+			if (msg.state.equals(QueuedMessage.STATE_IN_PROGRESS))
+			{
+				this.operationsInFlight.add(msg.operationID);
+			}
+		}
+		
+		for (String opID : this.operationsInFlight)
+		{
+			Log.info("Tracking again outbound message operation {0} ...", opID);
+			this.trackBatch(opID);
+		}
+	}
+	
+	
+	public synchronized void addQueueListener(QueueListener listener)
+	{
+		this.listeners.add(listener);
+	}
+	
+	
+	/**
+	 * Adds a message to the queue. It is sent with the next batch.
+	 * 
+	 * @param contact recipient of the message
+	 * @param innerMessage the inner JSON message - stored as sent upon delivery
+	 * @param memos the memos to send - as encoded by the {@link MemoCodec}, more than one for a
+	 *        fragmented message
+	 */
+	public void enqueue(MessagingIdentity contact, JsonObject innerMessage, List<byte[]> memos)
+		throws IOException
+	{
+		synchronized (this)
+		{
+			QueuedMessage msg = new QueuedMessage();
+			msg.contact      = contact.toJSONObject(false);
+			msg.innerMessage = innerMessage;
+			for (byte[] memo : memos)
+			{
+				msg.memos.add(Util.encodeHexArray(memo));
+			}
+			
+			this.messages.add(msg);
+			this.store();
+		}
+		
+		this.notifyQueueChanged();
+	}
+	
+	
+	/**
+	 * Notifies the listeners if there are messages whose delivery is uncertain - e.g. left from
+	 * the last run. Called once the listeners are registered.
+	 */
+	public void reportUncertainMessages()
+	{
+		int uncertain = 0;
+		synchronized (this)
+		{
+			for (QueuedMessage msg : this.messages)
+			{
+				if (msg.state.equals(QueuedMessage.STATE_UNCERTAIN))
+				{
+					uncertain++;
+				}
+			}
+		}
+		
+		if (uncertain > 0)
+		{
+			this.notifyDeliveryUncertain(uncertain);
+		}
+	}
+	
+	
+	/**
+	 * Resolves the messages whose delivery is uncertain as decided by the user. Done in the
+	 * background.
+	 * 
+	 * @param resend if true the messages are sent again, otherwise they are stored as sent
+	 */
+	public void resolveUncertainMessages(final boolean resend)
+	{
+		this.completionExecutor.execute(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				List<QueuedMessage> uncertain = new ArrayList<QueuedMessage>();
+				try
+				{
+					synchronized (OutboundMessageQueue.this)
+					{
+						for (QueuedMessage msg : OutboundMessageQueue.this.messages)
+						{
+							if (msg.state.equals(QueuedMessage.STATE_UNCERTAIN))
+							{
+								uncertain.add(msg);
+								if (resend)
+								{
+									msg.state           = QueuedMessage.STATE_PENDING;
+									msg.nextAttemptTime = 0;
+								}
+							}
+						}
+						
+						if (resend)
+						{
+							OutboundMessageQueue.this.store();
+						}
+					}
+					
+					if (resend)
+					{
+						Log.info("Sending again {0} messages whose delivery is uncertain...", uncertain.size());
+						OutboundMessageQueue.this.notifyQueueChanged();
+					} else
+					{
+						Log.info("Storing as sent {0} messages whose delivery is uncertain...", uncertain.size());
+						OutboundMessageQueue.this.batchDelivered(uncertain, "");
+					}
+				} catch (IOException ioe)
+				{
+					Log.error("Unexpected error in resolving messages whose delivery is uncertain: ", ioe);
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Returns the number of messages not yet delivered - pending, in progress or uncertain.
+	 * 
+	 * @return the number of messages not yet delivered
+	 */
+	public synchronized int getNumberOfMessages()
+	{
+		return this.messages.size();
+	}
+	
+	
+	/**
+	 * Returns true if a batch of messages is currently being sent.
+	 * 
+	 * @return true if a batch of messages is currently being sent
+	 */
+	public synchronized boolean isBatchInFlight()
+	{
+		return !this.operationsInFlight.isEmpty();
+	}
+	
+	
+	/**
+	 * Sends the next batch of messages that are ready to go - if no batch is in flight. Called 
+	 * periodically from a background thread.
+	 */
+	public void dispatch()
+		throws IOException, InterruptedException
+	{
+		List<QueuedMessage> batch = new ArrayList<QueuedMessage>();
+		synchronized (this)
+		{
+			if (!this.operationsInFlight.isEmpty())
+			{
+				return;
+			}
+			
+			// One output per recipient address - messages to the same recipient wait for a later batch
+			long now = System.currentTimeMillis();
+			Set<String> recipients = new HashSet<String>();
+			for (QueuedMessage msg : this.messages)
+			{
+				if (msg.state.equals(QueuedMessage.STATE_PENDING) && (msg.nextAttemptTime <= now) &&
+					recipients.add(msg.getRecipientAddress()))
+				{
+					batch.add(msg);
+					if (batch.size() >= MAX_MESSAGES_PER_OPERATION)
+					{
+						break;
+					}
+				}
+			}
+		}
+		
+		if (batch.isEmpty())
+		{
+			return;
+		}
+		
+		MessagingIdentity ownIdentity = this.messagingStorage.getOwnIdentity();
+		MessagingOptions msgOptions = this.messagingStorage.getMessagingOptions();
+		Zatoshi amount = Zatoshi.valueOfZen(msgOptions.getAmountToSend());
+		Zatoshi fee    = Zatoshi.valueOfZen(msgOptions.getTransactionFee());
+		
+		String opID = null;
+		long sentBalance = -1;
+		try
+		{
+			// Only as many messages as the confirmed balance allows - the rest wait for a later batch
+			Zatoshi balance = this.clientCaller.getBalanceForAddress(ownIdentity.getSendreceiveaddress());
+			int affordable = (amount.signum() > 0) ? 
+				(int)Math.max(0, Math.min(
+					balance.subtract(fee).getZatoshis() / amount.getZatoshis(), batch.size())) :
+				batch.size();
+			if (affordable <= 0)
+			{
+				Log.info("Outbound messages are waiting for confirmed balance. Balance is: {0}", balance);
+				return;
+			}
+			
+			batch = batch.subList(0, affordable);
+			sentBalance = balance.getZatoshis();
+			
+			List<String[]> outputs = new ArrayList<String[]>();
+			for (QueuedMessage msg : batch)
+			{
+				outputs.add(new String[] { msg.getRecipientAddress(), amount.toString(), msg.getNextMemo() });
+			}
+			
+			Log.info("Sending a batch of {0} queued messages...", batch.size());
+			opID = this.clientCaller.sendCashToMany(
+				ownIdentity.getSendreceiveaddress(), outputs, fee, true);
+		} catch (WalletCallException wce)
+		{
+			Log.error("Wallet call error in sending a batch of messages: ", wce);
+			this.batchFailed(batch, wce.getMessage());
+			return;
+		}
+		
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			for (QueuedMessage msg : batch)
+			{
+				msg.state       = QueuedMessage.STATE_IN_PROGRESS;
+				msg.operationID = opID;
+				msg.sentTime    = now;
+				msg.sentBalance = sentBalance;
+			}
+			
+			this.operationsInFlight.add(opID);
+			this.store();
+		}
+		
+		this.notifyQueueChanged();
+		this.trackBatch(opID);
+	}
+	
+	
+	private void trackBatch(final String opID)
+	{
+		this.operationTracker.trackOperation(opID, new OperationTracker.OperationListener() 
+		{
+			@Override
+			public void operationCompleted(final OperationTracker.OperationResult result) 
+			{
+				// Called on the event dispatch thread - the batch is stored in the background
+				OutboundMessageQueue.this.completionExecutor.execute(new Runnable() 
+				{
+					@Override
+					public void run() 
+					{
+						try
+						{
+							OutboundMessageQueue.this.batchCompleted(opID, result);
+						} catch (IOException ioe)
+						{
+							Log.error("Unexpected error in completing a batch of messages: ", ioe);
+						}
+					}
+				});
+			}
+		});
+	}
+	
+	
+	// The batch stays in flight until it is processed - no other batch may be sent meanwhile
+	private void batchCompleted(String opID, OperationTracker.OperationResult result)
+		throws IOException
+	{
+		List<QueuedMessage> batch = new ArrayList<QueuedMessage>();
+		synchronized (this)
+		{
+			for (QueuedMessage msg : this.messages)
+			{
+				if (msg.state.equals(QueuedMessage.STATE_IN_PROGRESS) && msg.operationID.equals(opID))
+				{
+					batch.add(msg);
+				}
+			}
+		}
+		
+		try
+		{
+			if (result.isSuccessful())
+			{
+				Log.info("Batch of {0} messages delivered in transaction: {1}", batch.size(), result.getTXID());
+				this.batchDelivered(batch, result.getTXID());
+			} else if (result.isUnknownToWallet())
+			{
+				String txID = this.findBatchTransaction(batch);
+				if (txID != null)
+				{
+					Log.info("Batch of {0} messages of unknown operation {1} found in transaction: {2}", 
+						     batch.size(), opID, txID);
+					this.batchDelivered(batch, txID);
+				} else
+				{
+					Log.warning("Batch of {0} messages of unknown operation {1} not found in the wallet.", 
+						        batch.size(), opID);
+					this.batchUncertain(batch, result.getErrorMessage());
+				}
+			} else
+			{
+				Log.warning("Batch of {0} messages failed. Operation: {1}, error: {2}", 
+						    batch.size(), opID, result.getErrorMessage());
+				this.batchFailed(batch, result.getErrorMessage());
+			}
+		} finally
+		{
+			synchronized (this)
+			{
+				this.operationsInFlight.remove(opID);
+			}
+			
+			this.notifyQueueChanged();
+		}
+	}
+	
+	
+	/**
+	 * Looks for the transaction of a batch whose operation the wallet no longer knows. The memos
+	 * sent to others cannot be seen, but the transaction leaves a note at the sending address - 
+	 * for messages sent to oneself, one of the memos of the batch, otherwise its change. A change
+	 * note (empty memo) is only taken if its value is what the batch leaves of the balance before
+	 * it was sent - any other note with an empty memo, e.g. a top-up, does not prove delivery. The 
+	 * earliest such note received after the batch was sent is taken.
+	 * 
+	 * @return the ID of the transaction or null if not found
+	 */
+	private String findBatchTransaction(List<QueuedMessage> batch)
+	{
+		long sentTime = Long.MAX_VALUE;
+		long sentBalance = -1;
+		Set<String> memos = new HashSet<String>();
+		for (QueuedMessage msg : batch)
+		{
+			sentTime = Math.min(sentTime, msg.sentTime);
+			sentBalance = msg.sentBalance;
+			memos.add(msg.getNextMemo().toLowerCase());
+		}
+		
+		// Queued before send times were recorded - a transaction cannot be attributed to the batch
+		if ((sentTime <= 0) || batch.isEmpty())
+		{
+			return null;
+		}
+		
+		try
+		{
+			// Change expected - not known for batches sent before balances were recorded
+			Zatoshi expectedChange = null;
+			if (sentBalance >= 0)
+			{
+				MessagingOptions msgOptions = this.messagingStorage.getMessagingOptions();
+				expectedChange = Zatoshi.valueOf(sentBalance)
+					.subtract(Zatoshi.valueOfZen(msgOptions.getAmountToSend()).multiply(batch.size()))
+					.subtract(Zatoshi.valueOfZen(msgOptions.getTransactionFee()));
+			}
+			
+			String ownAddress = this.messagingStorage.getOwnIdentity().getSendreceiveaddress();
+			Set<String> candidates = new HashSet<String>();
+			for (JsonObject note : this.clientCaller.getTransactionMessagingDataForZaddress(ownAddress))
+			{
+				String memo = note.getString("memo", "").toLowerCase();
+				String txID = note.getString("txid", "");
+				if (txID.length() <= 0)
+				{
+					continue;
+				}
+				
+				if (memos.contains(memo))
+				{
+					candidates.add(txID);
+				} else if (memo.startsWith("f600000000") && (expectedChange != null) && 
+					       (expectedChange.signum() > 0) && (note.get("amount") != null) &&
+					       expectedChange.equals(Zatoshi.parse(note.get("amount"))))
+				{
+					candidates.add(txID);
+				}
+			}
+			
+			String batchTxID = null;
+			long batchTxTime = Long.MAX_VALUE;
+			Map<String, Long> times = (candidates.isEmpty()) ? 
+				new HashMap<String, Long>() : this.clientCaller.getWalletTransactionTimes(candidates);
+			for (Map.Entry<String, Long> entry : times.entrySet())
+			{
+				long time = entry.getValue() * 1000L;
+				if ((time >= (sentTime - SEND_TIME_TOLERANCE)) && (time < batchTxTime))
+				{
+					batchTxID   = entry.getKey();
+					batchTxTime = time;
+				}
+			}
+			
+			return batchTxID;
+		} catch (WalletCallException | IOException | InterruptedException | NumberFormatException ex)
+		{
+			Log.error("Could not look for the transaction of a batch of messages: ", ex);
+			return null;
+		}
+	}
+	
+	
+	// Stores the messages of a batch as sent - a fragmented message goes on with its next fragment
+	private void batchDelivered(List<QueuedMessage> batch, String txID)
+		throws IOException
+	{
+		List<QueuedMessage> delivered = new ArrayList<QueuedMessage>();
+		synchronized (this)
+		{
+			for (QueuedMessage queued : batch)
+			{
+				// More fragments to send - the next one goes with the next batch
+				if (++queued.memosSent < queued.memos.size())
+				{
+					queued.state       = QueuedMessage.STATE_PENDING;
+					queued.operationID = "";
+					queued.attempts    = 0;
+				} else
+				{
+					delivered.add(queued);
+				}
+			}
+		}
+		
+		// Written before the messages are removed from the queue - a crash may not lose them
+		List<MessagingIdentity> contacts = new ArrayList<MessagingIdentity>();
+		List<Message> sentMessages = new ArrayList<Message>();
+		for (QueuedMessage queued : delivered)
+		{
+			MessagingIdentity contact = new MessagingIdentity(queued.contact);
+			Message msg = new Message(queued.innerMessage);
+			msg.setTime(new Date());
+			msg.setDirection(DIRECTION_TYPE.SENT);
+			msg.setTransactionID(txID);
+			
+			// The contact may have been deleted in the meantime
+			try
+			{
+				this.messagingStorage.writeNewSentMessageForContact(contact, msg);
+			} catch (IOException ioe)
+			{
+				Log.error("Could not store sent message for contact: " + contact.getDiplayString(), ioe);
+			}
+			
+			contacts.add(contact);
+			sentMessages.add(msg);
+		}
+		
+		synchronized (this)
+		{
+			this.messages.removeAll(delivered);
+			this.store();
+		}
+		
+		for (int i = 0; i < contacts.size(); i++)
+		{
+			this.notifyMessageDelivered(contacts.get(i), sentMessages.get(i));
+		}
+		
+		this.notifyQueueChanged();
+	}
+	
+	
+	// Keeps the messages of a batch that could not be found on the blockchain until the user decides
+	private void batchUncertain(List<QueuedMessage> batch, String errorMessage)
+		throws IOException
+	{
+		int uncertain = 0;
+		synchronized (this)
+		{
+			for (QueuedMessage msg : batch)
+			{
+				msg.state       = QueuedMessage.STATE_UNCERTAIN;
+				msg.operationID = "";
+				msg.lastError   = (errorMessage != null) ? errorMessage : "";
+			}
+			
+			this.store();
+			
+			for (QueuedMessage msg : this.messages)
+			{
+				if (msg.state.equals(QueuedMessage.STATE_UNCERTAIN))
+				{
+					uncertain++;
+				}
+			}
+		}
+		
+		this.notifyDeliveryUncertain(uncertain);
+	}
+	
+	
+	// Schedules the messages of a failed batch for a retry or gives them up
+	private void batchFailed(List<QueuedMessage> batch, String errorMessage)
+		throws IOException
+	{
+		List<QueuedMessage> givenUp = new ArrayList<QueuedMessage>();
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			for (QueuedMessage msg : batch)
+			{
+				msg.attempts++;
+				msg.lastError   = (errorMessage != null) ? errorMessage : "";
+				msg.state       = QueuedMessage.STATE_PENDING;
+				msg.operationID = "";
+				
+				if (msg.attempts >= MAX_SEND_ATTEMPTS)
+				{
+					givenUp.add(msg);
+				} else
+				{
+					long delay = Math.min(INITIAL_RETRY_DELAY << (msg.attempts - 1), MAX_RETRY_DELAY);
+					msg.nextAttemptTime = now + delay;
+				}
+			}
+			
+			this.messages.removeAll(givenUp);
+			this.store();
+		}
+		
+		for (QueuedMessage msg : givenUp)
+		{
+			Log.warning("Giving up sending message {0} after {1} attempts.", msg.id, msg.attempts);
+			this.notifyMessageFailed(new MessagingIdentity(msg.contact), msg.lastError);
+		}
+		
+		this.notifyQueueChanged();
+	}
+	
+	
+	private void notifyMessageDelivered(final MessagingIdentity contact, final Message msg)
+	{
+		for (final QueueListener listener : this.getListeners())
+		{
+			SwingUtilities.invokeLater(new Runnable() 
+			{
+				@Override
+				public void run() 
+				{
+					listener.messageDelivered(contact, msg);
+				}
+			});
+		}
+	}
+	
+	
+	private void notifyMessageFailed(final MessagingIdentity contact, final String errorMessage)
+	{
+		for (final QueueListener listener : this.getListeners())
+		{
+			SwingUtilities.invokeLater(new Runnable() 
+			{
+				@Override
+				public void run() 
+				{
+					listener.messageFailed(contact, errorMessage);
+				}
+			});
+		}
+	}
+	
+	
+	private void notifyDeliveryUncertain(final int uncertainMessages)
+	{
+		for (final QueueListener listener : this.getListeners())
+		{
+			SwingUtilities.invokeLater(new Runnable() 
+			{
+				@Override
+				public void run() 
+				{
+					listener.deliveryUncertain(uncertainMessages);
+				}
+			});
+		}
+	}
+	
+	
+	private void notifyQueueChanged()
+	{
+		int pending = 0, inProgress = 0;
+		synchronized (this)
+		{
+			for (QueuedMessage msg : this.messages)
+			{
+				if (msg.state.equals(QueuedMessage.STATE_IN_PROGRESS))
+				{
+					inProgress++;
+				} else if (msg.state.equals(QueuedMessage.STATE_PENDING))
+				{
+					pending++;
+				}
+			}
+		}
+		
+		final int finalPending = pending, finalInProgress = inProgress;
+		for (final QueueListener listener : this.getListeners())
+		{
+			SwingUtilities.invokeLater(new Runnable() 
+			{
+				@Override
+				public void run() 
+				{
+					listener.queueChanged(finalPending, finalInProgress);
+				}
+			});
+		}
+	}
+	
+	
+	private synchronized List<QueueListener> getListeners()
+	{
+		return new ArrayList<QueueListener>(this.listeners);
+	}
+	
+	
+	private void load()
+		throws IOException
+	{
+		if (!this.queueFile.exists())
+		{
+			return;
+		}
+		
+		Reader r = null;
+		try
+		{
+			r = new BufferedReader(new InputStreamReader(new FileInputStream(this.queueFile), "UTF-8"));
+			JsonObject queue = Util.parseJsonObject(r);
+			
+			JsonValue messages = queue.get("messages");
+			if (messages != null)
+			{
+				for (JsonValue msg : messages.asArray())
+				{
+					this.messages.add(new QueuedMessage(msg.asObject()));
+				}
+			}
+		} finally
+		{
+			if (r != null)
+			{
+				r.close();
+			}
+		}
+		
+		Log.info("Loaded {0} outbound messages from the queue.", this.messages.size());
+	}
+	
+	
+	// Written to a temporary file first - so a crash may not leave a partial queue
+	private void store()
+		throws IOException
+	{
+		JsonArray messages = new JsonArray();
+		for (QueuedMessage msg : this.messages)
+		{
+			messages.add(msg.toJSONObject());
+		}
+		
+		JsonObject queue = new JsonObject();
+		queue.set("messages", messages);
+		
+		File tempFile = new File(this.queueFile.getParentFile(), QUEUE_FILE_NAME + ".tmp");
+		OutputStream os = null;
+		try
+		{
+			os = new FileOutputStream(tempFile);
+			queue.writeTo(os, WriterConfig.PRETTY_PRINT);
+		} finally 
+		{
+			if (os != null)
+			{
+				os.close();
+			}
+		}
+		
+		if ((this.queueFile.exists() && (!this.queueFile.delete())) || (!tempFile.renameTo(this.queueFile)))
+		{
+			throw new IOException("Could not store the outbound message queue: " + 
+		                          this.queueFile.getAbsolutePath());
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/************************************************************************************************
+ *   ____________ _   _  _____          _      _____ _    _ _______          __   _ _      _   
+ *  |___  /  ____| \ | |/ ____|        | |    / ____| |  | |_   _\ \        / /  | | |    | |  
+ *     / /| |__  |  \| | |     __ _ ___| |__ | |  __| |  | | | |  \ \  /\  / /_ _| | | ___| |_ 
+ *    / / |  __| | . ` | |    / _` / __| '_ \| | |_ | |  | | | |   \ \/  \/ / _` | | |/ _ \ __|
+ *   / /__| |____| |\  | |___| (_| \__ \ | | | |__| | |__| |_| |_   \  /\  / (_| | | |  __/ |_ 
+ *  /_____|______|_| \_|\_____\__,_|___/_| |_|\_____|\____/|_____|   \/  \/ \__,_|_|_|\___|\__|
+ *  
+ * Copyright (c) 2023 Horizen Foundation                                                                                           
+ * Copyright (c) 2016-2021 Zen Blockchain Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ **********************************************************************************/
+package com.vaklinov.zcashui.msg;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.vaklinov.zcashui.Log;
+import com.vaklinov.zcashui.Util;
+
+
+/**
+ * Persistent set of the IDs of all transactions whose messages have already been received and
+ * stored. It is used by the message collector to skip known transactions without loading the
+ * stored messages. The IDs are kept in an append-only text file - one ID per line:
+ * 
+ * ~/.ZENCashSwingWalletUI/messaging/received_txids.dat
+ * 
+ * Lookups go through an in-memory Bloom filter first - a negative answer from it is final, 
+ * which is the typical answer for new transactions. Positive answers are confirmed in a set.
+ */
+public class ReceivedTransactionIndex
+{
+	static final String INDEX_FILE_NAME = "received_txids.dat";
+	
+	private static final int MIN_BLOOM_CAPACITY = 1024;
+	
+	private File indexFile;
+	
+	private Set<String> transactionIDs;
+	
+	private BloomFilter bloomFilter;
+	
+	
+	/**
+	 * Opens the index in the messaging directory. 
+	 * 
+	 * @param rootDir messaging directory
+	 */
+	public ReceivedTransactionIndex(File rootDir)
+		throws IOException
+	{
+		this.indexFile = new File(rootDir, INDEX_FILE_NAME);
+		this.transactionIDs = new HashSet<String>();
+		
+		if (this.indexFile.exists())
+		{
+			BufferedReader r = new BufferedReader(
+				new InputStreamReader(new FileInputStream(this.indexFile), "US-ASCII"));
+			try
+			{
+				String line;
+				while ((line = r.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.length() > 0)
+					{
+						this.transactionIDs.add(line);
+					}
+				}
+			} finally
+			{
+				r.close();
+			}
+		}
+		
+		this.rebuildBloomFilter();
+	}
+	
+	
+	/**
+	 * Checks if the index file has been created. A missing file means the index has to be built
+	 * from the already stored messages once.
+	 * 
+	 * @return true if the index file exists.
+	 */
+	public boolean isPersisted()
+	{
+		return this.indexFile.exists();
+	}
+	
+	
+	public synchronized boolean contains(String transactionID)
+	{
+		if (Util.stringIsEmpty(transactionID) || (!this.bloomFilter.mightContain(transactionID)))
+		{
+			return false;
+		}
+		
+		return this.transactionIDs.contains(transactionID);
+	}
+	
+	
+	public synchronized int size()
+	{
+		return this.transactionIDs.size();
+	}
+	
+	
+	public synchronized void add(String transactionID)
+		throws IOException
+	{
+		if (Util.stringIsEmpty(transactionID) || this.contains(transactionID))
+		{
+			return;
+		}
+		
+		this.appendToFile(Collections.singleton(transactionID));
+		this.addToMemory(transactionID);
+	}
+	
+	
+	/**
+	 * Adds many transaction IDs with a single write. Also creates the index file if it is missing,
+	 * even if there are no IDs to add.
+	 * 
+	 * @param transactionIDs IDs to add
+	 */
+	public synchronized void addAll(Collection<String> transactionIDs)
+		throws IOException
+	{
+		Set<String> newIDs = new HashSet<String>();
+		for (String id : transactionIDs)
+		{
+			if ((!Util.stringIsEmpty(id)) && (!this.contains(id)))
+			{
+				newIDs.add(id);
+			}
+		}
+		
+		this.appendToFile(newIDs);
+		for (String id : newIDs)
+		{
+			this.addToMemory(id);
+		}
+	}
+	
+	
+	private void addToMemory(String transactionID)
+	{
+		this.transactionIDs.add(transactionID);
+		
+		if (this.transactionIDs.size() > this.bloomFilter.getCapacity())
+		{
+			this.rebuildBloomFilter();
+		} else
+		{
+			this.bloomFilter.add(transactionID);
+		}
+	}
+	
+	
+	private void rebuildBloomFilter()
+	{
+		// Leave room for growth so the filter is not rebuilt too often
+		this.bloomFilter = new BloomFilter(Math.max(MIN_BLOOM_CAPACITY, this.transactionIDs.size() * 2));
+		for (String id : this.transactionIDs)
+		{
+			this.bloomFilter.add(id);
+		}
+		
+		Log.info("Received transaction index Bloom filter sized for {0} IDs, current IDs: {1}",
+				 this.bloomFilter.getCapacity(), this.transactionIDs.size());
+	}
+	
+	
+	private void appendToFile(Collection<String> ids)
+		throws IOException
+	{
+		StringBuilder data = new StringBuilder();
+		for (String id : ids)
+		{
+			data.append(id).append("\n");
+		}
+		
+		FileOutputStream fos = new FileOutputStream(this.indexFile, true);
+		try
+		{
+			fos.write(data.toString().getBytes("US-ASCII"));
+			fos.getFD().sync();
+		} finally
+		{
+			fos.close();
+		}
+	}
+	
+	
+	/**
+	 * Simple Bloom filter for strings. Uses about 10 bits per element and 7 hash functions 
+	 * derived from two base hashes, giving a false positive rate below 1% at full capacity.
+	 */
+	static class BloomFilter
+	{
+		private static final int BITS_PER_ELEMENT = 10;
+		private static final int NUM_HASHES       = 7;
+		
+		private final int    capacity;
+		private final long[] bits;
+		private final int    numBits;
+		
+		
+		BloomFilter(int capacity)
+		{
+			this.capacity = capacity;
+			this.numBits  = capacity * BITS_PER_ELEMENT;
+			this.bits     = new long[(this.numBits + 63) / 64];
+		}
+		
+		
+		int getCapacity()
+		{
+			return this.capacity;
+		}
+		
+		
+		void add(String s)
+		{
+			int h1 = s.hashCode();
+			int h2 = secondHash(s);
+			for (int i = 0; i < NUM_HASHES; i++)
+			{
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.numBits;
+				this.bits[bit >>> 6] |= (1L << (bit & 63));
+			}
+		}
+		
+		
+		boolean mightContain(String s)
+		{
+			int h1 = s.hashCode();
+			int h2 = secondHash(s);
+			for (int i = 0; i < NUM_HASHES; i++)
+			{
+				int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.numBits;
+				if ((this.bits[bit >>> 6] & (1L << (bit & 63))) == 0)
+				{
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		
+		// FNV-1a - independent of String.hashCode()
+		private static int secondHash(String s)
+		{
+			int h = 0x811C9DC5;
+			for (int i = 0; i < s.length(); i++)
+			{
+				h ^= s.charAt(i);
+				h *= 0x01000193;
+			}
+			
+			return h | 1; // Odd, so that successive probes differ
+		}
+	} // End static class BloomFilter
+}
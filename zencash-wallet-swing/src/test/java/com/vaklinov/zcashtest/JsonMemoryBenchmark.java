@@ -0,0 +1,274 @@
+package com.vaklinov.zcashtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonHandler;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonParser;
+import com.eclipsesource.json.JsonValue;
+
+
+/**
+ * Compares the retained memory and member lookup time of documents parsed by Json.parse() 
+ * (shared member names, presized objects, growing hash index) with documents built the plain 
+ * way - a new JsonObject and a new name String for every member. The payloads resemble the 
+ * wallet's listtransactions, listunspent and z_listreceivedbyaddress responses.
+ * 
+ * Run with: java -Xmx2g -cp ... com.vaklinov.zcashtest.JsonMemoryBenchmark [entries]
+ */
+public class JsonMemoryBenchmark 
+{
+	public static void main(String[] args) 
+	{
+		int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+		
+		String[][] payloads = new String[][]
+		{
+			{ "listtransactions",        createListTransactions(entries) },
+			{ "listunspent",             createListUnspent(entries) },
+			{ "z_listreceivedbyaddress", createZListReceived(entries) }
+		};
+		
+		for (String[] payload : payloads)
+		{
+			// Warm up both paths
+			for (int i = 0; i < 3; i++)
+			{
+				parsePlain(payload[1]);
+				Json.parse(payload[1]);
+			}
+			
+			long plainMemory = measureRetainedMemory(payload[1], true);
+			long sharedMemory = measureRetainedMemory(payload[1], false);
+			
+			long plainLookup = measureLookupTime(parsePlain(payload[1]).asArray());
+			long sharedLookup = measureLookupTime(Json.parse(payload[1]).asArray());
+			
+			System.out.println(String.format(Locale.ROOT, 
+				"%-24s %7d entries: retained %7.1f MB -> %7.1f MB (%4.1f%% less), lookups %5d ms -> %5d ms",
+				payload[0], entries, plainMemory / 1e6, sharedMemory / 1e6, 
+				100.0 * (plainMemory - sharedMemory) / plainMemory, plainLookup, sharedLookup));
+		}
+	}
+	
+	
+	private static long measureRetainedMemory(String json, boolean plain)
+	{
+		long before = usedMemory();
+		JsonValue value = plain ? parsePlain(json) : Json.parse(json);
+		long after = usedMemory();
+		
+		// Keep the value reachable until measured
+		if (value.asArray().size() < 0)
+		{
+			System.out.println(value);
+		}
+		
+		return after - before;
+	}
+	
+	
+	// Looks up members of all objects repeatedly
+	private static long measureLookupTime(JsonArray array)
+	{
+		String[] names = { "txid", "amount", "confirmations", "address", "memo", "spendable" };
+		
+		long start = System.currentTimeMillis();
+		int found = 0;
+		for (int round = 0; round < 20; round++)
+		{
+			for (JsonValue entry : array)
+			{
+				JsonObject obj = entry.asObject();
+				for (String name : names)
+				{
+					if (obj.get(name) != null)
+					{
+						found++;
+					}
+				}
+			}
+		}
+		
+		if (found < 0)
+		{
+			System.out.println(found);
+		}
+		
+		return System.currentTimeMillis() - start;
+	}
+	
+	
+	private static long usedMemory()
+	{
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(50);
+			} catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	
+	// Builds the tree without the large-document measures - as Json.parse() used to
+	private static JsonValue parsePlain(String json)
+	{
+		final List<JsonValue> result = new ArrayList<JsonValue>(1);
+		
+		new JsonParser(new JsonHandler<JsonArray, JsonObject>() 
+		{
+			JsonValue value;
+			
+			@Override
+			public JsonArray startArray() 
+			{
+				return new JsonArray();
+			}
+			
+			@Override
+			public JsonObject startObject() 
+			{
+				return new JsonObject();
+			}
+			
+			@Override
+			public void endNull() 
+			{
+				value = Json.NULL;
+			}
+			
+			@Override
+			public void endBoolean(boolean bool) 
+			{
+				value = bool ? Json.TRUE : Json.FALSE;
+			}
+			
+			@Override
+			public void endString(String string) 
+			{
+				value = Json.value(string);
+			}
+			
+			@Override
+			public void endNumber(String string) 
+			{
+				// JsonNumber is not public - parsing keeps the number text as is
+				value = Json.parse(string);
+			}
+			
+			@Override
+			public void endArray(JsonArray array) 
+			{
+				value = array;
+				result.clear();
+				result.add(array);
+			}
+			
+			@Override
+			public void endObject(JsonObject object) 
+			{
+				value = object;
+			}
+			
+			@Override
+			public void endArrayValue(JsonArray array) 
+			{
+				array.add(value);
+			}
+			
+			@Override
+			public void endObjectValue(JsonObject object, String name) 
+			{
+				object.add(name, value);
+			}
+		}).parse(json);
+		
+		return result.get(0);
+	}
+	
+	
+	private static String createListTransactions(int entries)
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < entries; i++)
+		{
+			json.append((i > 0) ? ",\n" : "\n");
+			json.append("  {\"account\": \"\", \"address\": \"znVx").append(hex(i, 31)).append("\", ")
+			    .append("\"category\": \"").append((i % 3 == 0) ? "send" : "receive").append("\", ")
+			    .append("\"amount\": ").append(i % 100).append(".").append(String.format("%08d", i)).append(", ")
+			    .append("\"vout\": ").append(i % 4).append(", ")
+			    .append("\"confirmations\": ").append(entries - i).append(", ")
+			    .append("\"blockhash\": \"0000000").append(hex(i, 57)).append("\", ")
+			    .append("\"blockindex\": ").append(i % 50).append(", ")
+			    .append("\"blocktime\": ").append(1500000000L + i * 150).append(", ")
+			    .append("\"expiryheight\": 0, ")
+			    .append("\"txid\": \"").append(hex(i * 7919, 64)).append("\", ")
+			    .append("\"walletconflicts\": [], ")
+			    .append("\"time\": ").append(1500000000L + i * 150).append(", ")
+			    .append("\"timereceived\": ").append(1500000000L + i * 150).append(", ")
+			    .append("\"vjoinsplit\": [], \"size\": 225}");
+		}
+		return json.append("\n]").toString();
+	}
+	
+	
+	private static String createListUnspent(int entries)
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < entries; i++)
+		{
+			json.append((i > 0) ? ",\n" : "\n");
+			json.append("  {\"txid\": \"").append(hex(i * 104729, 64)).append("\", ")
+			    .append("\"vout\": ").append(i % 3).append(", ")
+			    .append("\"generated\": ").append(i % 10 == 0).append(", ")
+			    .append("\"address\": \"znVx").append(hex(i % 20, 31)).append("\", ")
+			    .append("\"scriptPubKey\": \"76a914").append(hex(i % 20, 40)).append("88ac\", ")
+			    .append("\"amount\": 0.").append(String.format("%08d", i)).append(", ")
+			    .append("\"confirmations\": ").append(entries - i).append(", ")
+			    .append("\"spendable\": true}");
+		}
+		return json.append("\n]").toString();
+	}
+	
+	
+	private static String createZListReceived(int entries)
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < entries; i++)
+		{
+			json.append((i > 0) ? ",\n" : "\n");
+			json.append("  {\"txid\": \"").append(hex(i * 15485863, 64)).append("\", ")
+			    .append("\"amount\": 0.0001, ")
+			    .append("\"memo\": \"f6").append(hex(0, 8)).append("\", ")
+			    .append("\"outindex\": 0, \"confirmations\": ").append(entries - i).append(", ")
+			    .append("\"change\": false}");
+		}
+		return json.append("\n]").toString();
+	}
+	
+	
+	private static String hex(long seed, int length)
+	{
+		StringBuilder hex = new StringBuilder(length);
+		long x = seed * 6364136223846793005L + 1442695040888963407L;
+		while (hex.length() < length)
+		{
+			x = x * 6364136223846793005L + 1442695040888963407L;
+			hex.append(Long.toHexString(x >>> 4));
+		}
+		hex.setLength(length);
+		return hex.toString();
+	}
+}